@@ -0,0 +1,156 @@
+package de.minebench.syncinv;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.bukkit.NamespacedKey;
+import org.bukkit.advancement.Advancement;
+import org.bukkit.entity.Player;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the awarded advancement criteria of online players from their last capture and which
+ * advancements got criteria granted since then so that a snapshot only has to read those again.
+ * Revoking criteria isn't reported by the server so all advancements are read again periodically
+ * and after this plugin applied data. The tracking is only used for the periodic snapshots, the
+ * final one when a player leaves reads all advancements. Players are seeded when they join so that
+ * already their first snapshot only needs the changed advancements.
+ * <p>
+ * Only used on the main thread.
+ */
+public class AdvancementTracker {
+    private final SyncInv plugin;
+    private final long fullCaptureInterval;
+
+    private final Map<UUID, Tracked> tracked = new HashMap<>();
+
+    private long seeds = 0;
+    private long fullCaptures = 0;
+    private long trackedCaptures = 0;
+
+    AdvancementTracker(SyncInv plugin) {
+        this.plugin = plugin;
+        this.fullCaptureInterval = TimeUnit.SECONDS.toMillis(plugin.getConfig().getLong("advancement-tracking.full-resync-interval", 600));
+    }
+
+    /**
+     * Get the awarded criteria of a player for a periodic snapshot
+     * @param player    The player
+     * @param into      The map to put the advancements with awarded criteria into
+     */
+    void capture(Player player, Map<String, Map<String, Long>> into) {
+        if (!player.isOnline()) {
+            // Offline players loaded by OpenInv don't report changes
+            captureAll(player, into);
+            return;
+        }
+        for (Map.Entry<String, Map<String, Long>> entry : update(player).awarded.entrySet()) {
+            into.put(entry.getKey(), new HashMap<>(entry.getValue()));
+        }
+    }
+
+    private Tracked update(Player player) {
+        long now = System.currentTimeMillis();
+        Tracked state = tracked.get(player.getUniqueId());
+        if (state == null || now - state.fullCapture > fullCaptureInterval) {
+            state = new Tracked(now);
+            captureAll(player, state.awarded);
+            tracked.put(player.getUniqueId(), state);
+            fullCaptures++;
+        } else {
+            for (String key : state.changed) {
+                NamespacedKey namespacedKey = NamespacedKey.fromString(key);
+                Advancement advancement = namespacedKey != null ? plugin.getServer().getAdvancement(namespacedKey) : null;
+                Map<String, Long> awarded = advancement != null ? plugin.getAwardedCriteria(player.getAdvancementProgress(advancement)) : null;
+                if (awarded != null && !awarded.isEmpty()) {
+                    state.awarded.put(key, awarded);
+                } else {
+                    state.awarded.remove(key);
+                }
+            }
+            trackedCaptures++;
+        }
+        state.changed.clear();
+        return state;
+    }
+
+    /**
+     * Read all advancements of an online player so that the following captures only have to read the changed ones
+     * @param player    The player
+     */
+    public void seed(Player player) {
+        Tracked state = new Tracked(System.currentTimeMillis());
+        captureAll(player, state.awarded);
+        tracked.put(player.getUniqueId(), state);
+        seeds++;
+    }
+
+    private void captureAll(Player player, Map<String, Map<String, Long>> into) {
+        for (Iterator<Advancement> it = plugin.getServer().advancementIterator(); it.hasNext();) {
+            Advancement advancement = it.next();
+            Map<String, Long> awarded = plugin.getAwardedCriteria(player.getAdvancementProgress(advancement));
+            if (!awarded.isEmpty()) {
+                into.put(advancement.getKey().toString(), awarded);
+            }
+        }
+    }
+
+    /**
+     * Remember that a criterion of an advancement was granted to a player
+     * @param playerId      The UUID of the player
+     * @param advancement   The advancement
+     */
+    public void onGrant(UUID playerId, Advancement advancement) {
+        Tracked state = tracked.get(playerId);
+        if (state != null) {
+            state.changed.add(advancement.getKey().toString());
+        }
+    }
+
+    /**
+     * Stop tracking a player, e.g. after they logged out
+     * @param playerId  The UUID of the player
+     */
+    public void invalidate(UUID playerId) {
+        tracked.remove(playerId);
+    }
+
+    /**
+     * @return A human readable line describing the tracking
+     */
+    public String getStats() {
+        return "Advancement tracking: " + tracked.size() + " players tracked, " + seeds + " seeded on join, " + fullCaptures + " full and " + trackedCaptures + " tracked captures";
+    }
+
+    private static class Tracked {
+        private final long fullCapture;
+        private final Map<String, Map<String, Long>> awarded = new HashMap<>();
+        private final Set<String> changed = new HashSet<>();
+
+        private Tracked(long fullCapture) {
+            this.fullCapture = fullCapture;
+        }
+    }
+}
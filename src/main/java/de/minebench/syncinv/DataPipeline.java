@@ -0,0 +1,189 @@
+package de.minebench.syncinv;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * Gets the data of players in stages: the data is captured on the main thread with the items
+ * and persistent data only being copied, then serialized and then sent. When asynchronous sending
+ * is enabled the last two stages run on their own thread, otherwise directly. The time that
+ * each stage takes is recorded either way.
+ */
+public class DataPipeline {
+    private final SyncInv plugin;
+    private final ExecutorService executor;
+
+    private final Stage capture = new Stage("Data capture on the main thread");
+    private final Stage serialize = new Stage("Data serialization");
+    private final Stage send = new Stage("Data encoding and sending");
+    private final LongAdder pending = new LongAdder();
+
+    DataPipeline(SyncInv plugin) {
+        this.plugin = plugin;
+        if (plugin.getConfig().getBoolean("async-logout-data")) {
+            // Only one thread so that the data of a player is sent in the order it was captured
+            executor = Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder().setNameFormat(plugin.getName() + " Data Pipeline").setDaemon(true).build());
+        } else {
+            executor = null;
+        }
+    }
+
+    /**
+     * Capture the data of a player. Has to be called on the main thread.
+     * The data has to be passed to {@link #serialize(PlayerData)} before it can be used.
+     * @param player    The player
+     * @return The captured data
+     */
+    public PlayerData capture(Player player) {
+        return capture(player, false);
+    }
+
+    /**
+     * Capture the data of a player. Has to be called on the main thread.
+     * The data has to be passed to {@link #serialize(PlayerData)} before it can be used.
+     * @param player    The player
+     * @param logout    Whether this is the final capture before the player leaves the server
+     * @return The captured data
+     */
+    public PlayerData capture(Player player, boolean logout) {
+        long start = System.nanoTime();
+        try {
+            return plugin.captureData(player, logout);
+        } finally {
+            capture.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Serialize what was only copied when the data was captured
+     * @param data  The data
+     */
+    public void serialize(PlayerData data) {
+        long start = System.nanoTime();
+        try {
+            plugin.serializeData(data);
+        } finally {
+            serialize.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Serialize captured data and send it, on another thread if asynchronous sending is enabled
+     * @param data      The captured data
+     * @param sender    What sends the serialized data
+     */
+    public void send(PlayerData data, Consumer<PlayerData> sender) {
+        if (executor != null) {
+            pending.increment();
+            try {
+                executor.execute(() -> {
+                    try {
+                        serializeAndSend(data, sender);
+                    } finally {
+                        pending.decrement();
+                    }
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                // Shutting down, send it directly
+                pending.decrement();
+            }
+        }
+        serializeAndSend(data, sender);
+    }
+
+    private void serializeAndSend(PlayerData data, Consumer<PlayerData> sender) {
+        try {
+            serialize(data);
+            long start = System.nanoTime();
+            try {
+                sender.accept(data);
+            } finally {
+                send.record(System.nanoTime() - start);
+            }
+        } catch (RuntimeException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error while sending data of " + data.getPlayerId() + "!", e);
+        }
+    }
+
+    /**
+     * Send all data that is still waiting and stop accepting new data
+     */
+    public void shutdown() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return Human readable lines with the timings of each stage
+     */
+    public List<String> getStats() {
+        List<String> stats = new ArrayList<>();
+        stats.add("Data pipeline: " + (executor != null ? "asynchronous, " + pending.sum() + " pending" : "synchronous"));
+        stats.add(capture.toString());
+        stats.add(serialize.toString());
+        stats.add(send.toString());
+        return stats;
+    }
+
+    private static class Stage {
+        private final String name;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        private void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        @Override
+        public String toString() {
+            long count = this.count.sum();
+            return String.format("%s: %d times, average %.3fms, max %.3fms",
+                    name, count, count > 0 ? totalNanos.sum() / 1_000_000.0 / count : 0, maxNanos.get() / 1_000_000.0);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package de.minebench.syncinv;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The parts of a {@link PlayerData} that can be left out of a delta when they didn't change
+ */
+public enum DataSection {
+    INVENTORY,
+    ENDERCHEST,
+    ADVANCEMENTS,
+    STATISTICS,
+    PERSISTENT_DATA,
+    MAPS;
+
+    /**
+     * Bit mask with all sections included
+     */
+    public static final int ALL = (1 << values().length) - 1;
+
+    public int getBit() {
+        return 1 << ordinal();
+    }
+}
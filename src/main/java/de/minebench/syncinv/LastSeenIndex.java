@@ -0,0 +1,414 @@
+package de.minebench.syncinv;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.logging.Level;
+
+/**
+ * Keeps the last seen times of all players in a memory-mapped {@link LastSeenStore} so that they
+ * can be answered and updated without touching the disk. The operating system writes the changes
+ * to the store file in the background.
+ * <p>
+ * Older versions stored the time as the modification time of the player's .dat file or in a
+ * .lastseen file next to it. On startup the player data folder is scanned in the background to
+ * add players that the store doesn't know yet, e.g. all of them when the store was just created.
+ * Until that scan is done lookups of unknown players fall back to reading their files.
+ * <p>
+ * The store is only updated when players log out or data is applied while the server saves the
+ * files of online players periodically. The players that are online are therefore written to a
+ * file too so that their last seen time can be taken from their player files after a crash.
+ */
+public class LastSeenIndex {
+    private static final String STORE_FILE = "syncinv-lastseen.bin";
+    private static final String ONLINE_FILE = "syncinv-online.txt";
+    private static final String DAT_SUFFIX = ".dat";
+    private static final String LAST_SEEN_SUFFIX = ".lastseen";
+    private static final int SCAN_CHUNK_SIZE = 1024;
+    private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+    private final SyncInv plugin;
+    private final File playerDataFolder;
+
+    private LastSeenStore store;
+
+    /**
+     * Whether all player files were scanned into the store
+     */
+    private volatile boolean scanned = false;
+    private ExecutorService scanExecutor = null;
+
+    private final Set<UUID> online = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean onlineChanged = new AtomicBoolean(false);
+
+    /**
+     * @param plugin            The plugin
+     * @param playerDataFolder  The folder that contains the player files
+     */
+    public LastSeenIndex(SyncInv plugin, File playerDataFolder) {
+        this.plugin = plugin;
+        this.playerDataFolder = playerDataFolder;
+    }
+
+    /**
+     * Open the store and start scanning the player data folder in the background
+     * @return The amount of players in the store before the scan
+     */
+    public int load() {
+        Path storeFile = playerDataFolder.toPath().resolve(STORE_FILE);
+        try {
+            playerDataFolder.mkdirs();
+            store = new LastSeenStore(storeFile, estimatePlayerCount());
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Unable to open the last seen store " + storeFile + "! Last seen times will only be kept in memory until the next restart.", e);
+            store = new LastSeenStore(estimatePlayerCount());
+        }
+        recoverOnlinePlayers();
+
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        scanExecutor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat(plugin.getName() + " Player Data Scan #%d").setDaemon(true).build());
+        // The scan waits for the chunks on its own thread so that all pool threads can read files
+        Thread scanThread = new Thread(() -> {
+            try {
+                scan();
+                scanned = true;
+            } catch (RuntimeException e) {
+                plugin.getLogger().log(Level.SEVERE, "Error while scanning " + playerDataFolder + " for last seen times! Unknown players will be looked up in their files.", e);
+            } finally {
+                scanExecutor.shutdown();
+            }
+        }, plugin.getName() + " Player Data Scan");
+        scanThread.setDaemon(true);
+        scanThread.start();
+        return store.size();
+    }
+
+    /**
+     * Take the last seen times of players that were online when the server crashed from their player files
+     */
+    private void recoverOnlinePlayers() {
+        Path onlineFile = playerDataFolder.toPath().resolve(ONLINE_FILE);
+        if (!Files.exists(onlineFile)) {
+            return;
+        }
+        int recovered = 0;
+        try {
+            for (String line : Files.readAllLines(onlineFile)) {
+                UUID playerId = parseUuid(line.trim());
+                if (playerId == null) {
+                    continue;
+                }
+                long saved = readDatFile(playerDataFolder.toPath().resolve(playerId + DAT_SUFFIX));
+                if (saved > store.get(playerId) && set(playerId, saved)) {
+                    recovered++;
+                }
+            }
+            Files.delete(onlineFile);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Unable to read the players that were online before the server stopped from " + onlineFile + "!", e);
+        }
+        plugin.getLogger().log(Level.INFO, "Took the last seen times of " + recovered + " players that were online when the server stopped from their player files");
+    }
+
+    /**
+     * Set whether a player is online on this server
+     * @param playerId  The UUID of the player
+     * @param isOnline  Whether the player is online
+     */
+    public void setOnline(UUID playerId, boolean isOnline) {
+        if ((isOnline ? online.add(playerId) : online.remove(playerId)) && onlineChanged.compareAndSet(false, true)) {
+            plugin.runAsync(this::writeOnlineFile);
+        }
+    }
+
+    /**
+     * Check whether a player is online on this server. Can be used from any thread.
+     * @param playerId  The UUID of the player
+     * @return Whether the player is online
+     */
+    public boolean isOnline(UUID playerId) {
+        return online.contains(playerId);
+    }
+
+    private synchronized void writeOnlineFile() {
+        onlineChanged.set(false);
+        Path onlineFile = playerDataFolder.toPath().resolve(ONLINE_FILE);
+        Path tempFile = playerDataFolder.toPath().resolve(ONLINE_FILE + ".tmp");
+        StringBuilder content = new StringBuilder();
+        for (UUID playerId : online) {
+            content.append(playerId).append('\n');
+        }
+        try {
+            Files.writeString(tempFile, content);
+            Files.move(tempFile, onlineFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Unable to write the online players to " + onlineFile + "!", e);
+        }
+    }
+
+    private int estimatePlayerCount() {
+        String[] files = playerDataFolder.list();
+        return files != null ? files.length : 0;
+    }
+
+    /**
+     * Add the last seen times of all players that have files but aren't in the store yet.
+     * The .lastseen files are added first as they take priority over the .dat modification time.
+     */
+    private void scan() {
+        long start = System.nanoTime();
+        List<Path> datFiles = new ArrayList<>();
+        List<Path> lastSeenFiles = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(playerDataFolder.toPath())) {
+            for (Path path : stream) {
+                String fileName = path.getFileName().toString();
+                if (fileName.endsWith(DAT_SUFFIX)) {
+                    datFiles.add(path);
+                } else if (fileName.endsWith(LAST_SEEN_SUFFIX)) {
+                    lastSeenFiles.add(path);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        int total = datFiles.size() + lastSeenFiles.size();
+        plugin.getLogger().log(Level.INFO, "Scanning " + total + " player files for last seen times...");
+
+        AtomicInteger processed = new AtomicInteger();
+        AtomicInteger added = new AtomicInteger();
+        scanChunks(lastSeenFiles, this::readLastSeenFile, processed, added, total, start);
+        scanChunks(datFiles, this::readDatFile, processed, added, total, start);
+
+        if (!lastSeenFiles.isEmpty() && !store.isInMemory()) {
+            store.force();
+            // The store is the only source now, remove the workaround files
+            for (Path path : lastSeenFiles) {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    plugin.logDebug("Unable to remove migrated last seen file " + path + ": " + e.getMessage());
+                }
+            }
+        }
+        plugin.getLogger().log(Level.INFO, "Scanned " + total + " player files in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms, added " + added.get()
+                + " players to the last seen index which now knows " + store.size() + " players.");
+    }
+
+    /**
+     * Read the last seen times from files in parallel chunks and wait until all are done
+     */
+    private void scanChunks(List<Path> files, LastSeenReader reader, AtomicInteger processed, AtomicInteger added, int total, long start) {
+        List<CompletableFuture<Void>> chunks = new ArrayList<>();
+        for (int i = 0; i < files.size(); i += SCAN_CHUNK_SIZE) {
+            List<Path> chunk = files.subList(i, Math.min(files.size(), i + SCAN_CHUNK_SIZE));
+            chunks.add(CompletableFuture.runAsync(() -> {
+                for (Path path : chunk) {
+                    UUID playerId = parseUuid(path.getFileName().toString());
+                    if (playerId != null) {
+                        long lastSeen = reader.read(path);
+                        if (lastSeen > 0 && putIfAbsent(playerId, lastSeen)) {
+                            added.incrementAndGet();
+                        }
+                    }
+                    processed.incrementAndGet();
+                }
+            }, scanExecutor));
+        }
+        long nextProgress = System.nanoTime() + PROGRESS_INTERVAL;
+        for (CompletableFuture<Void> chunk : chunks) {
+            while (true) {
+                try {
+                    chunk.get(Math.max(1, nextProgress - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    plugin.getLogger().log(Level.INFO, "Scanned " + processed.get() + "/" + total + " player files in "
+                            + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + "s...");
+                    nextProgress = System.nanoTime() + PROGRESS_INTERVAL;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        }
+    }
+
+    private interface LastSeenReader {
+        long read(Path path);
+    }
+
+    private long readDatFile(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class).lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            return 0; // Deleted in the meantime
+        }
+    }
+
+    private long readLastSeenFile(Path path) {
+        try {
+            return Long.parseLong(Files.readString(path).trim());
+        } catch (IOException e) {
+            return 0;
+        } catch (NumberFormatException e) {
+            plugin.getLogger().log(Level.WARNING, "Invalid last seen file " + path.getFileName() + "! Using the player file's modification time.");
+            return 0;
+        }
+    }
+
+    private static UUID parseUuid(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        try {
+            return UUID.fromString(dot > 0 ? fileName.substring(0, dot) : fileName);
+        } catch (IllegalArgumentException e) {
+            return null; // Temporary files or other things that aren't player files
+        }
+    }
+
+    /**
+     * @return Whether the scan of the player data folder is done
+     */
+    public boolean isScanned() {
+        return scanned;
+    }
+
+    /**
+     * Get the time a player was last seen on this server
+     * @param playerId  The UUID of the player
+     * @return          The timestamp in milliseconds or 0 if the player has no data on this server
+     */
+    public long get(UUID playerId) {
+        long lastSeen = store.get(playerId);
+        if (lastSeen == 0 && !scanned) {
+            // The scan didn't reach this player yet, look at the files directly
+            lastSeen = readLastSeenFile(playerDataFolder.toPath().resolve(playerId + LAST_SEEN_SUFFIX));
+            if (lastSeen == 0) {
+                lastSeen = readDatFile(playerDataFolder.toPath().resolve(playerId + DAT_SUFFIX));
+            }
+            if (lastSeen > 0) {
+                putIfAbsent(playerId, lastSeen);
+                // Another thread might have set it in the meantime
+                lastSeen = store.get(playerId);
+            }
+        }
+        return lastSeen;
+    }
+
+    /**
+     * Set the time a player was last seen on this server
+     * @param playerId  The UUID of the player
+     * @param timeStamp The timestamp in milliseconds
+     * @return          true if the time was successfully stored
+     */
+    public boolean set(UUID playerId, long timeStamp) {
+        try {
+            store.put(playerId, timeStamp);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            plugin.getLogger().log(Level.SEVERE, "Unable to store last seen of " + playerId, e);
+        }
+        return false;
+    }
+
+    private boolean putIfAbsent(UUID playerId, long timeStamp) {
+        try {
+            return store.putIfAbsent(playerId, timeStamp);
+        } catch (IOException | RuntimeException e) {
+            plugin.getLogger().log(Level.SEVERE, "Unable to store last seen of " + playerId, e);
+        }
+        return false;
+    }
+
+    /**
+     * Call a consumer for every player that this server has a last seen time of
+     * @param consumer  The consumer that gets the UUID of each player
+     */
+    public void forEach(Consumer<UUID> consumer) {
+        store.forEach(consumer);
+    }
+
+    /**
+     * Call a consumer for every player that this server has a last seen time of
+     * @param consumer  The consumer that gets the UUID and the timestamp of each player
+     */
+    public void forEachLastSeen(ObjLongConsumer<UUID> consumer) {
+        store.forEachLastSeen(consumer);
+    }
+
+    /**
+     * @return The amount of players in the index
+     */
+    public int size() {
+        return store.size();
+    }
+
+    /**
+     * Stop the scan, write all changes to the disk and close the store.
+     * The last seen times of online players have to be set before.
+     */
+    public void close() {
+        synchronized (this) {
+            online.clear();
+            try {
+                Files.deleteIfExists(playerDataFolder.toPath().resolve(ONLINE_FILE));
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Unable to remove the online players file!", e);
+            }
+        }
+        if (scanExecutor != null) {
+            scanExecutor.shutdownNow();
+            try {
+                scanExecutor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            store.close();
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error while closing the last seen store!", e);
+        }
+    }
+}
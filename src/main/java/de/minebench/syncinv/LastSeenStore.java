@@ -0,0 +1,416 @@
+package de.minebench.syncinv;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * A fixed-record hash table of last seen times in a memory-mapped file. Every record consists of
+ * the two halves of the player's UUID and the timestamp, collisions are resolved by linear probing.
+ * <p>
+ * Updates of an existing record only overwrite the aligned timestamp. New records are written
+ * timestamp first and the most significant half of the key last. A record counts as empty as long
+ * as that half is 0, so a record that was only partly written when the server process crashed is
+ * treated as empty and never read with a wrong key or time. Because of that players whose UUID has
+ * a most significant half of 0 can't be stored, which never happens with Minecraft's UUIDs as they
+ * always contain the UUID version in that half.
+ * <p>
+ * The operating system writes changed pages to disk in the background, they survive a crash of the
+ * server process but not of the whole machine unless {@link #force()} was called.
+ */
+public class LastSeenStore {
+    private static final int MAGIC = 0x534C5354; // SLST
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 24;
+    private static final int MIN_CAPACITY = 1 << 14;
+    /**
+     * The biggest capacity whose records can still be addressed with an int offset in one mapping
+     */
+    private static final int MAX_CAPACITY = Integer.highestOneBit((Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE);
+    private static final double MAX_LOAD = 0.7;
+
+    private final Path file;
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * The current table, replaced when the table grows
+     */
+    private volatile Table table;
+
+    /**
+     * Whether the file didn't exist before and got created by opening the store
+     */
+    private final boolean created;
+
+    /**
+     * Open the store in a file, creating it if it doesn't exist
+     * @param file              The file to store the table in
+     * @param expectedPlayers   How many players the table should be able to hold without growing when it gets created
+     * @throws IOException      When the file couldn't be opened or is not a valid store
+     */
+    public LastSeenStore(Path file, int expectedPlayers) throws IOException {
+        this.file = file;
+        if (Files.exists(file)) {
+            created = false;
+            table = Table.open(file);
+        } else {
+            created = true;
+            table = Table.create(file, getCapacity(expectedPlayers));
+        }
+    }
+
+    /**
+     * Create a store that only exists in memory, used when the file can't be opened
+     * @param expectedPlayers   How many players the table should be able to hold without growing
+     */
+    public LastSeenStore(int expectedPlayers) {
+        this.file = null;
+        this.created = true;
+        this.table = Table.allocate(getCapacity(expectedPlayers));
+    }
+
+    private static int getCapacity(int expectedPlayers) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * MAX_LOAD < expectedPlayers && capacity < MAX_CAPACITY) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * @return Whether the store was created when opening it and therefore doesn't contain any data yet
+     */
+    public boolean isCreated() {
+        return created;
+    }
+
+    /**
+     * @return Whether the store is only held in memory
+     */
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    /**
+     * Get the last seen time of a player
+     * @param playerId  The UUID of the player
+     * @return          The timestamp in milliseconds or 0 if the player isn't known
+     */
+    public long get(UUID playerId) {
+        long hi = playerId.getMostSignificantBits();
+        long lo = playerId.getLeastSignificantBits();
+        long stamp = lock.tryOptimisticRead();
+        Table table = this.table;
+        int offset = table.find(hi, lo);
+        long value = offset >= 0 ? table.buffer.getLong(offset + 16) : 0;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                table = this.table;
+                offset = table.find(hi, lo);
+                value = offset >= 0 ? table.buffer.getLong(offset + 16) : 0;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Set the last seen time of a player
+     * @param playerId  The UUID of the player
+     * @param timeStamp The timestamp in milliseconds
+     * @throws IOException When the table had to grow but the bigger file couldn't be created
+     */
+    public void put(UUID playerId, long timeStamp) throws IOException {
+        put(playerId, timeStamp, true);
+    }
+
+    /**
+     * Set the last seen time of a player if the player isn't known yet
+     * @param playerId  The UUID of the player
+     * @param timeStamp The timestamp in milliseconds
+     * @return          Whether the time was set
+     * @throws IOException When the table had to grow but the bigger file couldn't be created
+     */
+    public boolean putIfAbsent(UUID playerId, long timeStamp) throws IOException {
+        return put(playerId, timeStamp, false);
+    }
+
+    private boolean put(UUID playerId, long timeStamp, boolean replace) throws IOException {
+        long hi = playerId.getMostSignificantBits();
+        long lo = playerId.getLeastSignificantBits();
+        if (hi == 0) {
+            throw new IllegalArgumentException(playerId + " can't be stored as a most significant half of 0 marks empty records");
+        }
+        long stamp = lock.writeLock();
+        try {
+            Table table = this.table;
+            int offset = table.find(hi, lo);
+            if (offset >= 0) {
+                if (replace) {
+                    table.buffer.putLong(offset + 16, timeStamp);
+                }
+                return replace;
+            }
+            if (table.size + 1 > table.capacity * MAX_LOAD) {
+                if (table.capacity >= MAX_CAPACITY) {
+                    throw new IOException("The last seen table can't hold more than " + (int) (MAX_CAPACITY * MAX_LOAD) + " players");
+                }
+                table = grow(table);
+            }
+            table.insert(hi, lo, timeStamp);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Copy all records into a table with double the capacity. The new table is written to a
+     * temporary file that replaces the old one once it is complete.
+     */
+    private Table grow(Table old) throws IOException {
+        int capacity = old.capacity << 1;
+        Table grown;
+        if (file != null) {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.deleteIfExists(temp);
+            grown = Table.create(temp, capacity);
+            old.copyTo(grown);
+            grown.force();
+            grown.channel.close();
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            old.close();
+            grown = Table.open(file);
+        } else {
+            grown = Table.allocate(capacity);
+            old.copyTo(grown);
+        }
+        table = grown;
+        return grown;
+    }
+
+    /**
+     * Call a consumer for every player in the store
+     * @param consumer  The consumer that gets the UUID of each player
+     */
+    public void forEach(Consumer<UUID> consumer) {
+        forEachLastSeen((playerId, lastSeen) -> consumer.accept(playerId));
+    }
+
+    /**
+     * Call a consumer for every player in the store with their last seen time
+     * @param consumer  The consumer that gets the UUID and the timestamp of each player
+     */
+    public void forEachLastSeen(ObjLongConsumer<UUID> consumer) {
+        long stamp = lock.readLock();
+        try {
+            Table table = this.table;
+            for (int i = 0; i < table.capacity; i++) {
+                int offset = HEADER_SIZE + i * RECORD_SIZE;
+                long hi = table.buffer.getLong(offset);
+                if (hi != 0) {
+                    consumer.accept(new UUID(hi, table.buffer.getLong(offset + 8)), table.buffer.getLong(offset + 16));
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return The amount of players in the store
+     */
+    public int size() {
+        return table.size;
+    }
+
+    /**
+     * Write all changes to the disk
+     */
+    public void force() {
+        table.force();
+    }
+
+    /**
+     * Write all changes to the disk and close the file
+     */
+    public void close() throws IOException {
+        long stamp = lock.writeLock();
+        try {
+            table.force();
+            table.close();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private static class Table {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final int capacity;
+        private final int mask;
+        private int size;
+
+        private Table(FileChannel channel, ByteBuffer buffer, int capacity, int size) {
+            this.channel = channel;
+            this.buffer = buffer;
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.size = size;
+        }
+
+        private static Table create(Path file, int capacity) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, FORMAT_VERSION);
+                buffer.putInt(8, capacity);
+                return new Table(channel, buffer, capacity, 0);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        private static Table open(Path file) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                long length = channel.size();
+                if (length < HEADER_SIZE) {
+                    throw new IOException(file + " is too small to be a last seen store");
+                }
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+                if (buffer.getInt(0) != MAGIC) {
+                    throw new IOException(file + " is not a last seen store");
+                }
+                if (buffer.getInt(4) != FORMAT_VERSION) {
+                    throw new IOException(file + " has the unsupported format version " + buffer.getInt(4));
+                }
+                int capacity = buffer.getInt(8);
+                if (capacity < 1 || capacity > MAX_CAPACITY || Integer.bitCount(capacity) != 1 || length != HEADER_SIZE + (long) capacity * RECORD_SIZE) {
+                    throw new IOException(file + " has an invalid capacity of " + capacity + " for a length of " + length);
+                }
+                Table table = new Table(channel, buffer, capacity, 0);
+                table.size = table.count();
+                return table;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        private static Table allocate(int capacity) {
+            return new Table(null, ByteBuffer.allocate(HEADER_SIZE + capacity * RECORD_SIZE), capacity, 0);
+        }
+
+        /**
+         * Count the used records, the size isn't stored as it could be outdated after a crash
+         */
+        private int count() {
+            int count = 0;
+            for (int i = 0; i < capacity; i++) {
+                int offset = HEADER_SIZE + i * RECORD_SIZE;
+                if (buffer.getLong(offset) != 0) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private int slot(long hi, long lo) {
+            long hash = (hi ^ lo) * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+
+        /**
+         * Find the record of a key
+         * @return The offset of the record or -1 if it isn't in the table
+         */
+        private int find(long hi, long lo) {
+            int slot = slot(hi, lo);
+            for (int i = 0; i < capacity; i++) {
+                int offset = HEADER_SIZE + ((slot + i) & mask) * RECORD_SIZE;
+                long recordHi = buffer.getLong(offset);
+                if (recordHi == 0) {
+                    return -1;
+                }
+                if (recordHi == hi && buffer.getLong(offset + 8) == lo) {
+                    return offset;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Add a key that isn't in the table yet
+         */
+        private void insert(long hi, long lo, long timeStamp) {
+            int slot = slot(hi, lo);
+            for (int i = 0; i < capacity; i++) {
+                int offset = HEADER_SIZE + ((slot + i) & mask) * RECORD_SIZE;
+                if (buffer.getLong(offset) == 0) {
+                    // The slot might still contain parts of a torn record, the record only becomes visible with hi
+                    buffer.putLong(offset + 16, timeStamp);
+                    buffer.putLong(offset + 8, lo);
+                    buffer.putLong(offset, hi);
+                    size++;
+                    return;
+                }
+            }
+            throw new IllegalStateException("Last seen table is full");
+        }
+
+        private void copyTo(Table target) {
+            for (int i = 0; i < capacity; i++) {
+                int offset = HEADER_SIZE + i * RECORD_SIZE;
+                long hi = buffer.getLong(offset);
+                if (hi != 0) {
+                    target.insert(hi, buffer.getLong(offset + 8), buffer.getLong(offset + 16));
+                }
+            }
+        }
+
+        private void force() {
+            if (buffer instanceof MappedByteBuffer) {
+                ((MappedByteBuffer) buffer).force();
+            }
+        }
+
+        private void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+}
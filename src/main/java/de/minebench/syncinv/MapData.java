@@ -18,9 +18,12 @@ package de.minebench.syncinv;
  * along with this program.  If not, see <https://www.gnu.org/licenses/>.
  */
 
+import de.minebench.syncinv.messenger.BinaryReader;
+import de.minebench.syncinv.messenger.BinaryWriter;
 import lombok.Data;
 import org.bukkit.map.MapView;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.UUID;
 
@@ -36,4 +39,40 @@ public class MapData implements Serializable {
     private boolean locked;
     private boolean trackingPosition;
     private boolean unlimitedTracking;
+
+    /**
+     * Write this map in the binary message format
+     * @param out The writer to write to
+     */
+    public void write(BinaryWriter out) {
+        out.writeVarInt(id);
+        out.writeUuid(worldId);
+        out.writeSignedVarInt(centerX);
+        out.writeSignedVarInt(centerZ);
+        out.writeString(scale.name());
+        out.writeBytes(colors);
+        out.writeByte((locked ? 1 : 0) | (trackingPosition ? 2 : 0) | (unlimitedTracking ? 4 : 0));
+    }
+
+    /**
+     * Read a map written by {@link #write(BinaryWriter)}
+     * @param in The reader to read from
+     * @return The MapData
+     * @throws IOException When the data could not be read
+     */
+    public static MapData read(BinaryReader in) throws IOException {
+        MapData mapData = new MapData(
+                in.readVarInt(),
+                in.readUuid(),
+                in.readSignedVarInt(),
+                in.readSignedVarInt(),
+                MapView.Scale.valueOf(in.readString()),
+                in.readBytes()
+        );
+        int flags = in.readUnsignedByte();
+        mapData.setLocked((flags & 1) != 0);
+        mapData.setTrackingPosition((flags & 2) != 0);
+        mapData.setUnlimitedTracking((flags & 4) != 0);
+        return mapData;
+    }
 }
@@ -0,0 +1,349 @@
+package de.minebench.syncinv;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes Minecraft's NBT format without the server's classes.
+ * Compounds are maps, lists are {@link ListTag}s and all other tags are their boxed Java values
+ * (Byte, Short, Integer, Long, Float, Double, byte[], String, int[] and long[]).
+ */
+public final class Nbt {
+    private static final byte END = 0;
+    private static final byte BYTE = 1;
+    private static final byte SHORT = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte FLOAT = 5;
+    private static final byte DOUBLE = 6;
+    private static final byte BYTE_ARRAY = 7;
+    private static final byte STRING = 8;
+    private static final byte LIST = 9;
+    private static final byte COMPOUND = 10;
+    private static final byte INT_ARRAY = 11;
+    private static final byte LONG_ARRAY = 12;
+
+    /**
+     * The same limit as the server to not overflow the stack on malicious data
+     */
+    private static final int MAX_DEPTH = 512;
+
+    private Nbt() {}
+
+    /**
+     * A list tag which remembers the type of its elements as empty lists have a type too
+     */
+    public static class ListTag extends ArrayList<Object> {
+        private byte elementType;
+
+        public ListTag() {
+            this(END);
+        }
+
+        private ListTag(byte elementType) {
+            this.elementType = elementType;
+        }
+
+        @Override
+        public boolean add(Object o) {
+            if (isEmpty()) {
+                elementType = getType(o);
+            } else if (getType(o) != elementType) {
+                throw new IllegalArgumentException("Can't add " + o.getClass().getSimpleName() + " to a list of type " + elementType);
+            }
+            return super.add(o);
+        }
+    }
+
+    /**
+     * Read a compound that is optionally gzip compressed like item stacks or player files
+     * @param bytes The bytes to read
+     * @return The root compound
+     * @throws IOException When the data isn't valid NBT
+     */
+    public static Map<String, Object> read(byte[] bytes) throws IOException {
+        return read(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * Read a compound that is optionally gzip compressed like item stacks or player files
+     * @param in    The stream to read from
+     * @return The root compound
+     * @throws IOException When the data isn't valid NBT
+     */
+    public static Map<String, Object> read(InputStream in) throws IOException {
+        in = new BufferedInputStream(in);
+        in.mark(2);
+        boolean compressed = in.read() == 0x1f && in.read() == 0x8b;
+        in.reset();
+        DataInputStream data = new DataInputStream(compressed ? new BufferedInputStream(new GZIPInputStream(in)) : in);
+        byte type = data.readByte();
+        if (type != COMPOUND) {
+            throw new IOException("Root tag has to be a compound but was " + type);
+        }
+        data.readUTF(); // name of the root, always empty
+        return readCompound(data, 0);
+    }
+
+    /**
+     * Write a compound
+     * @param compound      The compound
+     * @param compressed    Whether to gzip the data like item stacks and player files
+     * @return The bytes
+     */
+    public static byte[] write(Map<String, Object> compound, boolean compressed) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            write(compound, bytes, compressed);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Writing to memory doesn't fail
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write a compound
+     * @param compound      The compound
+     * @param out           The stream to write to
+     * @param compressed    Whether to gzip the data like item stacks and player files
+     * @throws IOException When the stream can't be written to
+     */
+    public static void write(Map<String, Object> compound, OutputStream out, boolean compressed) throws IOException {
+        GZIPOutputStream gzip = compressed ? new GZIPOutputStream(out) : null;
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(gzip != null ? gzip : out));
+        data.writeByte(COMPOUND);
+        data.writeUTF("");
+        writeCompound(data, compound);
+        data.flush();
+        if (gzip != null) {
+            gzip.finish();
+        }
+    }
+
+    private static Map<String, Object> readCompound(DataInput in, int depth) throws IOException {
+        Map<String, Object> compound = new LinkedHashMap<>();
+        byte type;
+        while ((type = in.readByte()) != END) {
+            String name = in.readUTF();
+            compound.put(name, readPayload(in, type, depth + 1));
+        }
+        return compound;
+    }
+
+    private static Object readPayload(DataInput in, byte type, int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("NBT is nested deeper than " + MAX_DEPTH);
+        }
+        switch (type) {
+            case BYTE:
+                return in.readByte();
+            case SHORT:
+                return in.readShort();
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case FLOAT:
+                return in.readFloat();
+            case DOUBLE:
+                return in.readDouble();
+            case BYTE_ARRAY:
+                byte[] bytes = new byte[readLength(in)];
+                in.readFully(bytes);
+                return bytes;
+            case STRING:
+                return in.readUTF();
+            case LIST:
+                ListTag list = new ListTag(in.readByte());
+                int size = readLength(in);
+                for (int i = 0; i < size; i++) {
+                    list.add(readPayload(in, list.elementType, depth + 1));
+                }
+                return list;
+            case COMPOUND:
+                return readCompound(in, depth);
+            case INT_ARRAY:
+                int[] ints = new int[readLength(in)];
+                for (int i = 0; i < ints.length; i++) {
+                    ints[i] = in.readInt();
+                }
+                return ints;
+            case LONG_ARRAY:
+                long[] longs = new long[readLength(in)];
+                for (int i = 0; i < longs.length; i++) {
+                    longs[i] = in.readLong();
+                }
+                return longs;
+            default:
+                throw new IOException("Unknown tag type " + type);
+        }
+    }
+
+    private static int readLength(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Negative length " + length);
+        }
+        return length;
+    }
+
+    private static void writeCompound(DataOutput out, Map<String, Object> compound) throws IOException {
+        for (Map.Entry<String, Object> entry : compound.entrySet()) {
+            out.writeByte(getType(entry.getValue()));
+            out.writeUTF(entry.getKey());
+            writePayload(out, entry.getValue());
+        }
+        out.writeByte(END);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writePayload(DataOutput out, Object value) throws IOException {
+        switch (getType(value)) {
+            case BYTE:
+                out.writeByte((Byte) value);
+                break;
+            case SHORT:
+                out.writeShort((Short) value);
+                break;
+            case INT:
+                out.writeInt((Integer) value);
+                break;
+            case LONG:
+                out.writeLong((Long) value);
+                break;
+            case FLOAT:
+                out.writeFloat((Float) value);
+                break;
+            case DOUBLE:
+                out.writeDouble((Double) value);
+                break;
+            case BYTE_ARRAY:
+                out.writeInt(((byte[]) value).length);
+                out.write((byte[]) value);
+                break;
+            case STRING:
+                out.writeUTF((String) value);
+                break;
+            case LIST:
+                ListTag list = (ListTag) value;
+                out.writeByte(list.isEmpty() ? END : list.elementType);
+                out.writeInt(list.size());
+                for (Object element : list) {
+                    writePayload(out, element);
+                }
+                break;
+            case COMPOUND:
+                writeCompound(out, (Map<String, Object>) value);
+                break;
+            case INT_ARRAY:
+                out.writeInt(((int[]) value).length);
+                for (int i : (int[]) value) {
+                    out.writeInt(i);
+                }
+                break;
+            case LONG_ARRAY:
+                out.writeInt(((long[]) value).length);
+                for (long l : (long[]) value) {
+                    out.writeLong(l);
+                }
+                break;
+        }
+    }
+
+    private static byte getType(Object value) {
+        if (value instanceof Byte) {
+            return BYTE;
+        } else if (value instanceof Short) {
+            return SHORT;
+        } else if (value instanceof Integer) {
+            return INT;
+        } else if (value instanceof Long) {
+            return LONG;
+        } else if (value instanceof Float) {
+            return FLOAT;
+        } else if (value instanceof Double) {
+            return DOUBLE;
+        } else if (value instanceof byte[]) {
+            return BYTE_ARRAY;
+        } else if (value instanceof String) {
+            return STRING;
+        } else if (value instanceof ListTag) {
+            return LIST;
+        } else if (value instanceof Map) {
+            return COMPOUND;
+        } else if (value instanceof int[]) {
+            return INT_ARRAY;
+        } else if (value instanceof long[]) {
+            return LONG_ARRAY;
+        }
+        throw new IllegalArgumentException("Can't write " + (value != null ? value.getClass().getName() : "null") + " as NBT");
+    }
+
+    /**
+     * Get a compound from a compound
+     * @param compound  The compound to get it from
+     * @param key       The key
+     * @return The compound or null if there is none with that key
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> getCompound(Map<String, Object> compound, String key) {
+        Object value = compound.get(key);
+        return value instanceof Map ? (Map<String, Object>) value : null;
+    }
+
+    /**
+     * Get a list from a compound
+     * @param compound  The compound to get it from
+     * @param key       The key
+     * @return The list or an empty one if there is none with that key
+     */
+    public static List<Object> getList(Map<String, Object> compound, String key) {
+        Object value = compound.get(key);
+        return value instanceof ListTag ? (ListTag) value : new ListTag();
+    }
+
+    /**
+     * Get a number from a compound
+     * @param compound  The compound to get it from
+     * @param key       The key
+     * @param def       The value to return if there is no number with that key
+     * @return The number
+     */
+    public static Number getNumber(Map<String, Object> compound, String key, Number def) {
+        Object value = compound.get(key);
+        return value instanceof Number ? (Number) value : def;
+    }
+}
@@ -0,0 +1,899 @@
+package de.minebench.syncinv;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.bukkit.GameMode;
+import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
+import org.bukkit.Registry;
+import org.bukkit.Statistic;
+import org.bukkit.advancement.Advancement;
+import org.bukkit.entity.EntityType;
+import org.bukkit.potion.PotionEffect;
+import org.bukkit.potion.PotionEffectType;
+import org.bukkit.util.Vector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Reads and writes the data of players that aren't online directly in their files instead of
+ * loading a player entity with OpenInv on the main thread. The player's .dat file contains most
+ * of the data, advancements and statistics are stored in their own json files.
+ * <p>
+ * Files are only handled here when they have the same data version as the server as everything
+ * else would have to be upgraded by the server first. Accesses to the files of one player happen
+ * in the order they were started. Written files only replace the old ones on the main thread once
+ * it's certain that the player didn't get loaded in the meantime.
+ */
+public class OfflinePlayerFiles {
+    /**
+     * Since 1.21.5 the armor and offhand are stored in their own compound instead of the inventory list
+     */
+    private static final int EQUIPMENT_DATA_VERSION = 4325;
+
+    private static final int STORAGE_SIZE = 36;
+    private static final int INVENTORY_SIZE = 41;
+    private static final int ENDERCHEST_SIZE = 27;
+
+    /**
+     * The equipment slots in the order they follow the storage in the inventory contents
+     */
+    private static final String[] EQUIPMENT_KEYS = {"feet", "legs", "chest", "head", "offhand"};
+    private static final int[] LEGACY_EQUIPMENT_SLOTS = {100, 101, 102, 103, -106};
+
+    private static final String MAX_HEALTH = "minecraft:max_health";
+    private static final String CUSTOM_STATISTICS = "minecraft:custom";
+    private static final DateTimeFormatter CRITERION_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss Z", Locale.ROOT);
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private final SyncInv plugin;
+    private final Path playerDataFolder;
+    private final Path advancementsFolder;
+    private final Path statsFolder;
+    private final int dataVersion;
+
+    /**
+     * The key of each statistic in the statistics file, null if they couldn't be found
+     */
+    private final Map<Statistic, String> statisticKeys;
+
+    private final ExecutorService executor;
+    private final Map<UUID, CompletableFuture<?>> pending = new ConcurrentHashMap<>();
+
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+
+    /**
+     * @param plugin        The plugin
+     * @param worldFolder   The folder of the main world which contains the player files
+     */
+    public OfflinePlayerFiles(SyncInv plugin, Path worldFolder) {
+        this.plugin = plugin;
+        this.playerDataFolder = worldFolder.resolve("playerdata");
+        this.advancementsFolder = worldFolder.resolve("advancements");
+        this.statsFolder = worldFolder.resolve("stats");
+        this.dataVersion = plugin.getServer().getUnsafe().getDataVersion();
+        this.statisticKeys = loadStatisticKeys();
+        executor = Executors.newFixedThreadPool(Math.max(1, plugin.getConfig().getInt("direct-offline-data.threads", 2)),
+                new ThreadFactoryBuilder().setNameFormat(plugin.getName() + " Offline Player Files #%d").setDaemon(true).build());
+    }
+
+    /**
+     * The statistics file uses the server's internal names which only the server's statistic mapping knows
+     */
+    private Map<Statistic, String> loadStatisticKeys() {
+        try {
+            Class<?> craftStatistic = Class.forName(plugin.getServer().getClass().getPackage().getName() + ".CraftStatistic");
+            Field keyField = null;
+            for (Field field : craftStatistic.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers()) && field.getType() != Statistic.class) {
+                    keyField = field;
+                    break;
+                }
+            }
+            if (keyField == null || craftStatistic.getEnumConstants() == null) {
+                throw new NoSuchFieldException("Unable to find the key of the statistics in " + craftStatistic.getName());
+            }
+            keyField.setAccessible(true);
+            Map<Statistic, String> keys = new EnumMap<>(Statistic.class);
+            for (Object constant : craftStatistic.getEnumConstants()) {
+                try {
+                    keys.put(Statistic.valueOf(((Enum<?>) constant).name()), keyField.get(constant).toString());
+                } catch (IllegalArgumentException ignored) {} // Not in the API
+            }
+            return keys;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            plugin.getLogger().log(Level.WARNING, "Unable to get the statistic keys (" + e.getMessage() + ")! Data of offline players will be accessed with OpenInv when statistics are synced.");
+            return null;
+        }
+    }
+
+    /**
+     * Check whether the data of a player can be accessed in their files
+     * @param playerId  The UUID of the player
+     * @return Whether the player isn't online, has a file and isn't loaded by OpenInv
+     */
+    public boolean canHandle(UUID playerId) {
+        if (isLoaded(playerId)) {
+            return false;
+        }
+        if (statisticKeys == null && plugin.shouldSyncAny(SyncType.GENERAL_STATISTICS, SyncType.ENTITY_STATISTICS, SyncType.ITEM_STATISTICS, SyncType.BLOCK_STATISTICS)) {
+            return false;
+        }
+        return Files.exists(getPlayerFile(playerId));
+    }
+
+    /**
+     * Check whether the server has an entity of the player which would save over their files
+     * @param playerId  The UUID of the player
+     * @return Whether the player is online or loaded by OpenInv
+     */
+    private boolean isLoaded(UUID playerId) {
+        // Someone looking at the player's inventory with OpenInv means the changes have to go through OpenInv
+        return plugin.getServer().getPlayer(playerId) != null
+                || (plugin.getOpenInv() != null && plugin.getOpenInv().isPlayerLoaded(playerId));
+    }
+
+    /**
+     * Run a task after all tasks that were started for the same player before
+     */
+    private <T> CompletableFuture<T> submit(UUID playerId, Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        pending.compute(playerId, (id, previous) -> {
+            CompletableFuture<?> before = previous != null ? previous : CompletableFuture.completedFuture(null);
+            before.handle((r, e) -> null).thenRunAsync(() -> {
+                try {
+                    future.complete(task.call());
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }, executor).exceptionally(e -> {
+                future.completeExceptionally(e); // Shut down
+                return null;
+            });
+            return future;
+        });
+        future.whenComplete((r, e) -> pending.remove(playerId, future));
+        return future;
+    }
+
+    /**
+     * Wait until the files of a player aren't accessed anymore, e.g. before the server loads them on login
+     * @param playerId  The UUID of the player
+     * @return Whether the files aren't accessed anymore, false if that took too long
+     */
+    public boolean awaitPending(UUID playerId) {
+        CompletableFuture<?> future = pending.get(playerId);
+        if (future != null) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (TimeoutException e) {
+                return false;
+            } catch (ExecutionException ignored) {
+                // The result is handled by whoever started it
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the data of a player from their files
+     * @param playerId  The UUID of the player
+     * @param lastSeen  The time the player was last seen on this server
+     * @return A future completed with the data or exceptionally if it couldn't be read
+     */
+    public CompletableFuture<PlayerData> read(UUID playerId, long lastSeen) {
+        Set<Integer> mapIds = new HashSet<>();
+        CompletableFuture<PlayerData> future = submit(playerId, () -> readData(playerId, lastSeen, mapIds));
+        if (!plugin.shouldSync(SyncType.MAPS)) {
+            return future;
+        }
+        return future.thenCompose(data -> {
+            if (mapIds.isEmpty()) {
+                return CompletableFuture.completedFuture(data);
+            }
+            // The maps are only known to the server
+            CompletableFuture<PlayerData> withMaps = new CompletableFuture<>();
+            plugin.runSync(() -> {
+                try {
+                    for (int mapId : mapIds) {
+                        MapData mapData = plugin.getMapData(mapId);
+                        if (mapData != null) {
+                            data.getMaps().add(mapData);
+                        }
+                    }
+                    withMaps.complete(data);
+                } catch (RuntimeException e) {
+                    withMaps.completeExceptionally(e);
+                }
+            });
+            return withMaps;
+        });
+    }
+
+    /**
+     * Write the data of a player to their files
+     * @param data  The data
+     * @return A future completed when the data was written or exceptionally if it couldn't be written
+     */
+    public CompletableFuture<Void> write(PlayerData data) {
+        return submit(data.getPlayerId(), () -> {
+            writeData(data);
+            return null;
+        });
+    }
+
+    private PlayerData readData(UUID playerId, long lastSeen, Set<Integer> mapIds) throws IOException {
+        Map<String, Object> root = readPlayerFile(playerId);
+
+        byte[][] inventory = new byte[INVENTORY_SIZE][];
+        for (Object element : Nbt.getList(root, "Inventory")) {
+            Map<String, Object> item = asCompound(element);
+            int index = getInventoryIndex(Nbt.getNumber(item, "Slot", -1).byteValue());
+            if (index >= 0) {
+                inventory[index] = toItemBytes(item, mapIds);
+            }
+        }
+        Map<String, Object> equipment = Nbt.getCompound(root, "equipment");
+        if (equipment != null) {
+            for (int i = 0; i < EQUIPMENT_KEYS.length; i++) {
+                Map<String, Object> item = Nbt.getCompound(equipment, EQUIPMENT_KEYS[i]);
+                if (item != null) {
+                    inventory[STORAGE_SIZE + i] = toItemBytes(item, mapIds);
+                }
+            }
+        }
+        byte[][] enderchest = new byte[ENDERCHEST_SIZE][];
+        for (Object element : Nbt.getList(root, "EnderItems")) {
+            Map<String, Object> item = asCompound(element);
+            int slot = Nbt.getNumber(item, "Slot", -1).intValue();
+            if (slot >= 0 && slot < ENDERCHEST_SIZE) {
+                enderchest[slot] = toItemBytes(item, mapIds);
+            }
+        }
+
+        List<PotionEffect> potionEffects = new ArrayList<>();
+        for (Object element : Nbt.getList(root, "active_effects")) {
+            Map<String, Object> effect = asCompound(element);
+            NamespacedKey key = NamespacedKey.fromString(String.valueOf(effect.get("id")));
+            PotionEffectType type = key != null ? Registry.EFFECT.get(key) : null;
+            if (type != null) {
+                potionEffects.add(new PotionEffect(type,
+                        Nbt.getNumber(effect, "duration", 0).intValue(),
+                        Nbt.getNumber(effect, "amplifier", 0).intValue(),
+                        Nbt.getNumber(effect, "ambient", 0).intValue() != 0,
+                        Nbt.getNumber(effect, "show_particles", 1).intValue() != 0,
+                        Nbt.getNumber(effect, "show_icon", 1).intValue() != 0));
+            }
+        }
+
+        double maxHealth = 20;
+        Map<String, Object> maxHealthAttribute = getMaxHealthAttribute(root);
+        if (maxHealthAttribute != null) {
+            maxHealth = Nbt.getNumber(maxHealthAttribute, "base", maxHealth).doubleValue();
+        }
+
+        List<Object> motion = Nbt.getList(root, "Motion");
+        Vector velocity = motion.size() == 3
+                ? new Vector(((Number) motion.get(0)).doubleValue(), ((Number) motion.get(1)).doubleValue(), ((Number) motion.get(2)).doubleValue())
+                : new Vector();
+
+        Map<String, Object> bukkit = Nbt.getCompound(root, "bukkit");
+        Number gameMode = Nbt.getNumber(root, "playerGameType", null);
+
+        PlayerData data = new PlayerData(
+                lastSeen,
+                dataVersion,
+                playerId,
+                bukkit != null && bukkit.get("lastKnownName") instanceof String ? (String) bukkit.get("lastKnownName") : null,
+                gameMode != null ? GameMode.getByValue(gameMode.intValue()) : null,
+                Nbt.getNumber(root, "XpTotal", 0).intValue(),
+                Nbt.getNumber(root, "XpLevel", 0).intValue(),
+                Nbt.getNumber(root, "XpP", 0).floatValue(),
+                inventory,
+                enderchest,
+                potionEffects,
+                maxHealth,
+                Nbt.getNumber(root, "Health", maxHealth).doubleValue(),
+                Nbt.getNumber(root, "foodLevel", 20).intValue(),
+                Nbt.getNumber(root, "foodSaturationLevel", 5).floatValue(),
+                Nbt.getNumber(root, "foodExhaustionLevel", 0).floatValue(),
+                Nbt.getNumber(root, "Bukkit.MaxAir", 300).intValue(),
+                Nbt.getNumber(root, "Air", 300).intValue(),
+                Nbt.getNumber(root, "Fire", 0).intValue(),
+                Nbt.getNumber(root, "fall_distance", Nbt.getNumber(root, "FallDistance", 0)).floatValue(),
+                velocity,
+                Nbt.getNumber(root, "SelectedItemSlot", 0).intValue()
+        );
+
+        if (plugin.shouldSync(SyncType.PERSISTENT_DATA)) {
+            Map<String, Object> persistentData = Nbt.getCompound(root, "BukkitValues");
+            // Same format as PersistentDataContainer#serializeToBytes
+            data.setPersistentData(Nbt.write(persistentData != null ? persistentData : new HashMap<>(), false));
+        }
+
+        if (plugin.shouldSync(SyncType.ADVANCEMENTS)) {
+            readAdvancements(playerId, data);
+        } else {
+            data.excludeSection(DataSection.ADVANCEMENTS);
+        }
+
+        if (plugin.shouldSyncAny(SyncType.GENERAL_STATISTICS, SyncType.ENTITY_STATISTICS, SyncType.ITEM_STATISTICS, SyncType.BLOCK_STATISTICS)) {
+            readStatistics(playerId, data);
+        }
+
+        reads.increment();
+        return data;
+    }
+
+    private void readAdvancements(UUID playerId, PlayerData data) throws IOException {
+        JsonObject json = readJson(advancementsFolder.resolve(playerId + ".json"));
+        for (Iterator<Advancement> it = plugin.getServer().advancementIterator(); it.hasNext();) {
+            String key = it.next().getKey().toString();
+            Map<String, Long> awarded = new HashMap<>();
+            JsonObject progress = json.has(key) && json.get(key).isJsonObject() ? json.getAsJsonObject(key) : null;
+            if (progress != null && progress.has("criteria") && progress.get("criteria").isJsonObject()) {
+                for (Map.Entry<String, JsonElement> criterion : progress.getAsJsonObject("criteria").entrySet()) {
+                    try {
+                        awarded.put(criterion.getKey(), ZonedDateTime.parse(criterion.getValue().getAsString(), CRITERION_DATE_FORMAT).toInstant().toEpochMilli());
+                    } catch (DateTimeParseException | UnsupportedOperationException | IllegalStateException e) {
+                        plugin.logDebug("Invalid date of criterion " + criterion.getKey() + " of advancement " + key + " of " + playerId + ": " + criterion.getValue());
+                    }
+                }
+            }
+            if (!awarded.isEmpty()) {
+                data.getAdvancementProgress().put(key, awarded);
+            }
+        }
+    }
+
+    private void readStatistics(UUID playerId, PlayerData data) throws IOException {
+        JsonObject json = readJson(statsFolder.resolve(playerId + ".json"));
+        JsonObject stats = json.has("stats") && json.get("stats").isJsonObject() ? json.getAsJsonObject("stats") : new JsonObject();
+        for (Map.Entry<Statistic, String> entry : statisticKeys.entrySet()) {
+            Statistic statistic = entry.getKey();
+            if (statistic.getType() == Statistic.Type.UNTYPED) {
+                if (plugin.shouldSync(SyncType.GENERAL_STATISTICS)) {
+                    int value = getInt(stats, CUSTOM_STATISTICS, entry.getValue());
+                    if (value > 0) {
+                        data.getStatistics().set(statistic, value);
+                    }
+                }
+                continue;
+            }
+            if (!shouldSync(statistic.getType()) || !stats.has(entry.getValue()) || !stats.get(entry.getValue()).isJsonObject()) {
+                continue;
+            }
+            for (Map.Entry<String, JsonElement> value : stats.getAsJsonObject(entry.getValue()).entrySet()) {
+                int amount = value.getValue().isJsonPrimitive() ? value.getValue().getAsInt() : 0;
+                if (amount <= 0) {
+                    continue;
+                }
+                if (statistic.getType() == Statistic.Type.ENTITY) {
+                    EntityType entityType = getEntityType(value.getKey());
+                    if (entityType != null) {
+                        data.getStatistics().set(statistic, entityType, amount);
+                    }
+                } else {
+                    Material material = getMaterial(statistic.getType(), value.getKey());
+                    if (material != null) {
+                        data.getStatistics().set(statistic, material, amount);
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean shouldSync(Statistic.Type type) {
+        switch (type) {
+            case UNTYPED:
+                return plugin.shouldSync(SyncType.GENERAL_STATISTICS);
+            case ENTITY:
+                return plugin.shouldSync(SyncType.ENTITY_STATISTICS);
+            case BLOCK:
+                return plugin.shouldSync(SyncType.BLOCK_STATISTICS);
+            case ITEM:
+                return plugin.shouldSync(SyncType.ITEM_STATISTICS);
+        }
+        return false;
+    }
+
+    /**
+     * Get the entity type of an entity statistic by its key in the statistics file
+     */
+    private static EntityType getEntityType(String key) {
+        NamespacedKey entityKey = NamespacedKey.fromString(key);
+        return entityKey != null ? Registry.ENTITY_TYPE.get(entityKey) : null;
+    }
+
+    /**
+     * Get the material of a block or item statistic by its key in the statistics file
+     */
+    private static Material getMaterial(Statistic.Type type, String key) {
+        Material material = Material.matchMaterial(key);
+        if (material == null || (type == Statistic.Type.BLOCK ? !material.isBlock() : !material.isItem())) {
+            return null;
+        }
+        return material;
+    }
+
+    private void writeData(PlayerData data) throws IOException {
+        if (data.getDataVersion() != dataVersion) {
+            throw new IOException("Data has version " + data.getDataVersion() + " but the server " + dataVersion);
+        }
+        UUID playerId = data.getPlayerId();
+        Map<String, Object> root = readPlayerFile(playerId);
+        List<StagedFile> staged = new ArrayList<>();
+
+        if (plugin.shouldSync(SyncType.EXPERIENCE)) {
+            root.put("XpTotal", data.getTotalExperience());
+            root.put("XpLevel", data.getLevel());
+            root.put("XpP", data.getExp());
+        }
+        if (plugin.shouldSync(SyncType.INVENTORY) && data.hasSection(DataSection.INVENTORY)) {
+            writeInventory(root, data.getInventory(), data.getInventoryMask());
+        }
+        if (plugin.shouldSync(SyncType.ENDERCHEST) && data.hasSection(DataSection.ENDERCHEST)) {
+            writeEnderchest(root, data.getEnderchest(), data.getEnderchestMask());
+        }
+        if (plugin.shouldSync(SyncType.GAMEMODE)) {
+            GameMode gameMode = data.getGamemode() != null ? data.getGamemode() : plugin.getServer().getDefaultGameMode();
+            root.put("playerGameType", gameMode.getValue());
+        }
+        if (plugin.shouldSync(SyncType.HEALTH)) {
+            Map<String, Object> maxHealthAttribute = getMaxHealthAttribute(root);
+            if (maxHealthAttribute == null) {
+                maxHealthAttribute = new HashMap<>();
+                maxHealthAttribute.put("id", MAX_HEALTH);
+                List<Object> attributes = Nbt.getList(root, "attributes");
+                attributes.add(maxHealthAttribute);
+                root.put("attributes", attributes);
+            }
+            maxHealthAttribute.put("base", data.getMaxHealth());
+            root.put("Health", (float) Math.min(data.getHealth(), data.getMaxHealth()));
+        }
+        if (plugin.shouldSync(SyncType.HUNGER)) {
+            root.put("foodLevel", data.getFoodLevel());
+        }
+        if (plugin.shouldSync(SyncType.SATURATION)) {
+            root.put("foodSaturationLevel", data.getSaturation());
+        }
+        if (plugin.shouldSync(SyncType.EXHAUSTION)) {
+            root.put("foodExhaustionLevel", data.getExhaustion());
+        }
+        if (plugin.shouldSync(SyncType.AIR)) {
+            root.put("Bukkit.MaxAir", data.getMaxAir());
+            root.put("Air", (short) data.getRemainingAir());
+        }
+        if (plugin.shouldSync(SyncType.FIRE)) {
+            root.put("Fire", (short) data.getFireTicks());
+        }
+        if (plugin.shouldSync(SyncType.VELOCITY)) {
+            Nbt.ListTag motion = new Nbt.ListTag();
+            motion.add(data.getVelocity().getX());
+            motion.add(data.getVelocity().getY());
+            motion.add(data.getVelocity().getZ());
+            root.put("Motion", motion);
+        }
+        if (plugin.shouldSync(SyncType.FALL_DISTANCE)) {
+            if (root.get("FallDistance") instanceof Float) {
+                root.put("FallDistance", data.getFallDistance());
+            } else {
+                root.put("fall_distance", (double) data.getFallDistance());
+            }
+        }
+        if (plugin.shouldSync(SyncType.PERSISTENT_DATA) && data.getPersistentData() != null) {
+            root.put("BukkitValues", Nbt.read(data.getPersistentData()));
+        }
+        // Effects and the no damage ticks are only applied to online players
+
+        try {
+            // Data that doesn't have the section didn't capture the advancements or they didn't change
+            if (plugin.shouldSync(SyncType.ADVANCEMENTS) && data.hasSection(DataSection.ADVANCEMENTS)) {
+                staged.add(writeAdvancements(data));
+            }
+            if (plugin.shouldSyncAny(SyncType.GENERAL_STATISTICS, SyncType.ENTITY_STATISTICS, SyncType.ITEM_STATISTICS, SyncType.BLOCK_STATISTICS)
+                    && data.hasSection(DataSection.STATISTICS)) {
+                staged.add(writeStatistics(data));
+            }
+
+            staged.add(stage(getPlayerFile(playerId), out -> Nbt.write(root, out, true)));
+        } catch (IOException | RuntimeException e) {
+            for (StagedFile file : staged) {
+                Files.deleteIfExists(file.temp);
+            }
+            throw e;
+        }
+        commit(playerId, staged);
+        writes.increment();
+    }
+
+    private void writeInventory(Map<String, Object> root, byte[][] items, long mask) throws IOException {
+        Map<Integer, Map<String, Object>> contents = new HashMap<>();
+        Nbt.ListTag inventory = new Nbt.ListTag();
+        for (Object element : Nbt.getList(root, "Inventory")) {
+            Map<String, Object> item = asCompound(element);
+            int index = getInventoryIndex(Nbt.getNumber(item, "Slot", -1).byteValue());
+            if (index >= 0) {
+                contents.put(index, item);
+            } else {
+                inventory.add(item); // Keep what we don't know
+            }
+        }
+        boolean equipmentCompound = Nbt.getNumber(root, "DataVersion", 0).intValue() >= EQUIPMENT_DATA_VERSION;
+        Map<String, Object> equipment = Nbt.getCompound(root, "equipment");
+        if (equipment == null) {
+            equipment = new HashMap<>();
+        }
+        if (equipmentCompound) {
+            for (int i = 0; i < EQUIPMENT_KEYS.length; i++) {
+                Map<String, Object> item = Nbt.getCompound(equipment, EQUIPMENT_KEYS[i]);
+                if (item != null) {
+                    contents.put(STORAGE_SIZE + i, item);
+                }
+            }
+        }
+
+        for (int i = 0; i < INVENTORY_SIZE && i < 64; i++) {
+            if ((mask & 1L << i) != 0) {
+                byte[] item = i < items.length ? items[i] : null;
+                if (item != null) {
+                    contents.put(i, fromItemBytes(item));
+                } else {
+                    contents.remove(i);
+                }
+            }
+        }
+
+        for (int i = 0; i < INVENTORY_SIZE; i++) {
+            Map<String, Object> item = contents.get(i);
+            if (i >= STORAGE_SIZE && equipmentCompound) {
+                if (item != null) {
+                    equipment.put(EQUIPMENT_KEYS[i - STORAGE_SIZE], item);
+                } else {
+                    equipment.remove(EQUIPMENT_KEYS[i - STORAGE_SIZE]);
+                }
+            } else if (item != null) {
+                item.put("Slot", (byte) (i < STORAGE_SIZE ? i : LEGACY_EQUIPMENT_SLOTS[i - STORAGE_SIZE]));
+                inventory.add(item);
+            }
+        }
+        root.put("Inventory", inventory);
+        if (equipmentCompound) {
+            root.put("equipment", equipment);
+        }
+    }
+
+    private void writeEnderchest(Map<String, Object> root, byte[][] items, long mask) throws IOException {
+        Map<Integer, Map<String, Object>> contents = new HashMap<>();
+        for (Object element : Nbt.getList(root, "EnderItems")) {
+            Map<String, Object> item = asCompound(element);
+            contents.put(Nbt.getNumber(item, "Slot", -1).intValue(), item);
+        }
+        for (int i = 0; i < ENDERCHEST_SIZE; i++) {
+            if ((mask & 1L << i) != 0) {
+                byte[] item = i < items.length ? items[i] : null;
+                if (item != null) {
+                    contents.put(i, fromItemBytes(item));
+                } else {
+                    contents.remove(i);
+                }
+            }
+        }
+        Nbt.ListTag enderchest = new Nbt.ListTag();
+        for (Map.Entry<Integer, Map<String, Object>> entry : contents.entrySet()) {
+            entry.getValue().put("Slot", entry.getKey().byteValue());
+            enderchest.add(entry.getValue());
+        }
+        root.put("EnderItems", enderchest);
+    }
+
+    private StagedFile writeAdvancements(PlayerData data) throws IOException {
+        Path file = advancementsFolder.resolve(data.getPlayerId() + ".json");
+        JsonObject json = readJson(file);
+        for (Iterator<Advancement> it = plugin.getServer().advancementIterator(); it.hasNext();) {
+            Advancement advancement = it.next();
+            String key = advancement.getKey().toString();
+            // Advancements that the data doesn't have have no awarded criteria
+            Map<String, Long> awarded = data.getAdvancementProgress().getOrDefault(key, Collections.emptyMap());
+            if (awarded.isEmpty()) {
+                json.remove(key);
+                continue;
+            }
+            JsonObject criteria = new JsonObject();
+            for (Map.Entry<String, Long> criterion : awarded.entrySet()) {
+                criteria.addProperty(criterion.getKey(), CRITERION_DATE_FORMAT.format(Instant.ofEpochMilli(criterion.getValue()).atZone(ZoneId.systemDefault())));
+            }
+            JsonObject progress = new JsonObject();
+            progress.add("criteria", criteria);
+            progress.addProperty("done", awarded.keySet().containsAll(advancement.getCriteria()));
+            json.add(key, progress);
+        }
+        if (!json.has("DataVersion")) {
+            json.addProperty("DataVersion", dataVersion);
+        }
+        return stage(file, out -> out.write(GSON.toJson(json).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private StagedFile writeStatistics(PlayerData data) throws IOException {
+        Path file = statsFolder.resolve(data.getPlayerId() + ".json");
+        JsonObject json = readJson(file);
+        JsonObject stats = json.has("stats") && json.get("stats").isJsonObject() ? json.getAsJsonObject("stats") : new JsonObject();
+        data.getStatistics().forEach((statistic, material, entityType, value) -> {
+            String statisticKey = statisticKeys.get(statistic);
+            if (value <= 0 || statisticKey == null || !plugin.shouldBeSynced(statistic) || !shouldSync(statistic.getType())) {
+                return;
+            }
+            String type;
+            String key;
+            if (statistic.getType() == Statistic.Type.UNTYPED) {
+                type = CUSTOM_STATISTICS;
+                key = statisticKey;
+            } else {
+                type = statisticKey;
+                key = (entityType != null ? entityType.getKey() : material.getKey()).toString();
+            }
+            if (!stats.has(type) || !stats.get(type).isJsonObject()) {
+                stats.add(type, new JsonObject());
+            }
+            stats.getAsJsonObject(type).addProperty(key, value);
+        });
+        json.add("stats", stats);
+        if (!json.has("DataVersion")) {
+            json.addProperty("DataVersion", dataVersion);
+        }
+        return stage(file, out -> out.write(GSON.toJson(json).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private Map<String, Object> readPlayerFile(UUID playerId) throws IOException {
+        Map<String, Object> root;
+        try (InputStream in = Files.newInputStream(getPlayerFile(playerId))) {
+            root = Nbt.read(in);
+        }
+        int fileVersion = Nbt.getNumber(root, "DataVersion", 0).intValue();
+        if (fileVersion != dataVersion) {
+            throw new IOException("Player file of " + playerId + " has version " + fileVersion + " but the server " + dataVersion);
+        }
+        return root;
+    }
+
+    private JsonObject readJson(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return new JsonObject();
+        }
+        try {
+            JsonElement json = JsonParser.parseString(Files.readString(file));
+            return json.isJsonObject() ? json.getAsJsonObject() : new JsonObject();
+        } catch (JsonParseException e) {
+            throw new IOException("Invalid json in " + file, e);
+        }
+    }
+
+    private interface FileWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * A completely written file that only has to be moved to where it replaces the old one
+     */
+    private static class StagedFile {
+        private final Path temp;
+        private final Path file;
+
+        private StagedFile(Path temp, Path file) {
+            this.temp = temp;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Write the new content of a file next to it and keep the old one as a backup like the server does
+     */
+    private StagedFile stage(Path file, FileWriter writer) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                writer.write(out);
+            }
+            if (Files.exists(file)) {
+                Files.copy(file, file.resolveSibling(file.getFileName() + "_old"), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return new StagedFile(temp, file);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    /**
+     * Replace the files of a player with the staged ones without the server ever seeing half of them. The
+     * files are only replaced on the main thread and when the player isn't loaded there as the server or
+     * OpenInv would save their copy of the player over them later.
+     * @throws IOException When the files couldn't be replaced, e.g. because the player got loaded
+     */
+    private void commit(UUID playerId, List<StagedFile> staged) throws IOException {
+        // Whoever sets this first decides: the main thread replacing the files or us giving up on waiting for it
+        AtomicBoolean claimed = new AtomicBoolean(false);
+        CompletableFuture<Void> replaced = new CompletableFuture<>();
+        try {
+            plugin.runSync(() -> {
+                if (!claimed.compareAndSet(false, true)) {
+                    return;
+                }
+                if (isLoaded(playerId)) {
+                    replaced.completeExceptionally(new IOException("Player " + playerId + " got loaded while their files were written"));
+                    return;
+                }
+                try {
+                    for (StagedFile file : staged) {
+                        Files.move(file.temp, file.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                    replaced.complete(null);
+                } catch (IOException | RuntimeException e) {
+                    replaced.completeExceptionally(e);
+                }
+            });
+            try {
+                replaced.get(10, TimeUnit.SECONDS);
+            } catch (TimeoutException | InterruptedException e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                if (claimed.compareAndSet(false, true)) {
+                    throw new IOException("The main thread didn't replace the files of " + playerId + " in time", e);
+                }
+                // It is already replacing them
+                replaced.join();
+            }
+        } catch (ExecutionException | CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            for (StagedFile file : staged) {
+                Files.deleteIfExists(file.temp);
+            }
+        }
+    }
+
+    private static int getInventoryIndex(byte slot) {
+        if (slot >= 0 && slot < STORAGE_SIZE) {
+            return slot;
+        }
+        for (int i = 0; i < LEGACY_EQUIPMENT_SLOTS.length; i++) {
+            if ((byte) LEGACY_EQUIPMENT_SLOTS[i] == slot) {
+                return STORAGE_SIZE + i;
+            }
+        }
+        return -1;
+    }
+
+    private static Map<String, Object> getMaxHealthAttribute(Map<String, Object> root) {
+        for (Object element : Nbt.getList(root, "attributes")) {
+            if (element instanceof Map && MAX_HEALTH.equals(((Map<?, ?>) element).get("id"))) {
+                return asCompound(element);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Turn an item of a player file into the format of {@link org.bukkit.inventory.ItemStack#serializeAsBytes()}
+     */
+    private byte[] toItemBytes(Map<String, Object> item, Set<Integer> mapIds) {
+        Map<String, Object> copy = new HashMap<>(item);
+        copy.remove("Slot");
+        copy.put("DataVersion", dataVersion);
+        Map<String, Object> components = Nbt.getCompound(item, "components");
+        if (components != null && components.get("minecraft:map_id") instanceof Number) {
+            mapIds.add(((Number) components.get("minecraft:map_id")).intValue());
+        }
+        return Nbt.write(copy, true);
+    }
+
+    /**
+     * Turn bytes of {@link org.bukkit.inventory.ItemStack#serializeAsBytes()} into an item of a player file
+     */
+    private Map<String, Object> fromItemBytes(byte[] bytes) throws IOException {
+        Map<String, Object> item = Nbt.read(bytes);
+        item.remove("DataVersion");
+        return item;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asCompound(Object element) {
+        return element instanceof Map ? (Map<String, Object>) element : new HashMap<>();
+    }
+
+    private static int getInt(JsonObject stats, String type, String key) {
+        if (!stats.has(type) || !stats.get(type).isJsonObject()) {
+            return 0;
+        }
+        JsonElement value = stats.getAsJsonObject(type).get(key);
+        return value != null && value.isJsonPrimitive() ? value.getAsInt() : 0;
+    }
+
+    private Path getPlayerFile(UUID playerId) {
+        return playerDataFolder.resolve(playerId + ".dat");
+    }
+
+    /**
+     * Wait for running reads and writes and stop accepting new ones
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return A human readable line describing the accesses
+     */
+    public String getStats() {
+        return "Offline player files: " + reads.sum() + " read, " + writes.sum() + " written, " + pending.size() + " players pending";
+    }
+}
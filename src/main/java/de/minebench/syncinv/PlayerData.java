@@ -18,13 +18,17 @@ package de.minebench.syncinv;
  * along with this program.  If not, see <https://www.gnu.org/licenses/>.
  */
 
-import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Table;
+import de.minebench.syncinv.messenger.BinaryReader;
+import de.minebench.syncinv.messenger.BinaryWriter;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
 import org.bukkit.GameMode;
 import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
+import org.bukkit.Registry;
 import org.bukkit.Statistic;
 import org.bukkit.attribute.Attribute;
 import org.bukkit.entity.Player;
@@ -32,13 +36,21 @@ import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.ItemMeta;
 import org.bukkit.inventory.meta.MapMeta;
 import org.bukkit.map.MapView;
+import org.bukkit.persistence.PersistentDataContainer;
 import org.bukkit.potion.PotionEffect;
+import org.bukkit.potion.PotionEffectType;
 import org.bukkit.util.Vector;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -48,7 +60,21 @@ import java.util.UUID;
 @Setter
 public class PlayerData implements Serializable {
     private static final long serialVersionUID = -5703536933548893803L;
-    private final long timeStamp = System.currentTimeMillis();
+
+    // Sections of the binary format, unknown ones get skipped when reading
+    private static final int SECTION_CORE = 1;
+    private static final int SECTION_INVENTORY = 2;
+    private static final int SECTION_ENDERCHEST = 3;
+    private static final int SECTION_EFFECTS = 4;
+    private static final int SECTION_MAPS = 5;
+    private static final int SECTION_PERSISTENT_DATA = 6;
+    private static final int SECTION_ADVANCEMENTS = 7;
+    private static final int SECTION_STATISTICS = 8;
+    private static final int SECTION_DELTA = 9;
+    private static final int SECTION_AWARDED_ADVANCEMENTS = 10;
+    private static final int SECTION_STATISTIC_VALUES = 11;
+
+    private final long timeStamp;
     private final int dataVersion;
     private final UUID playerId;
     private final String playerName;
@@ -56,8 +82,10 @@ public class PlayerData implements Serializable {
     private final int totalExperience;
     private final int level;
     private final float exp;
-    private final byte[][] inventory;
-    private final byte[][] enderchest;
+    @Setter(AccessLevel.NONE)
+    private byte[][] inventory;
+    @Setter(AccessLevel.NONE)
+    private byte[][] enderchest;
     private final Collection<PotionEffect> potionEffects;
     private final Set<MapData> maps = new HashSet<>();
     private final double maxHealth;
@@ -77,10 +105,57 @@ public class PlayerData implements Serializable {
     private final int heldItemSlot;
     private byte[] persistentData = null;
     private final Map<String, Map<String, Long>> advancementProgress = new HashMap<>();
-    private final Table<Statistic, String, Integer> statistics = HashBasedTable.create();
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient StatisticValues statisticValues = new StatisticValues();
     private final long lastSeen;
 
+    /**
+     * Only used to keep the statistics in the legacy format, see {@link #writeObject(ObjectOutputStream)}
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    private Table<Statistic, String, Integer> statistics = null;
+
+    // Deltas are only sent in the binary format so the delta fields are transient
+    // and their default values have to describe a complete snapshot
+
+    /**
+     * The lastSeen of the data that this is a delta against, 0 if this is a complete snapshot
+     */
+    @Setter(AccessLevel.NONE)
+    private transient long baseVersion = 0;
+    /**
+     * The {@link DataSection} bits of the sections this data doesn't contain
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient int excludedSections = 0;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient long inventoryMask = 0;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient long enderchestMask = 0;
+
+    // Copies that were taken from the player on the main thread and still have to be serialized, see #serialize()
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    private transient ItemStack[] inventoryCopy = null;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    private transient ItemStack[] enderchestCopy = null;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    private transient PersistentDataContainer persistentDataCopy = null;
+
     PlayerData(Player player, long lastSeen) {
+        this.timeStamp = System.currentTimeMillis();
         this.dataVersion = player.getServer().getUnsafe().getDataVersion();
         this.playerId = player.getUniqueId();
         this.playerName = player.getName();
@@ -88,8 +163,8 @@ public class PlayerData implements Serializable {
         this.totalExperience = player.getTotalExperience();
         this.level = player.getLevel();
         this.exp = player.getExp();
-        this.inventory = serializeItems(player.getInventory().getContents());
-        this.enderchest = serializeItems(player.getEnderChest().getContents());
+        this.inventoryCopy = copyItems(player.getInventory().getContents());
+        this.enderchestCopy = copyItems(player.getEnderChest().getContents());
         this.potionEffects = player.getActivePotionEffects();
         this.maxHealth = player.getMaxHealth();
         this.health = player.getHealth();
@@ -109,6 +184,458 @@ public class PlayerData implements Serializable {
         this.lastSeen = lastSeen;
     }
 
+    /**
+     * Create data from values that were read without loading the player, e.g. from their file
+     */
+    PlayerData(long lastSeen, int dataVersion, UUID playerId, String playerName, GameMode gamemode, int totalExperience, int level, float exp,
+               byte[][] inventory, byte[][] enderchest, Collection<PotionEffect> potionEffects, double maxHealth, double health,
+               int foodLevel, float saturation, float exhaustion, int maxAir, int remainingAir, int fireTicks, float fallDistance,
+               Vector velocity, int heldItemSlot) {
+        this.timeStamp = System.currentTimeMillis();
+        this.dataVersion = dataVersion;
+        this.playerId = playerId;
+        this.playerName = playerName;
+        this.gamemode = gamemode;
+        this.totalExperience = totalExperience;
+        this.level = level;
+        this.exp = exp;
+        this.inventory = inventory;
+        this.enderchest = enderchest;
+        this.potionEffects = potionEffects;
+        this.maxHealth = maxHealth;
+        this.health = health;
+        // Only known to the online player
+        this.isHealthScaled = false;
+        this.healthScale = 20;
+        this.foodLevel = foodLevel;
+        this.saturation = saturation;
+        this.exhaustion = exhaustion;
+        this.maxAir = maxAir;
+        this.remainingAir = remainingAir;
+        this.fireTicks = fireTicks;
+        // Not stored in the player file
+        this.maxNoDamageTicks = 20;
+        this.noDamageTicks = 0;
+        this.fallDistance = fallDistance;
+        this.velocity = velocity;
+        this.heldItemSlot = heldItemSlot;
+        this.lastSeen = lastSeen;
+    }
+
+    private PlayerData(BinaryReader in) throws IOException {
+        if (in.readVarInt() != SECTION_CORE) {
+            throw new IOException("Player data has to start with the core section!");
+        }
+        BinaryReader core = in.readSection();
+        this.timeStamp = core.readLong();
+        this.dataVersion = core.readVarInt();
+        this.playerId = core.readUuid();
+        this.playerName = core.readNullableString();
+        String gamemodeName = core.readNullableString();
+        this.gamemode = gamemodeName != null ? GameMode.valueOf(gamemodeName) : null;
+        this.totalExperience = core.readVarInt();
+        this.level = core.readVarInt();
+        this.exp = core.readFloat();
+        this.maxHealth = core.readDouble();
+        this.health = core.readDouble();
+        this.isHealthScaled = core.readBoolean();
+        this.healthScale = core.readDouble();
+        this.foodLevel = core.readSignedVarInt();
+        this.saturation = core.readFloat();
+        this.exhaustion = core.readFloat();
+        this.maxAir = core.readSignedVarInt();
+        this.remainingAir = core.readSignedVarInt();
+        this.fireTicks = core.readSignedVarInt();
+        this.maxNoDamageTicks = core.readSignedVarInt();
+        this.noDamageTicks = core.readSignedVarInt();
+        this.fallDistance = core.readFloat();
+        this.velocity = new Vector(core.readDouble(), core.readDouble(), core.readDouble());
+        this.heldItemSlot = core.readVarInt();
+        this.lastSeen = core.readLong();
+
+        byte[][] inventory = new byte[0][];
+        byte[][] enderchest = new byte[0][];
+        List<PotionEffect> potionEffects = new ArrayList<>();
+        while (in.hasRemaining()) {
+            int sectionId = in.readVarInt();
+            BinaryReader section = in.readSection();
+            switch (sectionId) {
+                case SECTION_INVENTORY:
+                    inventory = readItems(section);
+                    break;
+                case SECTION_ENDERCHEST:
+                    enderchest = readItems(section);
+                    break;
+                case SECTION_EFFECTS:
+                    for (int i = section.readVarInt(); i > 0; i--) {
+                        NamespacedKey key = NamespacedKey.fromString(section.readString());
+                        PotionEffectType type = key != null ? Registry.EFFECT.get(key) : null;
+                        int duration = section.readSignedVarInt();
+                        int amplifier = section.readVarInt();
+                        boolean ambient = section.readBoolean();
+                        boolean particles = section.readBoolean();
+                        boolean icon = section.readBoolean();
+                        if (type != null) {
+                            potionEffects.add(new PotionEffect(type, duration, amplifier, ambient, particles, icon));
+                        }
+                    }
+                    break;
+                case SECTION_MAPS:
+                    for (int i = section.readVarInt(); i > 0; i--) {
+                        maps.add(MapData.read(section));
+                    }
+                    break;
+                case SECTION_PERSISTENT_DATA:
+                    persistentData = section.readBytes();
+                    break;
+                case SECTION_ADVANCEMENTS:
+                    for (int i = section.readVarInt(); i > 0; i--) {
+                        String advancement = section.readString();
+                        Map<String, Long> awarded = new HashMap<>();
+                        for (int j = section.readVarInt(); j > 0; j--) {
+                            awarded.put(section.readString(), section.readLong());
+                        }
+                        advancementProgress.put(advancement, awarded);
+                    }
+                    break;
+                case SECTION_AWARDED_ADVANCEMENTS:
+                    long awardedBase = section.readLong();
+                    for (int i = section.readVarInt(); i > 0; i--) {
+                        String advancement = section.readString();
+                        Map<String, Long> awarded = new HashMap<>();
+                        for (int j = section.readVarInt(); j > 0; j--) {
+                            awarded.put(section.readString(), awardedBase + section.readVarLong());
+                        }
+                        advancementProgress.put(advancement, awarded);
+                    }
+                    break;
+                case SECTION_DELTA:
+                    baseVersion = section.readLong();
+                    excludedSections = DataSection.ALL & ~section.readVarInt();
+                    inventoryMask = section.readLong();
+                    enderchestMask = section.readLong();
+                    break;
+                case SECTION_STATISTIC_VALUES:
+                    statisticValues.read(section);
+                    break;
+                case SECTION_STATISTICS:
+                    for (int i = section.readVarInt(); i > 0; i--) {
+                        String statisticName = section.readString();
+                        Statistic statistic = null;
+                        try {
+                            statistic = Statistic.valueOf(statisticName);
+                        } catch (IllegalArgumentException ignored) {
+                            // unknown statistic, still read its values to get to the next one
+                        }
+                        for (int j = section.readVarInt(); j > 0; j--) {
+                            String key = section.readString();
+                            int value = section.readSignedVarInt();
+                            if (statistic != null) {
+                                statisticValues.set(statistic, key, value);
+                            }
+                        }
+                    }
+                    break;
+            }
+        }
+        this.inventory = inventory;
+        this.enderchest = enderchest;
+        this.potionEffects = potionEffects;
+    }
+
+    /**
+     * Read player data written by {@link #write(BinaryWriter)}
+     * @param in    The reader to read from
+     * @return      The PlayerData
+     * @throws IOException When the data could not be read
+     */
+    public static PlayerData read(BinaryReader in) throws IOException {
+        return new PlayerData(in);
+    }
+
+    /**
+     * Write this data in the binary message format. Everything apart from the core
+     * values is written in its own section so that it can be skipped when not known.
+     * @param out The writer to write to
+     */
+    public void write(BinaryWriter out) {
+        int section = out.beginSection(SECTION_CORE);
+        out.writeLong(timeStamp);
+        out.writeVarInt(dataVersion);
+        out.writeUuid(playerId);
+        out.writeNullableString(playerName);
+        out.writeNullableString(gamemode != null ? gamemode.name() : null);
+        out.writeVarInt(totalExperience);
+        out.writeVarInt(level);
+        out.writeFloat(exp);
+        out.writeDouble(maxHealth);
+        out.writeDouble(health);
+        out.writeBoolean(isHealthScaled);
+        out.writeDouble(healthScale);
+        out.writeSignedVarInt(foodLevel);
+        out.writeFloat(saturation);
+        out.writeFloat(exhaustion);
+        out.writeSignedVarInt(maxAir);
+        out.writeSignedVarInt(remainingAir);
+        out.writeSignedVarInt(fireTicks);
+        out.writeSignedVarInt(maxNoDamageTicks);
+        out.writeSignedVarInt(noDamageTicks);
+        out.writeFloat(fallDistance);
+        out.writeDouble(velocity.getX());
+        out.writeDouble(velocity.getY());
+        out.writeDouble(velocity.getZ());
+        out.writeVarInt(heldItemSlot);
+        out.writeLong(lastSeen);
+        out.endSection(section);
+
+        if (isDelta() || excludedSections != 0) {
+            // Also tells the receivers which sections of a complete snapshot weren't captured
+            section = out.beginSection(SECTION_DELTA);
+            out.writeLong(baseVersion);
+            out.writeVarInt(getIncludedSections());
+            out.writeLong(inventoryMask);
+            out.writeLong(enderchestMask);
+            out.endSection(section);
+        }
+
+        if (hasSection(DataSection.INVENTORY)) {
+            section = out.beginSection(SECTION_INVENTORY);
+            writeItems(out, inventory);
+            out.endSection(section);
+        }
+
+        if (hasSection(DataSection.ENDERCHEST)) {
+            section = out.beginSection(SECTION_ENDERCHEST);
+            writeItems(out, enderchest);
+            out.endSection(section);
+        }
+
+        if (!potionEffects.isEmpty()) {
+            section = out.beginSection(SECTION_EFFECTS);
+            out.writeVarInt(potionEffects.size());
+            for (PotionEffect effect : potionEffects) {
+                out.writeString(effect.getType().getKey().toString());
+                out.writeSignedVarInt(effect.getDuration());
+                out.writeVarInt(effect.getAmplifier());
+                out.writeBoolean(effect.isAmbient());
+                out.writeBoolean(effect.hasParticles());
+                out.writeBoolean(effect.hasIcon());
+            }
+            out.endSection(section);
+        }
+
+        if (!maps.isEmpty()) {
+            section = out.beginSection(SECTION_MAPS);
+            out.writeVarInt(maps.size());
+            for (MapData map : maps) {
+                map.write(out);
+            }
+            out.endSection(section);
+        }
+
+        if (persistentData != null) {
+            section = out.beginSection(SECTION_PERSISTENT_DATA);
+            out.writeBytes(persistentData);
+            out.endSection(section);
+        }
+
+        if (!advancementProgress.isEmpty()) {
+            // Only advancements with awarded criteria, the dates relative to the oldest one
+            int awardedCount = 0;
+            long awardedBase = Long.MAX_VALUE;
+            for (Map<String, Long> awarded : advancementProgress.values()) {
+                if (!awarded.isEmpty()) {
+                    awardedCount++;
+                    for (long date : awarded.values()) {
+                        awardedBase = Math.min(awardedBase, date);
+                    }
+                }
+            }
+            section = out.beginSection(SECTION_AWARDED_ADVANCEMENTS);
+            out.writeLong(awardedCount > 0 ? awardedBase : 0);
+            out.writeVarInt(awardedCount);
+            for (Map.Entry<String, Map<String, Long>> entry : advancementProgress.entrySet()) {
+                if (entry.getValue().isEmpty()) {
+                    continue;
+                }
+                out.writeString(entry.getKey());
+                out.writeVarInt(entry.getValue().size());
+                for (Map.Entry<String, Long> criterion : entry.getValue().entrySet()) {
+                    out.writeString(criterion.getKey());
+                    out.writeVarLong(criterion.getValue() - awardedBase);
+                }
+            }
+            out.endSection(section);
+        }
+
+        if (!statisticValues.isEmpty()) {
+            section = out.beginSection(SECTION_STATISTIC_VALUES);
+            statisticValues.write(out);
+            out.endSection(section);
+        }
+    }
+
+    /**
+     * @return The statistics of the player
+     */
+    public StatisticValues getStatistics() {
+        return statisticValues;
+    }
+
+    // The legacy format contains the statistics as a table of the names
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        statistics = statisticValues.toTable();
+        try {
+            out.defaultWriteObject();
+        } finally {
+            statistics = null;
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        statisticValues = StatisticValues.fromTable(statistics);
+        statistics = null;
+        if (advancementProgress.isEmpty()) {
+            // The legacy format can't say whether the advancements were captured, senders
+            // that didn't sync them left them out while those that did included all of them
+            excludedSections |= DataSection.ADVANCEMENTS.getBit();
+        }
+    }
+
+    /**
+     * @return Whether this only contains the changes against an older version
+     */
+    public boolean isDelta() {
+        return baseVersion != 0;
+    }
+
+    /**
+     * Check whether this data contains a certain section. Complete snapshots contain all of them.
+     * @param section   The section
+     * @return          Whether it is included
+     */
+    public boolean hasSection(DataSection section) {
+        return (excludedSections & section.getBit()) == 0;
+    }
+
+    /**
+     * Leave a section out of a complete snapshot because it wasn't captured,
+     * receivers keep what they have instead of clearing it
+     * @param section   The section
+     */
+    void excludeSection(DataSection section) {
+        excludedSections |= section.getBit();
+    }
+
+    /**
+     * @return The {@link DataSection} bits of the sections this data contains
+     */
+    public int getIncludedSections() {
+        return DataSection.ALL & ~excludedSections;
+    }
+
+    /**
+     * @return The inventory slots that this data contains, all bits are set for complete snapshots
+     */
+    public long getInventoryMask() {
+        return isDelta() ? inventoryMask : -1;
+    }
+
+    /**
+     * @return The enderchest slots that this data contains, all bits are set for complete snapshots
+     */
+    public long getEnderchestMask() {
+        return isDelta() ? enderchestMask : -1;
+    }
+
+    /**
+     * Turn this complete snapshot into a delta against an older version.
+     * All content that didn't change compared to that version gets dropped.
+     * @param baseVersion   The lastSeen of the older version
+     * @param base          The section hashes of the older version
+     * @param current       The section hashes of this data
+     */
+    public void makeDelta(long baseVersion, SectionHashes base, SectionHashes current) {
+        this.baseVersion = baseVersion;
+        this.excludedSections = DataSection.ALL & ~current.getChangedSections(base);
+        inventoryMask = hasSection(DataSection.INVENTORY) ? current.getChangedInventorySlots(base) : 0;
+        enderchestMask = hasSection(DataSection.ENDERCHEST) ? current.getChangedEnderchestSlots(base) : 0;
+        dropUnchanged(inventory, inventoryMask);
+        dropUnchanged(enderchest, enderchestMask);
+        if (!hasSection(DataSection.ADVANCEMENTS)) {
+            advancementProgress.clear();
+        }
+        if (!hasSection(DataSection.STATISTICS)) {
+            statisticValues.clear();
+        }
+        if (!hasSection(DataSection.PERSISTENT_DATA)) {
+            persistentData = null;
+        }
+        if (!hasSection(DataSection.MAPS)) {
+            maps.clear();
+        }
+    }
+
+    private static void dropUnchanged(byte[][] items, long mask) {
+        if (mask == 0) {
+            Arrays.fill(items, null);
+        } else if (mask != -1) {
+            for (int i = 0; i < items.length; i++) {
+                if ((mask & 1L << i) == 0) {
+                    items[i] = null;
+                }
+            }
+        }
+    }
+
+    private static void writeItems(BinaryWriter out, byte[][] items) {
+        out.writeVarInt(items.length);
+        for (byte[] item : items) {
+            out.writeNullableBytes(item);
+        }
+    }
+
+    private static byte[][] readItems(BinaryReader in) throws IOException {
+        byte[][] items = new byte[in.readLength()][];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = in.readNullableBytes();
+        }
+        return items;
+    }
+
+    /**
+     * Copy the persistent data of the player so that it can be serialized later
+     * @param container The persistent data container of the player
+     */
+    void copyPersistentData(PersistentDataContainer container) {
+        persistentDataCopy = container.getAdapterContext().newPersistentDataContainer();
+        container.copyTo(persistentDataCopy, true);
+    }
+
+    /**
+     * Serialize the items and persistent data that were only copied from the player when
+     * this data was created. Has to be called before the data is used but doesn't need
+     * to run on the main thread.
+     * @throws IOException When the persistent data could not be serialized, everything else still is
+     */
+    synchronized void serialize() throws IOException {
+        if (inventoryCopy != null) {
+            inventory = serializeItems(inventoryCopy);
+            inventoryCopy = null;
+        }
+        if (enderchestCopy != null) {
+            enderchest = serializeItems(enderchestCopy);
+            enderchestCopy = null;
+        }
+        if (persistentDataCopy != null) {
+            PersistentDataContainer container = persistentDataCopy;
+            persistentDataCopy = null;
+            persistentData = container.serializeToBytes();
+        }
+    }
+
     public ItemStack[] getInventoryContents() {
         return deserializeItems(inventory);
     }
@@ -117,6 +644,14 @@ public class PlayerData implements Serializable {
         return deserializeItems(enderchest);
     }
 
+    private static ItemStack[] copyItems(ItemStack[] items) {
+        ItemStack[] copy = new ItemStack[items.length];
+        for (int i = 0; i < items.length; i++) {
+            copy[i] = items[i] != null ? items[i].clone() : null;
+        }
+        return copy;
+    }
+
     private static byte[][] serializeItems(ItemStack[] items) {
         byte[][] itemByteArray = new byte[items.length][];
         for (int i = 0; i < items.length; i++) {
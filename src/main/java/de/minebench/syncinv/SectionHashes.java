@@ -0,0 +1,221 @@
+package de.minebench.syncinv;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Content hashes of the sections of a {@link PlayerData} snapshot. Used to find out
+ * which sections changed between two versions without having to keep the old data.
+ */
+public class SectionHashes {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long[] inventory;
+    private final long[] enderchest;
+    private final long[] sections = new long[DataSection.values().length];
+
+    private SectionHashes(long[] inventory, long[] enderchest) {
+        this.inventory = inventory;
+        this.enderchest = enderchest;
+    }
+
+    /**
+     * Calculate the hashes of a complete (non-delta) snapshot
+     * @param data  The data
+     * @return      The hashes of all sections
+     */
+    public static SectionHashes of(PlayerData data) {
+        SectionHashes hashes = new SectionHashes(hashItems(data.getInventory()), hashItems(data.getEnderchest()));
+        for (DataSection section : DataSection.values()) {
+            hashes.sections[section.ordinal()] = hashes.hash(section, data);
+        }
+        return hashes;
+    }
+
+    /**
+     * Calculate the hashes of the version that results from applying a delta to the version these hashes are of
+     * @param delta The delta based on the version of these hashes
+     * @return      The hashes of the new version
+     */
+    public SectionHashes applyDelta(PlayerData delta) {
+        SectionHashes hashes = new SectionHashes(
+                applyItems(inventory, delta.getInventory(), delta.hasSection(DataSection.INVENTORY) ? delta.getInventoryMask() : 0),
+                applyItems(enderchest, delta.getEnderchest(), delta.hasSection(DataSection.ENDERCHEST) ? delta.getEnderchestMask() : 0)
+        );
+        for (DataSection section : DataSection.values()) {
+            hashes.sections[section.ordinal()] = delta.hasSection(section) ? hashes.hash(section, delta) : sections[section.ordinal()];
+        }
+        return hashes;
+    }
+
+    private long hash(DataSection section, PlayerData data) {
+        switch (section) {
+            case INVENTORY:
+                return combine(inventory);
+            case ENDERCHEST:
+                return combine(enderchest);
+            case ADVANCEMENTS:
+                long advancements = 0;
+                for (Map.Entry<String, Map<String, Long>> entry : data.getAdvancementProgress().entrySet()) {
+                    if (entry.getValue().isEmpty()) {
+                        // Same as not having the advancement at all
+                        continue;
+                    }
+                    long criteria = hash(entry.getKey());
+                    for (Map.Entry<String, Long> criterion : entry.getValue().entrySet()) {
+                        criteria += mix(hash(criterion.getKey()) ^ criterion.getValue());
+                    }
+                    // Entries are summed up so that the order of the map doesn't matter
+                    advancements += mix(criteria);
+                }
+                return advancements;
+            case STATISTICS:
+                long[] statistics = {0};
+                data.getStatistics().forEach((statistic, material, entityType, value) -> {
+                    statistics[0] += mix(hash(statistic.name()) * 31 + hash(StatisticValues.getName(material, entityType)) ^ value);
+                });
+                return statistics[0];
+            case PERSISTENT_DATA:
+                return hash(data.getPersistentData());
+            case MAPS:
+                long maps = 0;
+                for (MapData map : data.getMaps()) {
+                    maps += mix(hash(map.getColors()) ^ map.getId()
+                            ^ ((long) map.getCenterX() << 32 | map.getCenterZ() & 0xFFFFFFFFL) * 31
+                            ^ map.getWorldId().hashCode()
+                            ^ (long) map.getScale().ordinal() << 48
+                            ^ (map.isLocked() ? 1L << 56 : 0) ^ (map.isTrackingPosition() ? 1L << 57 : 0) ^ (map.isUnlimitedTracking() ? 1L << 58 : 0));
+                }
+                return maps;
+        }
+        return 0;
+    }
+
+    /**
+     * Get a bit mask of the sections that differ between these and other hashes
+     * @param other The other hashes
+     * @return      The {@link DataSection} bits of all changed sections
+     */
+    public int getChangedSections(SectionHashes other) {
+        int changed = 0;
+        for (DataSection section : DataSection.values()) {
+            if (sections[section.ordinal()] != other.sections[section.ordinal()]) {
+                changed |= section.getBit();
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Get a bit mask of the inventory slots that differ between these and other hashes
+     * @param other The other hashes
+     * @return      The changed slots, all bits set if the inventory size differs
+     */
+    public long getChangedInventorySlots(SectionHashes other) {
+        return getChangedSlots(inventory, other.inventory);
+    }
+
+    /**
+     * Get a bit mask of the enderchest slots that differ between these and other hashes
+     * @param other The other hashes
+     * @return      The changed slots, all bits set if the enderchest size differs
+     */
+    public long getChangedEnderchestSlots(SectionHashes other) {
+        return getChangedSlots(enderchest, other.enderchest);
+    }
+
+    private static long getChangedSlots(long[] items, long[] other) {
+        if (items.length != other.length || items.length > 64) {
+            return -1;
+        }
+        long changed = 0;
+        for (int i = 0; i < items.length; i++) {
+            if (items[i] != other[i]) {
+                changed |= 1L << i;
+            }
+        }
+        return changed;
+    }
+
+    private static long[] hashItems(byte[][] items) {
+        long[] hashes = new long[items.length];
+        for (int i = 0; i < items.length; i++) {
+            hashes[i] = hash(items[i]);
+        }
+        return hashes;
+    }
+
+    private static long[] applyItems(long[] hashes, byte[][] items, long mask) {
+        if (mask == 0) {
+            return hashes;
+        }
+        if (mask == -1 || hashes.length != items.length) {
+            return hashItems(items);
+        }
+        long[] applied = Arrays.copyOf(hashes, hashes.length);
+        for (int i = 0; i < items.length; i++) {
+            if ((mask & 1L << i) != 0) {
+                applied[i] = hash(items[i]);
+            }
+        }
+        return applied;
+    }
+
+    private static long combine(long[] hashes) {
+        long hash = FNV_OFFSET;
+        for (long h : hashes) {
+            hash = mix(hash ^ h);
+        }
+        return hash;
+    }
+
+    private static long hash(String string) {
+        return hash(string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 64 bit FNV-1a hash of some bytes
+     * @param bytes The bytes, can be null
+     * @return      The hash, 0 for null
+     */
+    private static long hash(byte[] bytes) {
+        if (bytes == null) {
+            return 0;
+        }
+        long hash = FNV_OFFSET;
+        for (byte b : bytes) {
+            hash ^= b & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Finalizer of the SplitMix64 generator to spread the bits of combined hashes
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,272 @@
+package de.minebench.syncinv;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.bukkit.Material;
+import org.bukkit.Statistic;
+import org.bukkit.entity.EntityType;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The statistics that get synced with the materials or entity types that they exist for.
+ * Capturing the statistics of a player only asks for these instead of trying every
+ * combination of statistic and material or entity type and catching the invalid ones.
+ * <p>
+ * The index is built from the API without a player, only with the materials and entity
+ * types that the statistics can exist for. Combinations that the server still rejects
+ * are removed from the index the first time that they are asked for.
+ */
+class StatisticIndex {
+    private final SyncInv plugin;
+
+    private final List<Statistic> untyped = new ArrayList<>();
+    private final Map<Statistic, Material[]> materials = new EnumMap<>(Statistic.class);
+    private final Map<Statistic, EntityType[]> entities = new EnumMap<>(Statistic.class);
+    private int size = 0;
+
+    StatisticIndex(SyncInv plugin) {
+        this.plugin = plugin;
+        List<Material> blocks = new ArrayList<>();
+        List<Material> items = new ArrayList<>();
+        for (Material material : Material.values()) {
+            if (material.isLegacy()) {
+                continue;
+            }
+            if (material.isBlock()) {
+                blocks.add(material);
+            }
+            if (material.isItem()) {
+                items.add(material);
+            }
+        }
+        List<EntityType> entityTypes = new ArrayList<>();
+        for (EntityType entityType : EntityType.values()) {
+            // Only living entities can be killed or kill, the server has no statistics for the others
+            if (entityType != EntityType.UNKNOWN && entityType.isAlive()) {
+                entityTypes.add(entityType);
+            }
+        }
+        for (Statistic statistic : Statistic.values()) {
+            if (!plugin.shouldBeSynced(statistic)) {
+                continue;
+            }
+            switch (statistic.getType()) {
+                case UNTYPED:
+                    if (plugin.shouldSync(SyncType.GENERAL_STATISTICS)) {
+                        untyped.add(statistic);
+                        size++;
+                    }
+                    break;
+                case ENTITY:
+                    if (plugin.shouldSync(SyncType.ENTITY_STATISTICS)) {
+                        entities.put(statistic, entityTypes.toArray(new EntityType[0]));
+                        size += entityTypes.size();
+                    }
+                    break;
+                case BLOCK:
+                    if (plugin.shouldSync(SyncType.BLOCK_STATISTICS)) {
+                        materials.put(statistic, blocks.toArray(new Material[0]));
+                        size += blocks.size();
+                    }
+                    break;
+                case ITEM:
+                    if (plugin.shouldSync(SyncType.ITEM_STATISTICS)) {
+                        materials.put(statistic, items.toArray(new Material[0]));
+                        size += items.size();
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Get the statistics of a player. Has to be called on the main thread.
+     * @param player    The player
+     * @param into      The values to put the statistics that are above 0 into
+     */
+    void capture(Player player, StatisticValues into) {
+        captureUntyped(player, into);
+        for (Map.Entry<Statistic, EntityType[]> entry : entities.entrySet()) {
+            EntityType[] entityTypes = entry.getValue();
+            for (int i = 0; i < entityTypes.length; i++) {
+                try {
+                    int value = player.getStatistic(entry.getKey(), entityTypes[i]);
+                    if (value > 0) {
+                        into.set(entry.getKey(), entityTypes[i], value);
+                    }
+                } catch (IllegalArgumentException e) {
+                    // This statistic doesn't exist, don't ask for it again
+                    entityTypes = remove(entityTypes, i--);
+                    entry.setValue(entityTypes);
+                }
+            }
+        }
+        for (Map.Entry<Statistic, Material[]> entry : materials.entrySet()) {
+            Material[] types = entry.getValue();
+            for (int i = 0; i < types.length; i++) {
+                try {
+                    int value = player.getStatistic(entry.getKey(), types[i]);
+                    if (value > 0) {
+                        into.set(entry.getKey(), types[i], value);
+                    }
+                } catch (IllegalArgumentException e) {
+                    // This statistic doesn't exist, don't ask for it again
+                    types = remove(types, i--);
+                    entry.setValue(types);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the untyped statistics of a player. Has to be called on the main thread.
+     * @param player    The player
+     * @param into      The values to put the statistics that are above 0 into
+     */
+    void captureUntyped(Player player, StatisticValues into) {
+        for (Statistic statistic : untyped) {
+            int value = player.getStatistic(statistic);
+            if (value > 0) {
+                into.set(statistic, value);
+            }
+        }
+    }
+
+    /**
+     * Check whether a statistic with a type gets synced
+     * @param statistic The statistic
+     * @return Whether it is in the index
+     */
+    boolean containsTyped(Statistic statistic) {
+        return materials.containsKey(statistic) || entities.containsKey(statistic);
+    }
+
+    private <T> T[] remove(T[] array, int index) {
+        T[] removed = Arrays.copyOf(array, array.length - 1);
+        System.arraycopy(array, index + 1, removed, index, array.length - index - 1);
+        size--;
+        return removed;
+    }
+
+    /**
+     * Get the statistics of a player by trying every combination like it was done without the index
+     * @param player    The player
+     * @param into      The values to put the statistics that are above 0 into
+     */
+    void captureUnindexed(Player player, StatisticValues into) {
+        for (Statistic statistic : Statistic.values()) {
+            switch (statistic.getType()) {
+                case UNTYPED:
+                    if (plugin.shouldSync(SyncType.GENERAL_STATISTICS)) {
+                        int value = player.getStatistic(statistic);
+                        if (value > 0) {
+                            into.set(statistic, value);
+                        }
+                    }
+                    break;
+                case ENTITY:
+                    if (plugin.shouldSync(SyncType.ENTITY_STATISTICS)) {
+                        for (EntityType entityType : EntityType.values()) {
+                            try {
+                                int value = player.getStatistic(statistic, entityType);
+                                if (value > 0) {
+                                    into.set(statistic, entityType, value);
+                                }
+                            } catch (IllegalArgumentException ignored) {} // This statistic doesn't exist
+                        }
+                    }
+                    break;
+                case BLOCK:
+                    if (plugin.shouldSync(SyncType.BLOCK_STATISTICS)) {
+                        for (Material blockType : Material.values()) {
+                            if (blockType.isBlock()) {
+                                try {
+                                    int value = player.getStatistic(statistic, blockType);
+                                    if (value > 0) {
+                                        into.set(statistic, blockType, value);
+                                    }
+                                } catch (IllegalArgumentException ignored) {} // This statistic doesn't exist
+                            }
+                        }
+                    }
+                    break;
+                case ITEM:
+                    if (plugin.shouldSync(SyncType.ITEM_STATISTICS)) {
+                        for (Material itemType : Material.values()) {
+                            if (itemType.isItem()) {
+                                try {
+                                    int value = player.getStatistic(statistic, itemType);
+                                    if (value > 0) {
+                                        into.set(statistic, itemType, value);
+                                    }
+                                } catch (IllegalArgumentException ignored) {} // This statistic doesn't exist
+                            }
+                        }
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Compare the time it takes to capture the statistics of a player with and without the index.
+     * Has to be called on the main thread.
+     * @param player    The player to capture the statistics of
+     * @param runs      How many times to capture them with each method
+     * @return Human readable lines with the results
+     */
+    List<String> benchmark(Player player, int runs) {
+        // Warm up both and let the index drop what the server rejects
+        StatisticValues unindexed = new StatisticValues();
+        StatisticValues indexed = new StatisticValues();
+        captureUnindexed(player, unindexed);
+        capture(player, indexed);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            captureUnindexed(player, new StatisticValues());
+        }
+        long unindexedTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            capture(player, new StatisticValues());
+        }
+        long indexedTime = System.nanoTime() - start;
+
+        List<String> lines = new ArrayList<>();
+        lines.add("Statistics of " + player.getName() + " captured " + runs + " times:");
+        lines.add("Without index: " + String.format("%.1f", unindexedTime / 1000.0 / runs) + "µs per snapshot, " + unindexed.size() + " values");
+        lines.add("With index of " + size + " statistics: " + String.format("%.1f", indexedTime / 1000.0 / runs) + "µs per snapshot, " + indexed.size() + " values");
+        return lines;
+    }
+
+    /**
+     * @return The amount of statistics in the index
+     */
+    int size() {
+        return size;
+    }
+}
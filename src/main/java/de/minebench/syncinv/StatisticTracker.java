@@ -0,0 +1,201 @@
+package de.minebench.syncinv;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.bukkit.Material;
+import org.bukkit.Statistic;
+import org.bukkit.entity.EntityType;
+import org.bukkit.entity.Player;
+
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the typed statistics of online players from their last capture and which of them
+ * changed since then so that a snapshot only has to read the changed ones from the player.
+ * Untyped statistics are always read as the server doesn't report changes of the frequent
+ * ones like the movement statistics. All statistics are read again periodically to pick up
+ * changes that weren't reported, statistics set by this plugin are updated directly.
+ * Players are seeded when they join so that already their first snapshot, usually the
+ * one when they log out, only has to read the changes.
+ * <p>
+ * Only used on the main thread.
+ */
+public class StatisticTracker {
+    private static final Material[] MATERIALS = Material.values();
+    private static final EntityType[] ENTITY_TYPES = EntityType.values();
+
+    private final StatisticIndex index;
+    private final long fullCaptureInterval;
+
+    private final Map<UUID, Tracked> tracked = new HashMap<>();
+
+    private long seeds = 0;
+    private long fullCaptures = 0;
+    private long trackedCaptures = 0;
+
+    StatisticTracker(SyncInv plugin, StatisticIndex index) {
+        this.index = index;
+        this.fullCaptureInterval = TimeUnit.SECONDS.toMillis(plugin.getConfig().getLong("statistics-tracking.full-resync-interval", 600));
+    }
+
+    /**
+     * Get the statistics of a player
+     * @param player    The player
+     * @param into      The values to put the statistics that are above 0 into
+     */
+    void capture(Player player, StatisticValues into) {
+        if (!player.isOnline()) {
+            // Offline players loaded by OpenInv don't report changes
+            index.capture(player, into);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Tracked state = tracked.get(player.getUniqueId());
+        if (state == null || now - state.fullCapture > fullCaptureInterval) {
+            state = new Tracked(now);
+            index.capture(player, state.values);
+            tracked.put(player.getUniqueId(), state);
+            fullCaptures++;
+        } else {
+            state.values.clear(Statistic.Type.UNTYPED);
+            index.captureUntyped(player, state.values);
+            for (Map.Entry<Statistic, BitSet> entry : state.changed.entrySet()) {
+                Statistic statistic = entry.getKey();
+                BitSet changed = entry.getValue();
+                for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+                    try {
+                        if (statistic.getType() == Statistic.Type.ENTITY) {
+                            int value = player.getStatistic(statistic, ENTITY_TYPES[i]);
+                            if (value > 0) {
+                                state.values.set(statistic, ENTITY_TYPES[i], value);
+                            } else {
+                                state.values.remove(statistic, ENTITY_TYPES[i]);
+                            }
+                        } else {
+                            int value = player.getStatistic(statistic, MATERIALS[i]);
+                            if (value > 0) {
+                                state.values.set(statistic, MATERIALS[i], value);
+                            } else {
+                                state.values.remove(statistic, MATERIALS[i]);
+                            }
+                        }
+                    } catch (IllegalArgumentException ignored) {} // This statistic doesn't exist
+                }
+            }
+            trackedCaptures++;
+        }
+        state.changed.clear();
+        into.setAll(state.values);
+    }
+
+    /**
+     * Read all statistics of an online player so that the following captures only have to read the changes
+     * @param player    The player
+     */
+    public void seed(Player player) {
+        Tracked state = new Tracked(System.currentTimeMillis());
+        index.capture(player, state.values);
+        tracked.put(player.getUniqueId(), state);
+        seeds++;
+    }
+
+    /**
+     * Update the tracked statistics of a player after values were set by this plugin
+     * as setting them isn't reported as a change
+     * @param playerId  The UUID of the player
+     * @param values    The values that were set
+     */
+    void onApplied(UUID playerId, StatisticValues values) {
+        Tracked state = tracked.get(playerId);
+        if (state == null) {
+            return; // Everything is read on the next capture anyways
+        }
+        // Untyped statistics are read on every capture
+        values.forEach((statistic, material, entityType, value) -> {
+            if (value <= 0 || !index.containsTyped(statistic)) {
+                return;
+            }
+            if (entityType != null) {
+                state.values.set(statistic, entityType, value);
+            } else if (material != null) {
+                state.values.set(statistic, material, value);
+            }
+        });
+    }
+
+    /**
+     * Remember that a statistic of a player changed
+     * @param playerId      The UUID of the player
+     * @param statistic     The statistic
+     * @param material      The material of the statistic or null
+     * @param entityType    The entity type of the statistic or null
+     */
+    public void onChange(UUID playerId, Statistic statistic, Material material, EntityType entityType) {
+        if (statistic.getType() == Statistic.Type.UNTYPED || !index.containsTyped(statistic)) {
+            return;
+        }
+        Tracked state = tracked.get(playerId);
+        if (state == null) {
+            return; // Everything is read on the next capture anyways
+        }
+        int bit;
+        if (statistic.getType() == Statistic.Type.ENTITY) {
+            if (entityType == null) {
+                return;
+            }
+            bit = entityType.ordinal();
+        } else {
+            if (material == null) {
+                return;
+            }
+            bit = material.ordinal();
+        }
+        state.changed.computeIfAbsent(statistic, s -> new BitSet()).set(bit);
+    }
+
+    /**
+     * Stop tracking a player, e.g. after they logged out
+     * @param playerId  The UUID of the player
+     */
+    public void invalidate(UUID playerId) {
+        tracked.remove(playerId);
+    }
+
+    /**
+     * @return A human readable line describing the tracking
+     */
+    public String getStats() {
+        return "Statistics tracking: " + tracked.size() + " players tracked, " + seeds + " seeded on join, " + fullCaptures + " full and " + trackedCaptures + " tracked captures";
+    }
+
+    private static class Tracked {
+        private final long fullCapture;
+        private final StatisticValues values = new StatisticValues();
+        private final Map<Statistic, BitSet> changed = new EnumMap<>(Statistic.class);
+
+        private Tracked(long fullCapture) {
+            this.fullCapture = fullCapture;
+        }
+    }
+}
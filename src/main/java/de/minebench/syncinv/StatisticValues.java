@@ -0,0 +1,401 @@
+package de.minebench.syncinv;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Table;
+import de.minebench.syncinv.messenger.BinaryReader;
+import de.minebench.syncinv.messenger.BinaryWriter;
+import org.bukkit.Material;
+import org.bukkit.Statistic;
+import org.bukkit.entity.EntityType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The values of a player's statistics. Each statistic has a row of values keyed by the ordinal
+ * of the material or entity type, untyped statistics only have the key 0. The ordinals are only
+ * valid on the same server version so the serialized form uses the names instead, each name is
+ * only written once.
+ */
+public final class StatisticValues {
+    private static final Statistic[] STATISTICS = Statistic.values();
+    private static final Material[] MATERIALS = Material.values();
+    private static final EntityType[] ENTITY_TYPES = EntityType.values();
+
+    private final Row[] rows = new Row[STATISTICS.length];
+    private int size = 0;
+
+    /**
+     * Gets every value of the statistics
+     */
+    @FunctionalInterface
+    public interface ValueConsumer {
+        /**
+         * @param statistic     The statistic
+         * @param material      The material of block and item statistics, otherwise null
+         * @param entityType    The entity type of entity statistics, otherwise null
+         * @param value         The value
+         */
+        void accept(Statistic statistic, Material material, EntityType entityType, int value);
+    }
+
+    /**
+     * Set the value of an untyped statistic
+     */
+    public void set(Statistic statistic, int value) {
+        set(statistic, 0, value);
+    }
+
+    /**
+     * Set the value of a block or item statistic
+     */
+    public void set(Statistic statistic, Material material, int value) {
+        set(statistic, material.ordinal(), value);
+    }
+
+    /**
+     * Set the value of an entity statistic
+     */
+    public void set(Statistic statistic, EntityType entityType, int value) {
+        set(statistic, entityType.ordinal(), value);
+    }
+
+    /**
+     * Set a value of a statistic by the name of its material or entity type like the legacy format uses them
+     * @param statistic The statistic
+     * @param name      The name of the material or entity type, empty for untyped statistics
+     * @param value     The value
+     * @return Whether the name is known on this server
+     */
+    public boolean set(Statistic statistic, String name, int value) {
+        int key = getKey(statistic, name);
+        if (key < 0) {
+            return false;
+        }
+        set(statistic, key, value);
+        return true;
+    }
+
+    private void set(Statistic statistic, int key, int value) {
+        Row row = rows[statistic.ordinal()];
+        if (row == null) {
+            row = rows[statistic.ordinal()] = new Row();
+        }
+        if (row.set(key, value)) {
+            size++;
+        }
+    }
+
+    /**
+     * Remove the value of a block or item statistic
+     */
+    public void remove(Statistic statistic, Material material) {
+        remove(statistic, material.ordinal());
+    }
+
+    /**
+     * Remove the value of an entity statistic
+     */
+    public void remove(Statistic statistic, EntityType entityType) {
+        remove(statistic, entityType.ordinal());
+    }
+
+    private void remove(Statistic statistic, int key) {
+        Row row = rows[statistic.ordinal()];
+        if (row != null && row.remove(key)) {
+            size--;
+        }
+    }
+
+    /**
+     * Remove all values of statistics of a type
+     * @param type  The type
+     */
+    public void clear(Statistic.Type type) {
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i] != null && STATISTICS[i].getType() == type) {
+                size -= rows[i].size;
+                rows[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Remove all values
+     */
+    public void clear() {
+        Arrays.fill(rows, null);
+        size = 0;
+    }
+
+    /**
+     * Set all values of other statistics values
+     * @param values    The values to set
+     */
+    public void setAll(StatisticValues values) {
+        for (int i = 0; i < values.rows.length; i++) {
+            Row row = values.rows[i];
+            if (row != null) {
+                for (int j = 0; j < row.size; j++) {
+                    set(STATISTICS[i], row.keys[j], row.values[j]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get all values in the order of the statistics and their materials or entity types
+     * @param consumer  The consumer to pass the values to
+     */
+    public void forEach(ValueConsumer consumer) {
+        for (int i = 0; i < rows.length; i++) {
+            Row row = rows[i];
+            if (row == null) {
+                continue;
+            }
+            Statistic statistic = STATISTICS[i];
+            for (int j = 0; j < row.size; j++) {
+                int key = row.keys[j];
+                switch (statistic.getType()) {
+                    case ENTITY:
+                        consumer.accept(statistic, null, ENTITY_TYPES[key], row.values[j]);
+                        break;
+                    case BLOCK:
+                    case ITEM:
+                        consumer.accept(statistic, MATERIALS[key], null, row.values[j]);
+                        break;
+                    default:
+                        consumer.accept(statistic, null, null, row.values[j]);
+                }
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the name that the legacy format uses for the material or entity type of a statistic
+     */
+    static String getName(Material material, EntityType entityType) {
+        if (material != null) {
+            return material.name();
+        }
+        return entityType != null ? entityType.name() : "";
+    }
+
+    private static int getKey(Statistic statistic, String name) {
+        switch (statistic.getType()) {
+            case ENTITY:
+                try {
+                    return EntityType.valueOf(name).ordinal();
+                } catch (IllegalArgumentException e) {
+                    return -1;
+                }
+            case BLOCK:
+            case ITEM:
+                Material material = Material.getMaterial(name);
+                return material != null ? material.ordinal() : -1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Convert to the table that the legacy format uses
+     */
+    Table<Statistic, String, Integer> toTable() {
+        Table<Statistic, String, Integer> table = HashBasedTable.create();
+        forEach((statistic, material, entityType, value) -> table.put(statistic, getName(material, entityType), value));
+        return table;
+    }
+
+    /**
+     * Convert from the table that the legacy format uses
+     */
+    static StatisticValues fromTable(Table<Statistic, String, Integer> table) {
+        StatisticValues values = new StatisticValues();
+        if (table != null) {
+            for (Table.Cell<Statistic, String, Integer> cell : table.cellSet()) {
+                if (cell.getRowKey() != null && cell.getColumnKey() != null && cell.getValue() != null) {
+                    values.set(cell.getRowKey(), cell.getColumnKey(), cell.getValue());
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Write the values. The names of the materials and entity types are written once
+     * at the start and then referenced by their index.
+     * @param out   The writer
+     */
+    void write(BinaryWriter out) {
+        Map<String, Integer> names = new HashMap<>();
+        List<String> nameList = new ArrayList<>();
+        int rowCount = 0;
+        for (int i = 0; i < rows.length; i++) {
+            Row row = rows[i];
+            if (row == null || row.size == 0) {
+                continue;
+            }
+            rowCount++;
+            if (STATISTICS[i].getType() != Statistic.Type.UNTYPED) {
+                for (int j = 0; j < row.size; j++) {
+                    String name = STATISTICS[i].getType() == Statistic.Type.ENTITY ? ENTITY_TYPES[row.keys[j]].name() : MATERIALS[row.keys[j]].name();
+                    if (!names.containsKey(name)) {
+                        names.put(name, nameList.size());
+                        nameList.add(name);
+                    }
+                }
+            }
+        }
+        out.writeVarInt(nameList.size());
+        for (String name : nameList) {
+            out.writeString(name);
+        }
+        out.writeVarInt(rowCount);
+        for (int i = 0; i < rows.length; i++) {
+            Row row = rows[i];
+            if (row == null || row.size == 0) {
+                continue;
+            }
+            Statistic statistic = STATISTICS[i];
+            out.writeString(statistic.name());
+            out.writeVarInt(row.size);
+            for (int j = 0; j < row.size; j++) {
+                // 0 for untyped statistics, otherwise the index of the name + 1
+                int nameIndex = 0;
+                if (statistic.getType() != Statistic.Type.UNTYPED) {
+                    String name = statistic.getType() == Statistic.Type.ENTITY ? ENTITY_TYPES[row.keys[j]].name() : MATERIALS[row.keys[j]].name();
+                    nameIndex = names.get(name) + 1;
+                }
+                out.writeVarInt(nameIndex);
+                out.writeSignedVarInt(row.values[j]);
+            }
+        }
+    }
+
+    /**
+     * Read values that were written with {@link #write(BinaryWriter)}
+     * @param in    The reader
+     * @throws IOException When the data is invalid
+     */
+    void read(BinaryReader in) throws IOException {
+        String[] names = new String[in.readLength()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = in.readString();
+        }
+        // Resolve each name only once per type, -2 means not resolved yet
+        int[] materialKeys = new int[names.length];
+        int[] entityKeys = new int[names.length];
+        Arrays.fill(materialKeys, -2);
+        Arrays.fill(entityKeys, -2);
+        for (int i = in.readVarInt(); i > 0; i--) {
+            String statisticName = in.readString();
+            Statistic statistic = null;
+            try {
+                statistic = Statistic.valueOf(statisticName);
+            } catch (IllegalArgumentException ignored) {
+                // unknown statistic, still read its values to get to the next one
+            }
+            for (int j = in.readVarInt(); j > 0; j--) {
+                int nameIndex = in.readVarInt();
+                if (nameIndex > names.length) {
+                    throw new IOException("Invalid name index " + nameIndex + " of statistic " + statisticName);
+                }
+                int key = 0;
+                if (statistic != null && statistic.getType() != Statistic.Type.UNTYPED) {
+                    if (nameIndex == 0) {
+                        key = -1;
+                    } else {
+                        int[] keys = statistic.getType() == Statistic.Type.ENTITY ? entityKeys : materialKeys;
+                        if (keys[nameIndex - 1] == -2) {
+                            keys[nameIndex - 1] = getKey(statistic, names[nameIndex - 1]);
+                        }
+                        key = keys[nameIndex - 1];
+                    }
+                }
+                int value = in.readSignedVarInt();
+                if (statistic != null && key >= 0) {
+                    set(statistic, key, value);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StatisticValues{size=" + size + "}";
+    }
+
+    /**
+     * The values of one statistic sorted by their key
+     */
+    private static class Row {
+        private int[] keys = new int[4];
+        private int[] values = new int[4];
+        private int size = 0;
+
+        /**
+         * @return Whether the key is new
+         */
+        private boolean set(int key, int value) {
+            // Values are mostly added in the order of their keys
+            int index = size > 0 && keys[size - 1] < key ? -size - 1 : Arrays.binarySearch(keys, 0, size, key);
+            if (index >= 0) {
+                values[index] = value;
+                return false;
+            }
+            index = -index - 1;
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            System.arraycopy(values, index, values, index + 1, size - index);
+            keys[index] = key;
+            values[index] = value;
+            size++;
+            return true;
+        }
+
+        private boolean remove(int key) {
+            int index = Arrays.binarySearch(keys, 0, size, key);
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+            System.arraycopy(values, index + 1, values, index, size - index - 1);
+            size--;
+            return true;
+        }
+    }
+}
@@ -8,21 +8,26 @@ import com.lishid.openinv.OpenInv;
 import com.lishid.openinv.command.OpenInvCommand;
 import com.mojang.authlib.GameProfile;
 import de.minebench.syncinv.listeners.MapCreationListener;
+import de.minebench.syncinv.listeners.PlayerAdvancementListener;
 import de.minebench.syncinv.listeners.PlayerConnectionValidateLoginListener;
 import de.minebench.syncinv.listeners.PlayerFreezeListener;
 import de.minebench.syncinv.listeners.PlayerJoinListener;
 import de.minebench.syncinv.listeners.PlayerLoginListener;
 import de.minebench.syncinv.listeners.PlayerQuitListener;
+import de.minebench.syncinv.listeners.PlayerStatisticListener;
+import de.minebench.syncinv.messenger.CompressionDictionary;
+import de.minebench.syncinv.messenger.LoopbackBenchmark;
+import de.minebench.syncinv.messenger.LoopbackNetwork;
 import de.minebench.syncinv.messenger.Message;
 import de.minebench.syncinv.messenger.MessageType;
 import de.minebench.syncinv.messenger.PlayerDataQuery;
 import de.minebench.syncinv.messenger.RedisMessenger;
+import de.minebench.syncinv.messenger.RedisStreamsMessenger;
 import de.minebench.syncinv.messenger.ServerMessenger;
 import lombok.Getter;
 import org.bukkit.ChatColor;
 import org.bukkit.GameRule;
 import org.bukkit.Location;
-import org.bukkit.Material;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.Sound;
 import org.bukkit.Statistic;
@@ -34,8 +39,9 @@ import org.bukkit.advancement.AdvancementProgress;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
-import org.bukkit.entity.EntityType;
 import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
 import org.bukkit.map.MapCanvas;
 import org.bukkit.map.MapRenderer;
 import org.bukkit.map.MapView;
@@ -51,14 +57,17 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
@@ -114,6 +123,11 @@ public final class SyncInv extends JavaPlugin {
      * Sync data with all servers in a group when a player logs out
      */
     private boolean syncWithGroupOnLogout;
+
+    /**
+     * Only send the changes against a version that the other servers have when syncing on logout
+     */
+    private boolean deltaSyncOnLogout;
     
     /**
      * Store player data even if the player never joined the server
@@ -146,6 +160,23 @@ public final class SyncInv extends JavaPlugin {
      */
     private Set<Statistic> statisticsFilter = new HashSet<>();
 
+    /**
+     * The statistics to capture, depends on the synced types and the filter
+     */
+    private StatisticIndex statisticIndex;
+
+    /**
+     * Tracks which statistics of online players changed, null if disabled
+     */
+    @Getter
+    private StatisticTracker statisticTracker = null;
+
+    /**
+     * Tracks which advancements of online players changed, null if disabled
+     */
+    @Getter
+    private AdvancementTracker advancementTracker = null;
+
     /**
      * Whether or not the plugin is currently disabling
      */
@@ -183,12 +214,42 @@ public final class SyncInv extends JavaPlugin {
 
     private File playerDataFolder;
 
+    /**
+     * The last seen times of all players on this server
+     */
+    @Getter
+    private LastSeenIndex lastSeenIndex;
+
+    /**
+     * Direct access to the files of offline players, null if disabled
+     */
+    @Getter
+    private OfflinePlayerFiles offlinePlayerFiles = null;
+
+    /**
+     * Captures, serializes and sends the data of players that log out
+     */
+    @Getter
+    private DataPipeline dataPipeline;
+
     @Override
     public void onEnable() {
         // Plugin startup logic
         loadConfig();
         
         playerDataFolder = new File(getServer().getWorlds().get(0).getWorldFolder(), "playerdata");
+        lastSeenIndex = new LastSeenIndex(this, playerDataFolder);
+        long indexStart = System.currentTimeMillis();
+        int indexed = lastSeenIndex.load();
+        getLogger().log(Level.INFO, "Opened last seen times of " + indexed + " players in " + (System.currentTimeMillis() - indexStart) + "ms");
+        for (Player player : getServer().getOnlinePlayers()) {
+            // Players that are still online after a reload
+            lastSeenIndex.setOnline(player.getUniqueId(), true);
+        }
+        if (getConfig().getBoolean("direct-offline-data.enabled")) {
+            offlinePlayerFiles = new OfflinePlayerFiles(this, playerDataFolder.getParentFile().toPath());
+        }
+        dataPipeline = new DataPipeline(this);
         try {
             Method methodGetOfflinePlayer = getServer().getClass().getMethod("getOfflinePlayer", GameProfile.class);
             getOfflinePlayer = (gameProfile -> {
@@ -222,7 +283,11 @@ public final class SyncInv extends JavaPlugin {
         }
         playerDataCache = CacheBuilder.newBuilder().expireAfterWrite(queryTimeout, TimeUnit.SECONDS).build();
         try {
-            messenger = new RedisMessenger(this);
+            if ("redis-streams".equalsIgnoreCase(getConfig().getString("messenger"))) {
+                messenger = new RedisStreamsMessenger(this);
+            } else {
+                messenger = new RedisMessenger(this);
+            }
             messenger.hello();
         } catch (Exception e) {
             messenger = null;
@@ -240,6 +305,8 @@ public final class SyncInv extends JavaPlugin {
         getServer().getPluginManager().registerEvents(new PlayerQuitListener(this), this);
         getServer().getPluginManager().registerEvents(new PlayerFreezeListener(this), this);
         getServer().getPluginManager().registerEvents(new MapCreationListener(this), this);
+        getServer().getPluginManager().registerEvents(new PlayerStatisticListener(this), this);
+        getServer().getPluginManager().registerEvents(new PlayerAdvancementListener(this), this);
         getServer().getMessenger().registerOutgoingPluginChannel(this, "BungeeCord");
         getCommand("syncinv").setExecutor(this);
         if (openInv != null) {
@@ -318,12 +385,28 @@ public final class SyncInv extends JavaPlugin {
     @Override
     public void onDisable() {
         disabling = true;
-        if (getMessenger() != null) {
-            for (Player player : getServer().getOnlinePlayers()) {
-                getMessenger().sendGroupMessage(new Message(getMessenger().getServerName(), System.currentTimeMillis(), MessageType.DATA, getData(player)), true);
+        if (dataPipeline != null) {
+            dataPipeline.shutdown();
+        }
+        for (Player player : getServer().getOnlinePlayers()) {
+            long lastSeen = System.currentTimeMillis();
+            if (getMessenger() != null) {
+                PlayerData data = getData(player, true);
+                lastSeen = data.getLastSeen();
+                getMessenger().sendGroupMessage(new Message(getMessenger().getServerName(), System.currentTimeMillis(), MessageType.DATA, data), true);
             }
+            // The server saves the players after the plugins are disabled, like when they log out
+            setLastSeen(player.getUniqueId(), lastSeen);
+        }
+        if (getMessenger() != null) {
             getMessenger().goodbye();
         }
+        if (offlinePlayerFiles != null) {
+            offlinePlayerFiles.shutdown();
+        }
+        if (lastSeenIndex != null) {
+            lastSeenIndex.close();
+        }
     }
 
     public void loadConfig() {
@@ -335,6 +418,7 @@ public final class SyncInv extends JavaPlugin {
         queryInventories = getConfig().getBoolean("query-inventories");
 
         syncWithGroupOnLogout = getConfig().getBoolean("sync-with-group-on-logout");
+        deltaSyncOnLogout = getConfig().getBoolean("delta-sync-on-logout");
 
         storeUnknownPlayers = getConfig().getBoolean("store-unknown-players");
         
@@ -370,6 +454,19 @@ public final class SyncInv extends JavaPlugin {
         }
         this.statisticsFilter = statisticsFilter;
 
+        statisticIndex = new StatisticIndex(this);
+        logDebug("Indexed " + statisticIndex.size() + " statistics to sync");
+        if (getConfig().getBoolean("statistics-tracking.enabled")) {
+            statisticTracker = new StatisticTracker(this, statisticIndex);
+        } else {
+            statisticTracker = null;
+        }
+        if (getConfig().getBoolean("advancement-tracking.enabled")) {
+            advancementTracker = new AdvancementTracker(this);
+        } else {
+            advancementTracker = null;
+        }
+
         if (getServer().getPluginManager().isPluginEnabled("OpenInv")) {
             openInv = (OpenInv) getServer().getPluginManager().getPlugin("OpenInv");
             getLogger().log(Level.INFO, "Hooked into " + openInv.getName() + " " + openInv.getDescription().getVersion());
@@ -379,6 +476,7 @@ public final class SyncInv extends JavaPlugin {
             try {
                 PersistentDataContainer.class.getMethod("readFromBytes", byte[].class, boolean.class);
                 PersistentDataContainer.class.getMethod("serializeToBytes");
+                PersistentDataContainer.class.getMethod("copyTo", PersistentDataContainer.class, boolean.class);
             } catch (NoSuchMethodException e) {
                 if (shouldSync(SyncType.PERSISTENT_DATA)) {
                     getLogger().log(Level.WARNING, "Could not load static method required for persistent data syncing. Disabling it!", e);
@@ -447,6 +545,100 @@ public final class SyncInv extends JavaPlugin {
                 loadConfig();
                 sender.sendMessage(ChatColor.YELLOW + "Config reloaded!");
                 return true;
+            } else if ("stats".equalsIgnoreCase(args[0]) && sender.hasPermission("syncinv.command.stats")) {
+                if (getMessenger() == null) {
+                    sender.sendMessage(ChatColor.RED + "No messenger is running!");
+                    return true;
+                }
+                for (String line : getMessenger().getStats()) {
+                    sender.sendMessage(ChatColor.YELLOW + line);
+                }
+                return true;
+            } else if ("dictionary".equalsIgnoreCase(args[0]) && sender.hasPermission("syncinv.command.dictionary")) {
+                int players;
+                int size;
+                try {
+                    players = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+                    size = args.length > 2 ? Integer.parseInt(args[2]) : 16 * 1024;
+                } catch (NumberFormatException e) {
+                    sender.sendMessage(ChatColor.RED + "Invalid number: " + e.getMessage());
+                    return true;
+                }
+                List<PlayerData> onlineData = new ArrayList<>();
+                for (Player player : getServer().getOnlinePlayers()) {
+                    if (onlineData.size() >= players) {
+                        break;
+                    }
+                    onlineData.add(getData(player));
+                }
+                List<UUID> offlinePlayers = new ArrayList<>();
+                if (offlinePlayerFiles != null) {
+                    lastSeenIndex.forEach(playerId -> {
+                        if (onlineData.size() + offlinePlayers.size() < players && offlinePlayerFiles.canHandle(playerId)) {
+                            offlinePlayers.add(playerId);
+                        }
+                    });
+                }
+                sender.sendMessage(ChatColor.YELLOW + "Building the compression dictionary from " + (onlineData.size() + offlinePlayers.size()) + " players...");
+                getServer().getScheduler().runTaskAsynchronously(this, () -> {
+                    for (String line : new CompressionDictionary(this, players, size).run(onlineData, offlinePlayers)) {
+                        sender.sendMessage(ChatColor.YELLOW + line);
+                    }
+                });
+                return true;
+            } else if ("benchmark".equalsIgnoreCase(args[0]) && sender.hasPermission("syncinv.command.benchmark")) {
+                if (args.length > 2 && "statistics".equalsIgnoreCase(args[1])) {
+                    Player player = getServer().getPlayer(args[2]);
+                    if (player == null) {
+                        sender.sendMessage(ChatColor.RED + "Player " + args[2] + " is not online!");
+                        return true;
+                    }
+                    int runs;
+                    try {
+                        runs = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+                    } catch (NumberFormatException e) {
+                        sender.sendMessage(ChatColor.RED + "Invalid number: " + e.getMessage());
+                        return true;
+                    }
+                    for (String line : statisticIndex.benchmark(player, Math.max(1, runs))) {
+                        sender.sendMessage(ChatColor.YELLOW + line);
+                    }
+                    return true;
+                }
+                if (args.length < 3) {
+                    sender.sendMessage(ChatColor.RED + "Usage: /" + label + " benchmark <servers> <logins> [<broadcasts> <latency> <jitter> <loss> <bytes/s>]");
+                    sender.sendMessage(ChatColor.RED + "Usage: /" + label + " benchmark statistics <player> [<runs>]");
+                    return true;
+                }
+                int servers;
+                int logins;
+                int broadcasts;
+                LoopbackNetwork.LinkSettings linkSettings;
+                try {
+                    servers = Integer.parseInt(args[1]);
+                    logins = Integer.parseInt(args[2]);
+                    broadcasts = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+                    linkSettings = new LoopbackNetwork.LinkSettings(
+                            args.length > 4 ? Long.parseLong(args[4]) : 0,
+                            args.length > 5 ? Long.parseLong(args[5]) : 0,
+                            args.length > 6 ? Double.parseDouble(args[6]) : 0,
+                            args.length > 7 ? Long.parseLong(args[7]) : 0
+                    );
+                } catch (NumberFormatException e) {
+                    sender.sendMessage(ChatColor.RED + "Invalid number: " + e.getMessage());
+                    return true;
+                }
+                sender.sendMessage(ChatColor.YELLOW + "Running benchmark with " + servers + " simulated servers...");
+                getServer().getScheduler().runTaskAsynchronously(this, () -> {
+                    try {
+                        for (String line : new LoopbackBenchmark(this, servers, linkSettings).run(logins, broadcasts)) {
+                            sender.sendMessage(ChatColor.YELLOW + line);
+                        }
+                    } catch (InterruptedException e) {
+                        sender.sendMessage(ChatColor.RED + "Benchmark was interrupted!");
+                    }
+                });
+                return true;
             }
         }
         return false;
@@ -476,69 +668,38 @@ public final class SyncInv extends JavaPlugin {
     }
 
     /**
-     * Get the date when a player last logged out
+     * Get the date when a player last logged out. Can be used from any thread.
      * @param playerId  The UUID of the player
      * @param online    Whether or not it should return the current time if the player is online
      * @return          The timestamp of his last known data on the server in milliseconds;
-     *                  0 if the file doesn't exist or an error occurs. (Take a look at {File#lastModified})
+     *                  0 if the player has no data on this server
      */
     public long getLastSeen(UUID playerId, boolean online) {
-        if (online) {
-            Player player = getServer().getPlayer(playerId);
-            if (player != null && player.isOnline()) {
-                return System.currentTimeMillis();
-            }
+        // The index knows who is online without accessing the server which isn't safe off the main thread
+        if (online && lastSeenIndex.isOnline(playerId)) {
+            return System.currentTimeMillis();
         }
-        // Check if lastseen file exists, if so use it
-        File lastSeen = getPlayerLastSeenFile(playerId);
-        if (lastSeen.exists()) {
-            try {
-                String lastSeenString = Files.readString(lastSeen.toPath());
-                logDebug("Lastseen file existed for " + playerId + "! (" + lastSeenString + ")");
-                return Long.parseLong(lastSeenString);
-            } catch (IOException e) {
-                getLogger().log(Level.SEVERE, "Error while reading last seen file for " + playerId + "!", e);
-                return 0;
-            }
-        }
-        File playerDat = getPlayerDataFile(playerId);
-        return playerDat.lastModified();
+        return lastSeenIndex.get(playerId);
     }
 
     /**
-     * Set the date when a player last logged out (by setting the file modify time)
+     * Set the date when a player last logged out
      * @param playerId  The UUID of the player
-     * @param timeStamp The timestamp to set as the last modify time of the file in
-     *                  milliseconds.
+     * @param timeStamp The timestamp in milliseconds
      * @return          true if the time was successfully set
      */
     public boolean setLastSeen(UUID playerId, long timeStamp) {
-        File playerDat = getPlayerDataFile(playerId);
-        if (playerDat.exists()) {
-            File lastSeen = getPlayerLastSeenFile(playerId);
-            if (playerDat.setLastModified(timeStamp)) {
-                if (playerDat.lastModified() == timeStamp) {
-                    // Delete old last seen file if it existed
-                    if (!lastSeen.exists() || lastSeen.delete()) {
-                        return true;
-                    }
-                    logDebug("Unable to remove old last seen file for " + playerId + "?");
-                }
-                logDebug("Set last seen of " + playerId + " to " + timeStamp + " but it didn't work? Using workaround...");
-            } else {
-                logDebug("Unable to set last seen of " + playerId + " to " + timeStamp + "! Using workaround...");
-            }
-            // Workaround for systems that don't allow modifying the dat directly
-            try {
-                Files.write(lastSeen.toPath(), String.valueOf(timeStamp).getBytes(StandardCharsets.UTF_8));
-                return true;
-            } catch (IOException e) {
-                getLogger().log(Level.SEVERE, "Unable to store lastseen file for " + playerId, e);
-            }
-        } else {
+        if (!getPlayerDataFile(playerId).exists()) {
             logDebug("Tried to set last seen of " + playerId + " to " + timeStamp + " but they had no player file stored?");
+            return false;
         }
-        return false;
+        if (!lastSeenIndex.set(playerId, timeStamp)) {
+            return false;
+        }
+        if (getMessenger() != null) {
+            getMessenger().onLastSeenChanged(playerId, timeStamp);
+        }
+        return true;
     }
 
     /**
@@ -555,6 +716,13 @@ public final class SyncInv extends JavaPlugin {
         return syncWithGroupOnLogout;
     }
 
+    /**
+     * Only send the changes against a version that the other servers have when syncing on logout
+     */
+    public boolean shouldDeltaSyncOnLogout() {
+        return syncWithGroupOnLogout && deltaSyncOnLogout;
+    }
+
     /**
      * Whether or not we should apply data of queries that weren't answered by every server
      */
@@ -582,6 +750,15 @@ public final class SyncInv extends JavaPlugin {
      * @param data  The data to apply
      */
     public void applyData(PlayerData data, Runnable finished) {
+        applyData(data, finished, true);
+    }
+
+    /**
+     * Apply a PlayerData object to its player
+     * @param data      The data to apply
+     * @param direct    Whether the data of offline players may be written to their files directly
+     */
+    private void applyData(PlayerData data, Runnable finished, boolean direct) {
         if (data == null)
             return;
 
@@ -604,6 +781,22 @@ public final class SyncInv extends JavaPlugin {
                 }
                 return;
             }
+            if (direct && player == null && offlinePlayerFiles != null && offlinePlayerFiles.canHandle(data.getPlayerId())) {
+                applyMaps(data, null);
+                offlinePlayerFiles.write(data).whenComplete((v, e) -> runSync(() -> {
+                    if (e != null) {
+                        logDebug("Unable to write data of " + data.getPlayerId() + " to its files, applying it with OpenInv: " + e.getMessage());
+                        applyData(data, finished, false);
+                        return;
+                    }
+                    logDebug("Wrote data of offline player " + data.getPlayerId() + " (" + data.getLastSeen() + ")");
+                    finished.run();
+                    if (setLastSeen(data.getPlayerId(), data.getLastSeen())) {
+                        getMessenger().onDataApplied(data);
+                    }
+                }));
+                return;
+            }
             if (getOpenInv() != null) {
                 if (player == null) {
                     OfflinePlayer offlinePlayer = getServer().getOfflinePlayer(data.getPlayerId());
@@ -687,9 +880,10 @@ public final class SyncInv extends JavaPlugin {
                     player.setLevel(0);
                     player.setExp(0);
                 }
-                if (shouldSync(SyncType.INVENTORY))
+                // Deltas only contain the changed slots, everything else has to stay as it is
+                if (shouldSync(SyncType.INVENTORY) && !data.isDelta())
                     player.getInventory().clear();
-                if (shouldSync(SyncType.ENDERCHEST))
+                if (shouldSync(SyncType.ENDERCHEST) && !data.isDelta())
                     player.getEnderChest().clear();
                 if (player.isOnline() && shouldSync(SyncType.EFFECTS)) {
                     for (PotionEffect effect : player.getActivePotionEffects()) {
@@ -704,49 +898,13 @@ public final class SyncInv extends JavaPlugin {
                     player.setLevel(data.getLevel());
                     player.setExp(data.getExp());
                 }
-                // Try to fix the maps if we should do it
-                if (shouldSync(SyncType.MAPS)) {
-                    for (MapData mapData : data.getMaps()) {
-                        logDebug("Found map " + mapData.getId() + " in inventory");
-                        checkMap(mapData.getId());
-                        try {
-                            logDebug("Writing data of map " + mapData.getId());
-                            MapView map = getServer().getMap(mapData.getId());
-                            if (map != null) {
-                                Object worldMap = fieldWorldMap.get(map);
-                                map.setCenterX(mapData.getCenterX());
-                                map.setCenterZ(mapData.getCenterZ());
-                                map.setScale(mapData.getScale());
-                                fieldMapColor.set(worldMap, mapData.getColors());
-                                try {
-                                    // Newer map info
-                                    map.setLocked(mapData.isLocked());
-                                    map.setTrackingPosition(mapData.isTrackingPosition());
-                                    map.setUnlimitedTracking(mapData.isUnlimitedTracking());
-                                } catch (NoSuchMethodError ignored) {}
-
-                                World world = getServer().getWorld(mapData.getWorldId());
-                                if (world != null) {
-                                    map.setWorld(world);
-                                }
-                                fieldMapWorldId.set(worldMap, mapData.getWorldId()); // plugin API doesn't change UUID on world set so set it always
-                                // Workaround for map not showing directly after creating it
-                                forceRender(map);
-                                player.sendMap(map);
-                            }
-                        } catch (IllegalAccessException e) {
-                            getLogger().log(Level.SEVERE, "Could not access field in WorldMap class for " + mapData.getId() + "! ", e);
-                        } catch (Exception e) {
-                            getLogger().log(Level.SEVERE, "Error while trying to store map " + mapData.getId() + "! ", e);
-                        }
-                    }
-                }
+                applyMaps(data, player);
 
                 logDebug("Applying data for " + player.getName() + " (" + data.getLastSeen() + ")");
-                if (shouldSync(SyncType.INVENTORY))
-                    player.getInventory().setContents(data.getInventoryContents());
-                if (shouldSync(SyncType.ENDERCHEST))
-                    player.getEnderChest().setContents(data.getEnderchestContents());
+                if (shouldSync(SyncType.INVENTORY) && data.hasSection(DataSection.INVENTORY))
+                    setContents(player.getInventory(), data.getInventoryContents(), data.getInventoryMask());
+                if (shouldSync(SyncType.ENDERCHEST) && data.hasSection(DataSection.ENDERCHEST))
+                    setContents(player.getEnderChest(), data.getEnderchestContents(), data.getEnderchestMask());
                 if (shouldSync(SyncType.GAMEMODE)) {
                     if (data.getGamemode() != null) {
                         player.setGameMode(data.getGamemode());
@@ -787,91 +945,82 @@ public final class SyncInv extends JavaPlugin {
                         disableSync(SyncType.PERSISTENT_DATA);
                     }
                 }
-                if (shouldSync(SyncType.ADVANCEMENTS)) {
-                    Boolean oldGamerule = null;
-                    try {
-                        oldGamerule = player.getWorld().getGameRuleValue(GameRule.ANNOUNCE_ADVANCEMENTS);
-                        if ((oldGamerule != null && oldGamerule) || (oldGamerule == null && player.getWorld().getGameRuleDefault(GameRule.ANNOUNCE_ADVANCEMENTS))) {
-                            player.getWorld().setGameRule(GameRule.ANNOUNCE_ADVANCEMENTS, false);
-                        }
-                    } catch (NullPointerException ignored) {
-                        // world is not known
-                    }
+                // Data that doesn't have the section didn't capture the advancements or they didn't change
+                if (shouldSync(SyncType.ADVANCEMENTS) && data.hasSection(DataSection.ADVANCEMENTS)) {
+                    Boolean announcementsDisabled = null;
+                    // Not compared with the tracked advancements as revoked criteria aren't reported
                     for (Iterator<Advancement> it = getServer().advancementIterator(); it.hasNext();) {
                         Advancement advancement = it.next();
-                        Map<String, Long> awarded = data.getAdvancementProgress().get(advancement.getKey().toString());
-                        if (awarded != null) {
-                            AdvancementProgress progress = player.getAdvancementProgress(advancement);
-                            for (String criterion : progress.getAwardedCriteria()) {
-                                if (!awarded.containsKey(criterion)) {
-                                    progress.revokeCriteria(criterion);
-                                }
+                        // Advancements that the data doesn't have have no awarded criteria
+                        Map<String, Long> awarded = data.getAdvancementProgress().getOrDefault(advancement.getKey().toString(), Collections.emptyMap());
+                        AdvancementProgress progress = player.getAdvancementProgress(advancement);
+                        Collection<String> current = progress.getAwardedCriteria();
+                        if (current.isEmpty() && awarded.isEmpty()) {
+                            continue;
+                        }
+                        for (String criterion : current) {
+                            if (!awarded.containsKey(criterion)) {
+                                progress.revokeCriteria(criterion);
                             }
-                            for (Map.Entry<String, Long> entry : awarded.entrySet()) {
-                                Date date = progress.getDateAwarded(entry.getKey());
-                                if (date == null && progress.awardCriteria(entry.getKey())) {
-                                    date = progress.getDateAwarded(entry.getKey());
+                        }
+                        for (Map.Entry<String, Long> entry : awarded.entrySet()) {
+                            Date date = progress.getDateAwarded(entry.getKey());
+                            if (date == null) {
+                                if (announcementsDisabled == null) {
+                                    // Only touch the game rule if something gets awarded
+                                    announcementsDisabled = disableAdvancementAnnouncements(player.getWorld());
                                 }
-                                if (date != null && date.getTime() != entry.getValue()) {
-                                    date.setTime(entry.getValue());
+                                if (progress.awardCriteria(entry.getKey())) {
+                                    date = progress.getDateAwarded(entry.getKey());
                                 }
                             }
+                            if (date != null && date.getTime() != entry.getValue()) {
+                                date.setTime(entry.getValue());
+                            }
                         }
                     }
-                    if (oldGamerule == null || oldGamerule) {
-                        try {
-                            player.getWorld().setGameRule(GameRule.ANNOUNCE_ADVANCEMENTS, true);
-                        } catch (NullPointerException ignored) {
-                            // world is not known
-                        }
+                    if (announcementsDisabled != null && announcementsDisabled) {
+                        player.getWorld().setGameRule(GameRule.ANNOUNCE_ADVANCEMENTS, true);
+                    }
+                    if (advancementTracker != null) {
+                        // Revoking criteria isn't reported as a change
+                        advancementTracker.invalidate(player.getUniqueId());
                     }
                 }
-                if (shouldSyncAny(SyncType.GENERAL_STATISTICS, SyncType.ENTITY_STATISTICS, SyncType.ITEM_STATISTICS, SyncType.BLOCK_STATISTICS)) {
-                    for (Map.Entry<Statistic, Map<String, Integer>> entry : data.getStatistics().rowMap().entrySet()) {
-                        Statistic statistic = entry.getKey();
-                        if (!shouldBeSynced(statistic)) {
-                            continue;
-                        }
-
-                        for (Map.Entry<String, Integer> valueEntry : entry.getValue().entrySet()) {
-                            if (valueEntry.getValue() <= 0) {
-                                continue;
-                            }
-                            switch (statistic.getType()) {
-                                case UNTYPED:
-                                    if (shouldSync(SyncType.GENERAL_STATISTICS)) {
-                                        player.setStatistic(statistic, valueEntry.getValue());
-                                    }
-                                    break;
-                                case ENTITY:
-                                    if (shouldSync(SyncType.ENTITY_STATISTICS)) {
-                                        try {
-                                            EntityType entityType = EntityType.valueOf(valueEntry.getKey());
-                                            player.setStatistic(statistic, entityType, valueEntry.getValue());
-                                        } catch (IllegalArgumentException ignored) {
-                                            // unknown entity type
-                                        }
-                                    }
-                                    break;
-                                case BLOCK:
-                                    if (shouldSync(SyncType.BLOCK_STATISTICS)) {
-                                        Material blockType = Material.getMaterial(valueEntry.getKey());
-                                        if (blockType != null) {
-                                            player.setStatistic(statistic, blockType, valueEntry.getValue());
-                                        }
-                                    }
-                                    break;
-                                case ITEM:
-                                    if (shouldSync(SyncType.ITEM_STATISTICS)) {
-                                        Material itemType = Material.getMaterial(valueEntry.getKey());
-                                        if (itemType != null) {
-                                            player.setStatistic(statistic, itemType, valueEntry.getValue());
-                                        }
-                                    }
-                                    break;
-                            }
+                if (shouldSyncAny(SyncType.GENERAL_STATISTICS, SyncType.ENTITY_STATISTICS, SyncType.ITEM_STATISTICS, SyncType.BLOCK_STATISTICS)
+                        && data.hasSection(DataSection.STATISTICS)) {
+                    Player target = player;
+                    data.getStatistics().forEach((statistic, material, entityType, value) -> {
+                        if (value <= 0 || !shouldBeSynced(statistic)) {
+                            return;
                         }
+                        switch (statistic.getType()) {
+                            case UNTYPED:
+                                if (shouldSync(SyncType.GENERAL_STATISTICS)) {
+                                    target.setStatistic(statistic, value);
+                                }
+                                break;
+                            case ENTITY:
+                                if (shouldSync(SyncType.ENTITY_STATISTICS)) {
+                                    target.setStatistic(statistic, entityType, value);
+                                }
+                                break;
+                            case BLOCK:
+                                if (shouldSync(SyncType.BLOCK_STATISTICS)) {
+                                    target.setStatistic(statistic, material, value);
+                                }
+                                break;
+                            case ITEM:
+                                if (shouldSync(SyncType.ITEM_STATISTICS)) {
+                                    target.setStatistic(statistic, material, value);
+                                }
+                                break;
                         }
+                    });
+                    if (statisticTracker != null) {
+                        // Setting statistics isn't reported as a change
+                        statisticTracker.onApplied(player.getUniqueId(), data.getStatistics());
+                    }
                 }
                 if (player.isOnline()) {
                     if (shouldSync(SyncType.EFFECTS)) {
@@ -925,7 +1074,9 @@ public final class SyncInv extends JavaPlugin {
                         throw new RuntimeException("Internal error while trying to save new player data file!");
                     }
                 }
-                setLastSeen(data.getPlayerId(), data.getLastSeen());
+                if (setLastSeen(data.getPlayerId(), data.getLastSeen())) {
+                    getMessenger().onDataApplied(data);
+                }
             } catch (Exception e) {
                 getLogger().log(Level.SEVERE, "Error while applying player data of " + player.getName() + "!", e);
                 File playerDat = getPlayerDataFile(data.getPlayerId());
@@ -945,12 +1096,94 @@ public final class SyncInv extends JavaPlugin {
         });
     }
 
+    /**
+     * Write the maps of a PlayerData object to the server's maps
+     * @param data      The data with the maps
+     * @param player    The player to send the maps to, null if they are offline
+     */
+    private void applyMaps(PlayerData data, Player player) {
+        if (shouldSync(SyncType.MAPS)) {
+            for (MapData mapData : data.getMaps()) {
+                logDebug("Found map " + mapData.getId() + " in inventory");
+                checkMap(mapData.getId());
+                try {
+                    logDebug("Writing data of map " + mapData.getId());
+                    MapView map = getServer().getMap(mapData.getId());
+                    if (map != null) {
+                        Object worldMap = fieldWorldMap.get(map);
+                        map.setCenterX(mapData.getCenterX());
+                        map.setCenterZ(mapData.getCenterZ());
+                        map.setScale(mapData.getScale());
+                        fieldMapColor.set(worldMap, mapData.getColors());
+                        try {
+                            // Newer map info
+                            map.setLocked(mapData.isLocked());
+                            map.setTrackingPosition(mapData.isTrackingPosition());
+                            map.setUnlimitedTracking(mapData.isUnlimitedTracking());
+                        } catch (NoSuchMethodError ignored) {}
+
+                        World world = getServer().getWorld(mapData.getWorldId());
+                        if (world != null) {
+                            map.setWorld(world);
+                        }
+                        fieldMapWorldId.set(worldMap, mapData.getWorldId()); // plugin API doesn't change UUID on world set so set it always
+                        // Workaround for map not showing directly after creating it
+                        forceRender(map);
+                        if (player != null) {
+                            player.sendMap(map);
+                        }
+                    }
+                } catch (IllegalAccessException e) {
+                    getLogger().log(Level.SEVERE, "Could not access field in WorldMap class for " + mapData.getId() + "! ", e);
+                } catch (Exception e) {
+                    getLogger().log(Level.SEVERE, "Error while trying to store map " + mapData.getId() + "! ", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Disable the announcement of advancements in a world if it is enabled
+     * @param world The world
+     * @return Whether it was enabled and got disabled
+     */
+    private boolean disableAdvancementAnnouncements(World world) {
+        try {
+            Boolean announce = world.getGameRuleValue(GameRule.ANNOUNCE_ADVANCEMENTS);
+            if ((announce != null && announce) || (announce == null && world.getGameRuleDefault(GameRule.ANNOUNCE_ADVANCEMENTS))) {
+                world.setGameRule(GameRule.ANNOUNCE_ADVANCEMENTS, false);
+                return true;
+            }
+        } catch (NullPointerException ignored) {
+            // world is not known
+        }
+        return false;
+    }
+
+    /**
+     * Set the contents of an inventory
+     * @param inventory The inventory
+     * @param items     The items to set
+     * @param mask      The slots to set, all bits set to replace all contents
+     */
+    private void setContents(Inventory inventory, ItemStack[] items, long mask) {
+        if (mask == -1) {
+            inventory.setContents(items);
+            return;
+        }
+        for (int i = 0; i < items.length && i < 64; i++) {
+            if ((mask & 1L << i) != 0) {
+                inventory.setItem(i, items[i]);
+            }
+        }
+    }
+
     /**
      * Check if a statistic should get synced
      * @param statistic The statistic to check
      * @return Whether it should be synced
      */
-    private boolean shouldBeSynced(Statistic statistic) {
+    public boolean shouldBeSynced(Statistic statistic) {
         if (statisticsFilter.contains(statistic)) {
             return statisticsFilterMode == FilterMode.ALLOW;
         }
@@ -997,10 +1230,6 @@ public final class SyncInv extends JavaPlugin {
         return new File(playerDataFolder, playerId + ".dat");
     }
 
-    private File getPlayerLastSeenFile(UUID playerId) {
-        return new File(playerDataFolder, playerId + ".lastseen");
-    }
-
     private boolean createNewEmptyData(UUID playerId) {
         File playerDat = getPlayerDataFile(playerId);
         if (playerDat.exists()) {
@@ -1018,85 +1247,59 @@ public final class SyncInv extends JavaPlugin {
     }
 
     public PlayerData getData(Player player) {
+        return getData(player, false);
+    }
+
+    /**
+     * Get the serialized data of a player
+     * @param player    The player
+     * @param logout    Whether this is the final data before the player leaves the server
+     * @return The data
+     */
+    public PlayerData getData(Player player, boolean logout) {
+        PlayerData data = dataPipeline.capture(player, logout);
+        dataPipeline.serialize(data);
+        return data;
+    }
+
+    /**
+     * Capture the data of a player. Items and persistent data are only copied,
+     * {@link #serializeData(PlayerData)} has to be called before the data is used.
+     * Use {@link DataPipeline#capture(Player, boolean)} to record how long this takes.
+     * @param player    The player
+     * @param logout    Whether this is the final capture before the player leaves the server. That one
+     *                  reads all advancements as the tracked ones miss criteria that were revoked.
+     * @return The captured data
+     */
+    PlayerData captureData(Player player, boolean logout) {
         PlayerData data = new PlayerData(player, getLastSeen(player.getUniqueId(), player.isOnline()));
 
         if (shouldSync(SyncType.PERSISTENT_DATA)) {
-            PersistentDataContainer pdc = player.getPersistentDataContainer();
-            try {
-                data.setPersistentData(pdc.serializeToBytes());
-            } catch (IOException e) {
-                getLogger().log(Level.WARNING, "Error while trying to access PersistentDataContainer data (" + pdc + "). Disabling persistent data syncing!", e);
-                disableSync(SyncType.PERSISTENT_DATA);
-            }
+            data.copyPersistentData(player.getPersistentDataContainer());
         }
 
         if (shouldSync(SyncType.ADVANCEMENTS)) {
-            for (Iterator<Advancement> it = getServer().advancementIterator(); it.hasNext();) {
-                Advancement advancement = it.next();
-                AdvancementProgress progress = player.getAdvancementProgress(advancement);
-                Map<String, Long> awarded = new HashMap<>();
-                for (String criterion : progress.getAwardedCriteria()) {
-                    Date date = progress.getDateAwarded(criterion);
-                    if (date != null) {
-                        awarded.put(criterion, date.getTime());
+            if (advancementTracker != null && !logout) {
+                advancementTracker.capture(player, data.getAdvancementProgress());
+            } else {
+                for (Iterator<Advancement> it = getServer().advancementIterator(); it.hasNext();) {
+                    Advancement advancement = it.next();
+                    Map<String, Long> awarded = getAwardedCriteria(player.getAdvancementProgress(advancement));
+                    // Advancements without awarded criteria are left out, receivers revoke them
+                    if (!awarded.isEmpty()) {
+                        data.getAdvancementProgress().put(advancement.getKey().toString(), awarded);
                     }
                 }
-                data.getAdvancementProgress().put(advancement.getKey().toString(), awarded);
             }
+        } else {
+            data.excludeSection(DataSection.ADVANCEMENTS);
         }
 
         if (shouldSyncAny(SyncType.GENERAL_STATISTICS, SyncType.ENTITY_STATISTICS, SyncType.ITEM_STATISTICS, SyncType.BLOCK_STATISTICS)) {
-            for (Statistic statistic : Statistic.values()) {
-                switch (statistic.getType()) {
-                    case UNTYPED:
-                        if (shouldSync(SyncType.GENERAL_STATISTICS)) {
-                            int value = player.getStatistic(statistic);
-                            if (value > 0) {
-                                data.getStatistics().put(statistic, "", value);
-                            }
-                        }
-                        break;
-                    case ENTITY:
-                        if (shouldSync(SyncType.ENTITY_STATISTICS)) {
-                            for (EntityType entityType : EntityType.values()) {
-                                try {
-                                    int value = player.getStatistic(statistic, entityType);
-                                    if (value > 0) {
-                                        data.getStatistics().put(statistic, entityType.name(), value);
-                                    }
-                                } catch (IllegalArgumentException ignored) {} // This statistic doesn't exist
-                            }
-                        }
-                        break;
-                    case BLOCK:
-                        if (shouldSync(SyncType.BLOCK_STATISTICS)) {
-                            for (Material blockType : Material.values()) {
-                                if (blockType.isBlock()) {
-                                    try {
-                                        int value = player.getStatistic(statistic, blockType);
-                                        if (value > 0) {
-                                            data.getStatistics().put(statistic, blockType.name(), value);
-                                        }
-                                    } catch (IllegalArgumentException ignored) {} // This statistic doesn't exist
-                                }
-                            }
-                        }
-                        break;
-                    case ITEM:
-                        if (shouldSync(SyncType.ITEM_STATISTICS)) {
-                            for (Material itemType : Material.values()) {
-                                if (itemType.isItem()) {
-                                    try {
-                                        int value = player.getStatistic(statistic, itemType);
-                                        if (value > 0) {
-                                            data.getStatistics().put(statistic, itemType.name(), value);
-                                        }
-                                    } catch (IllegalArgumentException ignored) {} // This statistic doesn't exist
-                                }
-                            }
-                        }
-                        break;
-                }
+            if (statisticTracker != null) {
+                statisticTracker.capture(player, data.getStatistics());
+            } else {
+                statisticIndex.capture(player, data.getStatistics());
             }
         }
 
@@ -1107,33 +1310,9 @@ public final class SyncInv extends JavaPlugin {
             maps.putAll(PlayerData.getMapIds(player.getEnderChest().getContents()));
             // Load the map data contents
             for (MapView map : maps.values()) {
-                try {
-                    Object worldMap = fieldWorldMap.get(map);
-                    byte[] colors = (byte[]) fieldMapColor.get(worldMap);
-
-                    UUID worldId = getWorldId(map);
-                    if (worldId == null) {
-                        getLogger().log(Level.SEVERE, "Could not get world id for map " + map.getId() + "!");
-                        continue;
-                    }
-
-                    MapData mapData = new MapData(
-                            map.getId(),
-                            worldId,
-                            map.getCenterX(),
-                            map.getCenterZ(),
-                            map.getScale(),
-                            colors
-                    );
-                    try {
-                        // Newer map info
-                        mapData.setLocked(map.isLocked());
-                        mapData.setTrackingPosition(map.isTrackingPosition());
-                        mapData.setUnlimitedTracking(map.isUnlimitedTracking());
-                    } catch (NoSuchMethodError ignored) {}
+                MapData mapData = getMapData(map);
+                if (mapData != null) {
                     data.getMaps().add(mapData);
-                } catch (IllegalAccessException e) {
-                    getLogger().log(Level.SEVERE, "Could not access field in WorldMap class for " + map.getId() + "! ", e);
                 }
             }
         }
@@ -1141,6 +1320,83 @@ public final class SyncInv extends JavaPlugin {
         return data;
     }
 
+    /**
+     * Serialize the items and persistent data of captured data. Doesn't need the main thread.
+     * Use {@link DataPipeline#serialize(PlayerData)} to record how long this takes.
+     * @param data  The captured data
+     */
+    void serializeData(PlayerData data) {
+        try {
+            data.serialize();
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, "Error while trying to serialize PersistentDataContainer data of " + data.getPlayerId() + ". Disabling persistent data syncing!", e);
+            runSync(() -> disableSync(SyncType.PERSISTENT_DATA));
+        }
+    }
+
+    /**
+     * Get the criteria of an advancement that are awarded
+     * @param progress  The progress of the advancement
+     * @return The awarded criteria with the time they were awarded at
+     */
+    public Map<String, Long> getAwardedCriteria(AdvancementProgress progress) {
+        Collection<String> criteria = progress.getAwardedCriteria();
+        if (criteria.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, Long> awarded = new HashMap<>();
+        for (String criterion : criteria) {
+            Date date = progress.getDateAwarded(criterion);
+            if (date != null) {
+                awarded.put(criterion, date.getTime());
+            }
+        }
+        return awarded;
+    }
+
+    /**
+     * Get the data of a map
+     * @param mapId The map's numeric id
+     * @return The data or null if there is no such map or it couldn't be read
+     */
+    public MapData getMapData(int mapId) {
+        MapView map = getServer().getMap(mapId);
+        return map != null ? getMapData(map) : null;
+    }
+
+    private MapData getMapData(MapView map) {
+        try {
+            Object worldMap = fieldWorldMap.get(map);
+            // Copy the colors as the data might get encoded on another thread
+            byte[] colors = ((byte[]) fieldMapColor.get(worldMap)).clone();
+
+            UUID worldId = getWorldId(map);
+            if (worldId == null) {
+                getLogger().log(Level.SEVERE, "Could not get world id for map " + map.getId() + "!");
+                return null;
+            }
+
+            MapData mapData = new MapData(
+                    map.getId(),
+                    worldId,
+                    map.getCenterX(),
+                    map.getCenterZ(),
+                    map.getScale(),
+                    colors
+            );
+            try {
+                // Newer map info
+                mapData.setLocked(map.isLocked());
+                mapData.setTrackingPosition(map.isTrackingPosition());
+                mapData.setUnlimitedTracking(map.isUnlimitedTracking());
+            } catch (NoSuchMethodError ignored) {}
+            return mapData;
+        } catch (IllegalAccessException e) {
+            getLogger().log(Level.SEVERE, "Could not access field in WorldMap class for " + map.getId() + "! ", e);
+        }
+        return null;
+    }
+
     /**
      * The sound to play when a player gets unlocked, should match the vanilla levelup
      * @param playerId  The uuid of the Player to play the sound to
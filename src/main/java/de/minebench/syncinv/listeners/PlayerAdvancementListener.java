@@ -0,0 +1,40 @@
+package de.minebench.syncinv.listeners;
+
+import com.destroystokyo.paper.event.player.PlayerAdvancementCriterionGrantEvent;
+import de.minebench.syncinv.SyncInv;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+public class PlayerAdvancementListener implements Listener {
+    private final SyncInv plugin;
+
+    public PlayerAdvancementListener(SyncInv plugin) {
+        this.plugin = plugin;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onCriterionGrant(PlayerAdvancementCriterionGrantEvent event) {
+        if (plugin.getAdvancementTracker() != null) {
+            plugin.getAdvancementTracker().onGrant(event.getPlayer().getUniqueId(), event.getAdvancement());
+        }
+    }
+}
@@ -44,6 +44,14 @@ public class PlayerJoinListener implements Listener {
                 e.setKickMessage(ChatColor.RED + plugin.getName() + " is not enabled! Please contact an administrator!");
                 return;
             }
+            if (plugin.getOfflinePlayerFiles() != null) {
+                // The server reads the player file after this, it should contain everything that was written
+                if (!plugin.getOfflinePlayerFiles().awaitPending(e.getUniqueId())) {
+                    e.setLoginResult(AsyncPlayerPreLoginEvent.Result.KICK_OTHER);
+                    e.setKickMessage(plugin.getLang("data-still-saving"));
+                    return;
+                }
+            }
             if (plugin.getMessenger().queryData(e.getUniqueId()) == null && (!plugin.getMessenger().isAllowedToBeAlone() || !plugin.getMessenger().isAlone())) {
                 e.setLoginResult(AsyncPlayerPreLoginEvent.Result.KICK_OTHER);
                 e.setKickMessage(ChatColor.RED + "Unable to query player data!");
@@ -54,6 +62,17 @@ public class PlayerJoinListener implements Listener {
 
     @EventHandler(priority = EventPriority.LOWEST)
     public void onPlayerJoined(PlayerJoinEvent e) {
+        plugin.getLastSeenIndex().setOnline(e.getPlayer().getUniqueId(), true);
+        if (plugin.getMessenger() != null) {
+            plugin.getMessenger().onPlayerOnline(e.getPlayer().getUniqueId());
+        }
+        // Seed the trackers before any data is applied, applying updates them with what was set
+        if (plugin.getStatisticTracker() != null) {
+            plugin.getStatisticTracker().seed(e.getPlayer());
+        }
+        if (plugin.getAdvancementTracker() != null) {
+            plugin.getAdvancementTracker().seed(e.getPlayer());
+        }
         Map.Entry<PlayerData, Runnable> cached = plugin.getCachedData(e.getPlayer());
         if (cached != null && plugin.getLastSeen(e.getPlayer().getUniqueId(), false) < cached.getKey().getLastSeen()) {
             plugin.removeCachedData(e.getPlayer());
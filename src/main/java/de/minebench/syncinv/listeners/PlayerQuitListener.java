@@ -2,7 +2,6 @@ package de.minebench.syncinv.listeners;
 
 import de.minebench.syncinv.PlayerData;
 import de.minebench.syncinv.SyncInv;
-import de.minebench.syncinv.messenger.MessageType;
 import de.minebench.syncinv.messenger.PlayerDataQuery;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
@@ -39,10 +38,17 @@ public class PlayerQuitListener implements Listener {
     @EventHandler(priority = EventPriority.MONITOR)
     public void onPlayerQuit(PlayerQuitEvent event) {
         if (plugin.getMessenger() == null) {
+            plugin.getLastSeenIndex().setOnline(event.getPlayer().getUniqueId(), false);
             return;
         }
         PlayerDataQuery query = plugin.getMessenger().removeQuery(event.getPlayer().getUniqueId());
         if (query != null) {
+            if (plugin.getStatisticTracker() != null) {
+                plugin.getStatisticTracker().invalidate(event.getPlayer().getUniqueId());
+            }
+            if (plugin.getAdvancementTracker() != null) {
+                plugin.getAdvancementTracker().invalidate(event.getPlayer().getUniqueId());
+            }
             // The player is gone although he had a query...
             // We have to make sure now that the time of the data file matches the old one
             // and not send our data to all the other servers as it might be outdated
@@ -50,22 +56,43 @@ public class PlayerQuitListener implements Listener {
                 if (plugin.getLastSeen(query.getPlayerId(), false) > query.getLocalLastSeen()) {
                     plugin.setLastSeen(query.getPlayerId(), query.getLocalLastSeen());
                 }
+                plugin.getLastSeenIndex().setOnline(query.getPlayerId(), false);
             }, 1);
             return;
         }
 
 
+        long lastSeen = System.currentTimeMillis();
         if (plugin.shouldSyncWithGroupOnLogout()) {
-            plugin.getMessenger().sendGroupMessage(System.currentTimeMillis(), MessageType.DATA, plugin.getData(event.getPlayer()));
+            // Only capture the data here, it gets serialized and sent by the pipeline
+            PlayerData data = plugin.getDataPipeline().capture(event.getPlayer(), true);
+            // Use the exact version that was sent so that it can be used as the base of a delta later
+            lastSeen = data.getLastSeen();
+            plugin.getDataPipeline().send(data, plugin.getMessenger()::sendGroupData);
         } else {
             Map<String, Long> servers = plugin.getMessenger().getQueuedDataRequest(event.getPlayer().getUniqueId());
             if (servers != null && !servers.isEmpty()) {
-                PlayerData data = plugin.getData(event.getPlayer());
-                plugin.getMessenger().fulfillQueuedDataRequest(data);
+                PlayerData data = plugin.getDataPipeline().capture(event.getPlayer(), true);
+                plugin.getDataPipeline().send(data, plugin.getMessenger()::fulfillQueuedDataRequest);
             }
         }
+        // The data was captured above, the trackers aren't needed anymore
+        if (plugin.getStatisticTracker() != null) {
+            plugin.getStatisticTracker().invalidate(event.getPlayer().getUniqueId());
+        }
+        if (plugin.getAdvancementTracker() != null) {
+            plugin.getAdvancementTracker().invalidate(event.getPlayer().getUniqueId());
+        }
         // Update last seen
-        plugin.runLater(() -> plugin.setLastSeen(event.getPlayer().getUniqueId(), System.currentTimeMillis()), 1);
+        long finalLastSeen = lastSeen;
+        plugin.runLater(() -> {
+            if (plugin.setLastSeen(event.getPlayer().getUniqueId(), finalLastSeen)) {
+                // We have the newest data until another server asks for it
+                plugin.getMessenger().grantLease(event.getPlayer().getUniqueId(), finalLastSeen);
+            }
+            // Only now that the last seen time is stored it doesn't have to be recovered after a crash
+            plugin.getLastSeenIndex().setOnline(event.getPlayer().getUniqueId(), false);
+        }, 1);
     }
 
 }
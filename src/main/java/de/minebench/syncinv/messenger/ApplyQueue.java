@@ -0,0 +1,183 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import de.minebench.syncinv.PlayerData;
+import de.minebench.syncinv.SyncInv;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delays applying the data of offline players that the other servers sent on logout.
+ * A player switching between servers makes them send several versions in a short time,
+ * only the newest one that arrived within the window gets applied.
+ * <p>
+ * Complete data replaces whatever is pending. A delta only contains the changes since
+ * the version before it so that one is applied first before the delta waits instead.
+ */
+class ApplyQueue {
+    private final SyncInv plugin;
+    private final long window;
+    private final ScheduledExecutorService scheduler;
+
+    private final Map<UUID, Pending> pending = new HashMap<>();
+
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    ApplyQueue(SyncInv plugin, ServerMessenger messenger, long window) {
+        this.plugin = plugin;
+        this.window = window;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat(plugin.getName() + " Apply Queue " + messenger.getServerName()).setDaemon(true).build());
+    }
+
+    /**
+     * Queue data to be applied once no newer data arrived within the window
+     * @param data      The data
+     * @param finished  Run when the data was applied
+     */
+    void add(PlayerData data, Runnable finished) {
+        UUID playerId = data.getPlayerId();
+        Pending flushed = null;
+        synchronized (this) {
+            queued.increment();
+            Pending previous = pending.get(playerId);
+            if (previous != null) {
+                if (!isNewer(data, previous.data)) {
+                    plugin.logDebug("Dropping data of " + playerId + " (" + data.getLastSeen() + ") as newer data (" + previous.data.getLastSeen() + ") is waiting to be applied");
+                    coalesced.increment();
+                    return;
+                }
+                previous.task.cancel(false);
+                pending.remove(playerId);
+                if (data.isDelta()) {
+                    // The delta needs the pending version to be applied before it
+                    flushed = previous;
+                } else {
+                    plugin.logDebug("Replacing data of " + playerId + " (" + previous.data.getLastSeen() + ") waiting to be applied with newer data (" + data.getLastSeen() + ")");
+                    coalesced.increment();
+                }
+            }
+            Pending entry = new Pending(data, finished);
+            entry.task = scheduler.schedule(() -> flush(playerId, entry), window, TimeUnit.MILLISECONDS);
+            pending.put(playerId, entry);
+        }
+        if (flushed != null) {
+            apply(flushed);
+        }
+    }
+
+    private static boolean isNewer(PlayerData data, PlayerData than) {
+        if (data.getLastSeen() != than.getLastSeen()) {
+            return data.getLastSeen() > than.getLastSeen();
+        }
+        return data.getTimeStamp() > than.getTimeStamp();
+    }
+
+    private void flush(UUID playerId, Pending entry) {
+        synchronized (this) {
+            if (!pending.remove(playerId, entry)) {
+                return; // Replaced in the meantime
+            }
+        }
+        apply(entry);
+    }
+
+    private void apply(Pending entry) {
+        applied.increment();
+        plugin.applyData(entry.data, entry.finished);
+    }
+
+    /**
+     * Get the last seen time of the data that is waiting to be applied for a player
+     * @param playerId  The UUID of the player
+     * @return The last seen time or 0 if no data is waiting
+     */
+    synchronized long getLastSeen(UUID playerId) {
+        Pending entry = pending.get(playerId);
+        return entry != null ? entry.data.getLastSeen() : 0;
+    }
+
+    /**
+     * Forget the data that is waiting to be applied for a player,
+     * e.g. as a query is going to get the newest data anyways
+     * @param playerId  The UUID of the player
+     */
+    void discard(UUID playerId) {
+        synchronized (this) {
+            Pending entry = pending.remove(playerId);
+            if (entry == null) {
+                return;
+            }
+            entry.task.cancel(false);
+            coalesced.increment();
+        }
+        plugin.logDebug("Discarded data of " + playerId + " that was waiting to be applied as it is queried");
+    }
+
+    /**
+     * Apply everything that is waiting and stop
+     */
+    void shutdown() {
+        scheduler.shutdownNow();
+        List<Pending> remaining;
+        synchronized (this) {
+            remaining = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        for (Pending entry : remaining) {
+            apply(entry);
+        }
+    }
+
+    /**
+     * @return A human readable line describing the queue
+     */
+    String getStats() {
+        int waiting;
+        synchronized (this) {
+            waiting = pending.size();
+        }
+        return "Apply queue: " + queued.sum() + " received, " + applied.sum() + " applied, "
+                + coalesced.sum() + " coalesced, " + waiting + " waiting";
+    }
+
+    private static class Pending {
+        private final PlayerData data;
+        private final Runnable finished;
+        private ScheduledFuture<?> task;
+
+        private Pending(PlayerData data, Runnable finished) {
+            this.data = data;
+            this.finished = finished;
+        }
+    }
+}
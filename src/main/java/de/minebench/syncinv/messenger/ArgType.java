@@ -0,0 +1,158 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.minebench.syncinv.PlayerData;
+
+import java.io.IOException;
+
+/**
+ * The types of arguments that a {@link MessageType} can carry in the binary message format
+ */
+public enum ArgType {
+    UUID(java.util.UUID.class) {
+        @Override
+        void write(BinaryWriter out, Object value) {
+            out.writeUuid((java.util.UUID) value);
+        }
+
+        @Override
+        Object read(BinaryReader in) throws IOException {
+            return in.readUuid();
+        }
+    },
+    INT(Integer.class) {
+        @Override
+        void write(BinaryWriter out, Object value) {
+            out.writeSignedVarInt((Integer) value);
+        }
+
+        @Override
+        Object read(BinaryReader in) throws IOException {
+            return in.readSignedVarInt();
+        }
+    },
+    LONG(Long.class) {
+        @Override
+        void write(BinaryWriter out, Object value) {
+            out.writeSignedVarLong((Long) value);
+        }
+
+        @Override
+        Object read(BinaryReader in) throws IOException {
+            return in.readSignedVarLong();
+        }
+    },
+    STRING(String.class) {
+        @Override
+        void write(BinaryWriter out, Object value) {
+            out.writeString((String) value);
+        }
+
+        @Override
+        Object read(BinaryReader in) throws IOException {
+            return in.readString();
+        }
+    },
+    BYTES(byte[].class) {
+        @Override
+        void write(BinaryWriter out, Object value) {
+            out.writeBytes((byte[]) value);
+        }
+
+        @Override
+        Object read(BinaryReader in) throws IOException {
+            return in.readBytes();
+        }
+    },
+    UUID_ARRAY(java.util.UUID[].class) {
+        @Override
+        void write(BinaryWriter out, Object value) {
+            java.util.UUID[] uuids = (java.util.UUID[]) value;
+            out.writeVarInt(uuids.length);
+            for (java.util.UUID uuid : uuids) {
+                out.writeUuid(uuid);
+            }
+        }
+
+        @Override
+        Object read(BinaryReader in) throws IOException {
+            int length = in.readVarInt();
+            if (length < 0 || length > in.remaining() / 16) {
+                throw new IOException("Invalid UUID array length " + length + " with " + in.remaining() + " bytes remaining");
+            }
+            java.util.UUID[] uuids = new java.util.UUID[length];
+            for (int i = 0; i < length; i++) {
+                uuids[i] = in.readUuid();
+            }
+            return uuids;
+        }
+    },
+    LONG_ARRAY(long[].class) {
+        @Override
+        void write(BinaryWriter out, Object value) {
+            long[] longs = (long[]) value;
+            out.writeVarInt(longs.length);
+            for (long l : longs) {
+                out.writeSignedVarLong(l);
+            }
+        }
+
+        @Override
+        Object read(BinaryReader in) throws IOException {
+            // Every var long is at least one byte
+            int length = in.readLength();
+            long[] longs = new long[length];
+            for (int i = 0; i < length; i++) {
+                longs[i] = in.readSignedVarLong();
+            }
+            return longs;
+        }
+    },
+    PLAYER_DATA(PlayerData.class) {
+        @Override
+        void write(BinaryWriter out, Object value) {
+            ((PlayerData) value).write(out);
+        }
+
+        @Override
+        Object read(BinaryReader in) throws IOException {
+            return PlayerData.read(in);
+        }
+    };
+
+    private final Class<?> type;
+
+    ArgType(Class<?> type) {
+        this.type = type;
+    }
+
+    /**
+     * Check whether an object can be written as this type
+     * @param value The object
+     * @return Whether it is an instance of this type's class
+     */
+    public boolean accepts(Object value) {
+        return type.isInstance(value);
+    }
+
+    abstract void write(BinaryWriter out, Object value);
+
+    abstract Object read(BinaryReader in) throws IOException;
+}
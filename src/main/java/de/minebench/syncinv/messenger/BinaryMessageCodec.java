@@ -0,0 +1,301 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.function.Predicate;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compact binary message format. Layout:
+ * <pre>
+ * varint   version
+ * byte     flags (see FLAG_ constants)
+ * int      Adler-32 of the preset dictionary, only with FLAG_DICTIONARY
+ * string   sender
+ * long     id
+ * string   type name
+ * nstring  target, the channel/server/group the message was sent to
+ * long     session, random per sending server start
+ * varlong  sequence of the message in the session, used to drop duplicates
+ * section  body: varint argument count, then the arguments as described by the type's schema.
+ *          When compressed: varint uncompressed length, then the deflated body
+ * </pre>
+ * Everything before the body is the header which gets decoded first to decide whether the
+ * message is relevant at all, the body is only decoded once the data is accessed.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+    public static final int VERSION = 5;
+
+    /**
+     * The body is compressed with deflate
+     */
+    private static final int FLAG_COMPRESSED = 1;
+    /**
+     * The compressed body was deflated with the preset dictionary
+     */
+    private static final int FLAG_DICTIONARY = 2;
+    private static final int KNOWN_FLAGS = FLAG_COMPRESSED | FLAG_DICTIONARY;
+
+    private static final int SECTION_BODY = 1;
+
+    /**
+     * Upper limit for the uncompressed size of a body to not allocate anything huge for broken messages
+     */
+    private static final int MAX_BODY_LENGTH = 64 * 1024 * 1024;
+
+    private final int compressionThreshold;
+    private final byte[] dictionary;
+    private final int dictionaryId;
+    /**
+     * Whether the targets of a message have the same dictionary, otherwise it's compressed without it
+     */
+    private final Predicate<String> useDictionary;
+    /**
+     * Deflaters and inflaters are expensive to create, every thread that encodes or decodes reuses its own
+     */
+    private final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(Deflater::new);
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    /**
+     * Create a codec that never compresses messages
+     */
+    public BinaryMessageCodec() {
+        this(-1, null, null);
+    }
+
+    /**
+     * @param compressionThreshold  The body size in bytes above which bodies get compressed; negative to never compress
+     * @param dictionary            The preset dictionary to prime the compression with; null to not use one
+     * @param useDictionary         Checks whether the target of a message has the same dictionary
+     */
+    public BinaryMessageCodec(int compressionThreshold, byte[] dictionary, Predicate<String> useDictionary) {
+        this.compressionThreshold = compressionThreshold;
+        this.dictionary = dictionary;
+        this.dictionaryId = getDictionaryId(dictionary);
+        this.useDictionary = useDictionary;
+    }
+
+    /**
+     * Get the id that identifies a dictionary, the same that deflate uses in its stream
+     * @param dictionary    The dictionary
+     * @return The Adler-32 of the dictionary or 0 if it is null
+     */
+    public static int getDictionaryId(byte[] dictionary) {
+        if (dictionary == null) {
+            return 0;
+        }
+        Adler32 adler = new Adler32();
+        adler.update(dictionary);
+        return (int) adler.getValue();
+    }
+
+    /**
+     * @return The id of the preset dictionary that this codec can use or 0 if it has none
+     */
+    public int getDictionaryId() {
+        return dictionaryId;
+    }
+
+    @Override
+    public int getVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public byte[] encode(Message message) throws IOException {
+        int flags = 0;
+        byte[] bodyBytes = encodeBody(message);
+        if (compressionThreshold >= 0 && bodyBytes.length > compressionThreshold) {
+            // Servers that don't have the same dictionary couldn't read it
+            boolean withDictionary = dictionary != null && useDictionary != null && useDictionary.test(message.getTarget());
+            byte[] compressed = compress(deflaters.get(), bodyBytes, withDictionary ? dictionary : null);
+            if (compressed.length < bodyBytes.length) {
+                BinaryWriter compressedBody = new BinaryWriter(compressed.length + 5);
+                compressedBody.writeVarInt(bodyBytes.length);
+                compressedBody.writeRawBytes(compressed, 0, compressed.length);
+                bodyBytes = compressedBody.toByteArray();
+                flags |= FLAG_COMPRESSED;
+                if (withDictionary) {
+                    flags |= FLAG_DICTIONARY;
+                }
+            }
+        }
+
+        BinaryWriter out = new BinaryWriter(bodyBytes.length + 64);
+        out.writeVarInt(VERSION);
+        out.writeByte(flags);
+        if ((flags & FLAG_DICTIONARY) != 0) {
+            out.writeInt(dictionaryId);
+        }
+        out.writeString(message.getSender());
+        out.writeLong(message.getId());
+        out.writeString(message.getType().name());
+        out.writeNullableString(message.getTarget());
+        out.writeLong(message.getSession());
+        out.writeVarLong(message.getSequence());
+
+        int section = out.beginSection(SECTION_BODY);
+        out.writeRawBytes(bodyBytes, 0, bodyBytes.length);
+        out.endSection(section);
+        return out.toByteArray();
+    }
+
+    @Override
+    public Message decodeHeader(byte[] bytes) throws IOException, IllegalArgumentException, VersionMismatchException {
+        BinaryReader in = new BinaryReader(bytes);
+        int version = in.readVarInt();
+        if (version != VERSION) {
+            throw new VersionMismatchException(version, VERSION, "The received message is of version " + version + " while this codec expects version " + VERSION);
+        }
+        int flags = in.readUnsignedByte();
+        if ((flags & ~KNOWN_FLAGS) != 0) {
+            throw new IOException("Unsupported message flags " + flags);
+        }
+        int messageDictionaryId = (flags & FLAG_DICTIONARY) != 0 ? in.readInt() : 0;
+        String sender = in.readString();
+        long id = in.readLong();
+        MessageType type = MessageType.valueOf(in.readString());
+        String target = in.readNullableString();
+        long session = in.readLong();
+        long sequence = in.readVarLong();
+
+        if (in.readVarInt() != SECTION_BODY) {
+            throw new IOException("Message is missing its body");
+        }
+        BinaryReader body = in.readSection();
+        Message message = new Message(sender, id, type, () -> decodeBody(type, flags, messageDictionaryId, body));
+        message.setVersion(VERSION);
+        message.setTarget(target);
+        message.setSequence(session, sequence);
+        return message;
+    }
+
+    private Object[] decodeBody(MessageType type, int flags, int messageDictionaryId, BinaryReader body) throws IOException {
+        if ((flags & FLAG_DICTIONARY) != 0 && (dictionary == null || messageDictionaryId != dictionaryId)) {
+            throw new IOException("Message was compressed with the dictionary " + Integer.toHexString(messageDictionaryId)
+                    + " but we have " + (dictionary != null ? Integer.toHexString(dictionaryId) : "none"));
+        }
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            int length = body.readVarInt();
+            if (length < 0 || length > MAX_BODY_LENGTH) {
+                throw new IOException("Invalid uncompressed body length " + length);
+            }
+            body = new BinaryReader(decompress(body.readRawBytes(body.remaining()), length, (flags & FLAG_DICTIONARY) != 0));
+        }
+        ArgType[] schema = type.getSchema();
+        int argCount = body.readVarInt();
+        if (argCount < 0 || argCount > schema.length) {
+            throw new IOException(type + " only supports " + schema.length + " arguments but " + argCount + " were received!");
+        }
+        Object[] data = new Object[argCount];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = schema[i].read(body);
+        }
+        return data;
+    }
+
+    /**
+     * Encode the uncompressed body of a message
+     * @param message   The message
+     * @return The body bytes
+     * @throws IOException When the arguments don't match the type's schema
+     */
+    static byte[] encodeBody(Message message) throws IOException {
+        ArgType[] schema = message.getType().getSchema();
+        if (message.getData().size() > schema.length) {
+            throw new IOException(message.getType() + " only supports " + schema.length + " arguments but " + message.getData().size() + " were given!");
+        }
+
+        BinaryWriter body = new BinaryWriter();
+        body.writeVarInt(message.getData().size());
+        int i = 0;
+        for (Object o : message.getData()) {
+            ArgType type = schema[i++];
+            if (!type.accepts(o)) {
+                throw new IOException("Argument " + i + " of " + message.getType() + " has to be of type " + type + " but was " + (o != null ? o.getClass().getName() : "null"));
+            }
+            type.write(body, o);
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Deflate bytes
+     * @param deflater      The deflater to use, gets reset afterwards so that it can be reused
+     * @param bytes         The bytes to compress
+     * @param dictionary    The preset dictionary or null
+     * @return The compressed bytes
+     */
+    static byte[] compress(Deflater deflater, byte[] bytes, byte[] dictionary) {
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(bytes);
+            deflater.finish();
+            BinaryWriter out = new BinaryWriter(bytes.length / 2);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                out.writeRawBytes(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    private byte[] decompress(byte[] bytes, int length, boolean useDictionary) throws IOException {
+        Inflater inflater = inflaters.get();
+        try {
+            inflater.setInput(bytes);
+            byte[] result = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int inflated = inflater.inflate(result, read, length - read);
+                if (inflated == 0) {
+                    if (inflater.needsDictionary()) {
+                        if (!useDictionary || dictionary == null) {
+                            throw new IOException("Message was compressed with a dictionary that we don't have");
+                        }
+                        try {
+                            inflater.setDictionary(dictionary);
+                        } catch (IllegalArgumentException e) {
+                            throw new IOException("Message was compressed with a different dictionary (" + Integer.toHexString(inflater.getAdler()) + ")", e);
+                        }
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        throw new IOException("Compressed message body ended after " + read + " of " + length + " bytes");
+                    }
+                } else {
+                    read += inflated;
+                }
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed message body", e);
+        } finally {
+            // Ready for the next message and without a reference to this one
+            inflater.reset();
+        }
+    }
+}
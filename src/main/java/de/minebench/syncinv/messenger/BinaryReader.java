@@ -0,0 +1,201 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Reads data written by a {@link BinaryWriter}
+ */
+public class BinaryReader {
+    private final byte[] buffer;
+    private int position;
+    private final int limit;
+
+    public BinaryReader(byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    public BinaryReader(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    private void require(int length) throws EOFException {
+        // Compared with the remaining bytes as position + length can overflow
+        if (length < 0 || length > remaining()) {
+            throw new EOFException("Tried to read " + length + " bytes but only " + remaining() + " are remaining");
+        }
+    }
+
+    /**
+     * @return The amount of bytes that can still be read
+     */
+    public int remaining() {
+        return limit - position;
+    }
+
+    public boolean hasRemaining() {
+        return position < limit;
+    }
+
+    public int readByte() throws IOException {
+        require(1);
+        return buffer[position++];
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public int readInt() throws IOException {
+        require(4);
+        return (buffer[position++] & 0xFF) << 24
+                | (buffer[position++] & 0xFF) << 16
+                | (buffer[position++] & 0xFF) << 8
+                | (buffer[position++] & 0xFF);
+    }
+
+    public long readLong() throws IOException {
+        require(8);
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer[position++] & 0xFF);
+        }
+        return value;
+    }
+
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("VarInt is too long");
+    }
+
+    /**
+     * Read the length of an array whose elements take at least one byte each so that
+     * broken data can't make the caller allocate a huge array
+     * @return The length, at most the amount of remaining bytes
+     * @throws IOException When the length is invalid
+     */
+    public int readLength() throws IOException {
+        int length = readVarInt();
+        if (length < 0 || length > remaining()) {
+            throw new IOException("Invalid array length " + length + " with " + remaining() + " bytes remaining");
+        }
+        return length;
+    }
+
+    public int readSignedVarInt() throws IOException {
+        int value = readVarInt();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("VarLong is too long");
+    }
+
+    public long readSignedVarLong() throws IOException {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public UUID readUuid() throws IOException {
+        return new UUID(readLong(), readLong());
+    }
+
+    public String readString() throws IOException {
+        int length = readVarInt();
+        require(length);
+        String string = new String(buffer, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return string;
+    }
+
+    public String readNullableString() throws IOException {
+        int length = readVarInt() - 1;
+        if (length < 0) {
+            return null;
+        }
+        require(length);
+        String string = new String(buffer, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return string;
+    }
+
+    public byte[] readBytes() throws IOException {
+        return readRawBytes(readVarInt());
+    }
+
+    public byte[] readNullableBytes() throws IOException {
+        int length = readVarInt() - 1;
+        return length < 0 ? null : readRawBytes(length);
+    }
+
+    public byte[] readRawBytes(int length) throws IOException {
+        require(length);
+        byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+        position += length;
+        return bytes;
+    }
+
+    /**
+     * Read the length of a section started with {@link BinaryWriter#beginSection(int)} and get a reader
+     * limited to its content. The id of the section has to be read with {@link #readVarInt()} before.
+     * This reader continues after the end of the section, regardless of how much of it gets read.
+     * @return A reader for the content of the section
+     */
+    public BinaryReader readSection() throws IOException {
+        int length = readInt();
+        require(length);
+        BinaryReader section = new BinaryReader(buffer, position, length);
+        position += length;
+        return section;
+    }
+}
@@ -0,0 +1,196 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Writes the primitives of the binary message format into a growing byte array.
+ * Multi-byte fixed size values are written big-endian, counts and most numbers as varints.
+ */
+public class BinaryWriter {
+    private byte[] buffer;
+    private int position = 0;
+
+    public BinaryWriter() {
+        this(256);
+    }
+
+    public BinaryWriter(int initialCapacity) {
+        buffer = new byte[Math.max(16, initialCapacity)];
+    }
+
+    private void ensureCapacity(int additional) {
+        if (position + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + additional));
+        }
+    }
+
+    public void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) value;
+    }
+
+    public void writeBoolean(boolean value) {
+        writeByte(value ? 1 : 0);
+    }
+
+    public void writeInt(int value) {
+        ensureCapacity(4);
+        buffer[position++] = (byte) (value >>> 24);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    public void writeLong(long value) {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[position++] = (byte) (value >>> shift);
+        }
+    }
+
+    public void writeFloat(float value) {
+        writeInt(Float.floatToIntBits(value));
+    }
+
+    public void writeDouble(double value) {
+        writeLong(Double.doubleToLongBits(value));
+    }
+
+    /**
+     * Write an unsigned variable length int (7 bits per byte, least significant group first)
+     * @param value The value, negative values always take five bytes
+     */
+    public void writeVarInt(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    /**
+     * Write a zigzag encoded variable length int so that small negative values stay small
+     * @param value The value
+     */
+    public void writeSignedVarInt(int value) {
+        writeVarInt((value << 1) ^ (value >> 31));
+    }
+
+    public void writeVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    public void writeSignedVarLong(long value) {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    public void writeUuid(UUID uuid) {
+        writeLong(uuid.getMostSignificantBits());
+        writeLong(uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * Write a UTF-8 string prefixed with its byte length
+     * @param string The string, must not be null
+     */
+    public void writeString(String string) {
+        writeBytes(string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write a string that might be null, the length prefix is shifted by one to signal null
+     * @param string The string or null
+     */
+    public void writeNullableString(String string) {
+        writeNullableBytes(string != null ? string.getBytes(StandardCharsets.UTF_8) : null);
+    }
+
+    /**
+     * Write a byte array prefixed with its length
+     * @param bytes The bytes, must not be null
+     */
+    public void writeBytes(byte[] bytes) {
+        writeVarInt(bytes.length);
+        writeRawBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Write a byte array that might be null, the length prefix is shifted by one to signal null
+     * @param bytes The bytes or null
+     */
+    public void writeNullableBytes(byte[] bytes) {
+        if (bytes == null) {
+            writeVarInt(0);
+        } else {
+            writeVarInt(bytes.length + 1);
+            writeRawBytes(bytes, 0, bytes.length);
+        }
+    }
+
+    public void writeRawBytes(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+    }
+
+    /**
+     * Start a length-prefixed section. Readers can skip sections with ids that they don't know.
+     * @param id    The id of the section
+     * @return      The marker to pass to {@link #endSection(int)} once the content is written
+     */
+    public int beginSection(int id) {
+        writeVarInt(id);
+        int marker = position;
+        writeInt(0);
+        return marker;
+    }
+
+    /**
+     * End a section started with {@link #beginSection(int)} by writing its length
+     * @param marker The marker returned when starting the section
+     */
+    public void endSection(int marker) {
+        int length = position - marker - 4;
+        buffer[marker] = (byte) (length >>> 24);
+        buffer[marker + 1] = (byte) (length >>> 16);
+        buffer[marker + 2] = (byte) (length >>> 8);
+        buffer[marker + 3] = (byte) length;
+    }
+
+    /**
+     * @return The amount of bytes written so far
+     */
+    public int size() {
+        return position;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, position);
+    }
+}
@@ -0,0 +1,349 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import de.minebench.syncinv.LastSeenIndex;
+import de.minebench.syncinv.SyncInv;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Brings the player data of a server that was offline for a while up to date in the background
+ * so that players don't have to wait for their data to be requested when they join.
+ * <p>
+ * Servers that apply the data they receive store the same last seen time for a player. After
+ * joining the group, and when another server joins it, this server compares a two level hash tree of the last seen times in its
+ * index with the trees of the other servers. Only the leaves whose hashes differ are sent in full
+ * and the players that another server has newer data of are requested a few at a time.
+ */
+class CatchUpSync {
+    /**
+     * The tree has {@link #NODES} nodes with {@link #NODES} leaves each,
+     * every leaf covers a range of the UUIDs
+     */
+    private static final int NODE_BITS = 6;
+    private static final int NODES = 1 << NODE_BITS;
+    private static final int LEAVES = NODES * NODES;
+
+    /**
+     * The maximum amount of leaves whose entries are requested in one message
+     */
+    private static final int LEAVES_PER_REQUEST = 32;
+
+    /**
+     * How long a computed tree may be used to answer other servers
+     */
+    private static final long TREE_CACHE_TIME = TimeUnit.SECONDS.toMillis(30);
+
+    private final SyncInv plugin;
+    private final ServerMessenger messenger;
+    private final long startDelay;
+    private final int pullsPerSecond;
+    private final ScheduledExecutorService executor;
+
+    private long[] cachedLeaves = null;
+    private long cachedLeavesTime = 0;
+
+    /**
+     * Players that other servers have newer data of with the server and the last seen time there
+     */
+    private final Map<UUID, Map.Entry<String, Long>> candidates = new LinkedHashMap<>();
+
+    private final LongAdder comparedLeaves = new LongAdder();
+    private final LongAdder pulled = new LongAdder();
+
+    CatchUpSync(SyncInv plugin, ServerMessenger messenger) {
+        this.plugin = plugin;
+        this.messenger = messenger;
+        startDelay = plugin.getConfig().getLong("catch-up.start-delay", 5);
+        pullsPerSecond = Math.max(1, plugin.getConfig().getInt("catch-up.pulls-per-second", 20));
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat(plugin.getName() + " Catch Up " + messenger.getServerName()).setDaemon(true).build());
+        executor.scheduleAtFixedRate(this::pull, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Start comparing with the other servers once they answered our hello
+     */
+    void start() {
+        scheduleComparison(null);
+    }
+
+    /**
+     * Start comparing with a server that joined the group after us, e.g. because it restarted.
+     * It might have received data while we didn't get its messages.
+     * @param server    The name of the server
+     */
+    void start(String server) {
+        scheduleComparison(server);
+    }
+
+    /**
+     * Compare with a server or all servers after the start delay
+     * @param server    The server or null for all servers of the group
+     */
+    private void scheduleComparison(String server) {
+        executor.schedule(() -> {
+            LastSeenIndex index = plugin.getLastSeenIndex();
+            if (index == null || !index.isScanned()) {
+                // Comparing an incomplete index would request everything that wasn't scanned yet
+                plugin.logDebug("Last seen index isn't loaded yet, delaying catch up");
+                scheduleComparison(server);
+                return;
+            }
+            for (String other : server != null ? Collections.singleton(server) : messenger.getServers()) {
+                if (messenger.getVersion(other) >= BinaryMessageCodec.VERSION) {
+                    plugin.logDebug("Comparing last seen times with " + other);
+                    sendMessage(other, System.currentTimeMillis(), MessageType.GET_DIGEST, 0, new long[0]);
+                }
+            }
+        }, startDelay, TimeUnit.SECONDS);
+    }
+
+    private void sendMessage(String target, long id, MessageType type, Object... objects) {
+        // Only servers that understand the binary format listen on its channels and know the type
+        Message message = new Message(messenger.getServerName(), id, type, objects);
+        message.setVersion(BinaryMessageCodec.VERSION);
+        messenger.sendMessage(target, message, false);
+    }
+
+    /**
+     * Answer another server's request for a part of the tree
+     * @param server    The server that requested it
+     * @param id        The id of the request
+     * @param level     0 for the nodes, 1 for the leaves of the requested nodes, 2 for the entries of the requested leaves
+     * @param requested The requested nodes or leaves
+     */
+    void onGetDigest(String server, long id, int level, long[] requested) {
+        executor.execute(() -> {
+            try {
+                if (level == 2) {
+                    sendEntries(server, id, requested);
+                    return;
+                }
+                long[] leaves = getLeaves();
+                long[] positions;
+                long[] hashes;
+                if (level == 0) {
+                    positions = new long[NODES];
+                    hashes = new long[NODES];
+                    for (int i = 0; i < LEAVES; i++) {
+                        hashes[i >> NODE_BITS] ^= leaves[i];
+                    }
+                    for (int i = 0; i < NODES; i++) {
+                        positions[i] = i;
+                    }
+                } else {
+                    positions = new long[requested.length * NODES];
+                    hashes = new long[positions.length];
+                    for (int i = 0; i < requested.length; i++) {
+                        for (int j = 0; j < NODES; j++) {
+                            int leaf = ((int) requested[i] << NODE_BITS) | j;
+                            positions[i * NODES + j] = leaf;
+                            hashes[i * NODES + j] = leaves[leaf];
+                        }
+                    }
+                }
+                sendMessage(server, id, MessageType.DIGEST, level, positions, hashes);
+            } catch (RuntimeException e) {
+                plugin.getLogger().log(Level.WARNING, "Error while answering the last seen digest request of " + server, e);
+            }
+        });
+    }
+
+    private void sendEntries(String server, long id, long[] requested) {
+        BitSet leaves = new BitSet(LEAVES);
+        for (long leaf : requested) {
+            leaves.set((int) leaf);
+        }
+        List<UUID> playerIds = new ArrayList<>();
+        List<Long> lastSeens = new ArrayList<>();
+        plugin.getLastSeenIndex().forEachLastSeen((playerId, lastSeen) -> {
+            if (leaves.get(getLeaf(playerId))) {
+                playerIds.add(playerId);
+                lastSeens.add(lastSeen);
+            }
+        });
+        sendMessage(server, id, MessageType.DIGEST_ENTRIES, playerIds.toArray(new UUID[0]), lastSeens.stream().mapToLong(Long::longValue).toArray());
+    }
+
+    /**
+     * Compare the part of another server's tree with ours and request what differs
+     * @param server    The server that sent it
+     * @param level     0 for the nodes, 1 for the leaves
+     * @param positions The positions of the hashes in the tree
+     * @param hashes    The hashes
+     */
+    void onDigest(String server, int level, long[] positions, long[] hashes) {
+        executor.execute(() -> {
+            try {
+                long[] leaves = getLeaves();
+                List<Long> different = new ArrayList<>();
+                for (int i = 0; i < positions.length; i++) {
+                    long own = 0;
+                    if (level == 0) {
+                        for (int j = 0; j < NODES; j++) {
+                            own ^= leaves[((int) positions[i] << NODE_BITS) | j];
+                        }
+                    } else {
+                        own = leaves[(int) positions[i]];
+                        comparedLeaves.increment();
+                    }
+                    if (own != hashes[i]) {
+                        different.add(positions[i]);
+                    }
+                }
+                plugin.logDebug(different.size() + "/" + positions.length + " last seen digests on level " + level + " differ from " + server);
+                if (level == 0 && !different.isEmpty()) {
+                    sendMessage(server, System.currentTimeMillis(), MessageType.GET_DIGEST, 1, toArray(different));
+                } else if (level == 1) {
+                    for (int i = 0; i < different.size(); i += LEAVES_PER_REQUEST) {
+                        sendMessage(server, System.currentTimeMillis(), MessageType.GET_DIGEST, 2,
+                                toArray(different.subList(i, Math.min(different.size(), i + LEAVES_PER_REQUEST))));
+                    }
+                }
+            } catch (RuntimeException e) {
+                plugin.getLogger().log(Level.WARNING, "Error while comparing the last seen digest of " + server, e);
+            }
+        });
+    }
+
+    /**
+     * Remember the players that another server has newer data of
+     * @param server    The server that sent the entries
+     * @param playerIds The players in the leaves that differ
+     * @param lastSeens The last seen times on that server
+     */
+    void onEntries(String server, UUID[] playerIds, long[] lastSeens) {
+        executor.execute(() -> {
+            LastSeenIndex index = plugin.getLastSeenIndex();
+            int added = 0;
+            synchronized (candidates) {
+                for (int i = 0; i < playerIds.length; i++) {
+                    if (lastSeens[i] <= index.get(playerIds[i])) {
+                        continue;
+                    }
+                    Map.Entry<String, Long> candidate = candidates.get(playerIds[i]);
+                    if (candidate == null || candidate.getValue() < lastSeens[i]) {
+                        candidates.put(playerIds[i], Map.entry(server, lastSeens[i]));
+                        added++;
+                    }
+                }
+            }
+            if (added > 0) {
+                plugin.logDebug(server + " has newer data of " + added + " players, requesting it in the background");
+            }
+        });
+    }
+
+    /**
+     * Request the data of the next few players that other servers have newer data of
+     */
+    private void pull() {
+        try {
+            int sent = 0;
+            synchronized (candidates) {
+                Iterator<Map.Entry<UUID, Map.Entry<String, Long>>> it = candidates.entrySet().iterator();
+                while (it.hasNext() && sent < pullsPerSecond) {
+                    Map.Entry<UUID, Map.Entry<String, Long>> entry = it.next();
+                    it.remove();
+                    UUID playerId = entry.getKey();
+                    String server = entry.getValue().getKey();
+                    if (plugin.getLastSeenIndex().isOnline(playerId) || messenger.hasQuery(playerId)
+                            || !messenger.getServers().contains(server)
+                            || plugin.getLastSeenIndex().get(playerId) >= entry.getValue().getValue()) {
+                        // Joining players get their data through the query, other data arrived in the meantime
+                        continue;
+                    }
+                    messenger.sendMessage(server, System.currentTimeMillis(), MessageType.RESEND_DATA, playerId);
+                    pulled.increment();
+                    sent++;
+                }
+                if (sent > 0 && candidates.isEmpty()) {
+                    plugin.getLogger().log(Level.INFO, "Requested the newer data of " + pulled.sum() + " players from the other servers");
+                }
+            }
+        } catch (RuntimeException e) {
+            plugin.getLogger().log(Level.WARNING, "Error while requesting newer player data", e);
+        }
+    }
+
+    /**
+     * Get the leaves of our tree, each is the xor of the hashes of all players in its range
+     */
+    private long[] getLeaves() {
+        if (cachedLeaves != null && System.currentTimeMillis() - cachedLeavesTime < TREE_CACHE_TIME) {
+            return cachedLeaves;
+        }
+        long[] leaves = new long[LEAVES];
+        plugin.getLastSeenIndex().forEachLastSeen((playerId, lastSeen) -> leaves[getLeaf(playerId)] ^= hash(playerId, lastSeen));
+        cachedLeaves = leaves;
+        cachedLeavesTime = System.currentTimeMillis();
+        return leaves;
+    }
+
+    private static int getLeaf(UUID playerId) {
+        return (int) (playerId.getMostSignificantBits() >>> (64 - 2 * NODE_BITS));
+    }
+
+    private static long hash(UUID playerId, long lastSeen) {
+        return mix(playerId.getMostSignificantBits() ^ mix(playerId.getLeastSignificantBits() ^ mix(lastSeen)));
+    }
+
+    /**
+     * The finalizer of the SplitMix64 generator, spreads every input bit over the whole result
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static long[] toArray(List<Long> list) {
+        return list.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return A human readable line describing the catch up
+     */
+    String getStats() {
+        int remaining;
+        synchronized (candidates) {
+            remaining = candidates.size();
+        }
+        return "Catch up: compared " + comparedLeaves.sum() + " digest leaves, requested " + pulled.sum() + " players, " + remaining + " waiting";
+    }
+}
@@ -0,0 +1,259 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.minebench.syncinv.PlayerData;
+import de.minebench.syncinv.SyncInv;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.zip.Deflater;
+
+/**
+ * Builds the preset dictionary that message bodies get compressed with from the DATA messages
+ * of real players of this server. Deflate can only reference what it has seen in its window, so
+ * the dictionary consists of the segments of the samples that contain the byte sequences which
+ * occur in the most samples, like advancement keys and statistic names. The most common segments
+ * are put at the end where the distances to them are the shortest.
+ * <p>
+ * The dictionary is written to the plugin's folder and has to be copied to all servers of the group.
+ * Servers only use it for messages to servers that advertised the same dictionary.
+ */
+public class CompressionDictionary {
+    /**
+     * The name of the file in the plugin folder that the dictionary is loaded from
+     */
+    public static final String FILE_NAME = "compression-dictionary.bin";
+
+    /**
+     * The length of the byte sequences that are counted, long enough to be worth a back reference
+     */
+    private static final int SEQUENCE_LENGTH = 8;
+    /**
+     * The length of the segments that the dictionary is built from
+     */
+    private static final int SEGMENT_LENGTH = 64;
+
+    private final SyncInv plugin;
+    private final int sampleCount;
+    private final int size;
+
+    /**
+     * @param plugin        The plugin
+     * @param sampleCount   How many players to use as samples at most
+     * @param size          The size of the dictionary in bytes
+     */
+    public CompressionDictionary(SyncInv plugin, int sampleCount, int size) {
+        this.plugin = plugin;
+        this.sampleCount = Math.max(1, sampleCount);
+        // Deflate's window is 32KiB and the data has to fit in there too
+        this.size = Math.max(SEGMENT_LENGTH, Math.min(size, 32 * 1024));
+    }
+
+    /**
+     * Build the dictionary and write it to the plugin folder. This blocks while reading the
+     * files of offline players so it should not be called on the main thread.
+     * @param onlineData        The data of the online players, captured on the main thread
+     * @param offlinePlayers    The offline players whose files can be read, checked on the main thread
+     * @return Human readable lines with the results
+     */
+    public List<String> run(List<PlayerData> onlineData, List<UUID> offlinePlayers) {
+        List<String> lines = new ArrayList<>();
+        List<byte[]> samples = new ArrayList<>();
+        for (PlayerData data : onlineData) {
+            if (samples.size() >= sampleCount) {
+                break;
+            }
+            addSample(samples, data);
+        }
+        if (plugin.getOfflinePlayerFiles() != null) {
+            for (UUID playerId : offlinePlayers) {
+                if (samples.size() >= sampleCount) {
+                    break;
+                }
+                try {
+                    addSample(samples, plugin.getOfflinePlayerFiles().read(playerId, plugin.getLastSeen(playerId, false)).get(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Exception e) {
+                    plugin.logDebug("Unable to read data of " + playerId + " as a dictionary sample: " + e.getMessage());
+                }
+            }
+        }
+        if (samples.isEmpty()) {
+            lines.add("No player data to build the dictionary from!");
+            return lines;
+        }
+
+        byte[] dictionary = build(samples, size);
+        File file = new File(plugin.getDataFolder(), FILE_NAME);
+        try {
+            File tempFile = new File(plugin.getDataFolder(), FILE_NAME + ".tmp");
+            Files.write(tempFile.toPath(), dictionary);
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Unable to write the compression dictionary to " + file, e);
+            lines.add("Unable to write the dictionary! Take a look at the log for more details.");
+            return lines;
+        }
+
+        long uncompressed = 0;
+        long withoutDictionary = 0;
+        long withDictionary = 0;
+        Deflater deflater = new Deflater();
+        try {
+            for (byte[] sample : samples) {
+                uncompressed += sample.length;
+                withoutDictionary += BinaryMessageCodec.compress(deflater, sample, null).length;
+                withDictionary += BinaryMessageCodec.compress(deflater, sample, dictionary).length;
+            }
+        } finally {
+            deflater.end();
+        }
+        lines.add("Built the dictionary " + Integer.toHexString(BinaryMessageCodec.getDictionaryId(dictionary)) + " of " + dictionary.length
+                + " bytes from " + samples.size() + " players and wrote it to " + file.getPath());
+        lines.add(String.format("Average DATA body: %d bytes, %d compressed without dictionary, %d with dictionary",
+                uncompressed / samples.size(), withoutDictionary / samples.size(), withDictionary / samples.size()));
+        lines.add("Copy it to the plugin folder of every server in the group and restart them to use it.");
+        return lines;
+    }
+
+    private void addSample(List<byte[]> samples, PlayerData data) {
+        try {
+            samples.add(BinaryMessageCodec.encodeBody(new Message(plugin.getName(), 0, MessageType.DATA, data)));
+        } catch (IOException | RuntimeException e) {
+            plugin.logDebug("Unable to encode data of " + data.getPlayerId() + " as a dictionary sample: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Build a dictionary from samples. The samples are split into as many parts as the dictionary has
+     * segments and the segment with the most common byte sequences of each part is selected. The sequences
+     * of a selected segment don't count for the later ones so that the dictionary has no duplicates.
+     * @param samples   The samples, e.g. the bodies of messages
+     * @param size      The maximum size of the dictionary in bytes
+     * @return The dictionary, smaller than the size if the samples have less common content
+     */
+    static byte[] build(List<byte[]> samples, int size) {
+        // In how many samples each sequence occurs
+        Map<Long, Integer> counts = new HashMap<>();
+        for (byte[] sample : samples) {
+            Set<Long> seen = new HashSet<>();
+            for (int i = 0; i + SEQUENCE_LENGTH <= sample.length; i++) {
+                long sequence = sequence(sample, i);
+                if (seen.add(sequence)) {
+                    counts.merge(sequence, 1, Integer::sum);
+                }
+            }
+        }
+
+        long totalLength = 0;
+        for (byte[] sample : samples) {
+            totalLength += sample.length;
+        }
+        int segmentCount = Math.max(1, size / SEGMENT_LENGTH);
+        int partLength = (int) Math.max(SEGMENT_LENGTH, totalLength / segmentCount);
+
+        List<Segment> segments = new ArrayList<>();
+        for (byte[] sample : samples) {
+            for (int partStart = 0; partStart + SEGMENT_LENGTH <= sample.length; partStart += partLength) {
+                Segment segment = selectSegment(sample, partStart, Math.min(sample.length, partStart + partLength), counts);
+                if (segment != null) {
+                    segments.add(segment);
+                }
+            }
+        }
+
+        // The most common segments last, the least common ones get dropped if there are too many
+        segments.sort(Comparator.comparingLong(s -> s.score));
+        int start = Math.max(0, segments.size() - segmentCount);
+        BinaryWriter out = new BinaryWriter(size);
+        for (int i = start; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            out.writeRawBytes(segment.sample, segment.offset, SEGMENT_LENGTH);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Select the segment in a part of a sample whose sequences occur in the most other samples
+     * @return The segment or null if none of its sequences occur in another sample
+     */
+    private static Segment selectSegment(byte[] sample, int start, int end, Map<Long, Integer> counts) {
+        int sequences = SEGMENT_LENGTH - SEQUENCE_LENGTH + 1;
+        // How many other samples contain the sequence at each position
+        int[] scores = new int[end - start];
+        for (int i = start; i + SEQUENCE_LENGTH <= end; i++) {
+            scores[i - start] = Math.max(0, counts.getOrDefault(sequence(sample, i), 0) - 1);
+        }
+        long score = 0;
+        for (int i = 0; i < sequences && i < scores.length; i++) {
+            score += scores[i];
+        }
+        long bestScore = score;
+        int best = start;
+        for (int i = start + 1; i + SEGMENT_LENGTH <= end; i++) {
+            score += scores[i - start + sequences - 1] - scores[i - start - 1];
+            if (score > bestScore) {
+                bestScore = score;
+                best = i;
+            }
+        }
+        if (bestScore <= 0) {
+            return null;
+        }
+        for (int i = best; i < best + sequences; i++) {
+            counts.put(sequence(sample, i), 0);
+        }
+        return new Segment(sample, best, bestScore);
+    }
+
+    private static long sequence(byte[] bytes, int offset) {
+        long sequence = 0;
+        for (int i = 0; i < SEQUENCE_LENGTH; i++) {
+            sequence = (sequence << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return sequence;
+    }
+
+    private static class Segment {
+        private final byte[] sample;
+        private final int offset;
+        private final long score;
+
+        private Segment(byte[] sample, int offset, long score) {
+            this.sample = sample;
+            this.offset = offset;
+            this.score = score;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import de.minebench.syncinv.SectionHashes;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the section hashes of the last few versions of each player's data and which
+ * version the other servers of the group have applied, so that data can be sent as a
+ * delta against a version that the receiving servers already know.
+ */
+public class DeltaTracker {
+    /**
+     * How many versions of a player's data to remember
+     */
+    private static final int MAX_VERSIONS = 4;
+
+    private final Cache<UUID, PlayerVersions> players = CacheBuilder.newBuilder()
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
+
+    /**
+     * Remember the hashes of a version of a player's data
+     * @param playerId  The UUID of the player
+     * @param version   The lastSeen of the data
+     * @param hashes    The hashes of the data
+     */
+    public synchronized void recordVersion(UUID playerId, long version, SectionHashes hashes) {
+        getVersions(playerId).hashes.put(version, hashes);
+    }
+
+    /**
+     * Get the hashes of a version of a player's data
+     * @param playerId  The UUID of the player
+     * @param version   The lastSeen of the data
+     * @return          The hashes or null if that version isn't known
+     */
+    public synchronized SectionHashes getHashes(UUID playerId, long version) {
+        PlayerVersions versions = players.getIfPresent(playerId);
+        return versions != null ? versions.hashes.get(version) : null;
+    }
+
+    /**
+     * Remember that a server has a certain version of a player's data
+     * @param playerId  The UUID of the player
+     * @param server    The name of the server
+     * @param version   The lastSeen of the data it has
+     */
+    public synchronized void acknowledge(UUID playerId, String server, long version) {
+        getVersions(playerId).acknowledged.merge(server, version, Math::max);
+    }
+
+    /**
+     * Forget everything that a server has acknowledged, e.g. when it shuts down
+     * @param server    The name of the server
+     */
+    public synchronized void removeServer(String server) {
+        for (PlayerVersions versions : players.asMap().values()) {
+            versions.acknowledged.remove(server);
+        }
+    }
+
+    /**
+     * Find the version of a player's data that a delta should be based on. That's the
+     * version with known hashes which most of the servers have, if at least half of them have it.
+     * Servers that don't have it will request the complete data instead.
+     * @param playerId  The UUID of the player
+     * @param servers   The servers that the data will be sent to
+     * @return          The lastSeen of the version or 0 if no suitable one is known
+     */
+    public synchronized long findBase(UUID playerId, Collection<String> servers) {
+        PlayerVersions versions = players.getIfPresent(playerId);
+        if (versions == null || servers.isEmpty()) {
+            return 0;
+        }
+        Map<Long, Integer> counts = new HashMap<>();
+        for (String server : servers) {
+            Long version = versions.acknowledged.get(server);
+            if (version != null && versions.hashes.containsKey(version)) {
+                counts.merge(version, 1, Integer::sum);
+            }
+        }
+        long base = 0;
+        int baseCount = 0;
+        for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > baseCount || entry.getValue() == baseCount && entry.getKey() > base) {
+                base = entry.getKey();
+                baseCount = entry.getValue();
+            }
+        }
+        return baseCount * 2 >= servers.size() ? base : 0;
+    }
+
+    private PlayerVersions getVersions(UUID playerId) {
+        PlayerVersions versions = players.getIfPresent(playerId);
+        if (versions == null) {
+            versions = new PlayerVersions();
+            players.put(playerId, versions);
+        }
+        return versions;
+    }
+
+    private static class PlayerVersions {
+        private final Map<Long, SectionHashes> hashes = new LinkedHashMap<Long, SectionHashes>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, SectionHashes> eldest) {
+                return size() > MAX_VERSIONS;
+            }
+        };
+        private final Map<String, Long> acknowledged = new HashMap<>();
+    }
+}
@@ -0,0 +1,357 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import de.minebench.syncinv.SyncInv;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * Direct TCP connections between servers to transfer large messages without going through Redis.
+ * Each frame is a 4 byte big-endian length followed by an encoded binary message. The accepting side
+ * starts every connection with a frame containing a random challenge and the first frame that it
+ * receives has to be the HMAC-SHA256 of that challenge keyed with the shared secret, otherwise the
+ * connection is closed. That way a recorded handshake can't be used to connect again.
+ */
+public class DirectChannel {
+    private final SyncInv plugin;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int CHALLENGE_LENGTH = 32;
+    private static final int RESPONSE_LENGTH = 32;
+
+    private final Consumer<byte[]> receiver;
+    private final SecretKeySpec secretKey;
+    private final SecureRandom random = new SecureRandom();
+    private final int maxFrameLength;
+    private final int connectTimeout;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Thread selectorThread;
+    private final ExecutorService sender;
+
+    /**
+     * The open outgoing connections by the address they are connected to
+     */
+    private final Map<InetSocketAddress, SocketChannel> connections = new ConcurrentHashMap<>();
+
+    private final LongAdder sentFrames = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder receivedFrames = new LongAdder();
+    private final LongAdder failedSends = new LongAdder();
+
+    /**
+     * @param plugin            The plugin
+     * @param bindAddress       The address to listen on
+     * @param secret            The secret that all servers share, must not be empty
+     * @param maxFrameLength    The maximum size of a received message
+     * @param connectTimeout    How many milliseconds to wait when connecting to another server
+     * @param receiver          Handles the bytes of every received message, called on the selector thread
+     * @throws IOException      When the server socket couldn't be opened
+     * @throws IllegalArgumentException When the secret is empty
+     */
+    public DirectChannel(SyncInv plugin, InetSocketAddress bindAddress, String secret, int maxFrameLength, int connectTimeout, Consumer<byte[]> receiver) throws IOException {
+        this.plugin = plugin;
+        this.receiver = receiver;
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("The direct channel needs a secret");
+        }
+        this.secretKey = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+        respond(new byte[CHALLENGE_LENGTH]); // Fail early if the algorithm isn't supported
+        this.maxFrameLength = maxFrameLength;
+        this.connectTimeout = connectTimeout;
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(bindAddress);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        sender = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat(plugin.getName() + " Direct Sender").setDaemon(true).build());
+        selectorThread = new Thread(this::select, plugin.getName() + " Direct Receiver");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * Answer a challenge of the other side of a connection
+     * @param challenge The random challenge bytes
+     * @return The HMAC of the challenge with the shared secret
+     */
+    private byte[] respond(byte[] challenge) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(secretKey);
+            mac.update("syncinv-direct:".getBytes(StandardCharsets.UTF_8));
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " is not supported?", e);
+        }
+    }
+
+    /**
+     * @return The port that this channel listens on
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    private void select() {
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        SocketChannel channel = serverChannel.accept();
+                        if (channel != null) {
+                            accept(channel);
+                        }
+                    } else if (key.isReadable()) {
+                        read(key);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Error in the direct connection listener", e);
+            }
+        }
+    }
+
+    /**
+     * Send the challenge to a new connection, the other side has to answer it before sending messages
+     */
+    private void accept(SocketChannel channel) throws IOException {
+        IncomingConnection connection = new IncomingConnection();
+        random.nextBytes(connection.challenge);
+        ByteBuffer frame = ByteBuffer.allocate(4 + CHALLENGE_LENGTH);
+        frame.putInt(CHALLENGE_LENGTH).put(connection.challenge).flip();
+        try {
+            channel.configureBlocking(false);
+            // A new connection has more than enough buffer space for this
+            channel.write(frame);
+            if (frame.hasRemaining()) {
+                throw new IOException("Unable to send the challenge");
+            }
+            channel.register(selector, SelectionKey.OP_READ, connection);
+        } catch (IOException e) {
+            plugin.logDebug("Error while accepting direct connection: " + e.getMessage());
+            channel.close();
+        }
+    }
+
+    private void read(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        IncomingConnection connection = (IncomingConnection) key.attachment();
+        try {
+            while (true) {
+                ByteBuffer buffer = connection.body != null ? connection.body : connection.length;
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    close(key);
+                    return;
+                }
+                if (buffer.hasRemaining()) {
+                    return; // Wait for more data
+                }
+                if (connection.body == null) {
+                    int length = connection.length.getInt(0);
+                    // Unauthenticated connections may only send the answer to the challenge
+                    if (length <= 0 || length > (connection.authenticated ? maxFrameLength : RESPONSE_LENGTH)) {
+                        plugin.getLogger().log(Level.WARNING, "Closing direct connection from " + channel.getRemoteAddress() + " as it sent a frame with invalid length " + length);
+                        close(key);
+                        return;
+                    }
+                    connection.body = ByteBuffer.allocate(length);
+                } else {
+                    byte[] frame = connection.body.array();
+                    connection.body = null;
+                    connection.length.clear();
+                    if (!connection.authenticated) {
+                        if (!MessageDigest.isEqual(frame, respond(connection.challenge))) {
+                            plugin.getLogger().log(Level.WARNING, "Closing direct connection from " + channel.getRemoteAddress() + " as it didn't send the right secret!");
+                            close(key);
+                            return;
+                        }
+                        connection.authenticated = true;
+                    } else {
+                        receivedFrames.increment();
+                        receiver.accept(frame);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            plugin.logDebug("Error while reading from direct connection: " + e.getMessage());
+            close(key);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Send a message to another server and wait until it was written
+     * @param address   The address of the other server's channel
+     * @param bytes     The encoded message
+     * @throws IOException When the message couldn't be sent
+     */
+    public void send(InetSocketAddress address, byte[] bytes) throws IOException {
+        SocketChannel channel = connections.get(address);
+        try {
+            if (channel == null || !channel.isOpen()) {
+                channel = connect(address);
+            }
+            synchronized (channel) {
+                ByteBuffer frame = ByteBuffer.allocate(4 + bytes.length);
+                frame.putInt(bytes.length).put(bytes).flip();
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+            }
+            sentFrames.increment();
+            sentBytes.add(bytes.length);
+        } catch (IOException e) {
+            failedSends.increment();
+            if (channel != null) {
+                connections.remove(address, channel);
+                channel.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Send a message to another server on the sender thread
+     * @param address   The address of the other server's channel
+     * @param bytes     The encoded message
+     * @param fallback  Called on the sender thread when the message couldn't be sent
+     */
+    public void sendAsync(InetSocketAddress address, byte[] bytes, Runnable fallback) {
+        sender.execute(() -> {
+            try {
+                send(address, bytes);
+            } catch (IOException e) {
+                plugin.logDebug("Unable to send message directly to " + address + ": " + e.getMessage());
+                fallback.run();
+            }
+        });
+    }
+
+    private synchronized SocketChannel connect(InetSocketAddress address) throws IOException {
+        SocketChannel channel = connections.get(address);
+        if (channel != null && channel.isOpen()) {
+            return channel;
+        }
+        if (address.isUnresolved()) {
+            throw new IOException("Unable to resolve " + address);
+        }
+        channel = SocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.socket().connect(address, connectTimeout);
+            channel.socket().setSoTimeout(connectTimeout);
+            // Not closed as that would close the channel
+            DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+            int length = in.readInt();
+            if (length != CHALLENGE_LENGTH) {
+                throw new IOException("Received invalid challenge length " + length);
+            }
+            byte[] challenge = new byte[CHALLENGE_LENGTH];
+            in.readFully(challenge);
+            byte[] response = respond(challenge);
+            ByteBuffer handshake = ByteBuffer.allocate(4 + response.length);
+            handshake.putInt(response.length).put(response).flip();
+            while (handshake.hasRemaining()) {
+                channel.write(handshake);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        connections.put(address, channel);
+        return channel;
+    }
+
+    /**
+     * Close the listener and all connections
+     */
+    public void close() {
+        sender.shutdown();
+        try {
+            selector.close();
+            serverChannel.close();
+        } catch (IOException ignored) {}
+        for (SocketChannel channel : connections.values()) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+        connections.clear();
+    }
+
+    /**
+     * @return A human readable line describing the traffic of the channel
+     */
+    public String getStats() {
+        return "Direct connection: sent " + sentFrames.sum() + " messages (" + sentBytes.sum() / 1024 + " KiB), received "
+                + receivedFrames.sum() + ", failed sends " + failedSends.sum() + ", open connections " + connections.size();
+    }
+
+    private static class IncomingConnection {
+        private final ByteBuffer length = ByteBuffer.allocate(4);
+        private final byte[] challenge = new byte[CHALLENGE_LENGTH];
+        private ByteBuffer body = null;
+        private boolean authenticated = false;
+    }
+}
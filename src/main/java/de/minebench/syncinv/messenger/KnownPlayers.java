@@ -0,0 +1,291 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import de.minebench.syncinv.LastSeenIndex;
+import de.minebench.syncinv.SyncInv;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Bloom filters of the players that each server has data of. A server whose filter doesn't
+ * contain a player has definitely never seen them so it doesn't need to be asked for their
+ * last seen time. Servers that haven't sent a filter are always asked.
+ * <p>
+ * Filters can't forget players, they are rebuilt and sent to the group periodically. Players
+ * that this server sees for the first time are sent to the group right away so that the other
+ * servers' copies never miss a player that we have data of.
+ * <p>
+ * Each addition has a sequence number and each filter says up to which addition it contains
+ * the players. If a receiver misses an addition then it drops the filter of that server and
+ * asks it until it gets a complete filter again, a false negative would lose the player's data.
+ */
+class KnownPlayers {
+    private static final Funnel<UUID> UUID_FUNNEL = (uuid, into) -> into
+            .putLong(uuid.getMostSignificantBits())
+            .putLong(uuid.getLeastSignificantBits());
+
+    private final SyncInv plugin;
+    private final ServerMessenger messenger;
+    private final double falsePositiveRate;
+    private final long refreshInterval;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * The filter of this server, null until the last seen index is fully loaded
+     */
+    private volatile BloomFilter<UUID> own = null;
+
+    /**
+     * Players that were added since the own filter was built but that aren't in the
+     * index, e.g. players that are online on this server for the first time.
+     */
+    private final Set<UUID> addedSinceBuild = new HashSet<>();
+    private long expectedPlayers = 0;
+    private long lastBroadcast = 0;
+
+    /**
+     * Identifies this run of the server so that receivers notice a restart, newer runs have higher epochs
+     */
+    private final long epoch = System.currentTimeMillis();
+    /**
+     * The sequence number of the last addition that was sent
+     */
+    private long sequence = 0;
+
+    /**
+     * The filters that the other servers sent
+     */
+    private final Map<String, PeerFilter> peers = new ConcurrentHashMap<>();
+
+    private final LongAdder skippedServers = new LongAdder();
+
+    KnownPlayers(SyncInv plugin, ServerMessenger messenger) {
+        this.plugin = plugin;
+        this.messenger = messenger;
+        falsePositiveRate = plugin.getConfig().getDouble("messaging.known-players-filter.false-positive-rate", 0.01);
+        refreshInterval = TimeUnit.SECONDS.toMillis(plugin.getConfig().getLong("messaging.known-players-filter.refresh-interval", 300));
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat(plugin.getName() + " Known Players " + messenger.getServerName()).setDaemon(true).build());
+        scheduler.scheduleWithFixedDelay(this::refresh, 1, 10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Build the own filter once the index is loaded and send it again when it is due or too full
+     */
+    private void refresh() {
+        try {
+            LastSeenIndex index = plugin.getLastSeenIndex();
+            if (index == null || !index.isScanned()) {
+                return;
+            }
+            BloomFilter<UUID> filter = own;
+            if (filter == null
+                    || filter.approximateElementCount() > expectedPlayers
+                    || System.currentTimeMillis() - lastBroadcast > refreshInterval) {
+                if (filter == null || filter.approximateElementCount() > expectedPlayers) {
+                    rebuild(index);
+                }
+                lastBroadcast = System.currentTimeMillis();
+                send("group:" + messenger.getServerGroup());
+            }
+        } catch (RuntimeException e) {
+            plugin.getLogger().log(Level.WARNING, "Error while refreshing the known players filter", e);
+        }
+    }
+
+    private synchronized void rebuild(LastSeenIndex index) {
+        // Leave room for new players so that the filter doesn't have to be rebuilt too often
+        expectedPlayers = Math.max(1024, index.size() * 2L);
+        BloomFilter<UUID> filter = BloomFilter.create(UUID_FUNNEL, expectedPlayers, falsePositiveRate);
+        index.forEach(filter::put);
+        for (UUID playerId : addedSinceBuild) {
+            filter.put(playerId);
+        }
+        addedSinceBuild.clear();
+        own = filter;
+        plugin.logDebug("Built known players filter of " + index.size() + " players for " + expectedPlayers + " expected players");
+    }
+
+    /**
+     * Send the own filter to a target if it is built
+     * @param target    The target server or group
+     */
+    void send(String target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long seq;
+        synchronized (this) {
+            BloomFilter<UUID> filter = own;
+            if (filter == null) {
+                return;
+            }
+            try {
+                filter.writeTo(out);
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Unable to write the known players filter", e);
+                return;
+            }
+            // Contains all additions that were sent until now
+            seq = sequence;
+        }
+        sendMessage(target, MessageType.KNOWN_PLAYERS, epoch, seq, out.toByteArray());
+    }
+
+    /**
+     * Add a player that this server has data of and tell the group if it wasn't known yet
+     * @param playerId  The UUID of the player
+     */
+    synchronized void add(UUID playerId) {
+        if (plugin.getLastSeenIndex() == null || plugin.getLastSeenIndex().get(playerId) == 0) {
+            // Not in the index yet so it wouldn't be in a rebuilt filter
+            addedSinceBuild.add(playerId);
+        }
+        BloomFilter<UUID> filter = own;
+        if (filter != null && filter.put(playerId)) {
+            sequence++;
+            sendMessage("group:" + messenger.getServerGroup(), MessageType.KNOWN_PLAYERS_ADDED, epoch, sequence, new UUID[]{playerId});
+        }
+    }
+
+    private void sendMessage(String target, MessageType type, Object... objects) {
+        // Only servers that understand the binary format listen on its channels and know the type
+        Message message = new Message(messenger.getServerName(), System.currentTimeMillis(), type, objects);
+        message.setVersion(BinaryMessageCodec.VERSION);
+        messenger.sendMessage(target, message, false);
+    }
+
+    /**
+     * Set the filter that another server sent
+     * @param server    The name of the server
+     * @param epoch     The epoch of the server's run
+     * @param seq       The sequence number of the last addition that the filter contains
+     * @param bytes     The serialized filter
+     */
+    void setPeerFilter(String server, long epoch, long seq, byte[] bytes) {
+        BloomFilter<UUID> filter;
+        try {
+            filter = BloomFilter.readFrom(new ByteArrayInputStream(bytes), UUID_FUNNEL);
+        } catch (IOException | IllegalArgumentException e) {
+            plugin.getLogger().log(Level.WARNING, "Received an invalid known players filter from " + server + ": " + e.getMessage());
+            peers.remove(server);
+            return;
+        }
+        peers.compute(server, (s, previous) -> {
+            if (previous != null && (epoch < previous.epoch || epoch == previous.epoch && seq < previous.sequence)) {
+                // Additions overtook this filter, it might miss players that they contained
+                plugin.logDebug("Received an outdated known players filter from " + server + " (" + seq + " < " + previous.sequence + "), asking it until it sends a newer one");
+                return new PeerFilter(null, previous.epoch, previous.sequence);
+            }
+            return new PeerFilter(filter, epoch, seq);
+        });
+    }
+
+    /**
+     * Add players to the filter of another server
+     * @param server    The name of the server
+     * @param epoch     The epoch of the server's run
+     * @param seq       The sequence number of the addition
+     * @param playerIds The players that the server has data of now
+     */
+    void addToPeer(String server, long epoch, long seq, UUID[] playerIds) {
+        peers.compute(server, (s, previous) -> {
+            if (previous == null || previous.epoch != epoch) {
+                // We don't have the filter that this addition belongs to
+                return epoch >= (previous != null ? previous.epoch : 0) ? new PeerFilter(null, epoch, seq) : previous;
+            }
+            if (previous.filter != null) {
+                for (UUID playerId : playerIds) {
+                    previous.filter.put(playerId);
+                }
+            }
+            if (seq <= previous.sequence) {
+                // Already contained in the filter
+                return previous;
+            }
+            if (previous.filter != null && seq != previous.sequence + 1) {
+                plugin.logDebug("Missed known players additions of " + server + " (expected " + (previous.sequence + 1) + ", got " + seq + "), asking it until it sends a new filter");
+                return new PeerFilter(null, epoch, seq);
+            }
+            return new PeerFilter(previous.filter, epoch, seq);
+        });
+    }
+
+    void removePeer(String server) {
+        peers.remove(server);
+    }
+
+    /**
+     * Check whether a server might have data of a player
+     * @param server    The name of the server
+     * @param playerId  The UUID of the player
+     * @return          false if the server definitely has no data of the player; true if it might have or didn't send a filter
+     */
+    boolean mightKnow(String server, UUID playerId) {
+        PeerFilter peer = peers.get(server);
+        if (peer == null || peer.filter == null || peer.filter.mightContain(playerId)) {
+            return true;
+        }
+        skippedServers.increment();
+        return false;
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @return A human readable line describing the filters
+     */
+    String getStats() {
+        BloomFilter<UUID> filter = own;
+        return "Known players filter: " + (filter != null ? "~" + filter.approximateElementCount() + " players" : "not built")
+                + ", filters of " + peers.values().stream().filter(p -> p.filter != null).count() + " servers, skipped "
+                + skippedServers.sum() + " last seen answers";
+    }
+
+    private static class PeerFilter {
+        /**
+         * The filter or null if additions were missed and the server has to be asked
+         */
+        private final BloomFilter<UUID> filter;
+        private final long epoch;
+        private final long sequence;
+
+        private PeerFilter(BloomFilter<UUID> filter, long epoch, long sequence) {
+            this.filter = filter;
+            this.epoch = epoch;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import de.minebench.syncinv.SyncInv;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Every server periodically sends the last seen changes of its own players to the group so that
+ * each server knows where players were last seen without asking the whole group on every login.
+ * <p>
+ * A message only contains the changes since the previous one, at most a fixed amount of them.
+ * Changes that didn't fit are sent in the next message. Each message says until when it covers
+ * all changes of its sender. Receivers only trust their view if they got every message of every
+ * server in the group in order, recently enough and covering the time until shortly before the
+ * query started, otherwise the servers have to be asked. Players joining are sent right away.
+ */
+class LastSeenGossip {
+    /**
+     * A player needs at least this many milliseconds to leave one server and join another one,
+     * changes that happened in this time before a query started can't be the player's newest ones
+     */
+    static final long COVERAGE_MARGIN = 250;
+
+    private final SyncInv plugin;
+    private final ServerMessenger messenger;
+    private final int maxEntries;
+    private final int maxViewSize;
+    private final long maxStaleness;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Own changes that weren't sent yet in the order they happened.
+     * The time is negative if the player joined at that time and is still online.
+     */
+    private final LinkedHashMap<UUID, Long> pending = new LinkedHashMap<>();
+    private long sequence = 0;
+    private boolean droppedPending = false;
+
+    /**
+     * Where each player was seen the last time according to the other servers' messages,
+     * roughly ordered from the oldest to the newest sighting
+     */
+    private final LinkedHashMap<UUID, Sighting> view = new LinkedHashMap<>();
+
+    /**
+     * Sightings older than this were removed from the view to keep it small
+     */
+    private volatile long evictedUntil = 0;
+
+    private final Map<String, PeerState> peers = new ConcurrentHashMap<>();
+
+    private final LongAdder sentEntries = new LongAdder();
+    private final LongAdder sentMessages = new LongAdder();
+    private final LongAdder resolved = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+
+    LastSeenGossip(SyncInv plugin, ServerMessenger messenger) {
+        this.plugin = plugin;
+        this.messenger = messenger;
+        long interval = Math.max(100, plugin.getConfig().getLong("messaging.gossip.interval", 1000));
+        maxEntries = Math.max(1, plugin.getConfig().getInt("messaging.gossip.max-entries", 512));
+        maxViewSize = Math.max(1, plugin.getConfig().getInt("messaging.gossip.view-size", 100000));
+        // Allow a late message before considering the view of a server stale
+        maxStaleness = interval * 3;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat(plugin.getName() + " Last Seen Gossip " + messenger.getServerName()).setDaemon(true).build());
+        scheduler.scheduleAtFixedRate(this::send, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Record a change of a player on this server to send it with the next message
+     * @param playerId  The UUID of the player
+     * @param lastSeen  The timestamp
+     * @param online    Whether the player joined at that time and is online now
+     */
+    void record(UUID playerId, long lastSeen, boolean online) {
+        synchronized (this) {
+            // Re-insert to keep the changes in the order they happened
+            pending.remove(playerId);
+            pending.put(playerId, online ? -lastSeen : lastSeen);
+            if (pending.size() > maxViewSize) {
+                // Receivers would need too long to catch up anyways, tell them that they missed something
+                Iterator<UUID> it = pending.keySet().iterator();
+                it.next();
+                it.remove();
+                droppedPending = true;
+            }
+        }
+        if (online) {
+            // Other servers need to know this before the player might switch to them
+            try {
+                scheduler.execute(this::send);
+            } catch (RejectedExecutionException ignored) {} // Shut down
+        }
+    }
+
+    /**
+     * Send the oldest pending changes to the group. This is sent even without changes
+     * so that the other servers know that their view of this server is up to date.
+     */
+    private void send() {
+        try {
+            UUID[] playerIds;
+            long[] lastSeens;
+            long coveredUntil;
+            long seq;
+            synchronized (this) {
+                int count = Math.min(maxEntries, pending.size());
+                playerIds = new UUID[count];
+                lastSeens = new long[count];
+                Iterator<Map.Entry<UUID, Long>> it = pending.entrySet().iterator();
+                for (int i = 0; i < count; i++) {
+                    Map.Entry<UUID, Long> entry = it.next();
+                    playerIds[i] = entry.getKey();
+                    lastSeens[i] = entry.getValue();
+                    it.remove();
+                }
+                // Everything before the oldest change that is still pending was sent
+                coveredUntil = pending.isEmpty() ? System.currentTimeMillis() : Math.abs(pending.values().iterator().next()) - 1;
+                // Skipping a sequence number makes the receivers treat it like a lost message
+                sequence += droppedPending ? 2 : 1;
+                droppedPending = false;
+                seq = sequence;
+            }
+            Message message = new Message(messenger.getServerName(), System.currentTimeMillis(), MessageType.LAST_SEEN_GOSSIP,
+                    seq, coveredUntil, playerIds, lastSeens);
+            // Only servers that understand the binary format listen on its channels and know the type
+            message.setVersion(BinaryMessageCodec.VERSION);
+            messenger.sendMessage("group:" + messenger.getServerGroup(), message, false);
+            sentMessages.increment();
+            sentEntries.add(playerIds.length);
+        } catch (RuntimeException e) {
+            plugin.getLogger().log(Level.WARNING, "Error while sending last seen gossip", e);
+        }
+    }
+
+    /**
+     * Handle the changes that another server sent
+     * @param server        The name of the server
+     * @param seq           The sequence number of the message
+     * @param coveredUntil  The time until which the server sent all its changes
+     * @param playerIds     The players whose last seen changed
+     * @param lastSeens     The new last seen times, negative if the player is online since then
+     */
+    void onGossip(String server, long seq, long coveredUntil, UUID[] playerIds, long[] lastSeens) {
+        PeerState state = peers.computeIfAbsent(server, s -> new PeerState());
+        synchronized (state) {
+            if (state.sequence == 0 || seq != state.sequence + 1) {
+                // We don't know what the server sent before, only trust sightings that are newer than this
+                if (state.sequence != 0) {
+                    plugin.logDebug("Missed last seen gossip of " + server + " (expected " + (state.sequence + 1) + ", got " + seq + ")");
+                }
+                state.coverageStart = Math.max(state.coverageStart, coveredUntil);
+            }
+            state.sequence = seq;
+            state.coveredUntil = Math.max(state.coveredUntil, coveredUntil);
+            state.lastReceived = System.currentTimeMillis();
+        }
+        synchronized (view) {
+            for (int i = 0; i < playerIds.length; i++) {
+                Sighting sighting = new Sighting(server, Math.abs(lastSeens[i]), lastSeens[i] < 0);
+                Sighting previous = view.get(playerIds[i]);
+                if (previous == null || previous.time <= sighting.time) {
+                    view.remove(playerIds[i]);
+                    view.put(playerIds[i], sighting);
+                }
+            }
+            while (view.size() > maxViewSize) {
+                Iterator<Sighting> it = view.values().iterator();
+                evictedUntil = Math.max(evictedUntil, it.next().time);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Answer a query from the view if it is up to date for all servers
+     * @param query     The query
+     * @param servers   The servers that the query needs answers from
+     * @return Whether the query got answers for all servers
+     */
+    boolean resolve(PlayerDataQuery query, Collection<String> servers) {
+        long now = System.currentTimeMillis();
+        // Changes of servers that we might have missed are older than this
+        long trustedFrom = evictedUntil;
+        for (String server : servers) {
+            PeerState state = peers.get(server);
+            if (state == null || now - state.lastReceived > maxStaleness
+                    || state.coveredUntil < query.getTimestamp() - COVERAGE_MARGIN) {
+                // The server might have changes from before the query that it didn't send yet
+                stale.increment();
+                return false;
+            }
+            trustedFrom = Math.max(trustedFrom, state.coverageStart);
+        }
+        Sighting sighting;
+        synchronized (view) {
+            sighting = view.get(query.getPlayerId());
+        }
+        long newest = Math.max(query.getLocalLastSeen(), sighting != null ? sighting.time : 0);
+        if (newest < trustedFrom) {
+            // A change that we missed might be newer
+            stale.increment();
+            return false;
+        }
+        for (String server : servers) {
+            if (sighting != null && sighting.server.equals(server)) {
+                query.addResponse(server, sighting.online ? now : sighting.time);
+            } else {
+                // Older than the newest sighting or never seen, which is the same for the query
+                query.addResponse(server, 0);
+            }
+        }
+        resolved.increment();
+        return true;
+    }
+
+    void removePeer(String server) {
+        peers.remove(server);
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @return A human readable line describing the gossip
+     */
+    String getStats() {
+        int viewSize;
+        synchronized (view) {
+            viewSize = view.size();
+        }
+        return "Last seen gossip: sent " + sentEntries.sum() + " changes in " + sentMessages.sum() + " messages, view of "
+                + viewSize + " players, resolved " + resolved.sum() + " queries locally, " + stale.sum() + " stale";
+    }
+
+    private static class Sighting {
+        private final String server;
+        private final long time;
+        private final boolean online;
+
+        private Sighting(String server, long time, boolean online) {
+            this.server = server;
+            this.time = time;
+            this.online = online;
+        }
+    }
+
+    private static class PeerState {
+        private long sequence = 0;
+        private volatile long coverageStart = 0;
+        /**
+         * The time until which we got all changes of the server
+         */
+        private volatile long coveredUntil = 0;
+        private volatile long lastReceived = 0;
+    }
+}
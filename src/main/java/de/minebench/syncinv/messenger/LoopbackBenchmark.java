@@ -0,0 +1,181 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.minebench.syncinv.SyncInv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stands up a group of logical servers on a {@link LoopbackNetwork} and measures
+ * the latency of login queries and the throughput of group broadcasts.
+ * The simulated servers share the player data and config of the running plugin.
+ */
+public class LoopbackBenchmark {
+    private static final String GROUP = "benchmark";
+
+    private final SyncInv plugin;
+    private final int serverCount;
+    private final LoopbackNetwork.LinkSettings linkSettings;
+
+    /**
+     * @param plugin        The plugin
+     * @param serverCount   The amount of servers to simulate
+     * @param linkSettings  The settings of every link between the servers
+     */
+    public LoopbackBenchmark(SyncInv plugin, int serverCount, LoopbackNetwork.LinkSettings linkSettings) {
+        this.plugin = plugin;
+        this.serverCount = Math.max(2, serverCount);
+        this.linkSettings = linkSettings;
+    }
+
+    /**
+     * Run the benchmark, this blocks until all queries completed or timed out so it
+     * should not be called on the main thread. Query completion is handled on the main
+     * thread so the measured latency includes the wait for the next tick.
+     * @param logins        The amount of logins to simulate, spread randomly over all servers
+     * @param broadcasts    The amount of group messages every server should send
+     * @return The results as human readable lines
+     * @throws InterruptedException When interrupted while waiting for the results
+     */
+    public List<String> run(int logins, int broadcasts) throws InterruptedException {
+        List<String> results = new ArrayList<>();
+        LoopbackNetwork network = new LoopbackNetwork(Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+        network.setDefaultSettings(linkSettings);
+        List<LoopbackMessenger> messengers = new ArrayList<>();
+        try {
+            for (int i = 1; i <= serverCount; i++) {
+                messengers.add(new LoopbackMessenger(plugin, network, GROUP, GROUP + "-" + i));
+            }
+            for (LoopbackMessenger messenger : messengers) {
+                messenger.hello();
+            }
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(plugin.getQueryTimeout());
+            while (!allKnowEachOther(messengers) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            if (!allKnowEachOther(messengers)) {
+                results.add("Not all servers found each other, is the loss too high?");
+                return results;
+            }
+
+            results.add(runLogins(messengers, logins));
+            results.add(runBroadcasts(messengers, network, broadcasts));
+            results.add("Network: sent " + network.getSentMessages().sum() + " messages, delivered "
+                    + network.getDeliveredMessages().sum() + " (" + network.getDeliveredBytes().sum() / 1024
+                    + " KiB), lost " + network.getLostMessages().sum());
+        } finally {
+            for (LoopbackMessenger messenger : messengers) {
+                messenger.goodbye();
+            }
+            network.shutdown();
+        }
+        return results;
+    }
+
+    private boolean allKnowEachOther(List<LoopbackMessenger> messengers) {
+        for (LoopbackMessenger messenger : messengers) {
+            if (messenger.getServers().size() < messengers.size() - 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Start queries for random players on random servers at the same time and wait until they are completed
+     */
+    private String runLogins(List<LoopbackMessenger> messengers, int logins) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(logins);
+        long[] latencies = new long[logins];
+        AtomicInteger index = new AtomicInteger();
+        AtomicInteger incomplete = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int i = 0; i < logins; i++) {
+            LoopbackMessenger messenger = messengers.get(ThreadLocalRandom.current().nextInt(messengers.size()));
+            long queryStart = System.nanoTime();
+            PlayerDataQuery query = messenger.queryData(UUID.randomUUID(), q -> {
+                int completed = index.getAndIncrement();
+                if (completed >= latencies.length) {
+                    return;
+                }
+                latencies[completed] = System.nanoTime() - queryStart;
+                if (!q.isCompleted()) {
+                    incomplete.incrementAndGet();
+                }
+                messenger.removeQuery(q.getPlayerId());
+                latch.countDown();
+            });
+            if (query == null) {
+                latch.countDown();
+            }
+        }
+        latch.await(plugin.getQueryTimeout() * 2L, TimeUnit.SECONDS);
+        long duration = System.nanoTime() - start;
+
+        int completed = Math.min(index.get(), logins);
+        if (completed == 0) {
+            return "Logins: no query completed";
+        }
+        long[] sorted = Arrays.copyOf(latencies, completed);
+        Arrays.sort(sorted);
+        long sum = 0;
+        for (long latency : sorted) {
+            sum += latency;
+        }
+        return "Logins: " + completed + "/" + logins + " queries (" + incomplete.get() + " timed out) in "
+                + TimeUnit.NANOSECONDS.toMillis(duration) + "ms, avg " + toMillis(sum / completed)
+                + "ms, p50 " + toMillis(sorted[completed / 2])
+                + "ms, p99 " + toMillis(sorted[Math.min(completed - 1, (int) (completed * 0.99))]) + "ms";
+    }
+
+    /**
+     * Let every server send group messages and wait until the network delivered all of them
+     */
+    private String runBroadcasts(List<LoopbackMessenger> messengers, LoopbackNetwork network, int broadcasts) throws InterruptedException {
+        long expected = network.getDeliveredMessages().sum() + network.getLostMessages().sum()
+                + (long) broadcasts * messengers.size() * (messengers.size() - 1);
+        long start = System.nanoTime();
+        for (int i = 0; i < broadcasts; i++) {
+            for (LoopbackMessenger messenger : messengers) {
+                messenger.sendGroupMessage(System.currentTimeMillis(), MessageType.IS_ONLINE, UUID.randomUUID());
+            }
+        }
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(plugin.getQueryTimeout());
+        while (network.getDeliveredMessages().sum() + network.getLostMessages().sum() < expected
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        long duration = Math.max(1, System.nanoTime() - start);
+        long messages = (long) broadcasts * messengers.size();
+        return "Broadcasts: " + messages + " group messages in " + TimeUnit.NANOSECONDS.toMillis(duration) + "ms, "
+                + messages * 1_000_000_000L / duration + " messages/s";
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.2f", nanos / 1_000_000.0);
+    }
+}
@@ -0,0 +1,63 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.minebench.syncinv.SyncInv;
+
+import java.util.Collections;
+
+/**
+ * Messenger that sends messages through a {@link LoopbackNetwork} in the same JVM
+ * instead of an external server. Used to simulate multiple servers, e.g. for benchmarks.
+ */
+public class LoopbackMessenger extends ServerMessenger {
+    private final LoopbackNetwork network;
+
+    /**
+     * @param plugin        The plugin
+     * @param network       The network to connect to
+     * @param serverGroup   The group of the simulated server
+     * @param serverName    The name of the simulated server
+     */
+    public LoopbackMessenger(SyncInv plugin, LoopbackNetwork network, String serverGroup, String serverName) {
+        super(plugin, serverGroup, serverName, Collections.emptySet());
+        this.network = network;
+        network.register(this);
+    }
+
+    /**
+     * Called by the network when a message arrives
+     */
+    void receive(String target, int version, byte[] bytes) {
+        MessageCodec codec = getCodec(version);
+        if (codec != null) {
+            onMessage(target, codec, bytes);
+        }
+    }
+
+    @Override
+    protected void close() {
+        network.unregister(this);
+    }
+
+    @Override
+    protected void sendMessageImplementation(String target, int version, byte[] bytes, boolean sync) {
+        network.send(getServerName(), target, version, bytes, sync);
+    }
+}
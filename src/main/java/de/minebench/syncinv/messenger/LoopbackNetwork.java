@@ -0,0 +1,191 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Getter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An in-memory network that connects {@link LoopbackMessenger}s in the same JVM.
+ * Every link between two servers can have its own latency, jitter, loss and bandwidth.
+ */
+public class LoopbackNetwork {
+    private final Map<String, LoopbackMessenger> servers = new ConcurrentHashMap<>();
+    private final Map<String, Link> links = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * The settings of links that weren't configured explicitly
+     */
+    private volatile LinkSettings defaultSettings = new LinkSettings(0, 0, 0, 0);
+
+    @Getter
+    private final LongAdder sentMessages = new LongAdder();
+    @Getter
+    private final LongAdder deliveredMessages = new LongAdder();
+    @Getter
+    private final LongAdder lostMessages = new LongAdder();
+    @Getter
+    private final LongAdder deliveredBytes = new LongAdder();
+
+    /**
+     * @param threads   The amount of threads that deliver messages
+     */
+    public LoopbackNetwork(int threads) {
+        scheduler = Executors.newScheduledThreadPool(Math.max(1, threads), new ThreadFactoryBuilder()
+                .setNameFormat("SyncInv Loopback Network #%d").setDaemon(true).build());
+    }
+
+    /**
+     * Set the settings of all links that weren't configured explicitly
+     * @param settings  The settings
+     */
+    public void setDefaultSettings(LinkSettings settings) {
+        defaultSettings = settings;
+    }
+
+    /**
+     * Set the settings of the link from one server to another
+     * @param from      The name of the sending server
+     * @param to        The name of the receiving server
+     * @param settings  The settings
+     */
+    public void setLinkSettings(String from, String to, LinkSettings settings) {
+        links.put(from + "->" + to, new Link(settings));
+    }
+
+    void register(LoopbackMessenger messenger) {
+        servers.put(messenger.getServerName(), messenger);
+    }
+
+    void unregister(LoopbackMessenger messenger) {
+        servers.remove(messenger.getServerName(), messenger);
+    }
+
+    /**
+     * Send a message to all servers that listen on the target
+     * @param sender    The name of the sending server
+     * @param target    The target channel
+     * @param version   The message version
+     * @param bytes     The encoded message
+     * @param sync      Whether to deliver it directly on this thread, ignoring the link settings
+     */
+    void send(String sender, String target, int version, byte[] bytes, boolean sync) {
+        sentMessages.increment();
+        for (LoopbackMessenger receiver : servers.values()) {
+            if (receiver.getServerName().equals(sender) || !receiver.getChannels().contains(target)) {
+                continue;
+            }
+            if (sync) {
+                deliver(receiver, target, version, bytes);
+                continue;
+            }
+            Link link = links.computeIfAbsent(sender + "->" + receiver.getServerName(), k -> new Link(null));
+            long delayNanos = link.getDelayNanos(bytes.length);
+            if (delayNanos < 0) {
+                lostMessages.increment();
+            } else if (delayNanos == 0) {
+                scheduler.execute(() -> deliver(receiver, target, version, bytes));
+            } else {
+                scheduler.schedule(() -> deliver(receiver, target, version, bytes), delayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private void deliver(LoopbackMessenger receiver, String target, int version, byte[] bytes) {
+        deliveredMessages.increment();
+        deliveredBytes.add(bytes.length);
+        receiver.receive(target, version, bytes);
+    }
+
+    /**
+     * Stop delivering messages
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * The simulated properties of a link
+     */
+    @Getter
+    public static class LinkSettings {
+        private final long latencyMillis;
+        private final long jitterMillis;
+        private final double loss;
+        private final long bytesPerSecond;
+
+        /**
+         * @param latencyMillis     The base delay of every message
+         * @param jitterMillis      The maximum random delay added to the latency
+         * @param loss              The chance of a message to get lost, between 0 and 1
+         * @param bytesPerSecond    The bandwidth of the link, 0 for unlimited
+         */
+        public LinkSettings(long latencyMillis, long jitterMillis, double loss, long bytesPerSecond) {
+            this.latencyMillis = latencyMillis;
+            this.jitterMillis = jitterMillis;
+            this.loss = loss;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+    }
+
+    private class Link {
+        private final LinkSettings settings;
+        /**
+         * When the link is done transmitting the previous messages
+         */
+        private long busyUntil = 0;
+
+        private Link(LinkSettings settings) {
+            this.settings = settings;
+        }
+
+        /**
+         * Get the time until a message arrives
+         * @param length    The size of the message
+         * @return          The delay in nanoseconds or -1 if the message gets lost
+         */
+        private synchronized long getDelayNanos(int length) {
+            LinkSettings settings = this.settings != null ? this.settings : defaultSettings;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (settings.loss > 0 && random.nextDouble() < settings.loss) {
+                return -1;
+            }
+            long now = System.nanoTime();
+            long delay = TimeUnit.MILLISECONDS.toNanos(settings.latencyMillis);
+            if (settings.jitterMillis > 0) {
+                delay += random.nextLong(TimeUnit.MILLISECONDS.toNanos(settings.jitterMillis));
+            }
+            if (settings.bytesPerSecond > 0) {
+                long start = Math.max(now, busyUntil);
+                busyUntil = start + length * 1_000_000_000L / settings.bytesPerSecond;
+                delay += busyUntil - now;
+            }
+            return delay;
+        }
+    }
+}
@@ -18,17 +18,12 @@ package de.minebench.syncinv.messenger;
  * along with this program.  If not, see <https://www.gnu.org/licenses/>.
  */
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.ToString;
 import org.bukkit.configuration.InvalidConfigurationException;
-import org.bukkit.util.io.BukkitObjectInputStream;
-import org.bukkit.util.io.BukkitObjectOutputStream;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectOutput;
 import java.util.ArrayDeque;
 import java.util.Collections;
 import java.util.Queue;
@@ -36,11 +31,27 @@ import java.util.Queue;
 @Getter
 @ToString
 public class Message {
-    public static final int VERSION = 4;
+    public static final int VERSION = BinaryMessageCodec.VERSION;
     private final String sender;
     private final long id;
     private final MessageType type;
     private final Queue<Object> data = new ArrayDeque<>();
+    private int version = 0;
+    /**
+     * The target this message was sent to, only known when the message format includes it
+     */
+    private String target = null;
+    /**
+     * The random session of the sending server and the sequence number of this message in it
+     */
+    private long session = 0;
+    private long sequence = 0;
+    /**
+     * Decodes the data of a received message once it's needed
+     */
+    @Getter(AccessLevel.NONE)
+    @ToString.Exclude
+    private BodyDecoder body = null;
 
     /**
      * A Message of a certain type. Optionally with some data
@@ -62,65 +73,65 @@ public class Message {
     }
 
     /**
-     * Read the first object in this message
-     * @return The first object
+     * A received Message of which only the header was decoded yet
+     * @param sender    The server that sent the message
+     * @param id        The transaction ID this Message is associated with
+     * @param type      The type of the message
+     * @param body      Decodes the data of the message, see {@link #decodeBody()}
      */
-    public Object read() {
-        return data.poll();
+    Message(String sender, long id, MessageType type, BodyDecoder body) {
+        this.sender = sender;
+        this.id = id;
+        this.type = type;
+        this.body = body;
     }
 
     /**
-     * Generate a byte array out of the data of this message
-     * @return          The generated byte array (starts with the sender
-     *                  then the type ordinal, then the amount
-     *                  of data being send and each data object);
-     *                  an empty one if an error occurred
+     * Decode the data of a received message if that didn't happen yet.
+     * This needs to be called before the data can be read.
+     * @throws IOException                      When the data couldn't be read
+     * @throws ClassNotFoundException           When the data contains an unknown class
+     * @throws InvalidConfigurationException    If the data is invalid
      */
-    public byte[] toByteArray() {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-             ObjectOutput out = new BukkitObjectOutputStream(bos)) {
-            out.writeInt(VERSION);
-            out.writeUTF(getSender());
-            out.writeLong(id);
-            out.writeUTF(getType().toString());
-            out.writeInt(data.size());
-            for (Object o : data) {
-                out.writeObject(o);
+    public void decodeBody() throws IOException, ClassNotFoundException, InvalidConfigurationException {
+        if (body != null) {
+            Object[] objects = body.decode();
+            body = null;
+            if (objects.length < type.getArgCount()) {
+                throw new IOException(type + " requires at least " + type.getArgCount() + " arguments. Only " + objects.length + " were received!");
             }
-            out.flush();
-            return bos.toByteArray();
-        } catch (IOException e) {
-            e.printStackTrace();
+            Collections.addAll(data, objects);
         }
-        return new byte[0];
     }
 
     /**
-     * Get the message from a bytearray generated as described in the toByteArray method
-     * @param bytes The bytes
-     * @return      The Message object
-     * @throws IOException
-     * @throws IllegalArgumentException         When the message type is not supported
-     * @throws ClassNotFoundException
-     * @throws InvalidConfigurationException    If the data is invalid
-     * @throws VersionMismatchException         If the received message is of a different version than it can accept
+     * Read the first object in this message
+     * @return The first object
      */
-    public static Message fromByteArray(byte[] bytes) throws IOException, IllegalArgumentException, ClassNotFoundException, InvalidConfigurationException, VersionMismatchException {
-        try (ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-             ObjectInput in = new BukkitObjectInputStream(bis)) {
-            int version = in.readInt();
-            if (version != VERSION) {
-                throw new VersionMismatchException(version, VERSION, "The received message is of version " + version + " while this plugin expects version " + VERSION);
-            }
-            String sender = in.readUTF();
-            long id = in.readLong();
-            MessageType type = MessageType.valueOf(in.readUTF());
-            Object[] data = new Object[in.readInt()];
-            for (int i = 0; i < data.length; i++) {
-                data[i] = in.readObject();
-            }
-            return new Message(sender, id, type, data);
-        }
+    public Object read() {
+        return data.poll();
+    }
+
+    /**
+     * Set the version of the message format that this message was received in or should be sent with
+     * @param version The message version
+     */
+    void setVersion(int version) {
+        this.version = version;
+    }
+
+    void setTarget(String target) {
+        this.target = target;
+    }
+
+    void setSequence(long session, long sequence) {
+        this.session = session;
+        this.sequence = sequence;
+    }
+
+    @FunctionalInterface
+    interface BodyDecoder {
+        Object[] decode() throws IOException, ClassNotFoundException, InvalidConfigurationException;
     }
 
 }
@@ -0,0 +1,71 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.bukkit.configuration.InvalidConfigurationException;
+
+import java.io.IOException;
+
+/**
+ * Turns {@link Message}s into bytes and back. Each codec implements exactly one message version
+ * so that servers running different plugin versions can still talk to each other.
+ */
+public interface MessageCodec {
+
+    /**
+     * @return The message version that this codec reads and writes
+     */
+    int getVersion();
+
+    /**
+     * Generate a byte array out of a message
+     * @param message   The message to encode
+     * @return          The encoded message
+     * @throws IOException When the message could not be written
+     */
+    byte[] encode(Message message) throws IOException;
+
+    /**
+     * Get the message from a byte array generated by {@link #encode(Message)}. Only the header
+     * (sender, id, type and target) is read, the data gets decoded by {@link Message#decodeBody()}
+     * so that messages which aren't for us can be dropped without reading all of it.
+     * @param bytes The bytes
+     * @return      The Message object without its data
+     * @throws IOException                      When the header could not be read
+     * @throws IllegalArgumentException         When the message type is not supported
+     * @throws VersionMismatchException         If the received message is of a different version than this codec can accept
+     */
+    Message decodeHeader(byte[] bytes) throws IOException, IllegalArgumentException, VersionMismatchException;
+
+    /**
+     * Get the message from a byte array generated by {@link #encode(Message)} including all its data
+     * @param bytes The bytes
+     * @return      The Message object
+     * @throws IOException
+     * @throws IllegalArgumentException         When the message type is not supported
+     * @throws ClassNotFoundException
+     * @throws InvalidConfigurationException    If the data is invalid
+     * @throws VersionMismatchException         If the received message is of a different version than this codec can accept
+     */
+    default Message decode(byte[] bytes) throws IOException, IllegalArgumentException, ClassNotFoundException, InvalidConfigurationException, VersionMismatchException {
+        Message message = decodeHeader(bytes);
+        message.decodeBody();
+        return message;
+    }
+}
@@ -0,0 +1,163 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import de.minebench.syncinv.SyncInv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Decodes and handles received messages on its own threads so that neither the
+ * network threads nor the server's main thread have to do that work.
+ * Every sender is assigned to one lane with a single thread so that the messages
+ * of one server are handled in the order they were received.
+ * The lane queues are bounded: when one is full the receiving thread waits for
+ * space which slows down reading from the network (back-pressure). If there still
+ * is no space after a while the message is dropped.
+ */
+public class MessageDispatcher {
+    /**
+     * How long the receiving thread waits for space in a full lane before dropping the message
+     */
+    private static final long FULL_LANE_WAIT_MILLIS = 1000;
+
+    private final SyncInv plugin;
+    private final ThreadPoolExecutor[] lanes;
+    private final int laneCapacity;
+
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder waitedForSpace = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder handedToMainThread = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder decodeNanos = new LongAdder();
+    private final LongAdder decoded = new LongAdder();
+    private final AtomicInteger peakQueueSize = new AtomicInteger();
+
+    /**
+     * @param plugin        The plugin
+     * @param threads       The amount of lanes, each has one thread
+     * @param queueCapacity How many messages may wait for a thread in total before the caller has to wait
+     */
+    public MessageDispatcher(SyncInv plugin, int threads, int queueCapacity) {
+        this.plugin = plugin;
+        lanes = new ThreadPoolExecutor[Math.max(1, threads)];
+        laneCapacity = Math.max(1, queueCapacity / lanes.length);
+        ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat(plugin.getName() + " Message Dispatcher #%d").setDaemon(true).build();
+        RejectedExecutionHandler waitForSpace = (task, executor) -> {
+            if (executor.isShutdown()) {
+                plugin.logDebug("Dropping received message as the dispatcher is already shut down");
+                return;
+            }
+            waitedForSpace.increment();
+            try {
+                if (executor.getQueue().offer(task, FULL_LANE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            dropped.increment();
+            plugin.getLogger().log(Level.WARNING, "Dropping received message as the dispatcher is overloaded! Consider raising messaging.dispatch-queue-size.");
+        };
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(laneCapacity), threadFactory, waitForSpace);
+        }
+    }
+
+    /**
+     * Queue a task that handles a received message in the lane of its sender
+     * @param sender    The server that sent the message
+     * @param task      The task
+     */
+    public void dispatch(String sender, Runnable task) {
+        long queued = System.nanoTime();
+        dispatched.increment();
+        ThreadPoolExecutor lane = lanes[Math.floorMod(sender.hashCode(), lanes.length)];
+        lane.execute(() -> {
+            waitNanos.add(System.nanoTime() - queued);
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                plugin.getLogger().log(Level.SEVERE, "Error while handling a received message!", e);
+            }
+        });
+        peakQueueSize.accumulateAndGet(lane.getQueue().size(), Math::max);
+    }
+    /**
+     * Hand a handler that needs to access the server over to the main thread
+     * @param handler   The handler
+     */
+    public void runOnMainThread(Runnable handler) {
+        handedToMainThread.increment();
+        plugin.runSync(handler);
+    }
+
+    /**
+     * Record how long decoding a message took
+     * @param nanos The time in nanoseconds
+     */
+    public void recordDecode(long nanos) {
+        decoded.increment();
+        decodeNanos.add(nanos);
+    }
+
+    /**
+     * Stop accepting new messages, already queued ones still get handled
+     */
+    public void shutdown() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    /**
+     * @return Human readable lines describing the load of the dispatcher
+     */
+    public List<String> getStats() {
+        List<String> stats = new ArrayList<>();
+        long dispatched = this.dispatched.sum();
+        long decoded = this.decoded.sum();
+        int queued = 0;
+        int busy = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            queued += lane.getQueue().size();
+            busy += lane.getActiveCount();
+        }
+        stats.add("Dispatch queues: " + queued + "/" + laneCapacity * lanes.length + " (peak of one lane " + peakQueueSize.get() + "/" + laneCapacity + "), "
+                + busy + "/" + lanes.length + " lanes busy");
+        stats.add("Received messages: " + dispatched + ", waited for space in a full queue: " + waitedForSpace.sum()
+                + ", dropped: " + dropped.sum() + ", handed to the main thread: " + handedToMainThread.sum());
+        stats.add(String.format("Average queue wait: %.3fms, average decode time: %.3fms",
+                dispatched > 0 ? waitNanos.sum() / 1_000_000.0 / dispatched : 0,
+                decoded > 0 ? decodeNanos.sum() / 1_000_000.0 / decoded : 0));
+        return stats;
+    }
+}
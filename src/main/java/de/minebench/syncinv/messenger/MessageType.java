@@ -21,9 +21,11 @@ package de.minebench.syncinv.messenger;
 public enum MessageType {
     /**
      * Make the presence of this server known. If this is targeting everyone
-     * or a group it will get a targeted response of the same kind
+     * or a group it will get a targeted response of the same kind <br />
+     * 1. arg - optional, the host:port that the server accepts direct connections on, empty if it doesn't <br />
+     * 2. arg - optional, the id of the compression dictionary that the server has, 0 if it has none
      */
-    HELLO,
+    HELLO(0, ArgType.STRING, ArgType.INT),
 
     /**
      * Be polite and say bye so that others don't have to wait on you.
@@ -35,58 +37,182 @@ public enum MessageType {
      * 1. arg - the player's uuid
      * returns LAST_SEEN
      */
-    GET_LAST_SEEN(1),
+    GET_LAST_SEEN(ArgType.UUID),
 
     /**
      * Answers a GET_LAST_SEEN request with the time a player was last seen. <br />
      * 1. arg - the player's uuid as a string <br />
      * 2. arg - the timestamp as a long
      */
-    LAST_SEEN(2),
+    LAST_SEEN(ArgType.UUID, ArgType.LONG),
 
     /**
      * Get the data of a player <br />
      * 1. arg - the player's uuid
      * returns DATA
      */
-    GET_DATA(1),
+    GET_DATA(true, ArgType.UUID),
 
     /**
      * Answers a GET_DATA request with the player's PlayerData object. <br />
      * 1. arg - the PlayerData object
      */
-    DATA(1),
+    DATA(true, ArgType.PLAYER_DATA),
 
     /**
      * Tells us that a player is online. <br />
      * 1. arg - the player's uuid
      */
-    IS_ONLINE(1),
+    IS_ONLINE(ArgType.UUID),
 
     /**
      * The server failed to load the data of a player. <br />
      * 1. arg - the player's uuid
      */
-    CANT_GET_DATA(1),
+    CANT_GET_DATA(true, ArgType.UUID),
 
     /**
      * Send whenever a MapInitializeEvent is called to keep the latest id in sync. <br />
      * 1. arg - the id of the map created as a short
      */
-    MAP_CREATED(1);
+    MAP_CREATED(true, ArgType.INT),
 
+    /**
+     * Tells the group which version of a player's data a server has applied so
+     * that later transfers can be sent as deltas against it. <br />
+     * 1. arg - the player's uuid <br />
+     * 2. arg - the lastSeen of the applied data
+     */
+    DATA_ACK(ArgType.UUID, ArgType.LONG),
+
+    /**
+     * Get the time multiple players were last seen, sent instead of multiple
+     * GET_LAST_SEEN when many players join at the same time. <br />
+     * 1. arg - the players' uuids
+     * returns LAST_SEEN_BATCH
+     */
+    GET_LAST_SEEN_BATCH(ArgType.UUID_ARRAY),
+
+    /**
+     * Answers a GET_LAST_SEEN_BATCH request with the times the players were last seen. <br />
+     * 1. arg - the players' uuids <br />
+     * 2. arg - the timestamps in the same order as the uuids
+     */
+    LAST_SEEN_BATCH(ArgType.UUID_ARRAY, ArgType.LONG_ARRAY),
+
+    /**
+     * Tells the group which players a server has data of so that it
+     * doesn't get asked about players that it has never seen. <br />
+     * 1. arg - the epoch of the sender's run, higher after a restart <br />
+     * 2. arg - the sequence number of the last KNOWN_PLAYERS_ADDED that the filter contains <br />
+     * 3. arg - the serialized bloom filter of the players' uuids
+     */
+    KNOWN_PLAYERS(ArgType.LONG, ArgType.LONG, ArgType.BYTES),
+
+    /**
+     * Tells the group about players that a server has data of now
+     * which weren't in the last KNOWN_PLAYERS filter it sent. <br />
+     * 1. arg - the epoch of the sender's run <br />
+     * 2. arg - the sequence number, a gap means that players were missed <br />
+     * 3. arg - the players' uuids
+     */
+    KNOWN_PLAYERS_ADDED(ArgType.LONG, ArgType.LONG, ArgType.UUID_ARRAY),
+
+    /**
+     * Periodically tells the group about the last seen changes on a server since its
+     * previous LAST_SEEN_GOSSIP message. Sent even without changes. <br />
+     * 1. arg - the sequence number, a gap means that changes were missed <br />
+     * 2. arg - the time until which all changes of the server were sent <br />
+     * 3. arg - the players' uuids <br />
+     * 4. arg - the timestamps in the same order as the uuids, negative if the player joined at that time and is still online
+     */
+    LAST_SEEN_GOSSIP(ArgType.LONG, ArgType.LONG, ArgType.UUID_ARRAY, ArgType.LONG_ARRAY),
+
+    /**
+     * Get a part of the hash tree of a server's last seen times to find the players
+     * whose data differs after a server joined the group again. <br />
+     * 1. arg - the level: 0 for all nodes, 1 for the leaves of nodes, 2 for the entries of leaves <br />
+     * 2. arg - the requested nodes or leaves, empty on level 0
+     * returns DIGEST or DIGEST_ENTRIES
+     */
+    GET_DIGEST(ArgType.INT, ArgType.LONG_ARRAY),
+
+    /**
+     * Answers a GET_DIGEST request on level 0 or 1. <br />
+     * 1. arg - the level <br />
+     * 2. arg - the positions of the hashes in the tree <br />
+     * 3. arg - the hashes in the same order as the positions
+     */
+    DIGEST(ArgType.INT, ArgType.LONG_ARRAY, ArgType.LONG_ARRAY),
+
+    /**
+     * Answers a GET_DIGEST request on level 2 with all players in the requested leaves. <br />
+     * 1. arg - the players' uuids <br />
+     * 2. arg - the timestamps in the same order as the uuids
+     */
+    DIGEST_ENTRIES(ArgType.UUID_ARRAY, ArgType.LONG_ARRAY),
+
+    /**
+     * Tells the group that a player's session started on a server without the
+     * other servers being asked so that they give up their session lease. <br />
+     * 1. arg - the player's uuid
+     */
+    LEASE_CLAIMED(ArgType.UUID),
+
+    /**
+     * Get the data of a player like GET_DATA but without taking over the player's
+     * session, e.g. when a delta can't be applied or newer data is pulled. <br />
+     * 1. arg - the player's uuid
+     * returns DATA
+     */
+    RESEND_DATA(true, ArgType.UUID);
+
+    private final boolean mainThread;
     private final int argCount;
+    private final ArgType[] schema;
 
-    MessageType() {
-        this(0);
+    MessageType(ArgType... schema) {
+        this(false, schema);
     }
 
-    MessageType(int argCount) {
-        this.argCount = argCount;
+    MessageType(boolean mainThread, ArgType... schema) {
+        this(mainThread, schema.length, schema);
     }
 
+    /**
+     * @param requiredArgs  How many of the arguments are required, the remaining ones are optional
+     * @param schema        The types of all arguments
+     */
+    MessageType(int requiredArgs, ArgType... schema) {
+        this(false, requiredArgs, schema);
+    }
 
+    MessageType(boolean mainThread, int requiredArgs, ArgType... schema) {
+        this.mainThread = mainThread;
+        this.argCount = requiredArgs;
+        this.schema = schema;
+    }
+
+    /**
+     * Whether the handler of this type accesses the server and therefore has to run on the main thread
+     * @return true if it has to run on the main thread; false if it can run on a dispatcher thread
+     */
+    public boolean isHandledOnMainThread() {
+        return mainThread;
+    }
+
+    /**
+     * @return The amount of arguments that a message of this type requires
+     */
     public int getArgCount() {
         return argCount;
     }
+
+    /**
+     * Get the types of the arguments in the order they are sent in the binary format
+     * @return The argument types
+     */
+    public ArgType[] getSchema() {
+        return schema;
+    }
 }
@@ -0,0 +1,129 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Collects queries that are started shortly after each other so that they can be sent in one message.
+ * A batch is sent when it is full or when the first query in it waited for the whole window.
+ */
+class QueryBatcher {
+    private final int maxBatchSize;
+    private final long window;
+    private final Consumer<List<PlayerDataQuery>> sender;
+    private final ScheduledExecutorService scheduler;
+
+    private List<PlayerDataQuery> pending = new ArrayList<>();
+    private ScheduledFuture<?> scheduledFlush = null;
+
+    private final LongAdder batchedQueries = new LongAdder();
+    private final LongAdder sentBatches = new LongAdder();
+
+    /**
+     * @param name          The name of the thread that sends the batches
+     * @param maxBatchSize  The maximum amount of queries in one batch
+     * @param window        How many milliseconds a query may wait for other queries
+     * @param sender        Sends a batch, called on the scheduler thread or the thread that filled the batch
+     */
+    QueryBatcher(String name, int maxBatchSize, long window, Consumer<List<PlayerDataQuery>> sender) {
+        this.maxBatchSize = maxBatchSize;
+        this.window = window;
+        this.sender = sender;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat(name).setDaemon(true).build());
+    }
+
+    /**
+     * Add a query to the next batch
+     * @param query The query
+     */
+    void add(PlayerDataQuery query) {
+        List<PlayerDataQuery> batch = null;
+        synchronized (this) {
+            pending.add(query);
+            if (pending.size() >= maxBatchSize) {
+                batch = takePending();
+            } else if (scheduledFlush == null) {
+                scheduledFlush = scheduler.schedule(this::flush, window, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (batch != null) {
+            send(batch);
+        }
+    }
+
+    /**
+     * Send the queries that are currently waiting
+     */
+    void flush() {
+        List<PlayerDataQuery> batch;
+        synchronized (this) {
+            batch = takePending();
+        }
+        if (!batch.isEmpty()) {
+            send(batch);
+        }
+    }
+
+    private List<PlayerDataQuery> takePending() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        List<PlayerDataQuery> batch = pending;
+        pending = new ArrayList<>();
+        return batch;
+    }
+
+    private void send(List<PlayerDataQuery> batch) {
+        batchedQueries.add(batch.size());
+        sentBatches.increment();
+        sender.accept(batch);
+    }
+
+    /**
+     * Stop sending batches, waiting queries are dropped
+     */
+    void shutdown() {
+        synchronized (this) {
+            takePending();
+        }
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @return A human readable line describing how many queries were batched
+     */
+    String getStats() {
+        long queries = batchedQueries.sum();
+        long batches = sentBatches.sum();
+        return String.format("Batched last seen queries: %d in %d messages (average %.1f per message)",
+                queries, batches, batches > 0 ? (double) queries / batches : 0);
+    }
+}
@@ -0,0 +1,187 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.minebench.syncinv.SyncInv;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisException;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.codec.StringCodec;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Stores the time every server of a group has last seen a player in one Redis hash per player
+ * so that a joining server can find the server with the newest data with a single read.
+ * <p>
+ * Each server also keeps a set of the players that it marked as online so that it can
+ * replace these marks with the real times when it starts again after a crash.
+ */
+class RedisLastSeenRegistry {
+    private static final String KEY_PREFIX = "syncinv:lastseen:";
+    private static final String ONLINE_KEY_PREFIX = "syncinv:lastseen-online:";
+
+    /**
+     * Sets the time in the hash and its expiry and keeps the set of online players up to date in one step<br>
+     * KEYS: the player's hash, the server's set of online players<br>
+     * ARGV: the server, the time, the expiry in seconds or 0, 1 if online or 0, the player's uuid
+     */
+    private static final String SET_SCRIPT = "redis.call('HSET', KEYS[1], ARGV[1], ARGV[2])\n"
+            + "if ARGV[3] ~= '0' then redis.call('EXPIRE', KEYS[1], ARGV[3]) end\n"
+            + "if ARGV[4] == '1' then redis.call('SADD', KEYS[2], ARGV[5]) else redis.call('SREM', KEYS[2], ARGV[5]) end\n"
+            + "return 1";
+
+    private final SyncInv plugin;
+    private final RedisClient client;
+    private final String keyPrefix;
+    private final String onlineKeyPrefix;
+    private final long expireSeconds;
+    /**
+     * How many milliseconds to wait for a lookup before falling back to asking the servers
+     */
+    private final long timeout;
+    private StatefulRedisConnection<String, String> connection;
+
+    /**
+     * @param plugin        The plugin
+     * @param client        The client to connect with
+     * @param serverGroup   The group whose servers share the registry
+     */
+    RedisLastSeenRegistry(SyncInv plugin, RedisClient client, String serverGroup) {
+        this.plugin = plugin;
+        this.client = client;
+        this.keyPrefix = KEY_PREFIX + serverGroup + ":";
+        this.onlineKeyPrefix = ONLINE_KEY_PREFIX + serverGroup + ":";
+        this.expireSeconds = TimeUnit.DAYS.toSeconds(plugin.getConfig().getLong("redis.last-seen-registry.expire-days", 90));
+        this.timeout = plugin.getConfig().getLong("redis.last-seen-registry.timeout", 500);
+    }
+
+    /**
+     * Get the times that the servers have last seen a player
+     * @param playerId  The UUID of the player
+     * @return          A future completed with the times by server name, empty if no server recorded the player
+     */
+    CompletableFuture<Map<String, Long>> get(UUID playerId) {
+        RedisFuture<Map<String, String>> future;
+        try {
+            future = getConnection().async().hgetall(keyPrefix + playerId);
+        } catch (RedisException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return future.toCompletableFuture()
+                .orTimeout(timeout, TimeUnit.MILLISECONDS)
+                .thenApply(entries -> {
+                    Map<String, Long> lastSeen = new HashMap<>();
+                    for (Map.Entry<String, String> entry : entries.entrySet()) {
+                        try {
+                            lastSeen.put(entry.getKey(), Long.parseLong(entry.getValue()));
+                        } catch (NumberFormatException e) {
+                            plugin.logDebug("Invalid last seen " + entry.getValue() + " of " + playerId + " on " + entry.getKey() + " in the registry");
+                        }
+                    }
+                    return lastSeen;
+                });
+    }
+
+    /**
+     * Record the time a server has last seen a player
+     * @param server    The name of the server
+     * @param playerId  The UUID of the player
+     * @param lastSeen  The timestamp or {@link ServerMessenger#ONLINE} if the player is online on the server
+     */
+    void set(String server, UUID playerId, long lastSeen) {
+        RedisAsyncCommands<String, String> async;
+        try {
+            async = getConnection().async();
+        } catch (RedisException e) {
+            plugin.getLogger().log(Level.WARNING, "Unable to record last seen of " + playerId + " in the registry: " + e.getMessage());
+            return;
+        }
+        // A script so that the hash can't be left without an expiry and the online set matches the hash
+        async.<Long>eval(SET_SCRIPT, ScriptOutputType.INTEGER,
+                new String[]{keyPrefix + playerId, onlineKeyPrefix + server},
+                server, String.valueOf(lastSeen), String.valueOf(Math.max(expireSeconds, 0)),
+                lastSeen == ServerMessenger.ONLINE ? "1" : "0", playerId.toString()
+        ).exceptionally(e -> {
+            plugin.getLogger().log(Level.WARNING, "Unable to record last seen of " + playerId + " in the registry: " + e.getMessage());
+            return null;
+        });
+    }
+
+    /**
+     * Replace the online marks of players that a server didn't remove because it crashed
+     * with the times that the server has last seen them. Should be called when the server starts.
+     * @param server    The name of the server
+     */
+    void clearOnline(String server) {
+        RedisFuture<Set<String>> future;
+        try {
+            future = getConnection().async().smembers(onlineKeyPrefix + server);
+        } catch (RedisException e) {
+            plugin.getLogger().log(Level.WARNING, "Unable to clear the online players of " + server + " in the registry: " + e.getMessage());
+            return;
+        }
+        future.thenAccept(playerIds -> {
+            int cleared = 0;
+            for (String id : playerIds) {
+                UUID playerId;
+                try {
+                    playerId = UUID.fromString(id);
+                } catch (IllegalArgumentException e) {
+                    plugin.logDebug("Invalid player " + id + " in the online players of " + server + " in the registry");
+                    continue;
+                }
+                if (plugin.getLastSeenIndex().isOnline(playerId)) {
+                    // Joined again in the meantime
+                    continue;
+                }
+                set(server, playerId, plugin.getLastSeenIndex().get(playerId));
+                cleared++;
+            }
+            if (cleared > 0) {
+                plugin.getLogger().log(Level.INFO, "Replaced " + cleared + " online marks that were left in the registry with the last seen times");
+            }
+        }).exceptionally(e -> {
+            plugin.getLogger().log(Level.WARNING, "Unable to clear the online players of " + server + " in the registry: " + e.getMessage());
+            return null;
+        });
+    }
+
+    private synchronized StatefulRedisConnection<String, String> getConnection() {
+        if (connection == null || !connection.isOpen()) {
+            connection = client.connect(StringCodec.UTF8);
+        }
+        return connection;
+    }
+
+    void close() {
+        if (connection != null) {
+            connection.close();
+        }
+    }
+}
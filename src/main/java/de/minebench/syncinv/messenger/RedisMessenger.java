@@ -1,20 +1,30 @@
 package de.minebench.syncinv.messenger;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import de.minebench.syncinv.SyncInv;
 import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisFuture;
 import io.lettuce.core.RedisURI;
 import io.lettuce.core.api.StatefulRedisConnection;
-import io.lettuce.core.codec.ByteArrayCodec;
-import io.lettuce.core.codec.RedisCodec;
-import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.api.async.RedisAsyncCommands;
 import io.lettuce.core.pubsub.RedisPubSubListener;
 import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
 import io.lettuce.core.pubsub.api.async.RedisPubSubAsyncCommands;
-import org.bukkit.configuration.InvalidConfigurationException;
 
-import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 
 /*
@@ -37,29 +47,55 @@ import java.util.logging.Level;
 
 public class RedisMessenger extends ServerMessenger {
     private final RedisClient client;
+
+    /**
+     * The registry of the players' last seen times, null if disabled
+     */
+    private final RedisLastSeenRegistry registry;
     private StatefulRedisConnection<String, byte[]> connection;
     private static final String CHANNEL_PREFIX = "syncinv:";
-    private static final String VERSION_PREFIX = Message.VERSION + ":";
+
+    /**
+     * How long to wait for sync publishes
+     */
+    private final Duration timeout;
+
+    /**
+     * The maximum amount of messages to publish in one batch
+     */
+    private final int maxBatchSize;
+
+    /**
+     * The maximum time in milliseconds that a message waits for more messages to be batched with
+     */
+    private final long maxLinger;
+
+    /**
+     * Channels and encoded messages that are waiting to be published in the next batch
+     */
+    private final List<Map.Entry<String, byte[]>> pending = new ArrayList<>();
+    private final ScheduledExecutorService flushScheduler;
+    private ScheduledFuture<?> scheduledFlush = null;
+
+    private final LongAdder publishedMessages = new LongAdder();
+    private final LongAdder publishedBatches = new LongAdder();
 
     public RedisMessenger(SyncInv plugin) {
         super(plugin);
-        RedisURI uri = new RedisURI();
-        if (plugin.getConfig().isSet("redis.uri")) {
-            uri = RedisURI.create(plugin.getConfig().getString("redis.uri"));
-        }
-        if (plugin.getConfig().isSet("redis.host")) {
-            uri.setHost(plugin.getConfig().getString("redis.host"));
-        }
-        if (plugin.getConfig().isSet("redis.port")) {
-            uri.setPort(plugin.getConfig().getInt("redis.port"));
-        }
-        if (plugin.getConfig().isSet("redis.password")) {
-            uri.setPassword(plugin.getConfig().getString("redis.password"));
-        }
-        if (plugin.getConfig().isSet("redis.timeout")) {
-            uri.setTimeout(Duration.ofSeconds(plugin.getConfig().getLong("redis.timeout")));
-        }
+        RedisURI uri = createUri(plugin);
+        timeout = uri.getTimeout();
         client = RedisClient.create(uri);
+        if (plugin.getConfig().getBoolean("redis.last-seen-registry.enabled", false)) {
+            registry = new RedisLastSeenRegistry(plugin, client, getServerGroup());
+            registry.clearOnline(getServerName());
+        } else {
+            registry = null;
+        }
+
+        maxBatchSize = plugin.getConfig().getInt("messaging.batch-size", 64);
+        maxLinger = plugin.getConfig().getLong("messaging.batch-linger", 5);
+        flushScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat(plugin.getName() + " Redis Publisher").setDaemon(true).build());
 
         StatefulRedisPubSubConnection<String, byte[]> connection = client.connectPubSub(new StringByteArrayCodec());
         connection.addListener(new RedisPubSubListener<String, byte[]>() {
@@ -69,22 +105,22 @@ public class RedisMessenger extends ServerMessenger {
                     plugin.getLogger().log(Level.WARNING, "Received a message on " + channel + " even 'though it doesn't belong to our plugin? ");
                     return;
                 }
-                if (!channel.startsWith(CHANNEL_PREFIX + VERSION_PREFIX)) {
-                    plugin.getLogger().log(Level.WARNING, "Received a message on " + channel + " that doesn't match the accepted version " + Message.VERSION + "! ");
+                int versionEnd = channel.indexOf(':', CHANNEL_PREFIX.length());
+                MessageCodec codec = null;
+                if (versionEnd > 0) {
+                    try {
+                        codec = getCodec(Integer.parseInt(channel.substring(CHANNEL_PREFIX.length(), versionEnd)));
+                    } catch (NumberFormatException ignored) {}
+                }
+                if (codec == null) {
+                    plugin.getLogger().log(Level.WARNING, "Received a message on " + channel + " that doesn't match the accepted versions " + getSupportedVersions() + "! ");
                     return;
                 }
                 if (bytes.length == 0) {
                     plugin.getLogger().log(Level.WARNING, "Received a message with 0 bytes on " + channel + " redis channel? ");
                     return;
                 }
-                try {
-                    Message message = Message.fromByteArray(bytes);
-                    plugin.runSync(() -> onMessage(channel.substring(CHANNEL_PREFIX.length() + VERSION_PREFIX.length()), message));
-                } catch (IOException | ClassNotFoundException | IllegalArgumentException | InvalidConfigurationException e) {
-                    plugin.getLogger().log(Level.SEVERE, "Error while decoding message on " + channel + " redis channel! ", e);
-                } catch (VersionMismatchException e) {
-                    plugin.getLogger().log(Level.WARNING, e.getMessage() + ". Ignoring message!");
-                }
+                onMessage(channel.substring(versionEnd + 1), codec, bytes);
             }
 
             @Override
@@ -104,51 +140,157 @@ public class RedisMessenger extends ServerMessenger {
         });
 
         RedisPubSubAsyncCommands<String, byte[]> async = connection.async();
-        for (String channel : getChannels()) {
-            async.subscribe(CHANNEL_PREFIX + VERSION_PREFIX + channel);
+        for (int version : getSupportedVersions()) {
+            for (String channel : getChannels()) {
+                async.subscribe(CHANNEL_PREFIX + version + ":" + channel);
+            }
         }
     }
 
+    /**
+     * Create the URI of the redis server from the config
+     * @param plugin    The plugin
+     * @return          The URI
+     */
+    static RedisURI createUri(SyncInv plugin) {
+        RedisURI uri = new RedisURI();
+        if (plugin.getConfig().isSet("redis.uri")) {
+            uri = RedisURI.create(plugin.getConfig().getString("redis.uri"));
+        }
+        if (plugin.getConfig().isSet("redis.host")) {
+            uri.setHost(plugin.getConfig().getString("redis.host"));
+        }
+        if (plugin.getConfig().isSet("redis.port")) {
+            uri.setPort(plugin.getConfig().getInt("redis.port"));
+        }
+        if (plugin.getConfig().isSet("redis.password")) {
+            uri.setPassword(plugin.getConfig().getString("redis.password"));
+        }
+        if (plugin.getConfig().isSet("redis.timeout")) {
+            uri.setTimeout(Duration.ofSeconds(plugin.getConfig().getLong("redis.timeout")));
+        }
+        return uri;
+    }
+
     @Override
     protected void close() {
+        flush();
+        flushScheduler.shutdown();
+        if (registry != null) {
+            registry.close();
+        }
         client.shutdown();
     }
 
     @Override
-    protected void sendMessageImplementation(String target, Message message, boolean sync) {
-        if (connection == null || !connection.isOpen()) {
-            connection = client.connect(new StringByteArrayCodec());
+    protected CompletableFuture<Map<String, Long>> getRegisteredLastSeen(UUID playerId) {
+        return registry != null ? registry.get(playerId) : null;
+    }
+
+    @Override
+    protected void registerLastSeen(UUID playerId, long lastSeen) {
+        if (registry != null) {
+            registry.set(getServerName(), playerId, lastSeen);
         }
+    }
+
+    @Override
+    public List<String> getStats() {
+        List<String> stats = super.getStats();
+        long messages = publishedMessages.sum();
+        long batches = publishedBatches.sum();
+        stats.add(String.format("Published messages: %d in %d batches (average %.1f per batch)",
+                messages, batches, batches > 0 ? (double) messages / batches : 0));
+        return stats;
+    }
+
+    @Override
+    protected void sendMessageImplementation(String target, int version, byte[] bytes, boolean sync) {
+        String channel = CHANNEL_PREFIX + version + ":" + target;
         if (sync) {
-            connection.sync().publish(CHANNEL_PREFIX + VERSION_PREFIX + target, message.toByteArray());
+            publishSync(channel, bytes);
+        } else if (maxBatchSize <= 1 || maxLinger <= 0) {
+            publish(channel, bytes);
         } else {
-            connection.async().publish(CHANNEL_PREFIX + VERSION_PREFIX + target, message.toByteArray());
+            queue(channel, bytes);
         }
     }
 
-    private class StringByteArrayCodec implements RedisCodec<String, byte[]> {
-
-        private final StringCodec stringCodec = new StringCodec();
-        private final ByteArrayCodec byteArrayCodec = new ByteArrayCodec();
-
-        @Override
-        public String decodeKey(ByteBuffer bytes) {
-            return stringCodec.decodeKey(bytes);
+    /**
+     * Add a message to the next batch. The batch gets published when it is full or the linger time is over.
+     */
+    private synchronized void queue(String channel, byte[] bytes) {
+        pending.add(new AbstractMap.SimpleImmutableEntry<>(channel, bytes));
+        if (pending.size() >= maxBatchSize) {
+            flush();
+        } else if (scheduledFlush == null) {
+            scheduledFlush = flushScheduler.schedule(this::flush, maxLinger, TimeUnit.MILLISECONDS);
         }
+    }
 
-        @Override
-        public byte[] decodeValue(ByteBuffer bytes) {
-            return byteArrayCodec.decodeValue(bytes);
+    /**
+     * Publish all queued messages in one pipelined write
+     */
+    private synchronized void flush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
         }
+        if (pending.isEmpty()) {
+            return;
+        }
+        StatefulRedisConnection<String, byte[]> connection = getConnection();
+        RedisAsyncCommands<String, byte[]> async = connection.async();
+        for (Map.Entry<String, byte[]> entry : pending) {
+            async.publish(entry.getKey(), entry.getValue());
+        }
+        connection.flushCommands();
+        publishedMessages.add(pending.size());
+        publishedBatches.increment();
+        pending.clear();
+    }
+
+    /**
+     * Publish a message directly without waiting for other messages
+     */
+    private synchronized void publish(String channel, byte[] bytes) {
+        flush();
+        StatefulRedisConnection<String, byte[]> connection = getConnection();
+        connection.async().publish(channel, bytes);
+        connection.flushCommands();
+        publishedMessages.increment();
+        publishedBatches.increment();
+    }
 
-        @Override
-        public ByteBuffer encodeKey(String key) {
-            return stringCodec.encodeKey(key);
+    /**
+     * Publish a message and wait until it was sent. Queued messages are published before it to keep the order.
+     */
+    private synchronized void publishSync(String channel, byte[] bytes) {
+        flush();
+        StatefulRedisConnection<String, byte[]> connection = getConnection();
+        RedisFuture<Long> future = connection.async().publish(channel, bytes);
+        connection.flushCommands();
+        publishedMessages.increment();
+        publishedBatches.increment();
+        try {
+            future.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error while publishing message on " + channel + "! ", e);
         }
+    }
 
-        @Override
-        public ByteBuffer encodeValue(byte[] value) {
-            return byteArrayCodec.encodeValue(value);
+    /**
+     * Get the connection used for publishing. Commands are only written when
+     * {@link StatefulRedisConnection#flushCommands()} is called so that they can be batched.
+     * @return The open connection
+     */
+    private synchronized StatefulRedisConnection<String, byte[]> getConnection() {
+        if (connection == null || !connection.isOpen()) {
+            connection = client.connect(new StringByteArrayCodec());
+            connection.setAutoFlushCommands(false);
         }
+        return connection;
     }
 }
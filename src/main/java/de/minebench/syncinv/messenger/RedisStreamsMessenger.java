@@ -0,0 +1,315 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.minebench.syncinv.SyncInv;
+import io.lettuce.core.Consumer;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.RedisException;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XAddArgs;
+import io.lettuce.core.XGroupCreateArgs;
+import io.lettuce.core.XReadArgs;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Messenger that uses Redis streams instead of pub/sub. Every server reads the streams of its
+ * channels with its own consumer group so messages that were sent while it was disconnected
+ * are still delivered once it is back. Streams are trimmed to an approximate maximum length.
+ */
+public class RedisStreamsMessenger extends ServerMessenger {
+    private static final String STREAM_PREFIX = "syncinv:stream:";
+    private static final String DATA_FIELD = "data";
+
+    private final RedisClient client;
+
+    /**
+     * The registry of the players' last seen times, null if disabled
+     */
+    private final RedisLastSeenRegistry registry;
+    private StatefulRedisConnection<String, byte[]> connection;
+
+    /**
+     * The consumer group and consumer of this server
+     */
+    private final Consumer<String> consumer;
+
+    private final XAddArgs addArgs;
+    private final XReadArgs readArgs;
+
+    /**
+     * Offsets to read the messages that were delivered to us before but never acknowledged
+     */
+    private final XReadArgs.StreamOffset<String>[] pendingOffsets;
+
+    /**
+     * Offsets to read new messages
+     */
+    private final XReadArgs.StreamOffset<String>[] newOffsets;
+
+    /**
+     * Messages older than this according to the Redis server's clock are acknowledged without handling them
+     */
+    private final long maxAge;
+
+    private final Thread readerThread;
+    private volatile boolean running = true;
+
+    private final LongAdder readMessages = new LongAdder();
+    private final LongAdder staleMessages = new LongAdder();
+    private final LongAdder recoveredMessages = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    public RedisStreamsMessenger(SyncInv plugin) {
+        super(plugin);
+        RedisURI uri = RedisMessenger.createUri(plugin);
+        client = RedisClient.create(uri);
+        if (plugin.getConfig().getBoolean("redis.last-seen-registry.enabled", false)) {
+            registry = new RedisLastSeenRegistry(plugin, client, getServerGroup());
+            registry.clearOnline(getServerName());
+        } else {
+            registry = null;
+        }
+
+        consumer = Consumer.from(getServerName(), getServerName());
+        addArgs = new XAddArgs().maxlen(plugin.getConfig().getLong("redis.streams.max-length", 10000)).approximateTrimming();
+        long blockTime = plugin.getConfig().getLong("redis.streams.block-time", 1000);
+        if (blockTime >= uri.getTimeout().toMillis()) {
+            blockTime = uri.getTimeout().toMillis() / 2;
+        }
+        readArgs = XReadArgs.Builder.count(plugin.getConfig().getLong("redis.streams.read-count", 100))
+                .block(Duration.ofMillis(blockTime));
+        maxAge = TimeUnit.SECONDS.toMillis(plugin.getConfig().getLong("redis.streams.max-age", 60));
+
+        List<String> keys = new ArrayList<>();
+        for (int version : getSupportedVersions()) {
+            for (String channel : getChannels()) {
+                keys.add(STREAM_PREFIX + version + ":" + channel);
+            }
+        }
+        pendingOffsets = new XReadArgs.StreamOffset[keys.size()];
+        newOffsets = new XReadArgs.StreamOffset[keys.size()];
+        RedisCommands<String, byte[]> commands = getConnection().sync();
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            createGroup(commands, key);
+            pendingOffsets[i] = XReadArgs.StreamOffset.from(key, "0");
+            newOffsets[i] = XReadArgs.StreamOffset.lastConsumed(key);
+        }
+
+        readerThread = new Thread(this::read, plugin.getName() + " Redis Stream Reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Create the consumer group of this server for a stream if it doesn't exist yet.
+     * New groups only get messages that are added after their creation.
+     */
+    private void createGroup(RedisCommands<String, byte[]> commands, String key) {
+        try {
+            commands.xgroupCreate(XReadArgs.StreamOffset.latest(key), consumer.getGroup(), XGroupCreateArgs.Builder.mkstream());
+        } catch (RedisCommandExecutionException e) {
+            if (e.getMessage() == null || !e.getMessage().startsWith("BUSYGROUP")) {
+                throw e;
+            }
+            // Group already exists, continue where we stopped
+        }
+    }
+
+    /**
+     * Read the streams until the messenger gets closed. First the messages that were delivered
+     * but not acknowledged before (e.g. when the server crashed) and then new ones.
+     */
+    private void read() {
+        StatefulRedisConnection<String, byte[]> readConnection = client.connect(new StringByteArrayCodec());
+        RedisCommands<String, byte[]> commands = readConnection.sync();
+        boolean readPending = true;
+        while (running) {
+            try {
+                List<StreamMessage<String, byte[]>> messages = readPending
+                        ? commands.xreadgroup(consumer, pendingOffsets)
+                        : commands.xreadgroup(consumer, readArgs, newOffsets);
+                if (readPending) {
+                    if (messages.isEmpty()) {
+                        readPending = false;
+                        continue;
+                    }
+                    recoveredMessages.add(messages.size());
+                }
+                handle(commands, messages);
+            } catch (RedisException e) {
+                if (!running) {
+                    break;
+                }
+                plugin.getLogger().log(Level.WARNING, "Error while reading Redis streams, retrying in a second. " + e.getMessage());
+                // Messages that were read right before the error might not have been acknowledged
+                readPending = true;
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException interrupted) {
+                    break;
+                }
+            }
+        }
+        readConnection.closeAsync();
+    }
+
+    /**
+     * Pass read messages to the dispatcher and acknowledge them
+     */
+    private void handle(RedisCommands<String, byte[]> commands, List<StreamMessage<String, byte[]>> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        Map<String, List<String>> handled = new LinkedHashMap<>();
+        // The ids are generated with the Redis server's clock which might differ from ours
+        long now = getServerTime(commands);
+        for (StreamMessage<String, byte[]> streamMessage : messages) {
+            readMessages.increment();
+            handled.computeIfAbsent(streamMessage.getStream(), k -> new ArrayList<>()).add(streamMessage.getId());
+
+            String stream = streamMessage.getStream();
+            int versionEnd = stream.indexOf(':', STREAM_PREFIX.length());
+            MessageCodec codec = null;
+            if (versionEnd > 0) {
+                try {
+                    codec = getCodec(Integer.parseInt(stream.substring(STREAM_PREFIX.length(), versionEnd)));
+                } catch (NumberFormatException ignored) {}
+            }
+            if (codec == null) {
+                plugin.getLogger().log(Level.WARNING, "Received a message on " + stream + " that doesn't match the accepted versions " + getSupportedVersions() + "! ");
+                continue;
+            }
+            // The body of pending messages is missing if they were trimmed in the meantime
+            byte[] bytes = streamMessage.getBody() != null ? streamMessage.getBody().get(DATA_FIELD) : null;
+            if (bytes == null || bytes.length == 0) {
+                plugin.getLogger().log(Level.WARNING, "Received a message without data on " + stream + " redis stream? ");
+                continue;
+            }
+            if (now - getTimestamp(streamMessage.getId()) > maxAge) {
+                // Too old to still be relevant, e.g. queries that timed out long ago
+                staleMessages.increment();
+                continue;
+            }
+            onMessage(stream.substring(versionEnd + 1), codec, bytes);
+        }
+        for (Map.Entry<String, List<String>> entry : handled.entrySet()) {
+            commands.xack(entry.getKey(), consumer.getGroup(), entry.getValue().toArray(new String[0]));
+        }
+    }
+
+    /**
+     * Get the current time of the Redis server
+     * @param commands  The commands of the connection to ask
+     * @return          The time in milliseconds
+     */
+    private static long getServerTime(RedisCommands<String, byte[]> commands) {
+        List<byte[]> time = commands.time();
+        long seconds = Long.parseLong(new String(time.get(0), StandardCharsets.US_ASCII));
+        long micros = Long.parseLong(new String(time.get(1), StandardCharsets.US_ASCII));
+        return seconds * 1000 + micros / 1000;
+    }
+
+    /**
+     * Get the time a stream message was added from its id
+     * @param id    The id of the message in the format millis-sequence
+     * @return      The time in milliseconds
+     */
+    private static long getTimestamp(String id) {
+        int dash = id.indexOf('-');
+        try {
+            return Long.parseLong(dash > 0 ? id.substring(0, dash) : id);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    protected void close() {
+        running = false;
+        readerThread.interrupt();
+        if (registry != null) {
+            registry.close();
+        }
+        client.shutdown();
+    }
+
+    @Override
+    protected CompletableFuture<Map<String, Long>> getRegisteredLastSeen(UUID playerId) {
+        return registry != null ? registry.get(playerId) : null;
+    }
+
+    @Override
+    protected void registerLastSeen(UUID playerId, long lastSeen) {
+        if (registry != null) {
+            registry.set(getServerName(), playerId, lastSeen);
+        }
+    }
+
+    @Override
+    public List<String> getStats() {
+        List<String> stats = super.getStats();
+        stats.add("Read stream messages: " + readMessages.sum() + ", recovered unacknowledged: " + recoveredMessages.sum()
+                + ", skipped as too old: " + staleMessages.sum());
+        return stats;
+    }
+
+    @Override
+    protected void sendMessageImplementation(String target, int version, byte[] bytes, boolean sync) {
+        String key = STREAM_PREFIX + version + ":" + target;
+        Map<String, byte[]> body = Collections.singletonMap(DATA_FIELD, bytes);
+        if (sync) {
+            try {
+                getConnection().sync().xadd(key, addArgs, body);
+            } catch (RedisException e) {
+                plugin.getLogger().log(Level.SEVERE, "Error while adding message to " + key + "! ", e);
+            }
+        } else {
+            getConnection().async().xadd(key, addArgs, body);
+        }
+    }
+
+    /**
+     * Get the connection used for sending, messages can be sent from multiple threads
+     * @return The open connection
+     */
+    private synchronized StatefulRedisConnection<String, byte[]> getConnection() {
+        if (connection == null || !connection.isOpen()) {
+            connection = client.connect(new StringByteArrayCodec());
+        }
+        return connection;
+    }
+}
@@ -0,0 +1,65 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Remembers the last 64 sequence numbers received from a server to detect messages that were delivered twice
+ */
+class SequenceWindow {
+    private static final int SIZE = 64;
+
+    private long session;
+    private long highest;
+    /**
+     * Bit i is set when the sequence number highest - i was seen
+     */
+    private long seen = 0;
+
+    /**
+     * Check whether a message wasn't seen before and remember it
+     * @param session   The session of the sender
+     * @param sequence  The sequence number of the message
+     * @return          false if it was already seen; true otherwise, also when it is too old to tell
+     */
+    synchronized boolean accept(long session, long sequence) {
+        if (seen == 0 || session != this.session) {
+            // First message or the sender restarted
+            this.session = session;
+            highest = sequence;
+            seen = 1;
+            return true;
+        }
+        if (sequence > highest) {
+            long shift = sequence - highest;
+            seen = shift >= SIZE ? 1 : seen << shift | 1;
+            highest = sequence;
+            return true;
+        }
+        long offset = highest - sequence;
+        if (offset >= SIZE) {
+            return true;
+        }
+        long bit = 1L << offset;
+        if ((seen & bit) != 0) {
+            return false;
+        }
+        seen |= bit;
+        return true;
+    }
+}
@@ -0,0 +1,97 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.bukkit.util.io.BukkitObjectInputStream;
+import org.bukkit.util.io.BukkitObjectOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * The old message format which uses Java serialization for all the data.
+ * Only kept to be able to talk to servers running older plugin versions.
+ */
+public class SerializedMessageCodec implements MessageCodec {
+    public static final int VERSION = 4;
+
+    @Override
+    public int getVersion() {
+        return VERSION;
+    }
+
+    /**
+     * Generate a byte array out of the data of this message
+     * @return          The generated byte array (starts with the sender
+     *                  then the type ordinal, then the amount
+     *                  of data being send and each data object)
+     */
+    @Override
+    public byte[] encode(Message message) throws IOException {
+        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
+             ObjectOutput out = new BukkitObjectOutputStream(bos)) {
+            out.writeInt(VERSION);
+            out.writeUTF(message.getSender());
+            out.writeLong(message.getId());
+            out.writeUTF(message.getType().toString());
+            out.writeInt(message.getData().size());
+            for (Object o : message.getData()) {
+                out.writeObject(o);
+            }
+            out.flush();
+            return bos.toByteArray();
+        }
+    }
+
+    @Override
+    public Message decodeHeader(byte[] bytes) throws IOException, IllegalArgumentException, VersionMismatchException {
+        try (ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
+             ObjectInput in = new BukkitObjectInputStream(bis)) {
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new VersionMismatchException(version, VERSION, "The received message is of version " + version + " while this codec expects version " + VERSION);
+            }
+            String sender = in.readUTF();
+            long id = in.readLong();
+            MessageType type = MessageType.valueOf(in.readUTF());
+            // The object stream can't be resumed later so the body decoding has to skip the header again
+            Message message = new Message(sender, id, type, () -> decodeBody(bytes));
+            message.setVersion(VERSION);
+            return message;
+        }
+    }
+
+    private Object[] decodeBody(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
+             ObjectInput in = new BukkitObjectInputStream(bis)) {
+            in.readInt();
+            in.readUTF();
+            in.readLong();
+            in.readUTF();
+            Object[] data = new Object[in.readInt()];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = in.readObject();
+            }
+            return data;
+        }
+    }
+}
@@ -1,19 +1,35 @@
 package de.minebench.syncinv.messenger;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import de.minebench.syncinv.PlayerData;
+import de.minebench.syncinv.SectionHashes;
 import de.minebench.syncinv.SyncInv;
 import de.minebench.syncinv.SyncType;
 import lombok.Getter;
 import org.bukkit.OfflinePlayer;
+import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.entity.Player;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 
@@ -36,6 +52,11 @@ import java.util.logging.Level;
  */
 
 public abstract class ServerMessenger {
+    /**
+     * The last seen time that is registered for players that are currently online on a server
+     */
+    protected static final long ONLINE = Long.MAX_VALUE;
+
     protected final SyncInv plugin;
 
     /**
@@ -58,7 +79,7 @@ public abstract class ServerMessenger {
     /**
      * Store a set of all known servers
      */
-    private final Set<String> servers = new HashSet<>();
+    private final Set<String> servers = ConcurrentHashMap.newKeySet();
 
     /**
      * Store the current queries for PlayerData
@@ -76,27 +97,341 @@ public abstract class ServerMessenger {
     @Getter
     private Set<String> channels = new HashSet<>();
 
+    /**
+     * The codecs for all the message versions that this server understands
+     */
+    private final Map<Integer, MessageCodec> codecs = new LinkedHashMap<>();
+
+    /**
+     * The newest message version that each known server has sent us
+     */
+    private final Map<String, Integer> serverVersions = new ConcurrentHashMap<>();
+
+    /**
+     * The HELLO of each server that we answered last and the version we answered it in.
+     * A HELLO is sent in every version so the copies have to be answered only once.
+     */
+    private final Map<String, HelloAnswer> helloAnswers = new ConcurrentHashMap<>();
+
+    /**
+     * Random value that identifies this run of the server in the sequence numbers of its messages
+     */
+    private final long session = ThreadLocalRandom.current().nextLong();
+
+    /**
+     * The sequence number of the last message sent
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * The recently received sequence numbers of each server to drop duplicated messages
+     */
+    private final Map<String, SequenceWindow> sequenceWindows = new ConcurrentHashMap<>();
+
+    /**
+     * Tracks which versions of player data the servers have to send deltas
+     */
+    @Getter
+    private final DeltaTracker deltaTracker = new DeltaTracker();
+
+    /**
+     * Decodes and handles received messages off the network and main threads
+     */
+    private final MessageDispatcher dispatcher;
+
+    /**
+     * Collects GET_LAST_SEEN queries to send them in one message, null if disabled
+     */
+    private final QueryBatcher lastSeenBatcher;
+
+    /**
+     * The filters of the players that the servers have data of, null if disabled
+     */
+    private final KnownPlayers knownPlayers;
+
+    /**
+     * Where the other servers said that players were last seen, null if disabled
+     */
+    private final LastSeenGossip gossip;
+
+    /**
+     * Requests newer data from the other servers after joining the group, null if disabled
+     */
+    private final CatchUpSync catchUp;
+
+    /**
+     * Data that other servers sent on logout which waits for newer data before being applied, null if disabled
+     */
+    private final ApplyQueue applyQueue;
+
+    /**
+     * The players whose newest data this server has with the last seen time of that data.
+     * Their session can start without asking the other servers, null if disabled.
+     */
+    private final Cache<UUID, Long> leases;
+    private final LongAdder leaseLogins = new LongAdder();
+
+    /**
+     * The direct connection for large messages, null if disabled
+     */
+    private DirectChannel directChannel = null;
+
+    /**
+     * The address that other servers can reach our direct channel on in the format host:port
+     */
+    private String directAddress = null;
+
+    /**
+     * Messages need to be at least this big to be sent directly
+     */
+    private int directMinSize;
+
+    /**
+     * The direct channel addresses that other servers advertised
+     */
+    private final Map<String, InetSocketAddress> peerAddresses = new ConcurrentHashMap<>();
+
+    /**
+     * The id of the compression dictionary that this server has, 0 if it has none
+     */
+    private final int dictionaryId;
+    /**
+     * The ids of the compression dictionaries that other servers advertised
+     */
+    private final Map<String, Integer> peerDictionaries = new ConcurrentHashMap<>();
+
     public ServerMessenger(SyncInv plugin) {
+        this(plugin,
+                plugin.getConfig().getString("server-group"),
+                plugin.getConfig().getString("server-name", plugin.getServer().getIp() + ":" + plugin.getServer().getPort()),
+                plugin.getConfig().getStringList("required-servers"));
+        if (plugin.getConfig().getBoolean("direct-connection.enabled", false)) {
+            openDirectChannel();
+        }
+    }
+
+    /**
+     * Create a messenger with a different identity than the one configured, e.g. for simulating multiple servers
+     * @param plugin            The plugin
+     * @param serverGroup       The group that this server is in
+     * @param serverName        The name of this server
+     * @param requiredServers   The servers that are required to be online to query data
+     */
+    protected ServerMessenger(SyncInv plugin, String serverGroup, String serverName, Collection<String> requiredServers) {
         this.plugin = plugin;
-        serverGroup = plugin.getConfig().getString("server-group");
-        serverName = plugin.getConfig().getString("server-name", plugin.getServer().getIp() + ":" + plugin.getServer().getPort());
-        requiredServers = new HashSet<>(plugin.getConfig().getStringList("required-servers"));
+        this.serverGroup = serverGroup;
+        this.serverName = serverName;
+        this.requiredServers = new HashSet<>(requiredServers);
+        dispatcher = new MessageDispatcher(plugin,
+                plugin.getConfig().getInt("messaging.dispatch-threads", 1),
+                plugin.getConfig().getInt("messaging.dispatch-queue-size", 1000));
+        int lastSeenBatchSize = plugin.getConfig().getInt("messaging.last-seen-batch-size", 256);
+        long lastSeenBatchWindow = plugin.getConfig().getLong("messaging.last-seen-batch-window", 20);
+        if (lastSeenBatchSize > 1 && lastSeenBatchWindow > 0) {
+            lastSeenBatcher = new QueryBatcher(plugin.getName() + " Last Seen Batcher " + serverName,
+                    lastSeenBatchSize, lastSeenBatchWindow, this::sendLastSeenBatch);
+        } else {
+            lastSeenBatcher = null;
+        }
+        if (plugin.getConfig().getBoolean("messaging.known-players-filter.enabled", false)) {
+            knownPlayers = new KnownPlayers(plugin, this);
+        } else {
+            knownPlayers = null;
+        }
+        if (plugin.getConfig().getBoolean("messaging.gossip.enabled", false)) {
+            gossip = new LastSeenGossip(plugin, this);
+        } else {
+            gossip = null;
+        }
+        if (plugin.getConfig().getBoolean("catch-up.enabled", false) && plugin.shouldSyncWithGroupOnLogout()) {
+            catchUp = new CatchUpSync(plugin, this);
+        } else {
+            catchUp = null;
+        }
+        long applyWindow = plugin.getConfig().getLong("apply-coalescing-window", 0);
+        if (applyWindow > 0 && plugin.shouldSyncWithGroupOnLogout()) {
+            applyQueue = new ApplyQueue(plugin, this, applyWindow);
+        } else {
+            applyQueue = null;
+        }
+        if (plugin.getConfig().getBoolean("session-lease.enabled", false)) {
+            leases = CacheBuilder.newBuilder()
+                    .expireAfterWrite(plugin.getConfig().getLong("session-lease.duration", 300), TimeUnit.SECONDS)
+                    .build();
+        } else {
+            leases = null;
+        }
         registerChannel("*", "group:" + serverGroup, serverName);
+        BinaryMessageCodec binaryCodec = new BinaryMessageCodec(plugin.getConfig().getInt("messaging.compression-threshold", 1024),
+                loadCompressionDictionary(), this::canUseDictionary);
+        dictionaryId = binaryCodec.getDictionaryId();
+        registerCodec(binaryCodec);
+        if (plugin.getConfig().getBoolean("messaging.legacy-format", true)) {
+            registerCodec(new SerializedMessageCodec());
+        }
+    }
+
+    /**
+     * Open the direct channel to receive large messages without going through the messenger
+     */
+    private void openDirectChannel() {
+        String secret = plugin.getConfig().getString("direct-connection.secret", "");
+        if (secret.isEmpty()) {
+            plugin.getLogger().log(Level.SEVERE, "No direct-connection.secret is set! Not accepting direct connections and sending everything through the messenger.");
+            return;
+        }
+        String bindHost = plugin.getConfig().getString("direct-connection.bind", "0.0.0.0");
+        int port = plugin.getConfig().getInt("direct-connection.port", 0);
+        try {
+            directChannel = new DirectChannel(plugin, new InetSocketAddress(bindHost, port), secret,
+                    plugin.getConfig().getInt("direct-connection.max-size", 64 * 1024 * 1024),
+                    plugin.getConfig().getInt("direct-connection.connect-timeout", 1000),
+                    bytes -> onMessage(null, getCodec(BinaryMessageCodec.VERSION), bytes));
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Unable to open the direct connection on " + bindHost + ":" + port + "! Sending everything through the messenger.", e);
+            return;
+        }
+        String host = plugin.getConfig().getString("direct-connection.host", "");
+        if (host.isEmpty()) {
+            host = plugin.getServer().getIp().isEmpty() ? "localhost" : plugin.getServer().getIp();
+        }
+        directAddress = host + ":" + directChannel.getPort();
+        directMinSize = plugin.getConfig().getInt("direct-connection.min-size", 16 * 1024);
+        plugin.getLogger().log(Level.INFO, "Accepting direct connections on " + bindHost + ":" + directChannel.getPort() + " advertised as " + directAddress);
+    }
+
+    /**
+     * Get the arguments of a HELLO message
+     * @param version   The message version it will be sent in
+     * @return          The direct channel address and the compression dictionary id if the version supports them
+     */
+    private Object[] getHelloArgs(int version) {
+        if (version >= BinaryMessageCodec.VERSION) {
+            return new Object[]{directAddress != null ? directAddress : "", dictionaryId};
+        }
+        return new Object[0];
+    }
+
+    /**
+     * Check whether a message to a target can be compressed with the dictionary
+     * @param target    The target of the message
+     * @return Whether the target server or every server of the group advertised the same dictionary
+     */
+    private boolean canUseDictionary(String target) {
+        if (dictionaryId == 0 || target == null || "*".equals(target)) {
+            return false;
+        }
+        if (("group:" + getServerGroup()).equalsIgnoreCase(target)) {
+            for (String server : servers) {
+                if (peerDictionaries.getOrDefault(server, 0) != dictionaryId) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return peerDictionaries.getOrDefault(target, 0) == dictionaryId;
     }
 
     /**
-     * Be polite and introduce yourself!
+     * Be polite and introduce yourself! This is sent in every supported message version
+     * so that servers which only understand older versions learn about us too.
      */
     public void hello() {
-        sendGroupMessage(System.currentTimeMillis(), MessageType.HELLO);
+        long id = System.currentTimeMillis();
+        for (int version : getSupportedVersions()) {
+            Message message = new Message(getServerName(), id, MessageType.HELLO, getHelloArgs(version));
+            message.setVersion(version);
+            sendGroupMessage(message, false);
+        }
+        if (catchUp != null) {
+            catchUp.start();
+        }
+    }
+
+    /**
+     * Check whether a HELLO should be answered. Only the first copy of a HELLO gets answered unless a
+     * copy in a newer version arrives afterwards, then we answer in the newest version that we both speak.
+     * @param server    The server that sent the HELLO
+     * @param id        The id of the HELLO
+     * @return Whether it wasn't answered in that version yet
+     */
+    private boolean shouldAnswerHello(String server, long id) {
+        HelloAnswer answer = new HelloAnswer(id, getVersion(server));
+        return helloAnswers.compute(server, (s, previous) -> previous == null || previous.id != id || previous.version < answer.version ? answer : previous) == answer;
     }
 
     /**
      * Be polite and say goodbye
      */
     public void goodbye() {
-        sendGroupMessage(new Message(getServerName(), System.currentTimeMillis(), MessageType.BYE), true);
+        if (applyQueue != null) {
+            applyQueue.shutdown();
+        }
+        long id = System.currentTimeMillis();
+        for (int version : getSupportedVersions()) {
+            Message message = new Message(getServerName(), id, MessageType.BYE);
+            message.setVersion(version);
+            sendGroupMessage(message, true);
+        }
         close();
+        dispatcher.shutdown();
+        if (lastSeenBatcher != null) {
+            lastSeenBatcher.shutdown();
+        }
+        if (knownPlayers != null) {
+            knownPlayers.shutdown();
+        }
+        if (gossip != null) {
+            gossip.shutdown();
+        }
+        if (catchUp != null) {
+            catchUp.shutdown();
+        }
+        if (directChannel != null) {
+            directChannel.close();
+        }
+    }
+
+    /**
+     * Get information about the load of the messenger
+     * @return Human readable lines
+     */
+    public List<String> getStats() {
+        List<String> stats = new ArrayList<>(dispatcher.getStats());
+        if (lastSeenBatcher != null) {
+            stats.add(lastSeenBatcher.getStats());
+        }
+        if (knownPlayers != null) {
+            stats.add(knownPlayers.getStats());
+        }
+        if (gossip != null) {
+            stats.add(gossip.getStats());
+        }
+        if (catchUp != null) {
+            stats.add(catchUp.getStats());
+        }
+        if (applyQueue != null) {
+            stats.add(applyQueue.getStats());
+        }
+        if (leases != null) {
+            stats.add("Session leases: " + leases.size() + " held, " + leaseLogins.sum() + " logins without asking the group");
+        }
+        if (directChannel != null) {
+            stats.add(directChannel.getStats());
+        }
+        if (plugin.getDataPipeline() != null) {
+            stats.addAll(plugin.getDataPipeline().getStats());
+        }
+        if (plugin.getOfflinePlayerFiles() != null) {
+            stats.add(plugin.getOfflinePlayerFiles().getStats());
+        }
+        if (plugin.getStatisticTracker() != null) {
+            stats.add(plugin.getStatisticTracker().getStats());
+        }
+        if (plugin.getAdvancementTracker() != null) {
+            stats.add(plugin.getAdvancementTracker().getStats());
+        }
+        return stats;
     }
 
     protected abstract void close();
@@ -111,6 +446,74 @@ public abstract class ServerMessenger {
         }
     }
 
+    /**
+     * Load the preset dictionary used for compressing messages from the plugin folder
+     * @return The dictionary bytes or null if it's disabled, doesn't exist or couldn't be loaded
+     */
+    private byte[] loadCompressionDictionary() {
+        if (!plugin.getConfig().getBoolean("messaging.compression-dictionary", true)) {
+            return null;
+        }
+        File file = new File(plugin.getDataFolder(), CompressionDictionary.FILE_NAME);
+        if (!file.exists()) {
+            plugin.logDebug("No compression dictionary found at " + file.getPath() + ", compressing without it.");
+            return null;
+        }
+        try {
+            byte[] dictionary = Files.readAllBytes(file.toPath());
+            if (dictionary.length > 0) {
+                plugin.getLogger().log(Level.INFO, "Loaded the compression dictionary " + Integer.toHexString(BinaryMessageCodec.getDictionaryId(dictionary))
+                        + ", it is only used for servers that have the same one");
+                return dictionary;
+            }
+            plugin.getLogger().log(Level.WARNING, "The compression dictionary is empty! Compressing without it.");
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Error while loading the compression dictionary! Compressing without it.", e);
+        }
+        return null;
+    }
+
+    private void registerCodec(MessageCodec codec) {
+        codecs.put(codec.getVersion(), codec);
+    }
+
+    /**
+     * Get the codec for a certain message version
+     * @param version   The message version
+     * @return          The codec or null if this version isn't supported
+     */
+    public MessageCodec getCodec(int version) {
+        return codecs.get(version);
+    }
+
+    /**
+     * Get all message versions that this server can read and write, newest first
+     * @return The supported versions
+     */
+    public Set<Integer> getSupportedVersions() {
+        return codecs.keySet();
+    }
+
+    /**
+     * Get the message version that should be used to send something to a target.
+     * When sending to multiple servers this is the oldest version that one of them speaks.
+     * @param target    The name of the target server, "group:<group>" or "*"
+     * @return          The message version to use
+     */
+    public int getVersion(String target) {
+        Integer version = serverVersions.get(target);
+        if (version != null) {
+            return version;
+        }
+        int oldest = Message.VERSION;
+        if ("*".equals(target) || ("group:" + getServerGroup()).equalsIgnoreCase(target)) {
+            for (int serverVersion : serverVersions.values()) {
+                oldest = Math.min(oldest, serverVersion);
+            }
+        }
+        return oldest;
+    }
+
     /**
      * Query the data of a player
      * @param playerId The UUID of the player
@@ -146,6 +549,31 @@ public abstract class ServerMessenger {
         });
     }
 
+    /**
+     * Send the data of a player that isn't online on this server by loading them with OpenInv
+     * @param playerId  The UUID of the player
+     * @param target    The server that requested the data
+     * @param id        The id of the request
+     */
+    private void sendOfflineData(UUID playerId, String target, long id) {
+        if (plugin.getOpenInv() != null) {
+            OfflinePlayer offlinePlayer = plugin.getServer().getOfflinePlayer(playerId);
+            if (offlinePlayer.hasPlayedBefore()) {
+                // we can ensure here that openInv is using the same player instance as we do and therefor it is safe to unload regardless of openinv saving it or not
+                Player p = plugin.getOpenInv().loadPlayer(offlinePlayer);
+                if (p != null) {
+                    PlayerData data = plugin.getData(p);
+                    plugin.getOpenInv().unload(p);
+                    sendMessage(target, id, MessageType.DATA, data);
+                } else {
+                    sendMessage(target, id, MessageType.CANT_GET_DATA, playerId); // Tell the sender that we can't load the data
+                }
+            }
+        } else {
+            sendMessage(target, id, MessageType.CANT_GET_DATA, playerId); // Tell the sender that we have no ability to load the data
+        }
+    }
+
     /**
      * Query the data of a player
      * @param playerId      The UUID of the player
@@ -168,16 +596,267 @@ public abstract class ServerMessenger {
             return queries.get(playerId);
         }
 
+        if (applyQueue != null) {
+            // The query gets the newest data anyways
+            applyQueue.discard(playerId);
+        }
+
         long lastSeen = plugin.getLastSeen(playerId, false);
         PlayerDataQuery query = new PlayerDataQuery(playerId, lastSeen, onComplete);
         query.setTimeoutTask(plugin.runLater(() -> completeQuery(query), 20 * plugin.getQueryTimeout()));
         addQuery(playerId, query);
 
-        sendGroupMessage(query.getTimestamp(), MessageType.GET_LAST_SEEN, playerId);
+        if (hasLease(playerId, lastSeen)) {
+            // Nobody else started a session since the player left us, our data is the newest
+            query.complete();
+            leaseLogins.increment();
+            plugin.logDebug("Holding the session lease of " + playerId + ", not asking the other servers");
+            plugin.runSync(() -> completeQuery(query));
+            return query;
+        }
+
+        if (gossip != null && gossip.resolve(query, servers)) {
+            boolean completed;
+            synchronized (query) {
+                completed = !query.isCompleted() && isCompleted(query);
+            }
+            if (completed) {
+                plugin.logDebug("Resolved last seen times of " + playerId + " from the gossip");
+                announceSession(playerId);
+                plugin.runSync(() -> completeQuery(query));
+                return query;
+            }
+        }
+
+        if (knownPlayers != null && skipUnknown(query)) {
+            return query;
+        }
+
+        CompletableFuture<Map<String, Long>> registered = getRegisteredLastSeen(playerId);
+        if (registered != null) {
+            registered.whenComplete((lastSeens, e) -> {
+                if (e != null) {
+                    plugin.logDebug("Unable to get the last seen times of " + playerId + " from the registry, asking the servers instead: " + e.getMessage());
+                    requestLastSeen(query);
+                } else if (!completeFromRegistry(query, lastSeens)) {
+                    requestLastSeen(query);
+                }
+            });
+        } else {
+            requestLastSeen(query);
+        }
 
         return query;
     }
 
+    /**
+     * Answer the query for all servers whose known players filter doesn't contain the player
+     * @param query The query
+     * @return Whether that completed the query and no server has to be asked
+     */
+    private boolean skipUnknown(PlayerDataQuery query) {
+        boolean skipped = false;
+        for (String server : servers) {
+            if (!knownPlayers.mightKnow(server, query.getPlayerId())) {
+                query.addResponse(server, 0);
+                skipped = true;
+            }
+        }
+        if (!skipped) {
+            return false;
+        }
+        boolean completed;
+        synchronized (query) {
+            completed = !query.isCompleted() && isCompleted(query);
+        }
+        if (completed) {
+            plugin.logDebug("No server in group:" + getServerGroup() + " knows " + query.getPlayerId() + " according to their known players filters");
+            announceSession(query.getPlayerId());
+            plugin.runSync(() -> completeQuery(query));
+        }
+        return completed;
+    }
+
+    /**
+     * Ask the other servers when they have last seen the player of a query
+     * @param query The query
+     */
+    private void requestLastSeen(PlayerDataQuery query) {
+        if (lastSeenBatcher != null && getVersion("group:" + getServerGroup()) >= BinaryMessageCodec.VERSION) {
+            lastSeenBatcher.add(query);
+        } else {
+            sendGroupMessage(query.getTimestamp(), MessageType.GET_LAST_SEEN, query.getPlayerId());
+        }
+    }
+
+    /**
+     * Complete a query with the last seen times from the registry
+     * @param query     The query
+     * @param lastSeens The registered last seen times by server name
+     * @return Whether the registry knew the player on all servers, if not the servers have to be asked
+     */
+    private boolean completeFromRegistry(PlayerDataQuery query, Map<String, Long> lastSeens) {
+        // Only servers that are currently running can send us the data
+        List<String> running = new ArrayList<>(servers);
+        for (String server : running) {
+            if (!lastSeens.containsKey(server)) {
+                // Unknown or expired, the server might still have data from before the registry was enabled on it
+                plugin.logDebug("Registry doesn't know the last seen time of " + query.getPlayerId() + " on " + server + ", asking the servers instead");
+                return false;
+            }
+        }
+        if (lastSeens.isEmpty()) {
+            return false;
+        }
+        if (queries.get(query.getPlayerId()) != query) {
+            return true; // Query was removed in the meantime
+        }
+        long now = System.currentTimeMillis();
+        for (String server : running) {
+            long lastSeen = lastSeens.get(server);
+            query.addResponse(server, lastSeen == ONLINE ? now : lastSeen);
+        }
+        boolean completed;
+        synchronized (query) {
+            completed = !query.isCompleted() && isCompleted(query);
+        }
+        if (completed) {
+            plugin.logDebug("Resolved last seen times of " + query.getPlayerId() + " from the registry");
+            announceSession(query.getPlayerId());
+            plugin.runSync(() -> completeQuery(query));
+        }
+        return true;
+    }
+
+    /**
+     * Check whether this server holds the session lease of a player
+     * @param playerId  The UUID of the player
+     * @param lastSeen  The last seen time of the player on this server
+     * @return Whether the lease is valid for the data that this server has
+     */
+    private boolean hasLease(UUID playerId, long lastSeen) {
+        if (leases == null) {
+            return false;
+        }
+        Long leased = leases.getIfPresent(playerId);
+        return leased != null && leased == lastSeen;
+    }
+
+    /**
+     * Take the session lease of a player after they left this server with the newest data
+     * @param playerId  The UUID of the player
+     * @param lastSeen  The last seen time of the data that this server has now
+     */
+    public void grantLease(UUID playerId, long lastSeen) {
+        if (leases != null) {
+            leases.put(playerId, lastSeen);
+        }
+    }
+
+    /**
+     * Give up the session lease of a player because another server started a session or fetched the data
+     * @param playerId  The UUID of the player
+     * @param server    The other server
+     */
+    private void revokeLease(UUID playerId, String server) {
+        if (leases != null && leases.asMap().remove(playerId) != null) {
+            plugin.logDebug("Gave up the session lease of " + playerId + " to " + server);
+        }
+    }
+
+    /**
+     * Tell the group that a player's session started here when the group wasn't asked about it
+     * so that the server which holds the session lease gives it up
+     * @param playerId  The UUID of the player
+     */
+    private void announceSession(UUID playerId) {
+        if (leases != null) {
+            Message message = new Message(getServerName(), System.currentTimeMillis(), MessageType.LEASE_CLAIMED, playerId);
+            // Servers that only understand older versions don't have leases
+            message.setVersion(BinaryMessageCodec.VERSION);
+            sendGroupMessage(message, false);
+        }
+    }
+
+    /**
+     * Get the last seen times of a player that the servers of the group registered.
+     * Messengers that have a registry should override this.
+     * @param playerId  The UUID of the player
+     * @return          A future completed with the times by server name or null if there is no registry
+     */
+    protected CompletableFuture<Map<String, Long>> getRegisteredLastSeen(UUID playerId) {
+        return null;
+    }
+
+    /**
+     * Register the time that this server has last seen a player.
+     * Messengers that have a registry should override this.
+     * @param playerId  The UUID of the player
+     * @param lastSeen  The timestamp or {@link #ONLINE} if the player is online on this server
+     */
+    protected void registerLastSeen(UUID playerId, long lastSeen) {}
+
+    /**
+     * Called when this server's last seen time of a player changed
+     * @param playerId  The UUID of the player
+     * @param lastSeen  The timestamp
+     */
+    public void onLastSeenChanged(UUID playerId, long lastSeen) {
+        registerLastSeen(playerId, lastSeen);
+        if (knownPlayers != null) {
+            knownPlayers.add(playerId);
+        }
+        if (gossip != null) {
+            gossip.record(playerId, lastSeen, false);
+        }
+    }
+
+    /**
+     * Called when a player joined this server
+     * @param playerId  The UUID of the player
+     */
+    public void onPlayerOnline(UUID playerId) {
+        registerLastSeen(playerId, ONLINE);
+        if (knownPlayers != null) {
+            knownPlayers.add(playerId);
+        }
+        if (gossip != null) {
+            gossip.record(playerId, System.currentTimeMillis(), true);
+        }
+    }
+
+    /**
+     * Send the GET_LAST_SEEN_BATCH message for multiple queries
+     * @param batch The queries to send
+     */
+    private void sendLastSeenBatch(List<PlayerDataQuery> batch) {
+        List<UUID> playerIds = new ArrayList<>(batch.size());
+        long id = 0;
+        for (PlayerDataQuery query : batch) {
+            if (queries.get(query.getPlayerId()) == query) { // Still running
+                playerIds.add(query.getPlayerId());
+                // Responses are only accepted for queries that are older than the message id
+                id = Math.max(id, query.getTimestamp());
+            }
+        }
+        if (playerIds.isEmpty()) {
+            return;
+        }
+        if (playerIds.size() == 1) {
+            sendGroupMessage(id, MessageType.GET_LAST_SEEN, playerIds.get(0));
+        } else {
+            sendGroupMessage(id, MessageType.GET_LAST_SEEN_BATCH, (Object) playerIds.toArray(new UUID[0]));
+        }
+    }
+
+    /**
+     * Get the other servers that we know of
+     * @return An unmodifiable view of the names of the known servers
+     */
+    public Set<String> getServers() {
+        return Collections.unmodifiableSet(servers);
+    }
+
     /**
      * Check whether or not we are alone
      * @return Whether or not we are alone
@@ -195,21 +874,95 @@ public abstract class ServerMessenger {
     }
 
     /**
-     * Reaction on a message, this has to be called by the messenger implementation!
+     * Reaction on received bytes, this has to be called by the messenger implementation!
+     * Only the header is decoded on the calling thread to know the sender, the rest of the
+     * message is decoded and handled on the dispatcher thread of that sender. Only the
+     * handlers that need to access the server run on the main thread.
+     * @param channelTarget The target of the channel that this was received on, only used if the message doesn't contain one
+     * @param codec         The codec of the message version
+     * @param bytes         The encoded message
+     */
+    protected void onMessage(String channelTarget, MessageCodec codec, byte[] bytes) {
+        long start = System.nanoTime();
+        Message message;
+        try {
+            message = codec.decodeHeader(bytes);
+        } catch (IOException | IllegalArgumentException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error while decoding message header targeted at " + channelTarget + "! ", e);
+            return;
+        } catch (VersionMismatchException e) {
+            plugin.getLogger().log(Level.WARNING, e.getMessage() + ". Ignoring message!");
+            return;
+        }
+        long headerNanos = System.nanoTime() - start;
+        dispatcher.dispatch(message.getSender(), () -> decodeAndHandle(channelTarget, message, headerNanos));
+    }
+
+    /**
+     * The data is only decoded when it will actually be handled
+     */
+    private void decodeAndHandle(String channelTarget, Message message, long headerNanos) {
+        long start = System.nanoTime();
+        String target = message.getTarget() != null ? message.getTarget() : channelTarget;
+        if (!accept(target, message)) {
+            return;
+        }
+
+        try {
+            message.decodeBody();
+        } catch (IOException | ClassNotFoundException | IllegalArgumentException | InvalidConfigurationException e) {
+            plugin.getLogger().log(Level.SEVERE, message.getId() + " Error while decoding " + message.getType() + " message from " + message.getSender() + " targeted at " + target + "! ", e);
+            return;
+        }
+        dispatcher.recordDecode(headerNanos + System.nanoTime() - start);
+
+        if (message.getType().isHandledOnMainThread()) {
+            dispatcher.runOnMainThread(() -> onMessage(target, message));
+        } else {
+            onMessage(target, message);
+        }
+    }
+
+    /**
+     * Check the header of a message to see whether we should handle it
      * @param target    The server this message is targeted at
-     * @param message   The message received
+     * @param message   The message received, the body doesn't need to be decoded yet
+     * @return          Whether the message is for us and wasn't already received
      */
-    protected void onMessage(String target, Message message) {
+    private boolean accept(String target, Message message) {
         if (message.getSender().equals(getServerName()) // don't read messages from ourselves
                 || target != null // target is null? Accept message anyways...
                 && !"*".equals(target)
                 && !getServerName().equals(target)
                 && !("group:" + getServerGroup()).equalsIgnoreCase(target) ) {
             // This message is not for us
-            return;
+            return false;
         }
-    
+
+        if (message.getSequence() != 0
+                && !sequenceWindows.computeIfAbsent(message.getSender(), s -> new SequenceWindow()).accept(message.getSession(), message.getSequence())) {
+            plugin.logDebug(message.getId() + " Dropping duplicate " + message.getType() + " #" + message.getSequence() + " from " + message.getSender() + " targeted at " + target);
+            return false;
+        }
+
+        if ((message.getType() == MessageType.HELLO || message.getType() == MessageType.BYE)
+                && message.getVersion() < serverVersions.getOrDefault(message.getSender(), 0)) {
+            // These are sent in every version, we only need the newest one that we understand
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reaction on a message that is targeted at us
+     * @param target    The server this message is targeted at
+     * @param message   The message received
+     */
+    private void onMessage(String target, Message message) {
         servers.add(message.getSender());
+        if (message.getVersion() > 0) {
+            serverVersions.merge(message.getSender(), message.getVersion(), Math::max);
+        }
 
         UUID playerId = null;
         long lastSeen;
@@ -219,6 +972,7 @@ public abstract class ServerMessenger {
             switch (message.getType()) {
                 case GET_LAST_SEEN:
                     playerId = (UUID) message.read();
+                    revokeLease(playerId, message.getSender());
                     lastSeen = plugin.getLastSeen(playerId, true);
                     plugin.logDebug(message.getId() + " Received " + message.getType() + " for " + playerId + " from " + message.getSender() + " targeted at " + target + ". Player was last seen " + lastSeen);
                     sendMessage(message.getSender(), message.getId(), MessageType.LAST_SEEN, playerId, lastSeen); // Send the last seen date to the server that requested it
@@ -226,27 +980,115 @@ public abstract class ServerMessenger {
 
                 case LAST_SEEN:
                     playerId = (UUID) message.read();
-                    query = queries.get(playerId);
-                    if (query != null) {
-                        if (query.getTimestamp() <= message.getId()) {
-                            lastSeen = (long) message.read();
-                            plugin.logDebug(message.getId() + " Received " + message.getType() + " with " + lastSeen + " for " + playerId + " from " + message.getSender() + " targeted at " + target);
-                            query.addResponse(message.getSender(), lastSeen);
-
-                            if (isCompleted(query)) { // All known servers responded
-                                plugin.logDebug("All servers in group:" + getServerGroup() + " responded to " + message.getType() + " query for " + playerId + "!");
-                                completeQuery(query);
-                            }
-                        } else {
-                            plugin.logDebug(message.getId() + " Received " + message.getType() + " for " + playerId + " from " + message.getSender() + " targeted at " + target + " but the query timestamp doesn't match! expected: " + query.getTimestamp() + " > received: " + message.getId());
-                        }
-                    } else { // No query was started? Why are we getting this message?
-                        plugin.logDebug(message.getId() + " Received " + message.getType() + " for " + playerId + " from " + message.getSender() + " targeted at " + target + " BUT WE DIDN'T START A QUERY?!?!");
+                    lastSeen = (long) message.read();
+                    onLastSeen(message, target, playerId, lastSeen);
+                    break;
+
+                case GET_LAST_SEEN_BATCH:
+                    UUID[] playerIds = (UUID[]) message.read();
+                    long[] lastSeens = new long[playerIds.length];
+                    for (int i = 0; i < playerIds.length; i++) {
+                        revokeLease(playerIds[i], message.getSender());
+                        lastSeens[i] = plugin.getLastSeen(playerIds[i], true);
+                    }
+                    plugin.logDebug(message.getId() + " Received " + message.getType() + " for " + playerIds.length + " players from " + message.getSender() + " targeted at " + target);
+                    sendMessage(message.getSender(), message.getId(), MessageType.LAST_SEEN_BATCH, playerIds, lastSeens);
+                    break;
+
+                case LAST_SEEN_BATCH:
+                    playerIds = (UUID[]) message.read();
+                    lastSeens = (long[]) message.read();
+                    if (playerIds.length != lastSeens.length) {
+                        plugin.getLogger().log(Level.WARNING, message.getId() + " Received " + message.getType() + " from " + message.getSender() + " with " + playerIds.length + " players but " + lastSeens.length + " timestamps!");
+                        break;
+                    }
+                    for (int i = 0; i < playerIds.length; i++) {
+                        onLastSeen(message, target, playerIds[i], lastSeens[i]);
+                    }
+                    break;
+
+                case KNOWN_PLAYERS:
+                    long filterEpoch = (long) message.read();
+                    long filterSeq = (long) message.read();
+                    byte[] filter = (byte[]) message.read();
+                    plugin.logDebug(message.getId() + " Received " + message.getType() + " " + filterSeq + " of " + filter.length + " bytes from " + message.getSender() + " targeted at " + target);
+                    if (knownPlayers != null) {
+                        knownPlayers.setPeerFilter(message.getSender(), filterEpoch, filterSeq, filter);
+                    }
+                    break;
+
+                case KNOWN_PLAYERS_ADDED:
+                    filterEpoch = (long) message.read();
+                    filterSeq = (long) message.read();
+                    playerIds = (UUID[]) message.read();
+                    plugin.logDebug(message.getId() + " Received " + message.getType() + " " + filterSeq + " with " + playerIds.length + " players from " + message.getSender() + " targeted at " + target);
+                    if (knownPlayers != null) {
+                        knownPlayers.addToPeer(message.getSender(), filterEpoch, filterSeq, playerIds);
+                    }
+                    break;
+
+                case LAST_SEEN_GOSSIP:
+                    long seq = (long) message.read();
+                    long coveredUntil = (long) message.read();
+                    playerIds = (UUID[]) message.read();
+                    lastSeens = (long[]) message.read();
+                    if (playerIds.length != lastSeens.length) {
+                        plugin.getLogger().log(Level.WARNING, message.getId() + " Received " + message.getType() + " from " + message.getSender() + " with " + playerIds.length + " players but " + lastSeens.length + " timestamps!");
+                        break;
+                    }
+                    if (gossip != null) {
+                        gossip.onGossip(message.getSender(), seq, coveredUntil, playerIds, lastSeens);
+                    }
+                    break;
+
+                case LEASE_CLAIMED:
+                    playerId = (UUID) message.read();
+                    plugin.logDebug(message.getId() + " Received " + message.getType() + " for " + playerId + " from " + message.getSender() + " targeted at " + target);
+                    revokeLease(playerId, message.getSender());
+                    break;
+
+                case GET_DIGEST:
+                    int level = (int) message.read();
+                    long[] nodes = (long[]) message.read();
+                    plugin.logDebug(message.getId() + " Received " + message.getType() + " on level " + level + " for " + nodes.length + " nodes from " + message.getSender() + " targeted at " + target);
+                    if (catchUp != null) {
+                        catchUp.onGetDigest(message.getSender(), message.getId(), level, nodes);
+                    }
+                    break;
+
+                case DIGEST:
+                    level = (int) message.read();
+                    nodes = (long[]) message.read();
+                    long[] hashes = (long[]) message.read();
+                    if (nodes.length != hashes.length) {
+                        plugin.getLogger().log(Level.WARNING, message.getId() + " Received " + message.getType() + " from " + message.getSender() + " with " + nodes.length + " nodes but " + hashes.length + " hashes!");
+                        break;
+                    }
+                    if (catchUp != null) {
+                        catchUp.onDigest(message.getSender(), level, nodes, hashes);
+                    }
+                    break;
+
+                case DIGEST_ENTRIES:
+                    playerIds = (UUID[]) message.read();
+                    lastSeens = (long[]) message.read();
+                    if (playerIds.length != lastSeens.length) {
+                        plugin.getLogger().log(Level.WARNING, message.getId() + " Received " + message.getType() + " from " + message.getSender() + " with " + playerIds.length + " players but " + lastSeens.length + " timestamps!");
+                        break;
+                    }
+                    plugin.logDebug(message.getId() + " Received " + message.getType() + " with " + playerIds.length + " players from " + message.getSender() + " targeted at " + target);
+                    if (catchUp != null) {
+                        catchUp.onEntries(message.getSender(), playerIds, lastSeens);
                     }
                     break;
 
                 case GET_DATA:
+                case RESEND_DATA:
                     playerId = (UUID) message.read();
+                    if (message.getType() == MessageType.GET_DATA) {
+                        // Only a request for a joining player takes over the session
+                        revokeLease(playerId, message.getSender());
+                    }
                     plugin.logDebug(message.getId() + " Received " + message.getType() + " for " + playerId + " from " + message.getSender() + " targeted at " + target);
                     player = plugin.getServer().getPlayer(playerId);
                     if (player != null && player.isOnline()) { // Player is still online
@@ -254,26 +1096,29 @@ public abstract class ServerMessenger {
                             queueDataRequest(playerId, message.getSender(), message.getId());
                         }
                         sendMessage(message.getSender(), message.getId(), MessageType.IS_ONLINE, playerId); // Tell the sender
-                    } else if (plugin.getOpenInv() != null){
-                        OfflinePlayer offlinePlayer = plugin.getServer().getOfflinePlayer(playerId);
-                        if (offlinePlayer.hasPlayedBefore()) {
-                            // we can ensure here that openInv is using the same player instance as we do and therefor it is safe to unload regardless of openinv saving it or not
-                            Player p = plugin.getOpenInv().loadPlayer(offlinePlayer);
-                            if (p != null) {
-                                PlayerData data = plugin.getData(p);
-                                plugin.getOpenInv().unload(p);
-                                sendMessage(message.getSender(), message.getId(), MessageType.DATA, data);
+                    } else if (plugin.getOfflinePlayerFiles() != null && plugin.getOfflinePlayerFiles().canHandle(playerId)) {
+                        UUID offlineId = playerId;
+                        String sender = message.getSender();
+                        long messageId = message.getId();
+                        plugin.getOfflinePlayerFiles().read(offlineId, plugin.getLastSeen(offlineId, false)).whenComplete((data, e) -> {
+                            if (e != null) {
+                                plugin.logDebug("Unable to read data of " + offlineId + " from its files, loading it with OpenInv: " + e.getMessage());
+                                plugin.runSync(() -> sendOfflineData(offlineId, sender, messageId));
                             } else {
-                                sendMessage(message.getSender(), message.getId(), MessageType.CANT_GET_DATA, playerId); // Tell the sender that we can't load the data
+                                sendMessage(sender, messageId, MessageType.DATA, data);
                             }
-                        }
+                        });
                     } else {
-                        sendMessage(message.getSender(), message.getId(), MessageType.CANT_GET_DATA, playerId); // Tell the sender that we have no ability to load the data
+                        sendOfflineData(playerId, message.getSender(), message.getId());
                     }
                     break;
 
                 case DATA:
                     PlayerData data = (PlayerData) message.read();
+                    if (plugin.shouldDeltaSyncOnLogout()) {
+                        // The sender obviously has the version that it sent
+                        deltaTracker.acknowledge(data.getPlayerId(), message.getSender(), data.getLastSeen());
+                    }
                     query = queries.get(data.getPlayerId());
                     if (query != null || plugin.shouldSyncWithGroupOnLogout() && plugin.getLastSeen(data.getPlayerId(), true) < data.getTimeStamp()) {
                         if (query != null && query.getTimestamp() > message.getId()) {
@@ -281,8 +1126,18 @@ public abstract class ServerMessenger {
                             plugin.logDebug(message.getId() + " Received " + message.getType() + " for " + data.getPlayerId() + " with " + data.getTimeStamp() + " from " + message.getSender() + " targeted at " + target + " but the query timestamp doesn't match! expected: " + query.getTimestamp() + " > received: " + message.getId());
                             break;
                         }
+                        if (data.isDelta() && getAppliedLastSeen(data.getPlayerId()) != data.getBaseVersion()) {
+                            // We don't have the version that the delta is based on, get the complete data instead
+                            plugin.logDebug(message.getId() + " Received " + message.getType() + " for " + data.getPlayerId() + " from " + message.getSender() + " targeted at " + target + " as a delta against " + data.getBaseVersion() + " which we don't have. Requesting the complete data.");
+                            sendMessage(message.getSender(), message.getId(), MessageType.RESEND_DATA, data.getPlayerId());
+                            break;
+                        }
                         plugin.logDebug(message.getId() + " Received " + message.getType() + " for " + data.getPlayerId() + " from " + message.getSender() + " targeted at " + target + ". Applying it." +
                                 " isQueryNull=" + (query == null) + ", shouldSyncWithGroupOnLogout=" + plugin.shouldSyncWithGroupOnLogout() + ", dataTimestamp=" +  data.getTimeStamp());
+                        if (query == null && applyQueue != null) {
+                            applyQueue.add(data, () -> {});
+                            break;
+                        }
                         plugin.applyData(data, () -> {
                             if (query != null) {
                                 query.stopTimeout();
@@ -295,6 +1150,15 @@ public abstract class ServerMessenger {
                     }
                     break;
 
+                case DATA_ACK:
+                    playerId = (UUID) message.read();
+                    lastSeen = (long) message.read();
+                    plugin.logDebug(message.getId() + " Received " + message.getType() + " with " + lastSeen + " for " + playerId + " from " + message.getSender() + " targeted at " + target);
+                    if (plugin.shouldDeltaSyncOnLogout()) {
+                        deltaTracker.acknowledge(playerId, message.getSender(), lastSeen);
+                    }
+                    break;
+
                 case MAP_CREATED:
                     if (plugin.shouldSync(SyncType.MAPS)) {
                         int mapId = (int) message.read();
@@ -323,15 +1187,44 @@ public abstract class ServerMessenger {
                 case HELLO:
                     plugin.logDebug(message.getId() + " Received " + message.getType() + " from " + message.getSender() + " targeted at " + target);
                     servers.add(message.getSender());
-                    if (!getServerName().equalsIgnoreCase(target)) {
+                    if (!message.getData().isEmpty()) {
+                        String address = (String) message.read();
+                        if (!address.isEmpty()) {
+                            setPeerAddress(message.getSender(), address);
+                        }
+                    }
+                    if (message.getVersion() >= BinaryMessageCodec.VERSION) {
+                        // Older versions can't advertise one, don't forget what a newer copy of the HELLO said
+                        peerDictionaries.put(message.getSender(), message.getData().size() > 1 ? (int) message.read() : 0);
+                    }
+                    if (!getServerName().equalsIgnoreCase(target) && shouldAnswerHello(message.getSender(), message.getId())) {
                         // Only answer if we were targeted as a group, not if he replied to a single server
-                        sendMessage(message.getSender(), message.getId(), MessageType.HELLO);
+                        sendMessage(message.getSender(), message.getId(), MessageType.HELLO, getHelloArgs(getVersion(message.getSender())));
+                        if (knownPlayers != null) {
+                            knownPlayers.send(message.getSender());
+                        }
+                    }
+                    if (catchUp != null && message.getVersion() >= BinaryMessageCodec.VERSION && !getServerName().equalsIgnoreCase(target)) {
+                        // A server that just started, it might have got data that we missed while it was away
+                        catchUp.start(message.getSender());
                     }
                     break;
 
                 case BYE:
                     plugin.logDebug(message.getId() + "| Received " + message.getType() + " from " + message.getSender() + " targeted at " + target);
                     servers.remove(message.getSender());
+                    serverVersions.remove(message.getSender());
+                    helloAnswers.remove(message.getSender());
+                    deltaTracker.removeServer(message.getSender());
+                    sequenceWindows.remove(message.getSender());
+                    peerAddresses.remove(message.getSender());
+                    peerDictionaries.remove(message.getSender());
+                    if (knownPlayers != null) {
+                        knownPlayers.removePeer(message.getSender());
+                    }
+                    if (gossip != null) {
+                        gossip.removePeer(message.getSender());
+                    }
                     break;
 
                 default:
@@ -342,6 +1235,36 @@ public abstract class ServerMessenger {
         }
     }
 
+    /**
+     * Handle the last seen time of a player that another server responded with
+     * @param message   The LAST_SEEN or LAST_SEEN_BATCH message
+     * @param target    The target of the message
+     * @param playerId  The UUID of the player
+     * @param lastSeen  When the player was last seen on the sender
+     */
+    private void onLastSeen(Message message, String target, UUID playerId, long lastSeen) {
+        PlayerDataQuery query = queries.get(playerId);
+        if (query != null) {
+            if (query.getTimestamp() <= message.getId()) {
+                plugin.logDebug(message.getId() + " Received " + message.getType() + " with " + lastSeen + " for " + playerId + " from " + message.getSender() + " targeted at " + target);
+                query.addResponse(message.getSender(), lastSeen);
+
+                boolean completed;
+                synchronized (query) { // responses can be handled on multiple threads
+                    completed = !query.isCompleted() && isCompleted(query);
+                }
+                if (completed) { // All known servers responded
+                    plugin.logDebug("All servers in group:" + getServerGroup() + " responded to " + message.getType() + " query for " + playerId + "!");
+                    plugin.runSync(() -> completeQuery(query));
+                }
+            } else {
+                plugin.logDebug(message.getId() + " Received " + message.getType() + " for " + playerId + " from " + message.getSender() + " targeted at " + target + " but the query timestamp doesn't match! expected: " + query.getTimestamp() + " > received: " + message.getId());
+            }
+        } else { // No query was started? Why are we getting this message?
+            plugin.logDebug(message.getId() + " Received " + message.getType() + " for " + playerId + " from " + message.getSender() + " targeted at " + target + " BUT WE DIDN'T START A QUERY?!?!");
+        }
+    }
+
     private void completeQuery(PlayerDataQuery query) {
         query.stopTimeout();
         query.getOnComplete().accept(query);
@@ -388,8 +1311,72 @@ public abstract class ServerMessenger {
      * @param sync      Whether the message should be send sync or on its own thread
      */
     public void sendMessage(String target, Message message, boolean sync) {
-        plugin.logDebug(message.getId() + " Sending " + (sync ? "sync " : "") + message.getType() + " to " + target + " containing " + message.getData().size() + " objects.");
-        sendMessageImplementation(target, message, sync);
+        if (message.getVersion() == 0) {
+            message.setVersion(getVersion(target));
+        }
+        if (message.getTarget() == null) {
+            message.setTarget(target);
+        }
+        if (message.getSequence() == 0) {
+            message.setSequence(session, sequence.incrementAndGet());
+        }
+        plugin.logDebug(message.getId() + " Sending " + (sync ? "sync " : "") + message.getType() + " v" + message.getVersion() + " to " + target + " containing " + message.getData().size() + " objects.");
+        byte[] bytes;
+        try {
+            bytes = getCodec(message.getVersion()).encode(message);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error while encoding " + message.getType() + " message for " + target + "! ", e);
+            return;
+        }
+        if (message.getType() == MessageType.DATA && sendDirect(target, message.getVersion(), bytes, sync)) {
+            return;
+        }
+        sendMessageImplementation(target, message.getVersion(), bytes, sync);
+    }
+
+    /**
+     * Try to send a large message directly to the target server instead of through the messenger
+     * @param target    The name of the target server
+     * @param version   The version the message was encoded in
+     * @param bytes     The encoded message
+     * @param sync      Whether to wait for it to be sent
+     * @return          Whether it is sent directly, if it can't be sent later it will fall back to the messenger
+     */
+    private boolean sendDirect(String target, int version, byte[] bytes, boolean sync) {
+        InetSocketAddress address = peerAddresses.get(target);
+        if (directChannel == null || address == null || version < BinaryMessageCodec.VERSION || bytes.length < directMinSize) {
+            return false;
+        }
+        if (sync) {
+            try {
+                directChannel.send(address, bytes);
+                return true;
+            } catch (IOException e) {
+                plugin.logDebug("Unable to send message directly to " + target + ": " + e.getMessage());
+                return false;
+            }
+        }
+        directChannel.sendAsync(address, bytes, () -> sendMessageImplementation(target, version, bytes, false));
+        return true;
+    }
+
+    /**
+     * Remember the direct channel address that a server advertised
+     * @param server    The name of the server
+     * @param address   The address in the format host:port
+     */
+    private void setPeerAddress(String server, String address) {
+        int portStart = address.lastIndexOf(':');
+        if (portStart <= 0) {
+            plugin.logDebug(server + " advertised an invalid direct connection address " + address);
+            return;
+        }
+        try {
+            int port = Integer.parseInt(address.substring(portStart + 1));
+            peerAddresses.put(server, new InetSocketAddress(address.substring(0, portStart), port));
+        } catch (NumberFormatException e) {
+            plugin.logDebug(server + " advertised an invalid direct connection address " + address);
+        }
     }
 
     /**
@@ -411,7 +1398,72 @@ public abstract class ServerMessenger {
         sendMessage("group:" + getServerGroup(), message, sync);
     }
 
-    protected abstract void sendMessageImplementation(String target, Message message, boolean sync);
+    /**
+     * Send an encoded message through the messenger
+     * @param target    The target that the message is sent to
+     * @param version   The version the message was encoded in
+     * @param bytes     The encoded message
+     * @param sync      Whether the message should be send sync or on its own thread
+     */
+    protected abstract void sendMessageImplementation(String target, int version, byte[] bytes, boolean sync);
+
+    /**
+     * Send the data of a player that logged out to all servers of the group. If delta syncing is enabled
+     * and all servers understand it then only the changes against a version that most of them have are sent.
+     * @param data  The complete data of the player, might be turned into a delta
+     */
+    public void sendGroupData(PlayerData data) {
+        if (plugin.shouldDeltaSyncOnLogout() && getVersion("group:" + getServerGroup()) >= BinaryMessageCodec.VERSION) {
+            SectionHashes hashes = SectionHashes.of(data);
+            deltaTracker.recordVersion(data.getPlayerId(), data.getLastSeen(), hashes);
+            long baseVersion = deltaTracker.findBase(data.getPlayerId(), servers);
+            SectionHashes baseHashes = deltaTracker.getHashes(data.getPlayerId(), baseVersion);
+            if (baseVersion != 0 && baseVersion != data.getLastSeen() && baseHashes != null) {
+                data.makeDelta(baseVersion, baseHashes, hashes);
+                plugin.logDebug("Sending data of " + data.getPlayerId() + " as a delta against " + baseVersion + " containing sections " + Integer.toBinaryString(data.getIncludedSections()));
+            }
+        }
+        sendGroupMessage(System.currentTimeMillis(), MessageType.DATA, data);
+    }
+
+    /**
+     * Remember the version of data that was successfully applied and tell the group about it
+     * so that it can be used as the base for future deltas.
+     * @param data  The data that was applied
+     */
+    public void onDataApplied(PlayerData data) {
+        if (!plugin.shouldDeltaSyncOnLogout()) {
+            return;
+        }
+        SectionHashes hashes;
+        if (data.isDelta()) {
+            SectionHashes baseHashes = deltaTracker.getHashes(data.getPlayerId(), data.getBaseVersion());
+            if (baseHashes == null) {
+                // We don't know how the complete version looks like so we can't be used as a base
+                return;
+            }
+            hashes = baseHashes.applyDelta(data);
+        } else {
+            hashes = SectionHashes.of(data);
+        }
+        deltaTracker.recordVersion(data.getPlayerId(), data.getLastSeen(), hashes);
+        if (getVersion("group:" + getServerGroup()) >= BinaryMessageCodec.VERSION) {
+            sendGroupMessage(System.currentTimeMillis(), MessageType.DATA_ACK, data.getPlayerId(), data.getLastSeen());
+        }
+    }
+
+    /**
+     * Get the last seen time of the data of a player that this server has or is going to apply
+     * @param playerId  The UUID of the player
+     * @return The last seen time
+     */
+    private long getAppliedLastSeen(UUID playerId) {
+        long lastSeen = plugin.getLastSeen(playerId, false);
+        if (applyQueue != null) {
+            lastSeen = Math.max(lastSeen, applyQueue.getLastSeen(playerId));
+        }
+        return lastSeen;
+    }
 
     /**
      * Check whether or not a player has an active query
@@ -486,4 +1538,14 @@ public abstract class ServerMessenger {
             }
         }
     }
+
+    private static class HelloAnswer {
+        private final long id;
+        private final int version;
+
+        private HelloAnswer(long id, int version) {
+            this.id = id;
+            this.version = version;
+        }
+    }
 }
@@ -0,0 +1,54 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.codec.RedisCodec;
+import io.lettuce.core.codec.StringCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Redis codec with string keys and raw byte array values
+ */
+class StringByteArrayCodec implements RedisCodec<String, byte[]> {
+
+    private final StringCodec stringCodec = new StringCodec();
+    private final ByteArrayCodec byteArrayCodec = new ByteArrayCodec();
+
+    @Override
+    public String decodeKey(ByteBuffer bytes) {
+        return stringCodec.decodeKey(bytes);
+    }
+
+    @Override
+    public byte[] decodeValue(ByteBuffer bytes) {
+        return byteArrayCodec.decodeValue(bytes);
+    }
+
+    @Override
+    public ByteBuffer encodeKey(String key) {
+        return stringCodec.encodeKey(key);
+    }
+
+    @Override
+    public ByteBuffer encodeValue(byte[] value) {
+        return byteArrayCodec.encodeValue(value);
+    }
+}
@@ -0,0 +1,192 @@
+package de.minebench.syncinv;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LastSeenStoreTest {
+    /**
+     * More than fit into the smallest table so that it has to grow
+     */
+    private static final int GROW_PLAYERS = 20000;
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void putAndGet() throws IOException {
+        LastSeenStore store = new LastSeenStore(folder.resolve("lastseen.dat"), 0);
+        try {
+            assertTrue(store.isCreated());
+            assertFalse(store.isInMemory());
+            UUID playerId = UUID.randomUUID();
+            assertEquals(0, store.get(playerId));
+
+            store.put(playerId, 1000);
+            assertEquals(1000, store.get(playerId));
+            store.put(playerId, 2000);
+            assertEquals(2000, store.get(playerId));
+
+            assertFalse(store.putIfAbsent(playerId, 3000));
+            assertEquals(2000, store.get(playerId));
+            UUID otherId = UUID.randomUUID();
+            assertTrue(store.putIfAbsent(otherId, 3000));
+            assertEquals(3000, store.get(otherId));
+            assertEquals(2, store.size());
+
+            assertThrows(IllegalArgumentException.class, () -> store.put(new UUID(0, 0), 1));
+            assertThrows(IllegalArgumentException.class, () -> store.put(new UUID(0, 1), 1));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void reopen() throws IOException {
+        Path file = folder.resolve("lastseen.dat");
+        Map<UUID, Long> expected = fill(new LastSeenStore(file, 0), 100, true);
+
+        LastSeenStore reopened = new LastSeenStore(file, 0);
+        try {
+            assertFalse(reopened.isCreated());
+            assertStored(reopened, expected);
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void growAndReopen() throws IOException {
+        Path file = folder.resolve("lastseen.dat");
+        long initialSize;
+        LastSeenStore store = new LastSeenStore(file, 0);
+        initialSize = Files.size(file);
+        Map<UUID, Long> expected = fill(store, GROW_PLAYERS, true);
+
+        assertTrue(Files.size(file) > initialSize);
+        assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".tmp")));
+
+        LastSeenStore reopened = new LastSeenStore(file, 0);
+        try {
+            assertStored(reopened, expected);
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void growInMemory() throws IOException {
+        LastSeenStore store = new LastSeenStore(0);
+        assertTrue(store.isInMemory());
+        Map<UUID, Long> expected = fill(store, GROW_PLAYERS, false);
+        assertStored(store, expected);
+    }
+
+    @Test
+    void forEachLastSeen() throws IOException {
+        LastSeenStore store = new LastSeenStore(0);
+        Map<UUID, Long> expected = fill(store, 500, false);
+        Map<UUID, Long> found = new HashMap<>();
+        store.forEachLastSeen(found::put);
+        assertEquals(expected, found);
+    }
+
+    @Test
+    void invalidFile() throws IOException {
+        Path file = folder.resolve("invalid.dat");
+        Files.write(file, new byte[128]);
+        assertThrows(IOException.class, () -> new LastSeenStore(file, 0));
+
+        Path tooSmall = folder.resolve("small.dat");
+        Files.write(tooSmall, new byte[8]);
+        assertThrows(IOException.class, () -> new LastSeenStore(tooSmall, 0));
+    }
+
+    @Test
+    void truncatedFile() throws IOException {
+        Path file = folder.resolve("lastseen.dat");
+        fill(new LastSeenStore(file, 0), 10, true);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 24));
+        assertThrows(IOException.class, () -> new LastSeenStore(file, 0));
+    }
+
+    @Test
+    void tornRecord() throws IOException {
+        Path file = folder.resolve("lastseen.dat");
+        Map<UUID, Long> expected = fill(new LastSeenStore(file, 0), 10, true);
+
+        // A record whose key was only written partly when the server crashed
+        byte[] bytes = Files.readAllBytes(file);
+        int offset = 64;
+        while (!Arrays.equals(bytes, offset, offset + 8, new byte[8], 0, 8)) {
+            offset += 24;
+        }
+        Arrays.fill(bytes, offset + 8, offset + 24, (byte) 1);
+        Files.write(file, bytes);
+
+        LastSeenStore reopened = new LastSeenStore(file, 0);
+        try {
+            assertStored(reopened, expected);
+            Map<UUID, Long> found = new HashMap<>();
+            reopened.forEachLastSeen(found::put);
+            assertEquals(expected, found);
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private static Map<UUID, Long> fill(LastSeenStore store, int players, boolean close) throws IOException {
+        Map<UUID, Long> expected = new HashMap<>();
+        try {
+            for (int i = 1; i <= players; i++) {
+                UUID playerId = UUID.randomUUID();
+                store.put(playerId, i);
+                expected.put(playerId, (long) i);
+            }
+            assertStored(store, expected);
+        } finally {
+            if (close) {
+                store.close();
+            }
+        }
+        return expected;
+    }
+
+    private static void assertStored(LastSeenStore store, Map<UUID, Long> expected) {
+        assertEquals(expected.size(), store.size());
+        for (Map.Entry<UUID, Long> entry : expected.entrySet()) {
+            assertEquals((long) entry.getValue(), store.get(entry.getKey()), "Last seen of " + entry.getKey());
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package de.minebench.syncinv;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.minebench.syncinv.messenger.BinaryReader;
+import de.minebench.syncinv.messenger.BinaryWriter;
+import org.bukkit.GameMode;
+import org.bukkit.Material;
+import org.bukkit.Statistic;
+import org.bukkit.entity.EntityType;
+import org.bukkit.util.io.BukkitObjectInputStream;
+import org.bukkit.util.io.BukkitObjectOutputStream;
+import org.bukkit.util.Vector;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PlayerDataTest {
+
+    static PlayerData createData(long lastSeen) {
+        byte[][] inventory = new byte[41][];
+        inventory[0] = new byte[]{1, 2, 3};
+        inventory[40] = new byte[]{4, 5};
+        byte[][] enderchest = new byte[27][];
+        enderchest[13] = new byte[]{6};
+        PlayerData data = new PlayerData(lastSeen, 4440, UUID.randomUUID(), "Phoenix616", GameMode.SURVIVAL, 1395, 30, 0.5f,
+                inventory, enderchest, new ArrayList<>(), 20, 17.5, 18, 4.5f, 0.25f, 300, 280, -20, 1.5f,
+                new Vector(0.1, -0.2, 0.3), 4);
+        data.setPersistentData(new byte[]{10, 11, 12});
+        Map<String, Long> criteria = new HashMap<>();
+        criteria.put("has_stone", 1700000000000L);
+        criteria.put("has_iron", 1700000123000L);
+        data.getAdvancementProgress().put("minecraft:story/mine_stone", criteria);
+        data.getStatistics().set(Statistic.JUMP, 42);
+        data.getStatistics().set(Statistic.MINE_BLOCK, Material.STONE, 7);
+        data.getStatistics().set(Statistic.KILL_ENTITY, EntityType.ZOMBIE, 3);
+        return data;
+    }
+
+    private static byte[] write(PlayerData data) {
+        BinaryWriter out = new BinaryWriter();
+        data.write(out);
+        return out.toByteArray();
+    }
+
+    private static void assertSameData(PlayerData expected, PlayerData actual) {
+        assertEquals(expected.getTimeStamp(), actual.getTimeStamp());
+        assertEquals(expected.getLastSeen(), actual.getLastSeen());
+        assertEquals(expected.getDataVersion(), actual.getDataVersion());
+        assertEquals(expected.getPlayerId(), actual.getPlayerId());
+        assertEquals(expected.getPlayerName(), actual.getPlayerName());
+        assertEquals(expected.getGamemode(), actual.getGamemode());
+        assertEquals(expected.getTotalExperience(), actual.getTotalExperience());
+        assertEquals(expected.getLevel(), actual.getLevel());
+        assertEquals(expected.getExp(), actual.getExp());
+        assertEquals(expected.getHealth(), actual.getHealth());
+        assertEquals(expected.getFoodLevel(), actual.getFoodLevel());
+        assertEquals(expected.getFireTicks(), actual.getFireTicks());
+        assertEquals(expected.getVelocity(), actual.getVelocity());
+        assertEquals(expected.getHeldItemSlot(), actual.getHeldItemSlot());
+        assertEquals(expected.getInventory().length, actual.getInventory().length);
+        for (int i = 0; i < expected.getInventory().length; i++) {
+            assertArrayEquals(expected.getInventory()[i], actual.getInventory()[i]);
+        }
+        assertEquals(expected.getEnderchest().length, actual.getEnderchest().length);
+        for (int i = 0; i < expected.getEnderchest().length; i++) {
+            assertArrayEquals(expected.getEnderchest()[i], actual.getEnderchest()[i]);
+        }
+        assertArrayEquals(expected.getPersistentData(), actual.getPersistentData());
+        assertEquals(expected.getAdvancementProgress(), actual.getAdvancementProgress());
+        assertEquals(expected.getStatistics().toTable(), actual.getStatistics().toTable());
+    }
+
+    @Test
+    void binaryRoundTrip() throws IOException {
+        PlayerData data = createData(1700000200000L);
+        BinaryReader in = new BinaryReader(write(data));
+        PlayerData read = PlayerData.read(in);
+        assertFalse(in.hasRemaining());
+        assertFalse(read.isDelta());
+        assertSameData(data, read);
+    }
+
+    @Test
+    void legacyRoundTrip() throws IOException, ClassNotFoundException {
+        PlayerData data = createData(1700000200000L);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BukkitObjectOutputStream out = new BukkitObjectOutputStream(bytes)) {
+            out.writeObject(data);
+        }
+        PlayerData read;
+        try (BukkitObjectInputStream in = new BukkitObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            read = (PlayerData) in.readObject();
+        }
+        assertSameData(data, read);
+    }
+
+    @Test
+    void excludedSectionRoundTrip() throws IOException {
+        PlayerData data = createData(1700000200000L);
+        data.getAdvancementProgress().clear();
+        data.excludeSection(DataSection.ADVANCEMENTS);
+        PlayerData read = PlayerData.read(new BinaryReader(write(data)));
+        assertFalse(read.isDelta());
+        assertFalse(read.hasSection(DataSection.ADVANCEMENTS));
+        assertTrue(read.hasSection(DataSection.INVENTORY));
+
+        // Captured advancements without any awarded criteria
+        PlayerData revoked = createData(1700000200000L);
+        revoked.getAdvancementProgress().clear();
+        assertTrue(PlayerData.read(new BinaryReader(write(revoked))).hasSection(DataSection.ADVANCEMENTS));
+    }
+
+    @Test
+    void legacyWithoutAdvancements() throws IOException, ClassNotFoundException {
+        PlayerData data = createData(1700000200000L);
+        data.getAdvancementProgress().clear();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BukkitObjectOutputStream out = new BukkitObjectOutputStream(bytes)) {
+            out.writeObject(data);
+        }
+        PlayerData read;
+        try (BukkitObjectInputStream in = new BukkitObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            read = (PlayerData) in.readObject();
+        }
+        // Older versions left the advancements out when they didn't sync them
+        assertFalse(read.hasSection(DataSection.ADVANCEMENTS));
+    }
+
+    @Test
+    void unknownSectionsAreSkipped() throws IOException {
+        PlayerData data = createData(1700000200000L);
+        BinaryWriter out = new BinaryWriter();
+        data.write(out);
+        int section = out.beginSection(1000);
+        out.writeString("from a newer version");
+        out.endSection(section);
+        assertSameData(data, PlayerData.read(new BinaryReader(out.toByteArray())));
+    }
+
+    @Test
+    void truncated() {
+        byte[] bytes = write(createData(1700000200000L));
+        // Cutting off the end of the last section or the core section always breaks the data
+        for (int length : new int[]{0, 1, 5, 20, 100, bytes.length - 1}) {
+            byte[] truncated = Arrays.copyOf(bytes, length);
+            assertThrows(IOException.class, () -> PlayerData.read(new BinaryReader(truncated)), "Reading " + length + " of " + bytes.length + " bytes");
+        }
+    }
+
+    @Test
+    void oversizedItemCount() {
+        BinaryWriter out = new BinaryWriter();
+        createData(1700000200000L).write(out);
+        // An inventory section that claims to contain more items than there are bytes
+        int section = out.beginSection(2);
+        out.writeVarInt(Integer.MAX_VALUE);
+        out.endSection(section);
+        byte[] bytes = out.toByteArray();
+        assertThrows(IOException.class, () -> PlayerData.read(new BinaryReader(bytes)));
+    }
+
+    @Test
+    void oversizedSectionLength() {
+        byte[] bytes = write(createData(1700000200000L));
+        // The length of the core section directly follows its id
+        bytes[1] = (byte) 0x7F;
+        assertThrows(IOException.class, () -> PlayerData.read(new BinaryReader(bytes)));
+    }
+
+    @Test
+    void missingCoreSection() {
+        BinaryWriter out = new BinaryWriter();
+        int section = out.beginSection(2);
+        out.writeVarInt(0);
+        out.endSection(section);
+        assertThrows(IOException.class, () -> PlayerData.read(new BinaryReader(out.toByteArray())));
+    }
+
+    @Test
+    void emptyDataRoundTrip() throws IOException {
+        PlayerData data = new PlayerData(0, 4440, UUID.randomUUID(), null, null, 0, 0, 0,
+                new byte[0][], new byte[0][], new ArrayList<>(), 20, 20, 20, 5, 0, 300, 300, 0, 0,
+                new Vector(), 0);
+        PlayerData read = PlayerData.read(new BinaryReader(write(data)));
+        assertNull(read.getPlayerName());
+        assertNull(read.getGamemode());
+        assertNull(read.getPersistentData());
+        assertEquals(0, read.getStatistics().size());
+        assertSameData(data, read);
+    }
+}
@@ -0,0 +1,145 @@
+package de.minebench.syncinv;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import de.minebench.syncinv.messenger.BinaryReader;
+import de.minebench.syncinv.messenger.BinaryWriter;
+import org.bukkit.Statistic;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SectionHashesTest {
+
+    /**
+     * Create a newer version of the data from {@link PlayerDataTest#createData(long)} with
+     * a changed inventory slot, a new advancement and a changed statistic
+     */
+    private static PlayerData createChangedData(long lastSeen) {
+        PlayerData data = PlayerDataTest.createData(lastSeen);
+        data.getInventory()[5] = new byte[]{7, 8, 9};
+        data.getAdvancementProgress().put("minecraft:story/smelt_iron", Collections.singletonMap("iron", 1700000300000L));
+        data.getStatistics().set(Statistic.JUMP, 43);
+        return data;
+    }
+
+    @Test
+    void sameDataHasSameHashes() {
+        SectionHashes hashes = SectionHashes.of(PlayerDataTest.createData(1000));
+        SectionHashes other = SectionHashes.of(PlayerDataTest.createData(2000));
+        assertEquals(0, hashes.getChangedSections(other));
+        assertEquals(0, hashes.getChangedInventorySlots(other));
+        assertEquals(0, hashes.getChangedEnderchestSlots(other));
+    }
+
+    @Test
+    void deltaOnlyContainsChanges() {
+        SectionHashes baseHashes = SectionHashes.of(PlayerDataTest.createData(1000));
+        PlayerData current = createChangedData(2000);
+        SectionHashes currentHashes = SectionHashes.of(current);
+        current.makeDelta(1000, baseHashes, currentHashes);
+
+        assertTrue(current.isDelta());
+        assertEquals(1000, current.getBaseVersion());
+        assertEquals(DataSection.INVENTORY.getBit() | DataSection.ADVANCEMENTS.getBit() | DataSection.STATISTICS.getBit(), current.getIncludedSections());
+        assertEquals(1L << 5, current.getInventoryMask());
+        assertEquals(0, current.getEnderchestMask());
+        assertNull(current.getInventory()[0]);
+        assertNull(current.getPersistentData());
+    }
+
+    @Test
+    void applyDeltaToBase() throws IOException {
+        SectionHashes baseHashes = SectionHashes.of(PlayerDataTest.createData(1000));
+        PlayerData current = createChangedData(2000);
+        SectionHashes currentHashes = SectionHashes.of(current);
+        current.makeDelta(1000, baseHashes, currentHashes);
+
+        SectionHashes applied = baseHashes.applyDelta(current);
+        assertEquals(0, applied.getChangedSections(currentHashes));
+        assertEquals(0, applied.getChangedInventorySlots(currentHashes));
+        assertEquals(0, applied.getChangedEnderchestSlots(currentHashes));
+
+        // The receiving servers only get the serialized delta
+        BinaryWriter out = new BinaryWriter();
+        current.write(out);
+        PlayerData read = PlayerData.read(new BinaryReader(out.toByteArray()));
+        assertTrue(read.isDelta());
+        assertEquals(1000, read.getBaseVersion());
+        assertEquals(current.getIncludedSections(), read.getIncludedSections());
+        assertEquals(current.getInventoryMask(), read.getInventoryMask());
+        assertEquals(0, baseHashes.applyDelta(read).getChangedSections(currentHashes));
+    }
+
+    @Test
+    void applyDeltaToOtherBase() {
+        PlayerData base = PlayerDataTest.createData(1000);
+        PlayerData otherBase = PlayerDataTest.createData(1500);
+        otherBase.getEnderchest()[0] = new byte[]{42};
+        otherBase.setPersistentData(new byte[]{13});
+        PlayerData current = createChangedData(2000);
+        SectionHashes currentHashes = SectionHashes.of(current);
+        current.makeDelta(1000, SectionHashes.of(base), currentHashes);
+
+        // The delta doesn't contain the sections that differ between the two bases
+        SectionHashes applied = SectionHashes.of(otherBase).applyDelta(current);
+        assertEquals(DataSection.ENDERCHEST.getBit() | DataSection.PERSISTENT_DATA.getBit(), applied.getChangedSections(currentHashes));
+        assertEquals(1L, applied.getChangedEnderchestSlots(currentHashes));
+    }
+
+    @Test
+    void unchangedData() {
+        PlayerData current = PlayerDataTest.createData(2000);
+        SectionHashes hashes = SectionHashes.of(current);
+        current.makeDelta(1000, SectionHashes.of(PlayerDataTest.createData(1000)), hashes);
+        assertTrue(current.isDelta());
+        assertEquals(0, current.getIncludedSections());
+        for (byte[] item : current.getInventory()) {
+            assertNull(item);
+        }
+        assertEquals(0, current.getStatistics().size());
+        assertTrue(current.getAdvancementProgress().isEmpty());
+    }
+
+    @Test
+    void inventorySizeChange() {
+        PlayerData base = PlayerDataTest.createData(1000);
+        SectionHashes baseHashes = SectionHashes.of(base);
+        PlayerData current = new PlayerData(2000, base.getDataVersion(), base.getPlayerId(), base.getPlayerName(), base.getGamemode(),
+                base.getTotalExperience(), base.getLevel(), base.getExp(), new byte[36][], base.getEnderchest().clone(), base.getPotionEffects(),
+                base.getMaxHealth(), base.getHealth(), base.getFoodLevel(), base.getSaturation(), base.getExhaustion(),
+                base.getMaxAir(), base.getRemainingAir(), base.getFireTicks(), base.getFallDistance(), base.getVelocity(), base.getHeldItemSlot());
+        SectionHashes currentHashes = SectionHashes.of(current);
+        assertEquals(-1, currentHashes.getChangedInventorySlots(baseHashes));
+
+        current.makeDelta(1000, baseHashes, currentHashes);
+        assertTrue(current.hasSection(DataSection.INVENTORY));
+        assertFalse(current.hasSection(DataSection.ENDERCHEST));
+        assertEquals(-1, current.getInventoryMask());
+        assertEquals(0, baseHashes.applyDelta(current).getChangedInventorySlots(currentHashes));
+        assertEquals(0, baseHashes.applyDelta(current).getChangedSections(currentHashes));
+    }
+}
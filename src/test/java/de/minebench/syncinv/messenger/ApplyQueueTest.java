@@ -0,0 +1,135 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import de.minebench.syncinv.PlayerData;
+import de.minebench.syncinv.SyncInv;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ApplyQueueTest {
+    private static final long WINDOW = 100;
+
+    private final SyncInv plugin = mock(SyncInv.class);
+    private final ApplyQueue queue = new ApplyQueue(plugin, mock(ServerMessenger.class), WINDOW);
+    private final UUID playerId = UUID.randomUUID();
+
+    @AfterEach
+    void shutdown() {
+        queue.shutdown();
+    }
+
+    private PlayerData createData(long lastSeen, boolean delta) {
+        PlayerData data = mock(PlayerData.class);
+        when(data.getPlayerId()).thenReturn(playerId);
+        when(data.getLastSeen()).thenReturn(lastSeen);
+        when(data.getTimeStamp()).thenReturn(lastSeen);
+        when(data.isDelta()).thenReturn(delta);
+        return data;
+    }
+
+    @Test
+    void appliedAfterWindow() {
+        PlayerData data = createData(1000, false);
+        Runnable finished = mock(Runnable.class);
+        queue.add(data, finished);
+        assertEquals(1000, queue.getLastSeen(playerId));
+        verify(plugin, after(WINDOW / 2).never()).applyData(any(), any());
+        verify(plugin, timeout(WINDOW * 10)).applyData(data, finished);
+        assertEquals(0, queue.getLastSeen(playerId));
+    }
+
+    @Test
+    void newerCompleteReplacesPending() {
+        PlayerData older = createData(1000, false);
+        PlayerData newer = createData(2000, false);
+        queue.add(older, null);
+        queue.add(newer, null);
+        assertEquals(2000, queue.getLastSeen(playerId));
+
+        verify(plugin, timeout(WINDOW * 10)).applyData(eq(newer), any());
+        verify(plugin, after(WINDOW * 2).never()).applyData(eq(older), any());
+        assertEquals("Apply queue: 2 received, 1 applied, 1 coalesced, 0 waiting", queue.getStats());
+    }
+
+    @Test
+    void olderDataIsDropped() {
+        PlayerData newer = createData(2000, false);
+        PlayerData older = createData(1000, false);
+        queue.add(newer, null);
+        queue.add(older, null);
+        assertEquals(2000, queue.getLastSeen(playerId));
+
+        verify(plugin, timeout(WINDOW * 10)).applyData(eq(newer), any());
+        verify(plugin, after(WINDOW * 2).never()).applyData(eq(older), any());
+        assertEquals("Apply queue: 2 received, 1 applied, 1 coalesced, 0 waiting", queue.getStats());
+    }
+
+    @Test
+    void deltaFlushesPendingComplete() {
+        PlayerData complete = createData(1000, false);
+        PlayerData delta = createData(2000, true);
+        queue.add(complete, null);
+        queue.add(delta, null);
+
+        // The version the delta is based on gets applied right away, the delta only after the window
+        verify(plugin).applyData(eq(complete), any());
+        verify(plugin, never()).applyData(eq(delta), any());
+        assertEquals(2000, queue.getLastSeen(playerId));
+
+        InOrder order = inOrder(plugin);
+        order.verify(plugin).applyData(eq(complete), any());
+        order.verify(plugin, timeout(WINDOW * 10)).applyData(eq(delta), any());
+        assertEquals("Apply queue: 2 received, 2 applied, 0 coalesced, 0 waiting", queue.getStats());
+    }
+
+    @Test
+    void discard() {
+        queue.add(createData(1000, false), null);
+        queue.discard(playerId);
+        assertEquals(0, queue.getLastSeen(playerId));
+        verify(plugin, after(WINDOW * 2).never()).applyData(any(), any());
+        assertEquals("Apply queue: 1 received, 0 applied, 1 coalesced, 0 waiting", queue.getStats());
+    }
+
+    @Test
+    void shutdownAppliesPending() {
+        PlayerData data = createData(1000, false);
+        queue.add(data, null);
+        assertEquals("Apply queue: 1 received, 0 applied, 0 coalesced, 1 waiting", queue.getStats());
+        queue.shutdown();
+        verify(plugin).applyData(eq(data), any());
+        assertEquals("Apply queue: 1 received, 1 applied, 0 coalesced, 0 waiting", queue.getStats());
+    }
+}
@@ -0,0 +1,99 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BinaryMessageCodecTest {
+    private static final byte[] DICTIONARY = "minecraft:story/mine_stone minecraft:story/smelt_iron has_stone has_iron".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] OTHER_DICTIONARY = "minecraft:adventure/kill_a_mob minecraft:adventure/trade".getBytes(StandardCharsets.UTF_8);
+
+    private static Message createMessage(String target) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            text.append("minecraft:story/mine_stone has_stone ").append(i).append(' ');
+        }
+        Message message = new Message("lobby", 1, MessageType.HELLO, text.toString(), 0);
+        message.setTarget(target);
+        return message;
+    }
+
+    private static String decodeText(MessageCodec codec, byte[] bytes) throws Exception {
+        Message message = codec.decode(bytes);
+        return (String) message.read();
+    }
+
+    @Test
+    void dictionaryId() {
+        assertEquals(0, BinaryMessageCodec.getDictionaryId(null));
+        assertNotEquals(0, BinaryMessageCodec.getDictionaryId(DICTIONARY));
+        assertNotEquals(BinaryMessageCodec.getDictionaryId(DICTIONARY), BinaryMessageCodec.getDictionaryId(OTHER_DICTIONARY));
+        assertEquals(BinaryMessageCodec.getDictionaryId(DICTIONARY), new BinaryMessageCodec(16, DICTIONARY, null).getDictionaryId());
+    }
+
+    @Test
+    void sameDictionary() throws Exception {
+        Message message = createMessage("survival");
+        String text = (String) new ArrayList<>(message.getData()).get(0);
+        BinaryMessageCodec codec = new BinaryMessageCodec(16, DICTIONARY, target -> true);
+        byte[] bytes = codec.encode(message);
+        assertEquals(text, decodeText(new BinaryMessageCodec(16, DICTIONARY, null), bytes));
+    }
+
+    @Test
+    void differentDictionary() throws Exception {
+        byte[] bytes = new BinaryMessageCodec(16, DICTIONARY, target -> true).encode(createMessage("survival"));
+        assertThrows(IOException.class, () -> decodeText(new BinaryMessageCodec(16, OTHER_DICTIONARY, null), bytes));
+        assertThrows(IOException.class, () -> decodeText(new BinaryMessageCodec(), bytes));
+    }
+
+    @Test
+    void targetWithoutDictionary() throws Exception {
+        List<String> targets = new ArrayList<>();
+        BinaryMessageCodec codec = new BinaryMessageCodec(16, DICTIONARY, target -> {
+            targets.add(target);
+            return false;
+        });
+        Message message = createMessage("creative");
+        String text = (String) new ArrayList<>(message.getData()).get(0);
+        byte[] bytes = codec.encode(message);
+        assertEquals("creative", targets.get(0));
+        // Compressed without the dictionary so that every server can read it
+        assertEquals(text, decodeText(new BinaryMessageCodec(), bytes));
+        assertEquals(text, decodeText(new BinaryMessageCodec(16, OTHER_DICTIONARY, null), bytes));
+    }
+
+    @Test
+    void uncompressed() throws Exception {
+        Message message = createMessage("survival");
+        String text = (String) new ArrayList<>(message.getData()).get(0);
+        byte[] bytes = new BinaryMessageCodec().encode(message);
+        assertEquals(text, decodeText(new BinaryMessageCodec(16, DICTIONARY, null), bytes));
+    }
+}
@@ -0,0 +1,173 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinaryReaderTest {
+
+    @Test
+    void roundTrip() throws IOException {
+        UUID uuid = UUID.randomUUID();
+        BinaryWriter out = new BinaryWriter(4);
+        out.writeByte(-5);
+        out.writeBoolean(true);
+        out.writeInt(Integer.MIN_VALUE);
+        out.writeLong(Long.MAX_VALUE);
+        out.writeFloat(1.5f);
+        out.writeDouble(-0.25);
+        out.writeVarInt(300);
+        out.writeVarInt(-1);
+        out.writeSignedVarInt(-300);
+        out.writeVarLong(Long.MIN_VALUE);
+        out.writeSignedVarLong(-1);
+        out.writeUuid(uuid);
+        out.writeString("äöü SyncInv");
+        out.writeNullableString(null);
+        out.writeNullableString("");
+        out.writeBytes(new byte[]{1, 2, 3});
+        out.writeNullableBytes(null);
+
+        BinaryReader in = new BinaryReader(out.toByteArray());
+        assertEquals(-5, in.readByte());
+        assertTrue(in.readBoolean());
+        assertEquals(Integer.MIN_VALUE, in.readInt());
+        assertEquals(Long.MAX_VALUE, in.readLong());
+        assertEquals(1.5f, in.readFloat());
+        assertEquals(-0.25, in.readDouble());
+        assertEquals(300, in.readVarInt());
+        assertEquals(-1, in.readVarInt());
+        assertEquals(-300, in.readSignedVarInt());
+        assertEquals(Long.MIN_VALUE, in.readVarLong());
+        assertEquals(-1, in.readSignedVarLong());
+        assertEquals(uuid, in.readUuid());
+        assertEquals("äöü SyncInv", in.readString());
+        assertNull(in.readNullableString());
+        assertEquals("", in.readNullableString());
+        assertArrayEquals(new byte[]{1, 2, 3}, in.readBytes());
+        assertNull(in.readNullableBytes());
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    void sections() throws IOException {
+        BinaryWriter out = new BinaryWriter();
+        int section = out.beginSection(1);
+        out.writeString("known");
+        out.endSection(section);
+        section = out.beginSection(42);
+        out.writeLong(1234);
+        out.endSection(section);
+        out.writeVarInt(7);
+
+        BinaryReader in = new BinaryReader(out.toByteArray());
+        assertEquals(1, in.readVarInt());
+        assertEquals("known", in.readSection().readString());
+        assertEquals(42, in.readVarInt());
+        // Unknown sections can be skipped without reading them
+        in.readSection();
+        assertEquals(7, in.readVarInt());
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    void sectionReaderIsLimited() throws IOException {
+        BinaryWriter out = new BinaryWriter();
+        int section = out.beginSection(1);
+        out.writeInt(1);
+        out.endSection(section);
+        out.writeInt(2);
+
+        BinaryReader in = new BinaryReader(out.toByteArray());
+        in.readVarInt();
+        BinaryReader sectionReader = in.readSection();
+        assertEquals(1, sectionReader.readInt());
+        assertThrows(EOFException.class, sectionReader::readInt);
+        assertEquals(2, in.readInt());
+    }
+
+    @Test
+    void truncated() {
+        BinaryWriter out = new BinaryWriter();
+        out.writeString("truncated string");
+        out.writeLong(1);
+        byte[] bytes = out.toByteArray();
+        for (int length = 0; length < bytes.length; length++) {
+            BinaryReader in = new BinaryReader(Arrays.copyOf(bytes, length));
+            assertThrows(IOException.class, () -> {
+                in.readString();
+                in.readLong();
+            }, "Reading " + length + " of " + bytes.length + " bytes");
+        }
+    }
+
+    @Test
+    void oversizedLengths() {
+        BinaryWriter out = new BinaryWriter();
+        out.writeVarInt(Integer.MAX_VALUE);
+        out.writeRawBytes(new byte[16], 0, 16);
+        byte[] bytes = out.toByteArray();
+
+        assertThrows(EOFException.class, () -> new BinaryReader(bytes).readString());
+        assertThrows(EOFException.class, () -> new BinaryReader(bytes).readBytes());
+        assertThrows(IOException.class, () -> new BinaryReader(bytes).readLength());
+
+        // Starting at an offset so that position + length overflows
+        BinaryReader offsetReader = new BinaryReader(bytes, 1, bytes.length - 1);
+        assertThrows(EOFException.class, () -> offsetReader.readRawBytes(Integer.MAX_VALUE));
+
+        BinaryWriter sectionOut = new BinaryWriter();
+        sectionOut.writeVarInt(1);
+        sectionOut.writeInt(Integer.MAX_VALUE);
+        BinaryReader sectionIn = new BinaryReader(sectionOut.toByteArray());
+        assertThrows(EOFException.class, () -> {
+            sectionIn.readVarInt();
+            sectionIn.readSection();
+        });
+    }
+
+    @Test
+    void negativeLengths() {
+        BinaryWriter out = new BinaryWriter();
+        out.writeVarInt(-1);
+        byte[] bytes = out.toByteArray();
+        assertThrows(EOFException.class, () -> new BinaryReader(bytes).readString());
+        assertThrows(IOException.class, () -> new BinaryReader(bytes).readLength());
+    }
+
+    @Test
+    void tooLongVarInt() {
+        byte[] bytes = new byte[10];
+        Arrays.fill(bytes, (byte) 0x80);
+        assertThrows(IOException.class, () -> new BinaryReader(bytes).readVarInt());
+        assertThrows(IOException.class, () -> new BinaryReader(bytes).readVarLong());
+    }
+}
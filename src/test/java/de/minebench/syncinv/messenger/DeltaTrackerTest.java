@@ -0,0 +1,115 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+import de.minebench.syncinv.SectionHashes;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class DeltaTrackerTest {
+    private static final List<String> SERVERS = Arrays.asList("lobby", "survival", "creative");
+
+    private final DeltaTracker tracker = new DeltaTracker();
+    private final UUID playerId = UUID.randomUUID();
+
+    private SectionHashes record(long version) {
+        SectionHashes hashes = Mockito.mock(SectionHashes.class);
+        tracker.recordVersion(playerId, version, hashes);
+        return hashes;
+    }
+
+    @Test
+    void unknownPlayer() {
+        assertEquals(0, tracker.findBase(playerId, SERVERS));
+        assertNull(tracker.getHashes(playerId, 1000));
+    }
+
+    @Test
+    void baseKnownByMostServers() {
+        SectionHashes hashes = record(1000);
+        record(2000);
+        tracker.acknowledge(playerId, "lobby", 1000);
+        tracker.acknowledge(playerId, "survival", 1000);
+        tracker.acknowledge(playerId, "creative", 2000);
+        assertEquals(1000, tracker.findBase(playerId, SERVERS));
+        assertSame(hashes, tracker.getHashes(playerId, 1000));
+        assertEquals(0, tracker.findBase(playerId, Collections.emptyList()));
+    }
+
+    @Test
+    void tiesPreferNewerVersion() {
+        record(1000);
+        record(2000);
+        tracker.acknowledge(playerId, "lobby", 1000);
+        tracker.acknowledge(playerId, "survival", 2000);
+        assertEquals(2000, tracker.findBase(playerId, Arrays.asList("lobby", "survival")));
+    }
+
+    @Test
+    void notEnoughServersHaveBase() {
+        record(1000);
+        tracker.acknowledge(playerId, "lobby", 1000);
+        assertEquals(0, tracker.findBase(playerId, SERVERS));
+    }
+
+    @Test
+    void acknowledgementsOnlyIncrease() {
+        record(1000);
+        record(2000);
+        tracker.acknowledge(playerId, "lobby", 2000);
+        tracker.acknowledge(playerId, "lobby", 1000);
+        assertEquals(2000, tracker.findBase(playerId, Collections.singletonList("lobby")));
+    }
+
+    @Test
+    void unknownHashesAreNoBase() {
+        record(1000);
+        tracker.acknowledge(playerId, "lobby", 1000);
+        tracker.acknowledge(playerId, "survival", 1000);
+        for (long version = 2000; version <= 5000; version += 1000) {
+            record(version);
+        }
+        // Only the last few versions are remembered
+        assertNull(tracker.getHashes(playerId, 1000));
+        assertEquals(0, tracker.findBase(playerId, SERVERS));
+    }
+
+    @Test
+    void removeServer() {
+        record(1000);
+        tracker.acknowledge(playerId, "lobby", 1000);
+        tracker.acknowledge(playerId, "survival", 1000);
+        List<String> servers = Arrays.asList("lobby", "survival");
+        assertEquals(1000, tracker.findBase(playerId, servers));
+        tracker.removeServer("lobby");
+        assertEquals(1000, tracker.findBase(playerId, servers));
+        tracker.removeServer("survival");
+        assertEquals(0, tracker.findBase(playerId, servers));
+    }
+}
@@ -0,0 +1,181 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import de.minebench.syncinv.LastSeenIndex;
+import de.minebench.syncinv.SyncInv;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class KnownPlayersTest {
+    private static final String GROUP = "group:survival";
+    private static final Funnel<UUID> UUID_FUNNEL = (uuid, into) -> into
+            .putLong(uuid.getMostSignificantBits())
+            .putLong(uuid.getLeastSignificantBits());
+
+    private final SyncInv plugin = mock(SyncInv.class);
+    private final ServerMessenger messenger = mock(ServerMessenger.class);
+    private final KnownPlayers knownPlayers;
+    private final UUID known = UUID.randomUUID();
+    private final UUID unknown = UUID.randomUUID();
+
+    KnownPlayersTest() {
+        when(plugin.getConfig()).thenReturn(new YamlConfiguration());
+        when(plugin.getName()).thenReturn("SyncInv");
+        when(messenger.getServerName()).thenReturn("server1");
+        when(messenger.getServerGroup()).thenReturn("survival");
+        knownPlayers = new KnownPlayers(plugin, messenger);
+    }
+
+    @AfterEach
+    void shutdown() {
+        knownPlayers.shutdown();
+    }
+
+    private static byte[] createFilter(UUID... playerIds) throws IOException {
+        BloomFilter<UUID> filter = BloomFilter.create(UUID_FUNNEL, 1000, 0.000001);
+        for (UUID playerId : playerIds) {
+            filter.put(playerId);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        filter.writeTo(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    void withoutFilter() {
+        assertTrue(knownPlayers.mightKnow("a", unknown));
+    }
+
+    @Test
+    void filter() throws IOException {
+        knownPlayers.setPeerFilter("a", 1, 0, createFilter(known));
+        assertTrue(knownPlayers.mightKnow("a", known));
+        assertFalse(knownPlayers.mightKnow("a", unknown));
+        assertTrue(knownPlayers.mightKnow("b", unknown));
+    }
+
+    @Test
+    void invalidFilter() throws IOException {
+        knownPlayers.setPeerFilter("a", 1, 0, createFilter(known));
+        knownPlayers.setPeerFilter("a", 1, 0, new byte[]{1, 2, 3});
+        assertTrue(knownPlayers.mightKnow("a", unknown));
+    }
+
+    @Test
+    void additions() throws IOException {
+        knownPlayers.setPeerFilter("a", 1, 0, createFilter());
+        knownPlayers.addToPeer("a", 1, 1, new UUID[]{known});
+        assertTrue(knownPlayers.mightKnow("a", known));
+        assertFalse(knownPlayers.mightKnow("a", unknown));
+    }
+
+    @Test
+    void missedAddition() throws IOException {
+        knownPlayers.setPeerFilter("a", 1, 0, createFilter());
+        knownPlayers.addToPeer("a", 1, 2, new UUID[]{known});
+        // Addition 1 might have contained any player
+        assertTrue(knownPlayers.mightKnow("a", unknown));
+        knownPlayers.addToPeer("a", 1, 3, new UUID[]{UUID.randomUUID()});
+        assertTrue(knownPlayers.mightKnow("a", unknown));
+
+        knownPlayers.setPeerFilter("a", 1, 3, createFilter(known));
+        assertTrue(knownPlayers.mightKnow("a", known));
+        assertFalse(knownPlayers.mightKnow("a", unknown));
+    }
+
+    @Test
+    void outdatedFilter() throws IOException {
+        knownPlayers.setPeerFilter("a", 1, 0, createFilter());
+        knownPlayers.addToPeer("a", 1, 1, new UUID[]{known});
+        // Sent before the addition but received after it
+        knownPlayers.setPeerFilter("a", 1, 0, createFilter());
+        assertTrue(knownPlayers.mightKnow("a", unknown));
+
+        knownPlayers.setPeerFilter("a", 1, 1, createFilter(known));
+        assertFalse(knownPlayers.mightKnow("a", unknown));
+    }
+
+    @Test
+    void restartedServer() throws IOException {
+        knownPlayers.setPeerFilter("a", 1, 5, createFilter());
+        knownPlayers.addToPeer("a", 2, 1, new UUID[]{known});
+        // The filter of the new run wasn't received yet
+        assertTrue(knownPlayers.mightKnow("a", unknown));
+        // Late messages of the old run don't replace the new one
+        knownPlayers.setPeerFilter("a", 1, 6, createFilter());
+        assertTrue(knownPlayers.mightKnow("a", unknown));
+
+        knownPlayers.setPeerFilter("a", 2, 1, createFilter(known));
+        assertFalse(knownPlayers.mightKnow("a", unknown));
+    }
+
+    @Test
+    void sendsFilterAndAdditions() {
+        LastSeenIndex index = mock(LastSeenIndex.class);
+        when(index.isScanned()).thenReturn(true);
+        when(plugin.getLastSeenIndex()).thenReturn(index);
+
+        // Built and sent by the first refresh
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(messenger, timeout(5000)).sendMessage(eq(GROUP), captor.capture(), eq(false));
+        Message filterMessage = captor.getValue();
+        assertEquals(MessageType.KNOWN_PLAYERS, filterMessage.getType());
+        List<Object> filterData = Arrays.asList(filterMessage.getData().toArray());
+        assertEquals(0L, filterData.get(1));
+
+        knownPlayers.add(known);
+        // Already in the filter, nothing to send
+        knownPlayers.add(known);
+        verify(messenger, times(2)).sendMessage(eq(GROUP), captor.capture(), eq(false));
+        Message addedMessage = captor.getValue();
+        assertEquals(MessageType.KNOWN_PLAYERS_ADDED, addedMessage.getType());
+        List<Object> addedData = Arrays.asList(addedMessage.getData().toArray());
+        assertEquals(filterData.get(0), addedData.get(0));
+        assertEquals(1L, addedData.get(1));
+        assertArrayEquals(new UUID[]{known}, (UUID[]) addedData.get(2));
+
+        // A receiver of both knows the player
+        knownPlayers.setPeerFilter("a", (long) filterData.get(0), (long) filterData.get(1), (byte[]) filterData.get(2));
+        knownPlayers.addToPeer("a", (long) addedData.get(0), (long) addedData.get(1), (UUID[]) addedData.get(2));
+        assertTrue(knownPlayers.mightKnow("a", known));
+        assertFalse(knownPlayers.mightKnow("a", unknown));
+    }
+}
@@ -0,0 +1,157 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.minebench.syncinv.SyncInv;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class LastSeenGossipTest {
+    private static final String GROUP = "group:survival";
+
+    private final SyncInv plugin = mock(SyncInv.class);
+    private final ServerMessenger messenger = mock(ServerMessenger.class);
+    private final LastSeenGossip gossip;
+    private final UUID playerId = UUID.randomUUID();
+
+    LastSeenGossipTest() {
+        YamlConfiguration config = new YamlConfiguration();
+        // Long enough to never send periodically while testing
+        config.set("messaging.gossip.interval", 60000);
+        when(plugin.getConfig()).thenReturn(config);
+        when(plugin.getName()).thenReturn("SyncInv");
+        when(messenger.getServerName()).thenReturn("server1");
+        when(messenger.getServerGroup()).thenReturn("survival");
+        gossip = new LastSeenGossip(plugin, messenger);
+    }
+
+    @AfterEach
+    void shutdown() {
+        gossip.shutdown();
+    }
+
+    @Test
+    void resolvesFromView() {
+        long now = System.currentTimeMillis();
+        gossip.onGossip("a", 1, now - 10000, new UUID[0], new long[0]);
+        gossip.onGossip("a", 2, now, new UUID[]{playerId}, new long[]{now - 5000});
+        gossip.onGossip("b", 7, now - 10000, new UUID[0], new long[0]);
+        gossip.onGossip("b", 8, now, new UUID[0], new long[0]);
+
+        PlayerDataQuery query = new PlayerDataQuery(playerId, now - 8000, null);
+        assertTrue(gossip.resolve(query, Arrays.asList("a", "b")));
+        assertEquals(now - 5000, query.getServers().get("a"));
+        assertEquals(0, query.getServers().get("b"));
+        assertEquals("a", query.getYoungestServer());
+    }
+
+    @Test
+    void onlineSighting() {
+        long now = System.currentTimeMillis();
+        gossip.onGossip("a", 1, now - 10000, new UUID[0], new long[0]);
+        gossip.onGossip("a", 2, now, new UUID[]{playerId}, new long[]{-(now - 5000)});
+
+        PlayerDataQuery query = new PlayerDataQuery(playerId, 0, null);
+        assertTrue(gossip.resolve(query, Collections.singletonList("a")));
+        assertTrue(query.getServers().get("a") >= query.getTimestamp());
+    }
+
+    @Test
+    void unknownServer() {
+        long now = System.currentTimeMillis();
+        gossip.onGossip("a", 1, now - 10000, new UUID[0], new long[0]);
+        gossip.onGossip("a", 2, now, new UUID[]{playerId}, new long[]{now - 5000});
+
+        PlayerDataQuery query = new PlayerDataQuery(playerId, 0, null);
+        assertFalse(gossip.resolve(query, Arrays.asList("a", "b")));
+        assertTrue(query.getServers().isEmpty());
+    }
+
+    @Test
+    void notCoveredUntilQuery() {
+        long now = System.currentTimeMillis();
+        gossip.onGossip("a", 1, now - 10000, new UUID[0], new long[0]);
+        // The server might have changes between this and the query that it didn't send yet
+        gossip.onGossip("a", 2, now - LastSeenGossip.COVERAGE_MARGIN * 4, new UUID[]{playerId}, new long[]{now - 5000});
+
+        PlayerDataQuery query = new PlayerDataQuery(playerId, 0, null);
+        assertFalse(gossip.resolve(query, Collections.singletonList("a")));
+
+        gossip.onGossip("a", 3, System.currentTimeMillis(), new UUID[0], new long[0]);
+        assertTrue(gossip.resolve(query, Collections.singletonList("a")));
+    }
+
+    @Test
+    void missedMessage() {
+        long now = System.currentTimeMillis();
+        gossip.onGossip("a", 1, now - 10000, new UUID[0], new long[0]);
+        gossip.onGossip("a", 3, now, new UUID[0], new long[0]);
+
+        // Message 2 might have contained the player
+        PlayerDataQuery query = new PlayerDataQuery(playerId, now - 5000, null);
+        assertFalse(gossip.resolve(query, Collections.singletonList("a")));
+
+        // Changes after the gap are trusted again
+        long later = System.currentTimeMillis();
+        gossip.onGossip("a", 4, later, new UUID[]{playerId}, new long[]{later});
+        assertTrue(gossip.resolve(query, Collections.singletonList("a")));
+        assertEquals(later, query.getServers().get("a"));
+    }
+
+    @Test
+    void onlySentOnJoinRightAway() {
+        gossip.record(UUID.randomUUID(), System.currentTimeMillis(), false);
+        verify(messenger, after(200).never()).sendMessage(any(), any(Message.class), eq(false));
+
+        long joined = System.currentTimeMillis();
+        gossip.record(playerId, joined, true);
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(messenger, timeout(1000)).sendMessage(eq(GROUP), captor.capture(), eq(false));
+
+        Message message = captor.getValue();
+        assertEquals(MessageType.LAST_SEEN_GOSSIP, message.getType());
+        List<Object> data = Arrays.asList(message.getData().toArray());
+        assertEquals(1L, data.get(0));
+        UUID[] playerIds = (UUID[]) data.get(2);
+        long[] lastSeens = (long[]) data.get(3);
+        // The earlier change is sent along in the order they happened
+        assertEquals(2, playerIds.length);
+        assertEquals(playerId, playerIds[1]);
+        assertArrayEquals(new long[]{lastSeens[0], -joined}, lastSeens);
+    }
+}
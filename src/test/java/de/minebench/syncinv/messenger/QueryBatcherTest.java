@@ -0,0 +1,97 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class QueryBatcherTest {
+    private static final long WINDOW = 100;
+
+    @SuppressWarnings("unchecked")
+    private final Consumer<List<PlayerDataQuery>> sender = mock(Consumer.class);
+    private final QueryBatcher batcher = new QueryBatcher("Test Batcher", 3, WINDOW, sender);
+
+    @AfterEach
+    void shutdown() {
+        batcher.shutdown();
+    }
+
+    private static PlayerDataQuery createQuery() {
+        return new PlayerDataQuery(UUID.randomUUID(), 0, null);
+    }
+
+    @Test
+    void sentAfterWindow() {
+        PlayerDataQuery first = createQuery();
+        PlayerDataQuery second = createQuery();
+        batcher.add(first);
+        batcher.add(second);
+        verify(sender, after(WINDOW / 2).never()).accept(any());
+        verify(sender, timeout(WINDOW * 10)).accept(Arrays.asList(first, second));
+    }
+
+    @Test
+    void sentWhenFull() {
+        List<PlayerDataQuery> queries = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            PlayerDataQuery query = createQuery();
+            queries.add(query);
+            batcher.add(query);
+        }
+        // The full batch is sent by the thread that filled it
+        verify(sender).accept(queries.subList(0, 3));
+        verify(sender, timeout(WINDOW * 10)).accept(Collections.singletonList(queries.get(3)));
+    }
+
+    @Test
+    void flush() {
+        batcher.flush();
+        verify(sender, never()).accept(any());
+
+        PlayerDataQuery query = createQuery();
+        batcher.add(query);
+        batcher.flush();
+        verify(sender).accept(Collections.singletonList(query));
+        // The window of the flushed batch doesn't send anything anymore
+        verify(sender, after(WINDOW * 2).times(1)).accept(any());
+    }
+
+    @Test
+    void shutdownDropsWaiting() {
+        batcher.add(createQuery());
+        batcher.shutdown();
+        verify(sender, after(WINDOW * 2).never()).accept(any());
+    }
+}
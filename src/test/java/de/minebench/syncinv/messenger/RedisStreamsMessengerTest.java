@@ -0,0 +1,226 @@
+package de.minebench.syncinv.messenger;
+
+/*
+ * SyncInv
+ * Copyright (c) 2021 Max Lee aka Phoenix616 (max@themoep.de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+import de.minebench.syncinv.SyncInv;
+import io.lettuce.core.Consumer;
+import io.lettuce.core.PendingMessages;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisException;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XAddArgs;
+import io.lettuce.core.XGroupCreateArgs;
+import io.lettuce.core.XReadArgs;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+import org.bukkit.Server;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs against the Redis server at the SYNCINV_TEST_REDIS uri (redis://localhost:6379 by default),
+ * skipped if it isn't reachable
+ */
+class RedisStreamsMessengerTest {
+    private static final String REDIS_URI = System.getenv().getOrDefault("SYNCINV_TEST_REDIS", "redis://localhost:6379");
+    private static final String STREAM_PREFIX = "syncinv:stream:" + BinaryMessageCodec.VERSION + ":";
+    private static final long TIMEOUT = 5000;
+
+    private static boolean reachable;
+
+    private final String serverGroup = "test-" + UUID.randomUUID();
+    private final String serverName = "test-" + UUID.randomUUID();
+    private final String ownStream = STREAM_PREFIX + serverName;
+    private final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+    private final List<RedisStreamsMessenger> messengers = new ArrayList<>();
+
+    private RedisClient client;
+    private StatefulRedisConnection<String, String> connection;
+    private RedisCommands<String, String> commands;
+
+    @BeforeAll
+    static void checkRedis() {
+        RedisClient client = RedisClient.create(REDIS_URI);
+        client.setDefaultTimeout(Duration.ofSeconds(1));
+        try (StatefulRedisConnection<String, String> connection = client.connect()) {
+            reachable = "PONG".equals(connection.sync().ping());
+        } catch (RedisException e) {
+            reachable = false;
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @BeforeEach
+    void connect() {
+        assumeTrue(reachable, "No Redis server reachable at " + REDIS_URI);
+        client = RedisClient.create(REDIS_URI);
+        connection = client.connect();
+        commands = connection.sync();
+    }
+
+    @AfterEach
+    void cleanUp() {
+        for (RedisStreamsMessenger messenger : messengers) {
+            messenger.goodbye();
+        }
+        if (commands != null) {
+            commands.del(ownStream, STREAM_PREFIX + "group:" + serverGroup);
+            try {
+                commands.xgroupDestroy(STREAM_PREFIX + "*", serverName);
+            } catch (RedisException ignored) {} // Stream doesn't exist
+            connection.close();
+            client.shutdown();
+        }
+    }
+
+    private RedisStreamsMessenger createMessenger(long maxLength) {
+        YamlConfiguration config = new YamlConfiguration();
+        config.set("redis.uri", REDIS_URI);
+        config.set("redis.timeout", 5);
+        config.set("redis.streams.max-length", maxLength);
+        config.set("redis.streams.block-time", 100);
+        config.set("redis.streams.max-age", 60);
+        config.set("server-group", serverGroup);
+        config.set("server-name", serverName);
+        config.set("messaging.legacy-format", false);
+        config.set("messaging.compression-dictionary", false);
+
+        SyncInv plugin = mock(SyncInv.class);
+        when(plugin.getConfig()).thenReturn(config);
+        when(plugin.getName()).thenReturn("SyncInv");
+        when(plugin.getLogger()).thenReturn(Logger.getLogger(getClass().getName()));
+        when(plugin.getServer()).thenReturn(mock(Server.class));
+
+        RedisStreamsMessenger messenger = new RedisStreamsMessenger(plugin) {
+            @Override
+            protected void onMessage(String channelTarget, MessageCodec codec, byte[] bytes) {
+                received.add(bytes);
+            }
+        };
+        messengers.add(messenger);
+        return messenger;
+    }
+
+    private long getPendingCount() {
+        PendingMessages pending = commands.xpending(ownStream, serverName);
+        return pending.getCount();
+    }
+
+    private String getStreamStats(RedisStreamsMessenger messenger) {
+        for (String line : messenger.getStats()) {
+            if (line.startsWith("Read stream messages")) {
+                return line;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    void deliversAndAcknowledges() throws InterruptedException {
+        RedisStreamsMessenger messenger = createMessenger(10000);
+        byte[] bytes = "message".getBytes(StandardCharsets.UTF_8);
+        messenger.sendMessageImplementation(serverName, BinaryMessageCodec.VERSION, bytes, true);
+
+        assertArrayEquals(bytes, received.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, getPendingCount());
+    }
+
+    @Test
+    void recoversUnacknowledged() throws InterruptedException {
+        // Delivered to this server's consumer before it crashed without acknowledging it
+        commands.xgroupCreate(XReadArgs.StreamOffset.latest(ownStream), serverName, XGroupCreateArgs.Builder.mkstream());
+        commands.xadd(ownStream, "data", "unacknowledged");
+        List<StreamMessage<String, String>> delivered = commands.xreadgroup(Consumer.from(serverName, serverName),
+                XReadArgs.StreamOffset.lastConsumed(ownStream));
+        assertEquals(1, delivered.size());
+        assertEquals(1, getPendingCount());
+
+        RedisStreamsMessenger messenger = createMessenger(10000);
+        assertArrayEquals("unacknowledged".getBytes(StandardCharsets.UTF_8), received.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, getPendingCount());
+        String stats = getStreamStats(messenger);
+        assertNotNull(stats);
+        assertTrue(stats.contains("recovered unacknowledged: 1"), stats);
+    }
+
+    @Test
+    void skipsTooOld() throws InterruptedException {
+        commands.xgroupCreate(XReadArgs.StreamOffset.latest(ownStream), serverName, XGroupCreateArgs.Builder.mkstream());
+        // The id is the time the message was added at, long before the max age
+        commands.xadd(ownStream, new XAddArgs().id("1-1"), "data", "old");
+
+        RedisStreamsMessenger messenger = createMessenger(10000);
+        byte[] bytes = "new".getBytes(StandardCharsets.UTF_8);
+        messenger.sendMessageImplementation(serverName, BinaryMessageCodec.VERSION, bytes, true);
+        // Messages are read in order, the old one would have been received first
+        assertArrayEquals(bytes, received.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertNull(received.poll());
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, getPendingCount());
+        String stats = getStreamStats(messenger);
+        assertNotNull(stats);
+        assertTrue(stats.contains("skipped as too old: 1"), stats);
+    }
+
+    @Test
+    void trimsStreams() {
+        RedisStreamsMessenger messenger = createMessenger(10);
+        byte[] bytes = "message".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < 1000; i++) {
+            messenger.sendMessageImplementation("group:" + serverGroup, BinaryMessageCodec.VERSION, bytes, true);
+        }
+        // Trimming is approximate, whole nodes of the stream get removed
+        long length = commands.xlen(STREAM_PREFIX + "group:" + serverGroup);
+        assertTrue(length < 1000, "Stream has " + length + " entries");
+    }
+}